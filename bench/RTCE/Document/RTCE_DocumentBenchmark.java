@@ -0,0 +1,124 @@
+package RTCE.Document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the edits of a RTCE_Document, for each storage engine and
+ * document size.
+ *
+ * Strategy: -Every benchmark inserts a character and deletes it again, so the
+ *           document keeps its size for the whole run
+ *
+ *           -Edit at the start, in the middle and at the end of the text: the
+ *           StringBuffer storage pays for the text after the edit, the rope
+ *           should not
+ *
+ *           -Read the whole text and a small range, which is what 'view' and
+ *           the snapshots cost
+ *
+ *           -Build the response of 'view' and write it out: the old way (copy
+ *           the text, URL encode it, add the EOF line, encode the String to
+ *           bytes) against writing a RTCE_Snapshot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTCE_DocumentBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"buffer", "rope"})
+    public String storage;
+
+    private RTCE_Document doc;
+
+    // stands for the socket: counts the bytes so the writes can't be optimized away
+    private final CountingStream sink = new CountingStream();
+
+    @Setup
+    public void setUp() {
+        doc = new RTCE_Document("bench.txt",
+                storage.equals("rope") ? new RTCE_RopeStorage() : new RTCE_StringBufferStorage());
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        doc.insert(0, sb.toString());
+    }
+
+    @Benchmark
+    public void insertDeleteStart() {
+        doc.insert(0, "x");
+        doc.delete(0, 1);
+    }
+
+    @Benchmark
+    public void insertDeleteMiddle() {
+        int middle = size / 2;
+        doc.insert(middle, "x");
+        doc.delete(middle, middle + 1);
+    }
+
+    @Benchmark
+    public void insertDeleteEnd() {
+        doc.insert(size, "x");
+        doc.delete(size, size + 1);
+    }
+
+    @Benchmark
+    public String getAllText() {
+        return doc.getAllText();
+    }
+
+    @Benchmark
+    public String getTextAtPos() {
+        int middle = size / 2;
+        return doc.getTextAtPos(middle, middle + 80);
+    }
+
+    @Benchmark
+    public long viewEncodeString() throws IOException {
+        String response = URLEncoder.encode(doc.getAllText(), "UTF-8") + String.format("%n") + "EOF";
+        sink.write(response.getBytes("UTF-8"));
+        return sink.count;
+    }
+
+    @Benchmark
+    public long viewSnapshot() throws IOException {
+        doc.getSnapshot().writeTo(sink);
+        return sink.count;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package RTCE.Server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of parsing one request line, without handling it: the regular
+ * expression that handleRequest used to match every line against (and the
+ * three splits it did afterwards), against the command table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTCE_ParserBenchmark {
+
+    private static final String REGEX = "(view)|(insert \\d+ \\p{ASCII}*)|(delete \\d+ \\d+)|(help)|(list)|" +
+            "(switch \\w+\\.txt)|(new \\w+\\.txt)|(new)|(exit)|(replaceAll \\p{ASCII}+\\s\\p{ASCII}+$)|" +
+            "(replaceOne \\p{ASCII}+\\s\\p{ASCII}+$)|(style \\d+ \\d+ \\d+ \\d+)|(giveStyle)|(hello)|" +
+            "(subscribe)|(listen \\w+)|(ack)|(snapshot)|(since \\d{1,18})|" +
+            "(edit \\d{1,18} insert \\d+ \\p{ASCII}*)|(edit \\d{1,18} delete \\d+ \\d+)";
+
+    @Param({"ack", "insert 1234 the quick brown fox", "edit 987654 delete 12 15", "frobnicate 1 2 3"})
+    public String line;
+
+    @Benchmark
+    public Object regex() {
+        if (!line.matches(REGEX)) {
+            return null;
+        }
+        String[] tokens = line.split(" ");
+        String[] editTokens = line.split(" ", 3);
+        return tokens[0].equals("insert") ? editTokens : tokens;
+    }
+
+    @Benchmark
+    public Object table() {
+        RTCE_Command command = RTCE_Server.commandFor(line);
+        if (command == null) {
+            return null;
+        }
+        String[] tokens = command.tokenize(line);
+        return command.accepts(tokens) ? tokens : null;
+    }
+}
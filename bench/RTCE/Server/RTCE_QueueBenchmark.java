@@ -0,0 +1,88 @@
+package RTCE.Server;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RTCE.Document.RTCE_Document;
+
+/**
+ * Cost of resolving a queue of n pending requests, one request at a time
+ * with resolveRequest (every resolved request transforms all the others)
+ * and as one batch with resolveAll (which first composes the consecutive
+ * edits of each user).
+ *
+ * The requests are a mix of the keystrokes of a few users: each user types
+ * words of WORD characters at its own place in the document, and the words of
+ * the users are interleaved. So consecutive requests of a user compose and
+ * requests of different users are transformed against each other.
+ * The queue is refilled before every invocation, and the time is per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTCE_QueueBenchmark {
+
+    static final int WORD = 8;
+
+    @Param({"10", "100", "1000"})
+    public int pending;
+
+    @Param({"1", "4"})
+    public int users;
+
+    private RTCE_Document doc;
+    private RTCE_Queue queue;
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        doc = new RTCE_Document("bench.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        doc.insert(0, sb.toString());
+        queue = doc.getQueue();
+        RTCE_User[] typists = new RTCE_User[users];
+        for (int u = 0; u < users; u++) {
+            typists[u] = new RTCE_User(new Thread(), "typist" + u, new Socket());
+        }
+        for (int i = 0; i < pending; i++) {
+            int word = i / WORD;
+            int u = word % users;
+            int typed = (word / users) * WORD + i % WORD; // characters this user typed so far
+            RTCE_Request request = new RTCE_Request("insert", 1000 * (u + 1) + typed, "x", doc);
+            request.setOrigin(typists[u]);
+            queue.addRequest(request);
+        }
+    }
+
+    @Benchmark
+    public int resolveOneByOne() {
+        int resolved = 0;
+        while (queue.resolveRequest() != null) {
+            resolved++;
+        }
+        return resolved;
+    }
+
+    @Benchmark
+    public int resolveAll() {
+        return queue.resolveAll().size();
+    }
+}
@@ -0,0 +1,74 @@
+package RTCE.Server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RTCE.Document.RTCE_Document;
+
+/**
+ * Cost of RTCE_Request.applyTransform for each configuration of two edits
+ * (see RTCE_RequestTest for the cases). Every call transforms a fresh
+ * request, since a transform changes the request it is applied to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTCE_RequestBenchmark {
+
+    @Param({"noOverlapSucceeding", "noOverlapPreceding", "deleteDelete", "deleteContained",
+        "insertInsert", "deleteInsert", "insertDelete"})
+    public String overlap;
+
+    private RTCE_Document doc;
+    private RTCE_Request other;
+
+    @Setup
+    public void setUp() {
+        doc = new RTCE_Document("bench.txt");
+        doc.insert(0, "the quick brown fox jumps over the lazy dog");
+        if (overlap.equals("noOverlapSucceeding")) {
+            other = new RTCE_Request("insert", 30, "very ", doc);
+        } else if (overlap.equals("noOverlapPreceding")) {
+            other = new RTCE_Request("delete", 0, 4, doc);
+        } else if (overlap.equals("deleteDelete")) {
+            other = new RTCE_Request("delete", 8, 14, doc);
+        } else if (overlap.equals("deleteContained")) {
+            other = new RTCE_Request("delete", 4, 20, doc);
+        } else if (overlap.equals("insertInsert")) {
+            other = new RTCE_Request("insert", 10, "red ", doc);
+        } else if (overlap.equals("deleteInsert")) {
+            other = new RTCE_Request("delete", 8, 16, doc);
+        } else { // insertDelete
+            other = new RTCE_Request("insert", 12, "and ", doc);
+        }
+    }
+
+    @Benchmark
+    public RTCE_Request transform() {
+        RTCE_Request request;
+        if (overlap.endsWith("Insert")) {
+            request = new RTCE_Request("insert", 10, "big ", doc);
+        } else {
+            request = new RTCE_Request("delete", 10, 16, doc);
+        }
+        request.applyTransform(other);
+        if (request.getSplit() != null) {
+            doc.getQueue().removeRequest(request.getSplit()); // keep the queue of the document empty
+        }
+        return request;
+    }
+}
@@ -0,0 +1,73 @@
+package RTCE.Server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of RTCE_Server.handleRequest: decoding, matching and dispatching a
+ * request line, for requests that do little else (so the parsing dominates)
+ * and for an edit, which also goes through the sequencer of the document.
+ * The view benchmarks poll an unchanged document, so every poll after the
+ * first one reuses the cached snapshot of the document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTCE_ServerBenchmark {
+
+    private RTCE_User user;
+
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        user = new RTCE_User(new Thread(), "bench", new Socket());
+        RTCE_Server.handleRequest("new", user); // a document of its own, "new bench.txt" would join the same one
+        RTCE_Server.handleRequest("ack", user);
+        RTCE_Server.handleRequest("insert 0 the+quick+brown+fox", user);
+    }
+
+    @Benchmark
+    public String invalid() throws UnsupportedEncodingException {
+        return RTCE_Server.handleRequest("frobnicate 1 2 3", user);
+    }
+
+    @Benchmark
+    public String help() throws UnsupportedEncodingException {
+        return RTCE_Server.handleRequest("help", user);
+    }
+
+    @Benchmark
+    public String giveStyle() throws UnsupportedEncodingException {
+        return RTCE_Server.handleRequest("giveStyle", user);
+    }
+
+    @Benchmark
+    public String view() throws UnsupportedEncodingException {
+        return RTCE_Server.handleRequest("view", user);
+    }
+
+    @Benchmark
+    public Object streamView() throws UnsupportedEncodingException {
+        return RTCE_Server.streamRequest("view", user);
+    }
+
+    @Benchmark
+    public String insertDelete() throws UnsupportedEncodingException {
+        RTCE_Server.handleRequest("insert 4 x", user);
+        return RTCE_Server.handleRequest("delete 4 5", user);
+    }
+}
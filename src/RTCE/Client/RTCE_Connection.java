@@ -0,0 +1,324 @@
+package RTCE.Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import RTCE.Server.RTCE_Frame;
+/*
+ * Thread safety argument
+ * Any thread can submit requests. Submitting takes the monitor of the connection (writeLock)
+ * only to put the request in the queue of pending requests and write it, so the requests are
+ * written in the order of the queue. Nobody holds that monitor while waiting for an answer. The answers are read by a single thread, the
+ * reader thread, which is the only one that takes requests out of the queue: the server answers
+ * the requests of a connection in the order it got them, so every answer belongs to the oldest
+ * pending request. The pending queue is a ConcurrentLinkedQueue, so the reader sees every
+ * request written before the answer to it arrived. The futures are completed by the reader
+ * thread, and closed is volatile so that submit sees a connection that failed.
+ */
+/**
+ * A connection of a client to the server. Any number of requests can be on
+ * their way at the same time: each one gets a CompletableFuture, is written
+ * right away, and a dedicated reader thread completes the future of each
+ * answer as it arrives. Nobody waits for the answer of someone else's request
+ * before sending their own, and the client keeps as many requests in flight as
+ * it needs. The server answers them in the order it got them, so an answer
+ * still waits for the ones before it: a request the server is slow to answer
+ * holds up the next ones. The controller sends its polls on a connection of
+ * their own for that reason (see RTCE_Controller).
+ *
+ * The connection uses the binary framing (see RTCE_Frame) if the server
+ * agrees to it, and URL encoded lines ending with "EOF" otherwise. The
+ * answers are what RTCE_Controller.makeRequest returns: URL decoded.
+ */
+public class RTCE_Connection implements Runnable {
+
+    private final Socket socket;
+    private final BufferedReader inStream;
+    private final PrintWriter outStream;
+    // set once the server agreed to the binary framing, null while we use lines
+    private InputStream frameIn;
+    private OutputStream frameOut;
+    private final Object writeLock = new Object();
+    // the answers of the requests on their way, in the order they were written
+    private final ConcurrentLinkedQueue<CompletableFuture<String>> pending = new ConcurrentLinkedQueue<CompletableFuture<String>>();
+    private volatile boolean closed = false;
+
+    /**
+     * Opens a connection to the server, asks for the binary framing unless
+     * the RTCE.framing system property is "line", and starts the reader thread.
+     * @param String ipAddress, the IP address or host name of the server.
+     * @param int port, the port of the server.
+     * @return RTCE_Connection, the connection, ready for requests.
+     * @throws IOException if the connection could not be made.
+     */
+    public static RTCE_Connection open(String ipAddress, int port) throws IOException {
+        RTCE_Connection connection = new RTCE_Connection(ipAddress, port);
+        // started once the connection is constructed, so the reader never sees it half made
+        Thread t = new Thread(connection, "RTCE-connection");
+        t.setDaemon(true);
+        t.start();
+        return connection;
+    }
+
+    /**
+     * Constructor for a connection whose reader thread is not started yet,
+     * see open.
+     * @param String ipAddress, the IP address or host name of the server.
+     * @param int port, the port of the server.
+     * @throws IOException if the connection could not be made.
+     */
+    private RTCE_Connection(String ipAddress, int port) throws IOException {
+        socket = new Socket(ipAddress, port);
+        outStream = new PrintWriter(socket.getOutputStream(), true);
+        inStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        negotiateFraming();
+    }
+
+    /**
+     * Asks the server to switch the connection to the binary framing, unless
+     * the RTCE.framing system property is "line". A server that can't switch
+     * answers with its welcome message, and the connection keeps using lines.
+     * Done before the reader thread starts, nothing else is in flight.
+     * @throws IOException
+     */
+    private void negotiateFraming() throws IOException {
+        if ("line".equals(System.getProperty("RTCE.framing"))) {
+            return;
+        }
+        outStream.println(URLEncoder.encode("hello binary", "UTF-8"));
+        StringBuilder response = new StringBuilder();
+        for (String line = inStream.readLine(); line != null && !line.equals("EOF"); line = inStream.readLine()) {
+            response.append(line);
+        }
+        if (response.toString().equals("binary")) {
+            // the server sends nothing before our next request, so inStream has nothing buffered
+            frameIn = new BufferedInputStream(socket.getInputStream());
+            frameOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+    }
+
+    /**
+     * Sends a request without waiting for its answer.
+     * @param String request, the request, following the protocol (see RTCE_Server).
+     * @return CompletableFuture<String>, completed with the answer of the
+     * server, or exceptionally with an IOException if the connection failed.
+     */
+    public CompletableFuture<String> submit(String request) {
+        List<String> requests = new ArrayList<String>();
+        requests.add(request);
+        return submitAll(requests).get(0);
+    }
+
+    /**
+     * Sends several requests in a row, with a single flush, without waiting
+     * for their answers.
+     * @param List<String> requests, the requests, in order.
+     * @return List<CompletableFuture<String>>, the future answer of each request.
+     */
+    public List<CompletableFuture<String>> submitAll(List<String> requests) {
+        List<CompletableFuture<String>> answers = new ArrayList<CompletableFuture<String>>();
+        synchronized (writeLock) {
+            try {
+                for (String request : requests) {
+                    CompletableFuture<String> answer = new CompletableFuture<String>();
+                    answers.add(answer);
+                    if (closed) {
+                        answer.completeExceptionally(new IOException("Connection closed."));
+                        continue;
+                    }
+                    pending.add(answer);
+                    write(request);
+                }
+                if (frameOut != null) {
+                    frameOut.flush();
+                } else {
+                    outStream.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Sends several requests in a row, like submitAll, and gives their answers
+     * together once the last one arrived.
+     * @param List<String> requests, the requests, in order.
+     * @return CompletableFuture<List<String>>, completed with the answer to
+     * each request, in order, or exceptionally if the connection failed.
+     */
+    public CompletableFuture<List<String>> submitBatch(List<String> requests) {
+        final List<CompletableFuture<String>> answers = submitAll(requests);
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[answers.size()]))
+            .thenApply(new Function<Void, List<String>>() {
+                public List<String> apply(Void done) {
+                    List<String> responses = new ArrayList<String>();
+                    for (CompletableFuture<String> answer : answers) {
+                        responses.add(answer.join());
+                    }
+                    return responses;
+                }
+            });
+    }
+
+    /**
+     * Writes a request, without flushing. 'replace' requests are sent as
+     * they are on a line connection: the controller encodes their pattern
+     * and text itself.
+     */
+    private void write(String request) throws IOException {
+        if (frameOut != null) {
+            RTCE_Frame.request(request).writeTo(frameOut);
+        } else if (request.startsWith("replace")) {
+            outStream.print(request + String.format("%n"));
+        } else {
+            outStream.print(URLEncoder.encode(request, "UTF-8") + String.format("%n"));
+        }
+    }
+
+    /**
+     * Sends a request and waits for its answer.
+     * @param String request, the request.
+     * @return String, the answer of the server.
+     * @throws IOException if the connection failed.
+     */
+    public String request(String request) throws IOException {
+        return await(submit(request));
+    }
+
+    /**
+     * Sends several requests in a row and waits for all of their answers.
+     * @param List<String> requests, the requests, in order.
+     * @return List<String>, the answer to each request, in order.
+     * @throws IOException if the connection failed.
+     */
+    public List<String> requests(List<String> requests) throws IOException {
+        List<String> responses = new ArrayList<String>();
+        for (CompletableFuture<String> answer : submitAll(requests)) {
+            responses.add(await(answer));
+        }
+        return responses;
+    }
+
+    private static String await(CompletableFuture<String> answer) throws IOException {
+        try {
+            return answer.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the server.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads the answers and completes the future of each one, oldest request
+     * first, until the connection closes.
+     */
+    public void run() {
+        try {
+            while (true) {
+                String answer = readAnswer();
+                if (answer == null) {
+                    throw new IOException("The server closed the connection.");
+                }
+                CompletableFuture<String> p = pending.poll();
+                if (p == null) {
+                    throw new IOException("Answer to no request: " + answer);
+                }
+                p.complete(answer);
+            }
+        } catch (IOException e) {
+            synchronized (writeLock) {
+                fail(e);
+            }
+        } catch (RuntimeException e) {
+            synchronized (writeLock) {
+                fail(new IOException(e));
+            }
+        }
+    }
+
+    /**
+     * Reads one answer: one frame, or the lines before "EOF" joined and URL decoded.
+     * @return String, the answer, or null at the end of the stream.
+     */
+    private String readAnswer() throws IOException {
+        if (frameIn != null) {
+            RTCE_Frame frame = RTCE_Frame.readFrom(frameIn);
+            return frame == null ? null : frame.getText();
+        }
+        StringBuilder answer = new StringBuilder();
+        String line;
+        while ((line = inStream.readLine()) != null && !line.equals("EOF")) {
+            answer.append(line);
+            if (line.equals("exit")) {
+                break;
+            }
+        }
+        if (line == null) {
+            return null;
+        }
+        return URLDecoder.decode(answer.toString(), "UTF-8");
+    }
+
+    /**
+     * Fails every pending request and closes the socket. Called with writeLock
+     * held, so no request is added to the queue after it was emptied.
+     */
+    private void fail(IOException e) {
+        closed = true;
+        CompletableFuture<String> p;
+        while ((p = pending.poll()) != null) {
+            p.completeExceptionally(e);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+    }
+
+    /**
+     * Get the number of requests waiting for their answer.
+     * @return int, the number of requests in flight.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Tells if the connection failed or was closed.
+     * @return boolean, true if no more requests can be sent.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection. The requests still in flight fail.
+     */
+    public void close() {
+        synchronized (writeLock) {
+            fail(new IOException("Connection closed."));
+        }
+    }
+}
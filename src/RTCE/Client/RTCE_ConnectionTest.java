@@ -0,0 +1,213 @@
+package RTCE.Client;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import RTCE.Server.RTCE_Frame;
+
+/*
+ * Testing for the connection of the client.
+ *
+ * Strategy: a fake server, on a thread of the test, that reads a given
+ * number of requests before it answers any of them, and answers each one
+ * with "echo " and the request, in order.
+ *
+ *      1) Lines and binary framing: the answers are matched with their
+ *         requests, 'replace' requests are sent as they are on lines.
+ *
+ *      2) Pipelining: all the requests are written before the first answer
+ *         is read, from one thread (submitAll, submitBatch) or from many
+ *         threads at the same time, and every thread gets its own answers.
+ *
+ *      3) Failure: the requests in flight fail when the server closes the
+ *         connection or the client closes it, and so do the next ones.
+ */
+public class RTCE_ConnectionTest {
+
+    /**
+     * A server for one connection, that reads count requests, then answers
+     * them all, then closes the connection.
+     */
+    private static class FakeServer implements Runnable {
+        final ServerSocket serverSocket;
+        final boolean binary;
+        final int count;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final Thread thread = new Thread(this);
+
+        FakeServer(boolean binary, int count) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.binary = binary;
+            this.count = count;
+            thread.start();
+        }
+
+        RTCE_Connection connect() throws IOException {
+            return RTCE_Connection.open("localhost", serverSocket.getLocalPort());
+        }
+
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                in.readLine(); // hello binary
+                out.println(binary ? "binary" : "Welcome");
+                out.println("EOF");
+                InputStream frameIn = new BufferedInputStream(socket.getInputStream());
+                OutputStream frameOut = new BufferedOutputStream(socket.getOutputStream());
+                for (int i = 0; i < count; i++) {
+                    if (binary) {
+                        received.add(RTCE_Frame.readFrom(frameIn).getText());
+                    } else {
+                        received.add(in.readLine());
+                    }
+                }
+                for (String request : new ArrayList<String>(received)) {
+                    if (binary) {
+                        RTCE_Frame.response("echo " + request).writeTo(frameOut);
+                    } else {
+                        out.println(URLEncoder.encode("echo " + URLDecoder.decode(request, "UTF-8"), "UTF-8"));
+                        out.println("EOF");
+                    }
+                }
+                frameOut.flush();
+                Thread.sleep(100);
+                socket.close();
+                serverSocket.close();
+            } catch (Exception e) {
+                received.add("error " + e);
+            }
+        }
+    }
+
+    private static String get(CompletableFuture<String> answer) throws Exception {
+        return answer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void lines() throws Exception {
+        FakeServer server = new FakeServer(false, 3);
+        RTCE_Connection connection = server.connect();
+        List<CompletableFuture<String>> answers = connection.submitAll(
+            Arrays.asList("view", "insert 0 a b", "replaceOne a b"));
+        assertEquals("echo view", get(answers.get(0)));
+        assertEquals("echo insert 0 a b", get(answers.get(1)));
+        assertEquals("echo replaceOne a b", get(answers.get(2)));
+        // encoded, except for the replace request, sent as it is
+        assertEquals(Arrays.asList("view", "insert+0+a+b", "replaceOne a b"), server.received);
+        assertEquals(0, connection.inFlight());
+    }
+
+    @Test
+    public void binary() throws Exception {
+        FakeServer server = new FakeServer(true, 2);
+        RTCE_Connection connection = server.connect();
+        CompletableFuture<List<String>> answers = connection.submitBatch(Arrays.asList("list", "new a\nb"));
+        assertEquals(Arrays.asList("echo list", "echo new a\nb"), answers.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyThreads() throws Exception {
+        final int threads = 8;
+        final int each = 25;
+        FakeServer server = new FakeServer(true, threads * each);
+        final RTCE_Connection connection = server.connect();
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    List<CompletableFuture<String>> answers = new ArrayList<CompletableFuture<String>>();
+                    for (int i = 0; i < each; i++) {
+                        answers.add(connection.submit("view " + id + " " + i));
+                    }
+                    // nothing is answered before the server read all the requests
+                    for (int i = 0; i < each; i++) {
+                        try {
+                            String answer = get(answers.get(i));
+                            if (!answer.equals("echo view " + id + " " + i)) {
+                                errors.add(answer);
+                            }
+                        } catch (Exception e) {
+                            errors.add(e.toString());
+                        }
+                    }
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join(10000);
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(threads * each, server.received.size());
+    }
+
+    @Test
+    public void blocking() throws Exception {
+        FakeServer server = new FakeServer(false, 1);
+        RTCE_Connection connection = server.connect();
+        assertEquals("echo view", connection.request("view"));
+    }
+
+    @Test
+    public void serverCloses() throws Exception {
+        FakeServer server = new FakeServer(false, 1);
+        RTCE_Connection connection = server.connect();
+        assertEquals("echo view", get(connection.submit("view")));
+        CompletableFuture<String> unanswered = connection.submit("list");
+        try {
+            get(unanswered);
+            fail("the server closed the connection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(connection.isClosed());
+        try {
+            connection.request("view");
+            fail("the connection is closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void clientCloses() throws Exception {
+        FakeServer server = new FakeServer(false, 2);
+        RTCE_Connection connection = server.connect();
+        CompletableFuture<String> answer = connection.submit("view");
+        connection.close();
+        try {
+            get(answer);
+            fail("the client closed the connection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(connection.submit("list").isCompletedExceptionally());
+        assertEquals(0, connection.inFlight());
+    }
+}
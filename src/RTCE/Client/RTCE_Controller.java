@@ -1,15 +1,15 @@
 package RTCE.Client;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -17,6 +17,7 @@ import javax.swing.SwingWorker;
 import javax.swing.Timer;
 import javax.swing.text.BadLocationException;
 import RTCE.Client.RTCE_View;
+import RTCE.Document.RTCE_Operation;
 /*
  * thread safety argument
  * The controller communicates with the server and request real time updates from the server,
@@ -26,12 +27,30 @@ import RTCE.Client.RTCE_View;
  * are unique to the client. Thus the client is isolated from other clients
  * 
  * all of the actions that are related to a client server communication are performed inside
- * of a swing worker thread that prevents concurrency issues. Moreover the make request method
- * is synchronized to current that the request from a specific client will not interleave with each other
+ * of a swing worker thread that prevents concurrency issues. The requests go through the
+ * RTCE_Connection of the client, which writes each one whole and matches every answer with its
+ * request, so the requests from a specific client will not interleave with each other, and none
+ * of them waits for the answer of another one before being sent. The polls of the timers go
+ * through a second connection (pollConnection), so the edits are never answered after a slow
+ * poll; the server answers it for the same user. The polls are not ordered with the requests of
+ * the main connection anymore, so the answer to a poll made before the user opened another
+ * document is ignored (documentCount, only used on the event dispatch thread). The timers only poll when the
+ * previous poll of the same timer was answered: polling holds the timers whose poll is on its
+ * way, and is only used on the event dispatch thread. The delays of the timers, and what the
+ * polls already have (listVersion, styleShown and the styling fields), are also only changed on
+ * the event dispatch thread; each poll reads them there before its worker starts.
  * 
  * The constructor does not need to be synchronize because it is making a new object that is confined. 
  * Therefore, Java won't let you synchronize it. 
  * 
+ * The inserts and deletes typed by the user are queued in the RTCE_Outbox on the event dispatch
+ * thread, and sent by its single sending thread through the connection; the answers come back
+ * to editsAnswered on the event dispatch thread.
+ * 
+ * The pushed deltas are read by RTCE_Subscription on its own thread, but they are handed to
+ * handlePush through SwingUtilities.invokeLater, so they are applied on the event dispatch
+ * thread like every other update of the view.
+ * 
  * Finally we can guarantee full client functionality even with server delays and queuing of requests
  * thanks to our swing workers that perform all of the action in a background thread and update
  * the controller upon completion of their work.
@@ -68,15 +87,57 @@ public class RTCE_Controller implements ActionListener {
     private static String ipAddress = null;
     private String switchTo = "";
 
-    static PrintWriter outStream;
-    static BufferedReader inStream;
+    static RTCE_Connection connection;
+    // the connection the timers poll on, the main one if the server can't share the user
+    static RTCE_Connection pollConnection;
 
     /*
-     * Timers to listen for updates
+     * Timers to listen for updates. The polls only get an answer if something changed, and
+     * while nothing does each timer waits twice as long as before, up to the idle delay.
      */
-    private Timer listTimer = new Timer(5000,this);
-    private Timer viewTimer = new Timer(2000,this);
-    private Timer styleTimer = new Timer(2000, this);
+    private static final int LIST_DELAY = 5000;
+    private static final int VIEW_DELAY = 2000;
+    private static final int STYLE_DELAY = 2000;
+    private static final int IDLE_LIST_DELAY = 60000;
+    private static final int IDLE_DELAY = 30000;
+    // the answer to a poll when what we have is still current
+    private static final String NOT_MODIFIED = "not modified";
+    private Timer listTimer = new Timer(LIST_DELAY,this);
+    private Timer viewTimer = new Timer(VIEW_DELAY,this);
+    private Timer styleTimer = new Timer(STYLE_DELAY, this);
+    // the timers whose last poll was not answered yet
+    private final Set<Object> polling = new HashSet<Object>();
+    // the version of the listing in the tree (0 is the empty listing of a new server)
+    private long listVersion = 0;
+    // true once the view shows the style of the server
+    private boolean styleShown = false;
+    // the number of documents opened so far, a poll answered for an earlier one is ignored
+    private int documentCount = 0;
+
+    /*
+     * Push connection, replaces the view and style timers once it is established
+     */
+    private RTCE_Subscription subscription = null;
+    private boolean subscribing = false;
+    private boolean fetchingSnapshot = false;
+    // a snapshot replaced the view while some of our edits were on their way
+    private boolean resyncing = false;
+    // our inserts and deletes, merged and sent in batches
+    private final RTCE_Outbox outbox = new RTCE_Outbox(new RTCE_Outbox.Channel() {
+        public long getRevision() {
+            return model.getRevision();
+        }
+        public boolean isReady() {
+            // not while 'since' or 'snapshot' is on its way, it would not know about the edit
+            return !resyncing && !fetchingSnapshot;
+        }
+        public CompletableFuture<List<String>> send(List<String> requests) {
+            return connection.submitBatch(requests);
+        }
+        public void answered(List<RTCE_Outbox.Edit> edits, List<String> responses) {
+            editsAnswered(edits, responses);
+        }
+    });
 
     /*
      * Initial styling values to be updated and to send to the model in order to updated the view
@@ -115,29 +176,44 @@ public class RTCE_Controller implements ActionListener {
      * viewTimer - a timer to update the view with the most up to date document.
      * styleTimer - a timer to update the view with the most up to date style per document. 
      * This is performed inside of a SwingWorker to guarantee concurrency and to prevent the GUI from 
-     * freezing upon delays 
+     * freezing upon delays. A timer that fires while its last poll is still on its way skips
+     * this time, so a slow server does not get a pile of polls of the same kind.
+     * Each poll tells the server what the user already has (the revision of the view, the
+     * version of the listing, the style), and the server only answers "not modified" if that is
+     * still current. Then the timer slows down (see slowDown), and it is back to its normal
+     * delay as soon as something changes (see speedUp).
      */
     public void actionPerformed(final ActionEvent controllerEvent) {
+        if (!polling.add(controllerEvent.getSource())) {
+            return;
+        }
+        // what we already have, read on the event dispatch thread
+        final String listRequest = "list " + listVersion;
+        final String viewRequest = model.getRevision() < 0 ? "snapshot" : "view " + model.getRevision();
+        final String styleRequest = styleShown ? "giveStyle " + fontName + " " + fontStyle
+                + " " + fontSize + " " + color : "giveStyle";
+        final int polledDocument = documentCount;
         SwingWorker<?,?> worker = new SwingWorker<String, Void>() {
             @Override
             public String doInBackground() throws IOException {
 
                 if (controllerEvent.getSource() == listTimer) {
-                    String request= makeRequest("list");
+                    String request= makePoll(listRequest);
                     return request;
                 }
                 if (controllerEvent.getSource() == viewTimer) {
-                    String requestView = makeRequest("view");
+                    String requestView = makePoll(viewRequest);
                     return requestView;
                 }
                 if (controllerEvent.getSource() == styleTimer) {
-                    String requestStyle = makeRequest("giveStyle");
+                    String requestStyle = makePoll(styleRequest);
                     return requestStyle;
                 }
                 throw new RuntimeException("Problem in timer actionevent.");
             }
             @Override
             public void done() {
+                polling.remove(controllerEvent.getSource());
                 try {
                     /*
                      * get a current list of active documents on the server and update the tree of active
@@ -145,6 +221,14 @@ public class RTCE_Controller implements ActionListener {
                      */
                     if(controllerEvent.getSource() == listTimer) {
                         String listResponse = get();
+                        if (listResponse.equals(NOT_MODIFIED)) {
+                            slowDown(listTimer, IDLE_LIST_DELAY);
+                            return;
+                        }
+                        speedUp(listTimer, LIST_DELAY);
+                        String[] versionAndNames = listResponse.split(" ", 2);
+                        listVersion = Long.parseLong(versionAndNames[0]);
+                        listResponse = versionAndNames.length > 1 ? versionAndNames[1] : "";
                         if(!listResponse.contains("There are no existing files on the server.")) {
                             String[] allDocsSplit = listResponse.split(" ");
                             for(String name : allDocsSplit) {
@@ -158,13 +242,19 @@ public class RTCE_Controller implements ActionListener {
                      * get the current updated document and present the user with changes that were done
                      * by other users to the same document.
                      */
+                    if (controllerEvent.getSource() != listTimer && polledDocument != documentCount) {
+                        return; // the answer is about the document we had before
+                    }
                     if(controllerEvent.getSource() == viewTimer) {
                         String viewResponse = get();
-                        int beforeSet = view.getTextPane().getCaretPosition();
-                        model.updateText(viewResponse);
-                        int afterSet = view.getTextPane().getCaretPosition();
-                        if(beforeSet <= afterSet){
-                            view.getTextPane().setCaretPosition(beforeSet);
+                        if (viewResponse.equals(NOT_MODIFIED)) {
+                            slowDown(viewTimer, IDLE_DELAY);
+                            return;
+                        }
+                        speedUp(viewTimer, VIEW_DELAY);
+                        // else the view is ahead, or a snapshot is on its way, the next poll catches up
+                        if (!editsPending() && !fetchingSnapshot) {
+                            showSnapshot(viewResponse);
                         }
                     }
                     /*
@@ -173,6 +263,12 @@ public class RTCE_Controller implements ActionListener {
                      */
                     if (controllerEvent.getSource() == styleTimer) {
                         String styleResponse = get();
+                        if (styleResponse.equals(NOT_MODIFIED)) {
+                            slowDown(styleTimer, IDLE_DELAY);
+                            return;
+                        }
+                        speedUp(styleTimer, STYLE_DELAY);
+                        styleShown = true;
                         String[] style = splitStyle(styleResponse);
                         setStylingForFile(style);
                         model.setViewStyle(fontName, fontStyle, fontSize, color);
@@ -185,6 +281,32 @@ public class RTCE_Controller implements ActionListener {
         worker.execute();
     }
 
+    /**
+     * Makes a timer wait twice as long before its next poll, because the last
+     * one found nothing new. Must be called on the event dispatch thread.
+     * @param timer - the timer.
+     * @param idleDelay - the longest delay, in milliseconds.
+     */
+    private static void slowDown(Timer timer, int idleDelay) {
+        timer.setDelay(Math.min(idleDelay, timer.getDelay() * 2));
+    }
+
+    /**
+     * Puts a timer back to its normal delay, because something changed. If it
+     * had slowed down, it polls again soon instead of waiting for the long
+     * delay it was at. Must be called on the event dispatch thread.
+     * @param timer - the timer.
+     * @param delay - the normal delay, in milliseconds.
+     */
+    private static void speedUp(Timer timer, int delay) {
+        if (timer.getDelay() > delay) {
+            timer.setDelay(delay);
+            if (timer.isRunning()) {
+                timer.restart();
+            }
+        }
+    }
+
     /**
      * a swing worker to handle all of the events from the GUI
      * The worker will make a request to the server based on the user's action on the GUI.
@@ -193,6 +315,10 @@ public class RTCE_Controller implements ActionListener {
      * @param e an ActionEvent that was generated by one of the JComponents on the GUI
      */
     public void handleAction(final ActionEvent e) {
+        if (e.getSource() == view.getCutButton() || e.getSource() == view.getPasteButton()) {
+            editLocally(e);
+            return;
+        }
 
         SwingWorker<?,?> worker = new SwingWorker<String, Void>(){
 
@@ -364,39 +490,6 @@ public class RTCE_Controller implements ActionListener {
                         throw new RuntimeException("BadLocationException in the copyButton doInBackGround.");
                     }
                 }
-                /*
-                 * a cut button was pressed , the text that was chosen by the user will be saved to the
-                 * clip board, and a delete request for this text will be sent to the server.
-                 */
-                if(e.getSource() == view.getCutButton()) {
-                    if(clipBoard != null) {
-                        clipBoard = "" ;
-                    }
-                    int endLocation = view.getTextPane().getSelectionEnd();
-                    int startLocation = view.getTextPane().getSelectionStart(); 
-                    try {
-                        clipBoard = view.getTextPane().getText(startLocation, endLocation-startLocation);
-                        return makeRequest("delete " + startLocation + " " + endLocation);
-                    } catch (BadLocationException e1) {
-                        throw new RuntimeException("BadLocationException in the cutButton doInBackGround.");                    }
-                }
-                /*
-                 * the paste button was pressed, the text that was stored in the clip board will be inserted
-                 * to the current caret location. An insert request will be send to the server.
-                 * If no text was saved to the clip board the paste won't do anything.
-                 */
-                if(e.getSource() == view.getPasteButton()) {
-                    if(clipBoard != null){
-                        try {
-                            int pos = view.getTextPane().getCaretPosition();
-                            String pasteRequest = makeRequest("insert " + pos + " " + clipBoard); 
-                            return pasteRequest;
-                        } catch (IOException e) {
-                            throw new RuntimeException("IOException in the pasteButton doInBackground.");
-                        }
-
-                    }
-                }
                 return "did not do anything";
             }
 
@@ -415,11 +508,12 @@ public class RTCE_Controller implements ActionListener {
                     if (e.getSource() == view.getNewDocButton()) {
                         String response = get().trim();
                         if(!response.contains("did not do anything") && !response.equals("Invalid Request.")) {
+                            documentCount++;
                             model.updateText("");
+                            model.setRevision(0);
                             model.updateViewTitle(response);
                             model.updateDocTree(response);
-                            viewTimer.start();
-                            styleTimer.restart();
+                            startUpdates();
                             model.releaseScreen(true);
                         }
                     }
@@ -432,13 +526,14 @@ public class RTCE_Controller implements ActionListener {
                      */
                     if (e.getSource() == view.getSwitchButton()) {
                         String switchResponse = get();
+                        documentCount++;
                         if (model.getInTree().size() != 0) {
-                            viewTimer.start();
-                            styleTimer.restart();
+                            startUpdates();
                         }
                         if(!switchResponse.contains("did not do anything") && !switchResponse.equals("Invalid Request.")) {
                             model.updateViewTitle(switchTo);
                             model.updateText(switchResponse);
+                            model.setRevision(-1); // learned with the first snapshot
                             model.releaseScreen(true);
                         }
                     }
@@ -452,6 +547,7 @@ public class RTCE_Controller implements ActionListener {
                         String replaceOneResponse = get();
                         if (!replaceOneResponse.contains("did not do anything")) {
                             model.updateText(replaceOneResponse);
+                            model.setRevision(-1);
                         }
                     }
 
@@ -464,6 +560,7 @@ public class RTCE_Controller implements ActionListener {
                         String replaceAllResponse = get();
                         if (!replaceAllResponse.contains("did not do anything")) {
                             model.updateText(replaceAllResponse);
+                            model.setRevision(-1);
                         }
                     }
 
@@ -541,68 +638,240 @@ public class RTCE_Controller implements ActionListener {
                     if(e.getSource() == view.getCopyButton()) {
                         clipBoard = get();
                     }
-                    /*
-                     * after a paste was perform the server, returns to the controller a new update of the document
-                     * the controller will update the model, that will update the view to present the new 
-                     * modified document.
-                     */
-                    if(e.getSource() == view.getPasteButton()) {
-                        String pasteReq;
-                        try {
-                            pasteReq = get();
-                            int beforeSet = view.getTextPane().getCaretPosition();
-                            try {
-                                if(!pasteReq.contains("did not do anything") && !pasteReq.equals("Invalid Request.")) {
-                                    model.updateText(pasteReq);
-                                }
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("Bad encoding in paste.");
-                            }
-                            int afterSet = view.getTextPane().getCaretPosition();
-                            if(beforeSet <= afterSet) {
-                                view.getTextPane().setCaretPosition(beforeSet);
-                            }
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException("InterruptedException in pasteButton done().");
-                        } catch (ExecutionException e) {
-                            throw new RuntimeException("ExecutionException in the pasteButton done().");                        }
-                    }
-                    /*
-                     * after a cut was perform the server, returns to the controller a new update of the document
-                     * the controller will update the model, that will update the view to present the new 
-                     * modified document.
-                     */
-                    if(e.getSource() == view.getCutButton()) {
-                        String cutReq;
-
-                        try {
-                            cutReq = get();
-                            int beforeSet = view.getTextPane().getCaretPosition();
-                            try {
-                                model.updateText(cutReq);
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("Bad encoding in cut.");
-                            }
-                            int afterSet = view.getTextPane().getCaretPosition();
-                            if(beforeSet <= afterSet){
+                } catch (Exception exc) {
+                    throw new RuntimeException("Problem in the handleAction done() method.");
+                }
+            }
+        };
+        worker.execute();
+    }
 
-                                view.getTextPane().setCaretPosition(beforeSet);
-                            }
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException("InterruptedException in the cutButton done().");                            
-                        } catch (ExecutionException e) {
-                            throw new RuntimeException("ExecutionException in the cutButton done().");                        
-                        }
+    /**
+     * Cuts the selected text or pastes the clip board at the caret. Like a
+     * key typed by the user, the change is made to the view right away, and
+     * the view hands it to the outbox (see handleInsertUpdate and
+     * handleDeleteUpdate). If no text was saved to the clip board the paste
+     * won't do anything. Must be called on the event dispatch thread.
+     * @param e an ActionEvent of the cut or the paste button.
+     */
+    private void editLocally(ActionEvent e) {
+        try {
+            if (e.getSource() == view.getCutButton()) {
+                int endLocation = view.getTextPane().getSelectionEnd();
+                int startLocation = view.getTextPane().getSelectionStart();
+                clipBoard = view.getTextPane().getText(startLocation, endLocation - startLocation);
+                view.getTextPane().getDocument().remove(startLocation, endLocation - startLocation);
+            } else if (clipBoard != null) {
+                int pos = view.getTextPane().getCaretPosition();
+                view.getTextPane().getDocument().insertString(pos, clipBoard, null);
+            }
+        } catch (BadLocationException e1) {
+            throw new RuntimeException("BadLocationException in the cut or paste of the controller.");
+        }
+    }
+
+    /**
+     * Starts listening for changes to the current document. Until the push
+     * connection is established (or if the server does not support it) the
+     * view and style timers poll the server. Once it is, the timers are stopped
+     * and the changes made by other users arrive through handlePush.
+     */
+    private void startUpdates() {
+        if (subscription != null && subscription.isAlive()) {
+            // the document changed, get its style once, the rest is pushed
+            actionPerformed(new ActionEvent(styleTimer, ActionEvent.ACTION_PERFORMED, "giveStyle"));
+            return;
+        }
+        viewTimer.setDelay(VIEW_DELAY);
+        styleTimer.setDelay(STYLE_DELAY);
+        viewTimer.restart();
+        styleTimer.restart();
+        if (subscribing) {
+            return;
+        }
+        subscribing = true;
+        SwingWorker<?,?> worker = new SwingWorker<RTCE_Subscription, Void>() {
+            @Override
+            public RTCE_Subscription doInBackground() throws IOException {
+                makeRequest("ack"); // answer our edits with "ack revision pos"
+                String token = makeRequest("subscribe");
+                return new RTCE_Subscription(ipAddress, 4444, token.trim(), RTCE_Controller.this);
+            }
+            @Override
+            public void done() {
+                try {
+                    subscription = get();
+                    subscription.start();
+                    viewTimer.stop();
+                    styleTimer.stop();
+                } catch (Exception e) {
+                    // the server can't push, keep polling
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * Applies a delta pushed by the server for the current document.
+     * Must be called on the event dispatch thread. The deltas are:
+     * "delta revision insert pos text", "delta revision delete startLocation endLocation",
+     * "delta revision reset text" and "delta revision style fontName fontStyle fontSize color",
+     * with the text URL-encoded. The change goes where it belongs among our edits that
+     * were not acknowledged yet (see RTCE_LocalDocument). Deltas we already have are
+     * ignored, and if we missed one we catch up with the operations we missed (see catchUp).
+     * @param delta - the delta pushed by the server.
+     */
+    public void handlePush(String delta) {
+        String[] tokens = delta.split(" ", 5);
+        long revision = Long.parseLong(tokens[1]);
+        if (tokens[2].equals("style")) {
+            setStylingForFile(splitStyle(delta.split(" ", 4)[3]));
+            model.setViewStyle(fontName, fontStyle, fontSize, color);
+            return;
+        }
+        RTCE_Operation op;
+        try {
+            if (tokens[2].equals("insert")) {
+                String text = tokens.length > 4 ? URLDecoder.decode(tokens[4], "UTF-8") : "";
+                op = RTCE_Operation.insert(revision, Integer.parseInt(tokens[3]), text);
+            } else if (tokens[2].equals("delete")) {
+                op = RTCE_Operation.delete(revision, Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]));
+            } else {
+                op = RTCE_Operation.reset(revision, tokens.length > 3 ? URLDecoder.decode(tokens[3], "UTF-8") : "");
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Bad encoding in a pushed delta.");
+        }
+        reconcile(model.applyRemote(op, outbox));
+    }
+
+    /**
+     * Follows up on a change of the local state of the document: gets a
+     * snapshot if the view can't be reconciled with the server, catches up if
+     * a change of another user is missing, and lets the outbox send the edits
+     * that waited for our previous ones to be confirmed.
+     * @param reconciled - false if the view needs a snapshot.
+     */
+    private void reconcile(boolean reconciled) {
+        if (!reconciled) {
+            fetchSnapshot();
+        } else if (model.isBehind(outbox)) {
+            catchUp();
+        }
+        outbox.resume();
+    }
+
+    /**
+     * Asks the server for the operations we missed since the revision the view
+     * shows, and applies them. This only works while none of our own edits are
+     * on their way or waiting to be confirmed: the server would send them back
+     * with the others. In that case, or if the server no longer has the
+     * operations, we get the whole document instead.
+     */
+    private void catchUp() {
+        if (!outbox.getSent().isEmpty() || !model.isCaughtUp() || model.getRevision() < 0) {
+            fetchSnapshot();
+            return;
+        }
+        if (fetchingSnapshot) {
+            return;
+        }
+        fetchingSnapshot = true;
+        final long since = model.getRevision();
+        SwingWorker<?,?> worker = new SwingWorker<String, Void>() {
+            @Override
+            public String doInBackground() throws IOException {
+                return makeRequest("since " + since);
+            }
+            @Override
+            public void done() {
+                fetchingSnapshot = false;
+                try {
+                    String response = get();
+                    if (!response.startsWith("ops")) {
+                        showSnapshot(response);
+                        return;
                     }
+                    // none of our edits was sent in the meantime (see isReady)
+                    String[] ops = response.trim().split(" ");
+                    boolean reconciled = true;
+                    for (int i = 1; i < ops.length && reconciled; i++) {
+                        RTCE_Operation op = RTCE_Operation.parse(URLDecoder.decode(ops[i], "UTF-8"));
+                        reconciled = model.applyRemote(op, outbox);
+                    }
+                    if (!reconciled) {
+                        fetchSnapshot();
+                    }
+                    outbox.resume();
+                } catch (Exception e) {
+                    model.setRevision(-1); // try again on the next change
+                }
+            }
+        };
+        worker.execute();
+    }
 
-                } catch (Exception exc) {
-                    throw new RuntimeException("Problem in the cutButton done() method.");
+    /**
+     * Gets the whole document, and the revision it is at, from the server and
+     * shows it. Used when we find out that the view missed a change.
+     */
+    private void fetchSnapshot() {
+        if (fetchingSnapshot) {
+            return;
+        }
+        fetchingSnapshot = true;
+        SwingWorker<?,?> worker = new SwingWorker<String, Void>() {
+            @Override
+            public String doInBackground() throws IOException {
+                return makeRequest("snapshot");
+            }
+            @Override
+            public void done() {
+                fetchingSnapshot = false;
+                try {
+                    showSnapshot(get());
+                } catch (Exception e) {
+                    model.setRevision(-1); // try again on the next change
                 }
             }
         };
         worker.execute();
     }
 
+    /**
+     * Shows a snapshot returned by the server, with our queued inserts made
+     * again on it (see RTCE_Outbox.replay). The edits still on their way may not
+     * be in the snapshot, so once they are answered we get another one
+     * (resyncing), and the next edits wait for it. Otherwise the changes pushed
+     * after the snapshot that arrived before it are applied.
+     * @param snapshot - "revision text", the answer to 'snapshot' or 'since'.
+     */
+    private void showSnapshot(String snapshot) {
+        String[] tokens = snapshot.split(" ", 2);
+        String text = outbox.replay(tokens.length > 1 ? tokens[1] : "");
+        model.setSnapshot(Long.parseLong(tokens[0]), text, outbox);
+        resyncing = !outbox.getSent().isEmpty();
+        if (!resyncing) {
+            reconcile(model.applyWaiting(outbox));
+        }
+    }
+
+    /**
+     * Called when the push connection closed. Goes back to polling the server.
+     * Must be called on the event dispatch thread.
+     */
+    public void pushLost() {
+        subscription = null;
+        subscribing = false;
+        if (model.getInTree().size() != 0) {
+            viewTimer.setDelay(VIEW_DELAY);
+            styleTimer.setDelay(STYLE_DELAY);
+            viewTimer.restart();
+            styleTimer.restart();
+        }
+    }
+
     /**
      * A method to split the styling string from the server into the 4 key components of the styling
      * maps that are stored on the server.
@@ -664,106 +933,74 @@ public class RTCE_Controller implements ActionListener {
 
     /**
      * A method to handle with an insert update. Upon an insert edit in the document.
-     * The controller will inform the server about the update to the document.
-     * The server will return an update to the server about the new document after the insert.
-     * the controller will update the model that will update the view
+     * The insert is handed to the outbox, which merges it with the next ones the user
+     * makes within a few milliseconds and sends them to the server together (see
+     * RTCE_Outbox). The answers come back to editsAnswered.
      * @param pos - a position that indicates where the insert took place
      * @param text- what was inserted at the given position
      */
     public  void handleInsertUpdate(final int pos, final String text) {
-        SwingWorker<?,?> worker = new SwingWorker<String, Void>() {
-            /*
-             * the insert is being performed in a swing worker thread, to ensure concurrency 
-             * and to prevent the GUI from freezing due to delays.
-             */
-            @Override
-            public String doInBackground() throws IOException{
-                try {
-                    String getFromServer = makeRequest("insert " + pos + " " + text); 
-                    return getFromServer;
-                } catch (IOException e) {
-                    throw new RuntimeException("Problem in handleInserUpdate swingworker" +
-                            "in controller class.");
-                }
-            } 
-            @Override
-            public void done() {
-                String insertReq;
-
-                try {
-                    insertReq = get();
-                    int beforeSet = view.getTextPane().getCaretPosition();
-                    try {
-                        model.updateText(insertReq);
-                    } catch (UnsupportedEncodingException e) {
-                        throw new RuntimeException("Bad encoding in insertRequest in controller.");
-                    }
-                    int afterSet = view.getTextPane().getCaretPosition();
-
-                    if(beforeSet <= afterSet){
-
-                        view.getTextPane().setCaretPosition(beforeSet);
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException("InterruptedException in the insert request done() method.");                  
-                } catch (ExecutionException e) {
-                    throw new RuntimeException("ExecutionException in the insert request done() method.");                     
-                }
-            }
-        };
-        worker.execute();
+        outbox.insert(pos, text);
+        speedUp(viewTimer, VIEW_DELAY);
     }
 
     /**
      * A method to handle with a delete update. Upon a delete edit in the document.
-     * The controller will inform the server about the update to the document.
-     * The server will return an update to the server about the new document after the insert.
-     * the controller will update the model that will update the view
+     * Like inserts, deletes go through the outbox.
      * @param startLocation - a position to start delete from
      * @param startLocation- a position to end the delete at
      */
     public  void handleDeleteUpdate(final int startLocation, final int endLocation) {
-        SwingWorker<?,?> worker = new SwingWorker<String, Void>(){
-            @Override
-            /*
-             * the delete is being performed in a swing worker thread, to ensure concurrency 
-             * and to prevent the GUI from freezing due to delays.
-             */
-            public String doInBackground() throws IOException{
-                try {
-                    String deleteRequest = makeRequest("delete " +startLocation+" "+endLocation);
-                    return deleteRequest;
-                } catch (IOException e) {
-                    throw new RuntimeException("Problem in the handle delete update doInBackGround().");
-                }
-            }
-            @Override
-            public void done() {
-                String deleteRequest;
-
-                try {
-                    deleteRequest = get();
-                    int beforeSet = view.getTextPane().getCaretPosition();
-                    try {
-                        model.updateText(deleteRequest);
-                    } catch (UnsupportedEncodingException e) {
-                        throw new RuntimeException("Bad encoding in the delete request in the controller.");
-                    }
-                    int afterSet = view.getTextPane().getCaretPosition();
-                    if(beforeSet <= afterSet){
-
-                        view.getTextPane().setCaretPosition(beforeSet);
-                    }
+        outbox.delete(startLocation, endLocation);
+        speedUp(viewTimer, VIEW_DELAY);
+    }
 
-                } catch (InterruptedException e) {
-                    throw new RuntimeException("InterruptedException in the delete request done() method.");                      
-                } catch (ExecutionException e) {
-                    throw new RuntimeException("ExecutionException in the insert request done() method.");  
-                }
+    /**
+     * Handles the answers of the server to a batch of our inserts and deletes.
+     * Compact answers ("ack revision pos") confirm the edits (see
+     * RTCE_LocalDocument), or tell that we need a snapshot, like "stale revision"
+     * for an edit the server could not place anymore. Without them every
+     * answer is the whole document, so only the last one is shown, unless the
+     * changes are pushed to us anyway or the user typed more in the meantime.
+     * Must be called on the event dispatch thread.
+     * @param edits - the edits of the batch.
+     * @param responses - the answer to each edit of the batch, or null if the
+     * batch could not be sent.
+     */
+    private void editsAnswered(List<RTCE_Outbox.Edit> edits, List<String> responses) {
+        if (responses == null) {
+            fetchSnapshot();
+            return;
+        }
+        if (resyncing) {
+            // the edits were sent before the snapshot, which may not have them
+            if (outbox.getSent().isEmpty()) {
+                resyncing = false;
+                fetchSnapshot();
             }
-        };
-        worker.execute();
+            return;
+        }
+        if (responses.get(0).startsWith("ack ") || responses.get(0).startsWith("stale ")) {
+            reconcile(model.confirm(edits, responses, outbox));
+            return;
+        }
+        String document = responses.get(responses.size() - 1);
+        if (subscription == null && !editsPending()) {
+            try {
+                model.updateText(document);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Bad encoding in the answer to an edit in the controller.");
+            }
+        }
+    }
 
+    /**
+     * Indicate if some of our edits are in the view but were not answered by
+     * the server yet: the view may then differ from every revision the server knows.
+     * @return true if edits are queued in the outbox or on their way.
+     */
+    private boolean editsPending() {
+        return !outbox.isEmpty();
     }
 
     /**
@@ -775,13 +1012,46 @@ public class RTCE_Controller implements ActionListener {
      * @throws IOException
      */
     public static void openConnection() throws UnknownHostException, IOException {
-        Socket socket = new Socket(ipAddress, 4444);
-        outStream    = new PrintWriter(socket.getOutputStream(), true);
-        inStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        connection = RTCE_Connection.open(ipAddress, 4444);
+        pollConnection = openPollConnection();
         madeConnection = true;
         JOptionPane.showMessageDialog(null, "The connection was established succesfully!");
     }
 
+    /**
+     * Opens the connection the timers poll on. The server answers the requests
+     * of a connection in order, so a poll it is slow to answer would hold up our
+     * edits on the main connection. The poll connection joins the user of the
+     * main connection ('share', then 'join'), so its polls are about the document
+     * that user works on. If the server can't do that, the polls go on the main
+     * connection.
+     * @return RTCE_Connection, the poll connection.
+     * @throws IOException
+     */
+    private static RTCE_Connection openPollConnection() throws IOException {
+        String token = connection.request("share").trim();
+        RTCE_Connection polls = RTCE_Connection.open(ipAddress, 4444);
+        if (polls.request("join " + token).trim().equals("joined")) {
+            return polls;
+        }
+        polls.close();
+        return connection;
+    }
+
+    /**
+     * Method to make a poll of the timers, on the poll connection (see
+     * openPollConnection).
+     * @param String poll, the request.
+     * @return String, the response from the server.
+     */
+    private static String makePoll(String poll) {
+        try {
+            return pollConnection.request(poll);
+        } catch (IOException er) {
+            throw new RuntimeException("Problem in makePoll method.");
+        }
+    }
+
     /**
      * Method to make a request to the server. Should be used
      * when a user triggers an action that requires the server
@@ -792,54 +1062,20 @@ public class RTCE_Controller implements ActionListener {
      * If the request does not follow the protocol, however, the
      * server will respond accordingly.
      * 
-     * Returns the response from the server.
+     * Returns the response from the server. Only the calling thread waits
+     * for it: the requests of other threads are sent meanwhile, though the
+     * server answers them in order (see RTCE_Connection).
      * 
      * @param String userInput, the request
      * @return String, the response from the server.
      * @throws IOException
      */
-    public synchronized static String makeRequest(String userInput) throws IOException {
-        String fromUser = URLEncoder.encode(userInput,"UTF-8");
-        String fromUserReplace = userInput;
-
-        String returnString = "";
-        String fromServer = null;
-
-        if (userInput.startsWith("replace")) {
-            try {
-                outStream.println(fromUserReplace);
-                while (!(fromServer = inStream.readLine()).equals("EOF")) {
-
-                    if (!fromServer.equals("EOF")) {
-                        returnString +=  fromServer;
-                    }
-                    if (fromServer.equals("exit")) {
-                        break;                
-                    }
-                }
-            } catch (Exception er) {
-                throw new RuntimeException("Problem in makeRequest method.");
-            }
-            fromUser = null;
-
-        } else {
-            try {
-                outStream.println(fromUser);
-                while (!(fromServer = inStream.readLine()).equals("EOF")) {
-
-                    if (!fromServer.equals("EOF")) {
-                        returnString +=  fromServer;
-                    }
-                    if (fromServer.equals("exit")) {
-                        break;                
-                    }
-                }
-            } catch (Exception er){ 
-                throw new RuntimeException("Problem in makeRequest method.");
-            }
-            fromUser = null;
+    public static String makeRequest(String userInput) throws IOException {
+        try {
+            return connection.request(userInput);
+        } catch (IOException er) {
+            throw new RuntimeException("Problem in makeRequest method.");
         }
-        return URLDecoder.decode(returnString,"UTF-8");
     }
 
     /**
@@ -877,9 +1113,7 @@ public class RTCE_Controller implements ActionListener {
                             "done() method. Problem opening file.");  
                 }
                 if (model.getInTree().size() != 0) {
-                    viewTimer.start();
-                    styleTimer.restart();
-
+                    startUpdates();
                 }
                 if(!openFileResponse.contains("did not do anything") && !openFileResponse.equals("Invalid Request.")) {
                     model.updateViewTitle(switchTo);
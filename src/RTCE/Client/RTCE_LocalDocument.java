@@ -0,0 +1,383 @@
+package RTCE.Client;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+
+import RTCE.Document.RTCE_Operation;
+/*
+ * Thread safety argument
+ * Like the outbox whose edits it transforms, the local document is only used on the swing event
+ * dispatch thread: the pushed deltas and the answers of the server are handed to it through
+ * SwingUtilities.invokeLater (see RTCE_Controller), so its fields are confined to that thread.
+ */
+/**
+ * The state of the current document on the client side: the revision of
+ * the server document the view is based on, and the edits of the user the
+ * server did not acknowledge yet (the pending edits, held by the outbox),
+ * which the view already shows on top of that revision.
+ *
+ *      (1) A change made by another user (pushed, or fetched with 'since')
+ *          that directly follows the revision is transformed against every
+ *          pending edit, oldest first, to find where it goes in the view, and
+ *          the pending edits are transformed against it, so that they stay
+ *          based on the new revision.
+ *      (2) The answer to one of our edits ("ack revision pos") that directly
+ *          follows the revision confirms it. pos is where the server applied
+ *          the edit, which must be where the edit is in the view. A delete of
+ *          text that somebody else deleted first is dropped by the server
+ *          ("ack revision"), and is confirmed once we got that change too.
+ *      (3) The pushes and the answers come on two connections, so changes
+ *          and answers that are ahead of the revision wait for the ones
+ *          before them.
+ *
+ * For the edits the server got, the transforms give the same result as
+ * RTCE_Request.applyTransform on the server, which applied the change of the
+ * other user first: when both insert at the same position, our text goes
+ * first. A change that splits one of those deletes in two can't be followed
+ * that way; the view then needs a snapshot of the document, and nothing more
+ * is applied to it until it gets one (see snapshot). The queued edits will be
+ * sent based on a later revision, so for them the transforms here are the
+ * only ones: a delete is split around the text inserted in its middle, and a
+ * delete of text that is already gone is not sent.
+ */
+public class RTCE_LocalDocument {
+
+    /**
+     * An edit of ours the server answered, waiting for the changes of other
+     * users that were applied before it.
+     */
+    private static class Answer {
+        final RTCE_Outbox.Edit edit;
+        final long revision; // for a dropped edit, the revision of the document then
+        final int pos; // -1 if the edit was dropped
+
+        Answer(RTCE_Outbox.Edit edit, long revision, int pos) {
+            this.edit = edit;
+            this.revision = revision;
+            this.pos = pos;
+        }
+    }
+
+    private long revision = -1; // revision of the server document the view is based on, -1 if unknown
+    private boolean lost = false; // the view no longer follows the server, it waits for a snapshot
+    private final TreeMap<Long, RTCE_Operation> ahead = new TreeMap<Long, RTCE_Operation>();
+    private final LinkedList<Answer> answered = new LinkedList<Answer>();
+
+    /**
+     * Get the revision of the server document the view is based on.
+     * @return long, the revision, or -1 if it is unknown.
+     */
+    public long getRevision() {
+        return lost ? -1 : revision;
+    }
+
+    /**
+     * Starts over from a revision of the document the view shows as it is,
+     * forgetting the changes and answers that were waiting.
+     * @param long revision, the revision, or -1 if it is unknown.
+     */
+    public void reset(long revision) {
+        this.revision = revision;
+        lost = false;
+        ahead.clear();
+        answered.clear();
+    }
+
+    /**
+     * Starts over from a snapshot of the document the view shows. The changes
+     * pushed after its revision that arrived before it keep waiting, so that
+     * they don't have to be fetched again (see receiveWaiting). If some of our
+     * edits are still on their way, the snapshot may not have them: nothing is
+     * applied to the view before the next one.
+     * @param long revision, the revision of the snapshot.
+     * @param RTCE_Outbox outbox, the pending edits, none queued.
+     */
+    public void snapshot(long revision, RTCE_Outbox outbox) {
+        this.revision = revision;
+        lost = !outbox.getSent().isEmpty();
+        ahead.headMap(revision, true).clear();
+        answered.clear();
+    }
+
+    /**
+     * Tells if every answered edit of ours was confirmed, so that none of
+     * the changes after the revision is ours.
+     * @return boolean, true if no answer waits for earlier changes.
+     */
+    public boolean isCaughtUp() {
+        return answered.isEmpty();
+    }
+
+    /**
+     * Tells if a change of another user is missing: some changes are ahead of
+     * the revision, and none of our edits can fill the gap.
+     * @param RTCE_Outbox outbox, the pending edits.
+     * @return boolean, true if the missed changes must be fetched.
+     */
+    public boolean isBehind(RTCE_Outbox outbox) {
+        return !lost && !ahead.isEmpty() && answered.isEmpty() && outbox.getSent().isEmpty();
+    }
+
+    /**
+     * Receives a change made by another user.
+     * @param RTCE_Operation op, the change, with the revision it produced.
+     * @param RTCE_Outbox outbox, the pending edits, transformed against it.
+     * @return List<RTCE_Operation>, the changes to apply to the view, in
+     * order, possibly none yet, or null if the view needs a snapshot.
+     */
+    public List<RTCE_Operation> receive(RTCE_Operation op, RTCE_Outbox outbox) {
+        if (revision < 0) {
+            return null;
+        }
+        if (op.getRevision() > revision) {
+            ahead.put(op.getRevision(), op);
+        }
+        return lost ? null : drain(outbox);
+    }
+
+    /**
+     * Applies the changes that were waiting for the revision, after a snapshot.
+     * @param RTCE_Outbox outbox, the pending edits, transformed against them.
+     * @return List<RTCE_Operation>, the changes to apply to the view, in
+     * order, or null if the view needs a snapshot.
+     */
+    public List<RTCE_Operation> receiveWaiting(RTCE_Outbox outbox) {
+        if (revision < 0 || lost) {
+            return null;
+        }
+        return drain(outbox);
+    }
+
+    /**
+     * Receives the answers of the server to a batch of our edits.
+     * @param List<RTCE_Outbox.Edit> edits, the edits of the batch, in order.
+     * @param List<String> acks, the answer to each edit, "ack revision pos",
+     * or "stale revision" if the server refused to apply it.
+     * @param RTCE_Outbox outbox, the pending edits that are not in the batch.
+     * @return List<RTCE_Operation>, the changes of other users that waited
+     * for the answers, to apply to the view, or null if the view needs a snapshot.
+     */
+    public List<RTCE_Operation> answer(List<RTCE_Outbox.Edit> edits, List<String> acks, RTCE_Outbox outbox) {
+        if (revision < 0 || lost) {
+            return null;
+        }
+        for (int i = 0; i < edits.size(); i++) {
+            if (!acks.get(i).startsWith("ack ")) {
+                return lost(); // the view has an edit the server does not
+            }
+            String[] tokens = acks.get(i).trim().split(" ");
+            int pos = tokens.length < 3 ? -1 : Integer.parseInt(tokens[2]);
+            answered.add(new Answer(edits.get(i), Long.parseLong(tokens[1]), pos));
+        }
+        return drain(outbox);
+    }
+
+    /**
+     * Confirms the answers and applies the changes that directly follow the
+     * revision, until one is missing.
+     */
+    private List<RTCE_Operation> drain(RTCE_Outbox outbox) {
+        List<RTCE_Operation> view = new ArrayList<RTCE_Operation>();
+        while (true) {
+            Answer first = answered.peekFirst();
+            if (first != null && first.pos < 0) {
+                if (first.edit.getStartPos() == first.edit.getEndPos()) {
+                    answered.removeFirst(); // the change that deleted its text is in the view
+                    continue;
+                } else if (first.revision <= revision) {
+                    return lost();
+                }
+            } else if (first != null && first.revision <= revision + 1) {
+                // the same revision: the server composed the edit into our previous one
+                answered.removeFirst();
+                if (first.revision < revision || first.pos != first.edit.getStartPos()) {
+                    return lost();
+                }
+                revision = first.revision;
+                continue;
+            }
+            RTCE_Operation op = ahead.remove(revision + 1);
+            if (op == null) {
+                return view;
+            }
+            List<RTCE_Operation> transformed = transform(op, sent(outbox));
+            if (transformed == null) {
+                return lost();
+            }
+            transformed = transformQueued(transformed, outbox);
+            if (transformed == null) {
+                return lost();
+            }
+            view.addAll(transformed);
+            revision = op.getRevision();
+        }
+    }
+
+    /**
+     * Stops applying anything to the view, which no longer follows the server,
+     * before the next snapshot. The changes of other users still wait for it.
+     */
+    private List<RTCE_Operation> lost() {
+        lost = true;
+        answered.clear();
+        return null;
+    }
+
+    /**
+     * Get the edits the view shows on top of the revision that the server
+     * got, oldest first.
+     */
+    private List<RTCE_Outbox.Edit> sent(RTCE_Outbox outbox) {
+        List<RTCE_Outbox.Edit> sent = new ArrayList<RTCE_Outbox.Edit>();
+        for (Answer a : answered) {
+            sent.add(a.edit);
+        }
+        sent.addAll(outbox.getSent());
+        return sent;
+    }
+
+    /**
+     * Transforms a change of another user, already moved over our sent edits,
+     * against the queued ones, and the queued edits against it. A queued
+     * delete with text inserted in its middle is split in two, one that goes
+     * as far as the inserted text and one that starts after it; a queued
+     * delete of text the change deleted is left empty, and not sent.
+     * @param List<RTCE_Operation> ops, the change, after our sent edits.
+     * @param RTCE_Outbox outbox, the queued edits.
+     * @return List<RTCE_Operation>, the change in the coordinates of the
+     * view, or null if it can't be followed.
+     */
+    private static List<RTCE_Operation> transformQueued(List<RTCE_Operation> ops, RTCE_Outbox outbox) {
+        List<RTCE_Outbox.Edit> queued = outbox.getQueued();
+        for (RTCE_Operation o : ops) {
+            if (!o.getType().equals("insert") && !o.getType().equals("delete")) {
+                return queued.isEmpty() ? ops : null;
+            }
+        }
+        for (RTCE_Outbox.Edit edit : queued) {
+            List<RTCE_Operation> next = new ArrayList<RTCE_Operation>();
+            for (RTCE_Operation o : ops) {
+                transformOperation(o, edit, next);
+                if (!transformEdit(edit, o) && o.getType().equals("insert")) {
+                    outbox.split(edit, o.getBeginPos(), o.getText().length());
+                }
+            }
+            ops = next;
+        }
+        return ops;
+    }
+
+    /**
+     * Transforms a change of another user against the pending edits, and the
+     * pending edits against it.
+     * @param RTCE_Operation op, the change, based on the revision.
+     * @param List<RTCE_Outbox.Edit> pending, the pending edits, oldest first.
+     * @return List<RTCE_Operation>, the change in the coordinates of the view
+     * (a delete can become two), or null if it can't be followed. A delete of
+     * ours left empty is dropped by the server, and stays empty here.
+     */
+    static List<RTCE_Operation> transform(RTCE_Operation op, List<RTCE_Outbox.Edit> pending) {
+        List<RTCE_Operation> ops = new ArrayList<RTCE_Operation>();
+        ops.add(op);
+        if (!op.getType().equals("insert") && !op.getType().equals("delete")) {
+            return pending.isEmpty() ? ops : null; // replaces and resets can't be transformed
+        }
+        for (RTCE_Outbox.Edit edit : pending) {
+            List<RTCE_Operation> next = new ArrayList<RTCE_Operation>();
+            for (RTCE_Operation o : ops) {
+                transformOperation(o, edit, next);
+                if (!transformEdit(edit, o) && o.getType().equals("insert")) {
+                    return null;
+                }
+            }
+            ops = next;
+        }
+        return ops;
+    }
+
+    /**
+     * Moves a change of another user over one of our edits, both based on the
+     * same text, so that it can be applied after the edit.
+     * @param RTCE_Operation op, the change.
+     * @param RTCE_Outbox.Edit edit, our edit.
+     * @param List<RTCE_Operation> out, where the moved change is added: none
+     * if the edit already deleted its text, two deletes if the edit inserted
+     * text in the middle of the text it deletes.
+     */
+    private static void transformOperation(RTCE_Operation op, RTCE_Outbox.Edit edit, List<RTCE_Operation> out) {
+        long rev = op.getRevision();
+        int start = edit.getStartPos();
+        int end = edit.getEndPos();
+        if (op.getType().equals("insert")) {
+            int pos = op.getBeginPos();
+            if (edit.isInsert()) {
+                pos = pos < start ? pos : pos + edit.getText().length();
+            } else {
+                pos = positionAfterDelete(pos, start, end);
+            }
+            out.add(RTCE_Operation.insert(rev, pos, op.getText()));
+        } else if (edit.isInsert()) {
+            int length = edit.getText().length();
+            if (start <= op.getBeginPos()) {
+                out.add(RTCE_Operation.delete(rev, op.getBeginPos() + length, op.getEndPos() + length));
+            } else if (start >= op.getEndPos()) {
+                out.add(op);
+            } else { // keep the text we inserted
+                out.add(RTCE_Operation.delete(rev, start + length, op.getEndPos() + length));
+                out.add(RTCE_Operation.delete(rev, op.getBeginPos(), start));
+            }
+        } else {
+            int beginPos = positionAfterDelete(op.getBeginPos(), start, end);
+            int endPos = positionAfterDelete(op.getEndPos(), start, end);
+            if (beginPos < endPos) {
+                out.add(RTCE_Operation.delete(rev, beginPos, endPos));
+            }
+        }
+    }
+
+    /**
+     * Moves one of our edits over a change of another user that the server
+     * applied before it, like RTCE_Request.applyTransform does on the server.
+     * @param RTCE_Outbox.Edit edit, our edit, moved.
+     * @param RTCE_Operation op, the change, based on the same text.
+     * @return boolean, false if the server splits the edit (an insert in the
+     * middle of our delete) or drops it (our delete left empty).
+     */
+    private static boolean transformEdit(RTCE_Outbox.Edit edit, RTCE_Operation op) {
+        int start = edit.getStartPos();
+        int end = edit.getEndPos();
+        if (op.getType().equals("insert")) {
+            int pos = op.getBeginPos();
+            int shift = op.getText().length();
+            if (edit.isInsert() ? pos < start : pos <= start) {
+                edit.moveTo(start + shift, end + shift);
+            } else if (!edit.isInsert() && pos < end) {
+                return false;
+            }
+            return true;
+        }
+        int newStart = positionAfterDelete(start, op.getBeginPos(), op.getEndPos());
+        if (edit.isInsert()) {
+            edit.moveTo(newStart, newStart + edit.getText().length());
+            return true;
+        }
+        int newEnd = positionAfterDelete(end, op.getBeginPos(), op.getEndPos());
+        edit.moveTo(newStart, newEnd);
+        return newStart < newEnd || start == end;
+    }
+
+    /**
+     * Maps a position to the text after a deletion: positions after the
+     * deleted text move back, positions inside it move to its start.
+     */
+    private static int positionAfterDelete(int pos, int deleteStart, int deleteEnd) {
+        if (pos <= deleteStart) {
+            return pos;
+        } else if (pos < deleteEnd) {
+            return deleteStart;
+        }
+        return pos - (deleteEnd - deleteStart);
+    }
+}
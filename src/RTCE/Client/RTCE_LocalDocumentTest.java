@@ -0,0 +1,351 @@
+package RTCE.Client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_Operation;
+import RTCE.Server.RTCE_Request;
+
+/*
+ * Testing for the local state of the document on the client.
+ *
+ * Strategy:
+ *
+ *      1) Transforms: a change of another user and a pending edit of ours,
+ *         made on the same random text, give the same text on the client
+ *         (our edit, then the transformed change) and on the server (the
+ *         change, then our edit transformed by RTCE_Request.applyTransform),
+ *         and the edit is moved to where the server applies it, or left
+ *         empty where the server drops it. The case the server splits our
+ *         edit asks for a snapshot. Several pending edits, and a delete split
+ *         around our insert.
+ *
+ *      2) Order: changes that directly follow the revision are applied,
+ *         duplicates are ignored, a change ahead of the revision waits for
+ *         the answer to our edit, and an answer ahead of the revision waits
+ *         for the change before it; a gap nothing of ours can fill is
+ *         reported (isBehind).
+ *
+ *      3) Answers: an edit composed into the previous one; a dropped edit,
+ *         confirmed once the change that dropped it arrived. An answer at
+ *         another position, a dropped edit we still have, an edit the server
+ *         refused as stale, and a reset while
+ *         edits are pending ask for a snapshot; an unknown revision too. Nothing
+ *         is applied after that before a snapshot, and the changes that
+ *         arrived before a snapshot and follow it wait for it.
+ *
+ *      4) Queued edits, which the server did not get: a delete is split
+ *         around text inserted in its middle, and a delete of text that is
+ *         already gone is not sent.
+ */
+public class RTCE_LocalDocumentTest {
+
+    /**
+     * A channel that never answers, to keep edits in getSent().
+     */
+    private static class SilentChannel implements RTCE_Outbox.Channel {
+        public long getRevision() {
+            return 0;
+        }
+        public boolean isReady() {
+            return true;
+        }
+        public CompletableFuture<List<String>> send(List<String> requests) {
+            return new CompletableFuture<List<String>>();
+        }
+        public void answered(List<RTCE_Outbox.Edit> edits, List<String> responses) {
+        }
+    }
+
+    private static RTCE_Outbox outbox() {
+        return new RTCE_Outbox(new SilentChannel(), 60000);
+    }
+
+    private static void send(final RTCE_Outbox outbox) throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                outbox.resume();
+            }
+        });
+    }
+
+    private static String apply(String text, List<RTCE_Operation> ops) {
+        StringBuilder sb = new StringBuilder(text);
+        for (RTCE_Operation op : ops) {
+            op.applyTo(sb);
+        }
+        return sb.toString();
+    }
+
+    private static String apply(String text, RTCE_Outbox.Edit edit) {
+        StringBuilder sb = new StringBuilder(text);
+        if (edit.isInsert()) {
+            sb.insert(edit.getStartPos(), edit.getText());
+        } else {
+            sb.delete(edit.getStartPos(), edit.getEndPos());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void sameTextAsTheServer() {
+        Random random = new Random(42);
+        RTCE_Document doc = new RTCE_Document("local.txt");
+        for (int i = 0; i < 5000; i++) {
+            int length = random.nextInt(8);
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < length; c++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            String text = sb.toString();
+            RTCE_Outbox outbox = outbox();
+            int p = random.nextInt(length + 1);
+            int q = p + random.nextInt(length - p + 1);
+            if (random.nextBoolean()) {
+                outbox.insert(p, "XY".substring(0, 1 + random.nextInt(2)));
+            } else {
+                outbox.delete(p, q);
+            }
+            RTCE_Outbox.Edit edit = outbox.getQueued().get(0);
+            RTCE_Request ours = edit.isInsert()
+                    ? new RTCE_Request("insert", p, edit.getText(), doc)
+                    : new RTCE_Request("delete", p, q, doc);
+            int a = random.nextInt(length + 1);
+            int b = a + random.nextInt(length - a + 1);
+            RTCE_Operation op;
+            RTCE_Request theirs;
+            if (random.nextBoolean()) {
+                op = RTCE_Operation.insert(1, a, "z");
+                theirs = new RTCE_Request("insert", a, "z", doc);
+            } else {
+                op = RTCE_Operation.delete(1, a, b);
+                theirs = new RTCE_Request("delete", a, b, doc);
+            }
+            String view = apply(text, edit);
+            List<RTCE_Operation> transformed = RTCE_LocalDocument.transform(op, outbox.getQueued());
+
+            ours.applyTransform(theirs);
+            if (ours.getSplit() != null) {
+                assertNull(text + " " + edit.toRequest() + " " + op, transformed);
+                continue;
+            }
+            StringBuilder server = new StringBuilder(text);
+            op.applyTo(server);
+            String message = text + " " + edit.toRequest() + " " + op;
+            assertNotNull(message, transformed);
+            if (ours.isDropped()) {
+                assertEquals(message, edit.getStartPos(), edit.getEndPos());
+            } else {
+                server = new StringBuilder(ours.applyEditTesting(server.toString()));
+                assertEquals(message, ours.getStartPos(), edit.getStartPos());
+            }
+            assertEquals(message, server.toString(), apply(view, transformed));
+        }
+    }
+
+    @Test
+    public void severalPendingEdits() {
+        RTCE_Outbox outbox = outbox();
+        // "hello world": we type "big " before "world", then delete "hello"
+        outbox.insert(6, "big ");
+        outbox.delete(0, 5);
+        String view = " big world";
+        // meanwhile somebody typed "!" at the end and "oh " at the start
+        List<RTCE_Operation> ops = RTCE_LocalDocument.transform(
+                RTCE_Operation.insert(1, 11, "!"), outbox.getQueued());
+        view = apply(view, ops);
+        assertEquals(" big world!", view);
+        ops = RTCE_LocalDocument.transform(RTCE_Operation.insert(2, 0, "oh "), outbox.getQueued());
+        view = apply(view, ops);
+        assertEquals("oh  big world!", view);
+        // the edits are now based on "oh hello world!"
+        assertEquals("[insert 9 big , delete 3 8]", requests(outbox.getQueued()));
+    }
+
+    @Test
+    public void deleteAroundOurInsert() {
+        RTCE_Outbox outbox = outbox();
+        outbox.insert(2, "XY");
+        // somebody deleted "bcd" of "abcde", where we typed
+        List<RTCE_Operation> ops = RTCE_LocalDocument.transform(
+                RTCE_Operation.delete(1, 1, 4), outbox.getQueued());
+        assertEquals(2, ops.size());
+        assertEquals("aXYe", apply("abXYcde", ops));
+        assertEquals("[insert 1 XY]", requests(outbox.getQueued()));
+    }
+
+    private static String requests(List<RTCE_Outbox.Edit> edits) {
+        List<String> requests = new ArrayList<String>();
+        for (RTCE_Outbox.Edit edit : edits) {
+            requests.add(edit.toRequest());
+        }
+        return requests.toString();
+    }
+
+    @Test
+    public void changesInOrder() {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        RTCE_Outbox outbox = outbox();
+        assertNull(local.receive(RTCE_Operation.insert(1, 0, "a"), outbox)); // revision unknown
+        local.reset(4);
+        assertEquals(1, local.receive(RTCE_Operation.insert(5, 0, "a"), outbox).size());
+        assertEquals(0, local.receive(RTCE_Operation.insert(5, 0, "a"), outbox).size()); // duplicate
+        assertEquals(5, local.getRevision());
+        assertEquals(0, local.receive(RTCE_Operation.insert(7, 0, "c"), outbox).size());
+        assertTrue(local.isBehind(outbox)); // 6 is missing
+        List<RTCE_Operation> ops = local.receive(RTCE_Operation.insert(6, 0, "b"), outbox);
+        assertEquals("cba", apply("a", ops));
+        assertEquals(7, local.getRevision());
+        assertFalse(local.isBehind(outbox));
+    }
+
+    @Test
+    public void changeAheadOfOurEdit() throws Exception {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox outbox = outbox();
+        outbox.insert(3, "ours"); // "abcdef" -> "abcoursdef"
+        send(outbox);
+        List<RTCE_Outbox.Edit> batch = outbox.getSent();
+        // the server applied our edit (11), then a change made after it (12)
+        List<RTCE_Operation> ops = local.receive(RTCE_Operation.insert(12, 10, "!"), outbox);
+        assertEquals(0, ops.size());
+        assertFalse(local.isBehind(outbox)); // our answer fills the gap
+        ops = local.answer(batch, Arrays.asList("ack 11 3"), outbox());
+        assertEquals("abcoursdef!", apply("abcoursdef", ops));
+        assertEquals(12, local.getRevision());
+        assertTrue(local.isCaughtUp());
+    }
+
+    @Test
+    public void answerAheadOfAChange() {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox answered = outbox();
+        answered.insert(3, "ours");
+        answered.insert(20, "more");
+        List<RTCE_Outbox.Edit> batch = answered.getQueued();
+        // the server applied a change of somebody else first (11), then our two edits
+        List<RTCE_Operation> ops = local.answer(batch, Arrays.asList("ack 12 4", "ack 13 21"), outbox());
+        assertEquals(0, ops.size());
+        assertFalse(local.isCaughtUp());
+        assertEquals(10, local.getRevision());
+        ops = local.receive(RTCE_Operation.insert(11, 0, "!"), outbox());
+        assertEquals("!abc", apply("abc", ops));
+        assertEquals(13, local.getRevision());
+        assertTrue(local.isCaughtUp());
+    }
+
+    @Test
+    public void composedAnswer() {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox answered = outbox();
+        answered.insert(0, "a");
+        answered.delete(5, 6);
+        assertEquals(0, local.answer(answered.getQueued(), Arrays.asList("ack 11 0", "ack 11 5"), outbox()).size());
+        assertEquals(11, local.getRevision());
+    }
+
+    @Test
+    public void droppedAnswer() throws Exception {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox outbox = outbox();
+        outbox.delete(2, 4);
+        send(outbox);
+        List<RTCE_Outbox.Edit> batch = outbox.getSent();
+        // somebody deleted the same text first (11): the server dropped ours
+        assertEquals(0, local.answer(batch, Arrays.asList("ack 11"), outbox).size());
+        assertFalse(local.isCaughtUp());
+        List<RTCE_Operation> ops = local.receive(RTCE_Operation.delete(11, 1, 5), outbox());
+        assertEquals("af", apply("abef", ops));
+        assertTrue(local.isCaughtUp());
+        assertEquals(11, local.getRevision());
+    }
+
+    @Test
+    public void needsSnapshot() {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox answered = outbox();
+        answered.insert(3, "a");
+        assertNull(local.answer(answered.getQueued(), Arrays.asList("ack 11 4"), outbox())); // elsewhere
+        local.reset(10);
+        assertNull(local.answer(answered.getQueued(), Arrays.asList("ack 10"), outbox())); // dropped, not here
+        local.reset(10);
+        assertNull(local.answer(answered.getQueued(), Arrays.asList("stale revision"), outbox()));
+        local.reset(10);
+        RTCE_Outbox pending = outbox();
+        pending.insert(0, "x");
+        assertNull(local.receive(RTCE_Operation.reset(11, "new text"), pending));
+        local.reset(10);
+        assertEquals(1, local.receive(RTCE_Operation.reset(11, "new text"), outbox()).size());
+        // somebody typed inside the text we are deleting: the server splits our delete
+        RTCE_Outbox deleting = outbox();
+        deleting.delete(2, 6);
+        List<RTCE_Operation> ops = RTCE_LocalDocument.transform(RTCE_Operation.insert(12, 4, "z"), deleting.getQueued());
+        assertNull(ops);
+    }
+
+    @Test
+    public void lostUntilSnapshot() throws Exception {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox deleting = outbox();
+        deleting.delete(2, 6);
+        send(deleting);
+        assertNull(local.receive(RTCE_Operation.insert(11, 4, "z"), deleting)); // splits our delete
+        assertEquals(-1, local.getRevision());
+        assertNull(local.receive(RTCE_Operation.insert(12, 0, "a"), outbox()));
+        assertFalse(local.isBehind(outbox()));
+        // a snapshot while our delete is on its way may not have it
+        local.snapshot(11, deleting);
+        assertEquals(-1, local.getRevision());
+        assertNull(local.receiveWaiting(outbox()));
+        // the next one, at 11, gets the change that arrived before it
+        local.snapshot(11, outbox());
+        assertEquals(11, local.getRevision());
+        assertEquals("abc", apply("bc", local.receiveWaiting(outbox())));
+        assertEquals(12, local.getRevision());
+    }
+
+    @Test
+    public void queuedDeleteSplit() throws Exception {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox outbox = outbox();
+        outbox.delete(2, 6); // "abcdefgh" -> "abgh"
+        // somebody typed "XY" after the "d" we are deleting
+        List<RTCE_Operation> ops = local.receive(RTCE_Operation.insert(11, 4, "XY"), outbox);
+        assertEquals("abXYgh", apply("abgh", ops));
+        assertEquals(11, local.getRevision());
+        // "abcdXYefgh": the text after "XY", then the text before it
+        assertEquals("[delete 6 8, delete 2 4]", requests(outbox.getQueued()));
+    }
+
+    @Test
+    public void queuedDeleteGone() throws Exception {
+        RTCE_LocalDocument local = new RTCE_LocalDocument();
+        local.reset(10);
+        RTCE_Outbox outbox = outbox();
+        outbox.delete(3, 4); // "abcdefghij" -> "abcefghij"
+        outbox.insert(8, "!"); // "abcefghi!j"
+        // somebody deleted "cde", and the "d" with it
+        List<RTCE_Operation> ops = local.receive(RTCE_Operation.delete(11, 2, 5), outbox);
+        assertEquals("abfghi!j", apply("abcefghi!j", ops));
+        assertEquals("[delete 2 2, insert 6 !]", requests(outbox.getQueued()));
+        send(outbox);
+        assertEquals("[insert 6 !]", requests(outbox.getSent()));
+    }
+}
@@ -7,8 +7,11 @@ import java.awt.Color;
 import java.awt.Font;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import RTCE.Document.RTCE_Operation;
+
 
 /*
  * Thread safety argument 
@@ -21,6 +24,9 @@ import java.util.Map;
  * or are immutable (unmodifiableMap)
  * 
  *The updateText method is thread safe because it calls a thread safe method in the view.
+ *
+ * The local state of the document (RTCE_LocalDocument) and the pending edits it transforms are
+ * only used on the swing event dispatch thread, like the view they describe.
  * 
  * by confinement - all of the method in this class are performed on one thread that is localized to the user
  * and are not shared with any other clients. Furthermore, there is no actual race condition because each
@@ -40,6 +46,10 @@ import java.util.Map;
  *          (b) Changing the style
  *          (c) Updating the document tree
  *          (d) Unblocking the buttons
+ *      (3) Keep the local state of the document: the view shows the edits
+ *          of the user right away, and the changes of other users are
+ *          reconciled with the edits the server did not acknowledge yet
+ *          (see RTCE_LocalDocument).
  *      
  */
 public class RTCE_Model {
@@ -52,6 +62,7 @@ public class RTCE_Model {
     private int styleType;
     private int colorType;
     int fontName;
+    private final RTCE_LocalDocument local = new RTCE_LocalDocument();
     
     // Map for styling mapping integers to the font style that they represent.
     @SuppressWarnings("serial")
@@ -101,7 +112,8 @@ public class RTCE_Model {
     }
     
     /**
-     * A Method to set the text of the GUI. 
+     * A Method to set the text of the GUI. Only the part of the text that
+     * differs from what the GUI shows is changed (see RTCE_TextDiff).
      * @param String text, the text you want to display on the GUI.
      * @throws UnsupportedEncodingException
      */
@@ -111,6 +123,109 @@ public class RTCE_Model {
         view.setViewText(newText);
     }
     
+    /**
+     * A method to set the text of the GUI to a snapshot of the server document.
+     * @param long revision, the revision of the document the snapshot is of.
+     * @param String text, the text of the snapshot (already decoded).
+     * @param RTCE_Outbox outbox, the pending edits of the user, none queued.
+     */
+    public void setSnapshot(long revision, String text, RTCE_Outbox outbox) {
+        local.snapshot(revision, outbox);
+        view.setViewText(text);
+    }
+
+    /**
+     * A method to apply to the GUI the changes made by other users that
+     * arrived before the snapshot it shows, and were made after it.
+     * @param RTCE_Outbox outbox, the pending edits of the user.
+     * @return boolean, false if the GUI needs a snapshot of the document.
+     */
+    public boolean applyWaiting(RTCE_Outbox outbox) {
+        return show(local.receiveWaiting(outbox));
+    }
+
+    /**
+     * A method to set the revision of the server document shown in the GUI.
+     * @param long revision, the revision, or -1 if it is unknown.
+     */
+    public void setRevision(long revision) {
+        local.reset(revision);
+    }
+
+    /**
+     * A method to get the revision of the server document shown in the GUI.
+     * @return long, the revision, or -1 if it is unknown.
+     */
+    public long getRevision() {
+        return local.getRevision();
+    }
+
+    /**
+     * A method to apply a change made by another user to the GUI, where it
+     * goes among the edits of the user the server did not acknowledge yet.
+     * @param RTCE_Operation op, the change, with the revision it produced.
+     * @param RTCE_Outbox outbox, the pending edits of the user.
+     * @return boolean, false if the GUI needs a snapshot of the document.
+     */
+    public boolean applyRemote(RTCE_Operation op, RTCE_Outbox outbox) {
+        return show(local.receive(op, outbox));
+    }
+
+    /**
+     * A method to confirm the edits of the user the server answered, and
+     * apply the changes of other users that were waiting for them.
+     * @param List<RTCE_Outbox.Edit> edits, the answered edits, in order.
+     * @param List<String> acks, the answer to each edit, "ack revision pos".
+     * @param RTCE_Outbox outbox, the pending edits of the user.
+     * @return boolean, false if the GUI needs a snapshot of the document.
+     */
+    public boolean confirm(List<RTCE_Outbox.Edit> edits, List<String> acks, RTCE_Outbox outbox) {
+        return show(local.answer(edits, acks, outbox));
+    }
+
+    private boolean show(List<RTCE_Operation> ops) {
+        if (ops == null) {
+            return false;
+        }
+        for (RTCE_Operation op : ops) {
+            applyToView(op);
+        }
+        return true;
+    }
+
+    /**
+     * A method to tell if every edit the server answered was confirmed.
+     * @return boolean, true if none of the changes after the revision is ours.
+     */
+    public boolean isCaughtUp() {
+        return local.isCaughtUp();
+    }
+
+    /**
+     * A method to tell if a change made by another user never arrived.
+     * @param RTCE_Outbox outbox, the pending edits of the user.
+     * @return boolean, true if the missed changes must be fetched.
+     */
+    public boolean isBehind(RTCE_Outbox outbox) {
+        return local.isBehind(outbox);
+    }
+
+    /**
+     * A method to apply an operation, in the coordinates of the GUI, to the GUI.
+     * @param RTCE_Operation op, the operation to apply.
+     */
+    private void applyToView(RTCE_Operation op) {
+        if (op.getType().equals("insert")) {
+            view.insertViewText(op.getBeginPos(), op.getText());
+        } else if (op.getType().equals("delete")) {
+            view.removeViewText(op.getBeginPos(), op.getEndPos());
+        } else {
+            StringBuilder text = new StringBuilder(view.getText());
+            op.applyTo(text);
+            view.setViewText(text.toString());
+        }
+    }
+
     /**
      * A method to update the title of the GUI.
      * @param String title, the title you want to give the GUI.
@@ -0,0 +1,393 @@
+package RTCE.Client;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+/*
+ * Thread safety argument
+ * The edits are queued, merged and sent on the swing event dispatch thread only (the document
+ * listener of the view and the timer of the outbox both run there), so queued, sent and inFlight
+ * are confined to it, and so are the positions of the edits, which RTCE_LocalDocument moves on
+ * that thread too. The batches are written by a single thread, in the order they were sent; a
+ * batch is an unmodifiable list of requests that is not touched after it was handed to that
+ * thread. The server answers them in that order, and the answers are handed back to the event
+ * dispatch thread with SwingUtilities.invokeLater as they complete, so in the order of the
+ * batches too.
+ */
+/**
+ * The edits the user typed that were not answered by the server yet. The
+ * view hands every insert and delete to the outbox instead of sending it
+ * right away:
+ *
+ *      (1) Edits made within a short window (RTCE.coalesce milliseconds, 25
+ *          by default) are merged when they continue each other: typing after
+ *          or inside the text inserted so far, backspace or delete next to the
+ *          text deleted so far, and deleting some of the text inserted so far.
+ *          A word typed quickly is then one insert, and a typo fixed before the
+ *          window ends is not sent at all.
+ *      (2) At the end of the window the queued edits are sent as one batch,
+ *          each saying which revision of the document it is based on ("edit
+ *          revision ..."), so that the server transforms it against exactly
+ *          the changes we had not seen when it was made, like
+ *          RTCE_LocalDocument does. The next batch does not wait for the
+ *          answers: up to MAX_IN_FLIGHT batches are on their way at a time.
+ *          Every edit is made on top of the ones sent before it that the
+ *          revision does not have yet, and the server places it the same way
+ *          (see RTCE_Queue.transformSinceBase). The edits made while the
+ *          channel is not ready (see Channel.isReady), or while too many
+ *          batches are on their way, keep being merged and wait in the queue.
+ *          The view shows them all along, and when a snapshot of the document
+ *          replaces it they are made again on the snapshot (see replay).
+ *      (3) The edits that were sent but not answered yet (getSent) and the
+ *          queued ones (getQueued) are the pending edits of the client, in the
+ *          order they were made: RTCE_LocalDocument transforms the changes of
+ *          other users against them, and moves them over those changes, so
+ *          their positions are always positions in the view.
+ */
+public final class RTCE_Outbox implements ActionListener {
+
+    /**
+     * Where the batches go: the connection to the server.
+     */
+    public interface Channel {
+        /**
+         * Get the revision of the document the view shows, for the edit that
+         * is sent. Called on the event dispatch thread.
+         * @return long, the revision, or -1 if it is unknown.
+         */
+        public long getRevision();
+
+        /**
+         * Tells if the next batch may be sent: the revision is the one the
+         * queued edits are based on, with the edits sent before them that it
+         * does not have yet. Called on the event dispatch thread.
+         * @return boolean, true if the next batch may be sent.
+         */
+        public boolean isReady();
+
+        /**
+         * Sends the requests of a batch, without waiting for their answers.
+         * Called on the sending thread.
+         * @param List<String> requests, the requests, in order.
+         * @return CompletableFuture<List<String>>, completed with the answer
+         * to each request, in order, or exceptionally if the connection failed.
+         */
+        public CompletableFuture<List<String>> send(List<String> requests);
+
+        /**
+         * Handles the answers of a batch. Called on the event dispatch thread,
+         * once the edits of the batch are no longer in getSent().
+         * @param List<Edit> edits, the edits of the batch, in order.
+         * @param List<String> responses, the answer to each request of the
+         * batch, in order, or null if the batch could not be sent.
+         */
+        public void answered(List<Edit> edits, List<String> responses);
+    }
+
+    /**
+     * An insert or delete made by the user, in the coordinates of the view
+     * when it was made.
+     */
+    public static class Edit {
+        private final boolean insert;
+        private int startPos;
+        private int endPos;
+        private String text;
+
+        private Edit(boolean insert, int startPos, int endPos, String text) {
+            this.insert = insert;
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.text = text;
+        }
+
+        /**
+         * Tells if the edit is an insert.
+         * @return boolean, true for an insert, false for a delete.
+         */
+        public boolean isInsert() {
+            return insert;
+        }
+
+        /**
+         * Get where the edit starts.
+         * @return int, the position of an insert, or the start of a delete.
+         */
+        public int getStartPos() {
+            return startPos;
+        }
+
+        /**
+         * Get where a delete ends, exclusive.
+         * @return int, the end of a delete, or the end of the inserted text.
+         */
+        public int getEndPos() {
+            return insert ? startPos + text.length() : endPos;
+        }
+
+        /**
+         * Get the text of an insert.
+         * @return String, the inserted text, empty for a delete.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Moves the edit, when a change made by someone else was applied to
+         * the view before it.
+         * @param int startPos, the new start.
+         * @param int endPos, the new end of a delete, ignored for an insert.
+         */
+        void moveTo(int startPos, int endPos) {
+            this.startPos = startPos;
+            this.endPos = endPos;
+        }
+
+        /**
+         * Merges the next edit of the user into this one, if a single insert
+         * or delete can do both.
+         * @return boolean, true if next was merged.
+         */
+        private boolean merge(Edit next) {
+            if (insert && next.insert) {
+                int offset = next.startPos - startPos;
+                if (offset < 0 || offset > text.length()) {
+                    return false;
+                }
+                text = text.substring(0, offset) + next.text + text.substring(offset);
+                return true;
+            }
+            if (!insert && !next.insert) {
+                if (next.startPos == startPos) { // delete key
+                    endPos += next.endPos - next.startPos;
+                    return true;
+                }
+                if (next.endPos == startPos) { // backspace
+                    startPos = next.startPos;
+                    return true;
+                }
+                return false;
+            }
+            if (insert && !next.insert && next.startPos >= startPos && next.endPos <= startPos + text.length()) {
+                text = text.substring(0, next.startPos - startPos) + text.substring(next.endPos - startPos);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get the request that makes this edit.
+         * @return String, "insert pos text" or "delete startPos endPos".
+         */
+        public String toRequest() {
+            return insert ? "insert " + startPos + " " + text : "delete " + startPos + " " + endPos;
+        }
+    }
+
+    private final Channel channel;
+    private final Timer timer;
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RTCE-outbox");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final List<Edit> queued = new ArrayList<Edit>();
+    private final List<Edit> sent = new ArrayList<Edit>();
+    private int inFlight = 0; // batches sent and not answered yet
+    static final int MAX_IN_FLIGHT = 8; // batches on their way at a time
+
+    /**
+     * Constructor for the outbox of a connection, merging the edits made
+     * within RTCE.coalesce milliseconds (25 by default).
+     * @param Channel channel, where the batches are sent.
+     */
+    public RTCE_Outbox(Channel channel) {
+        this(channel, Integer.getInteger("RTCE.coalesce", 25));
+    }
+
+    /**
+     * Constructor for the outbox of a connection.
+     * @param Channel channel, where the batches are sent.
+     * @param int coalesceMillis, how long edits are held to be merged.
+     */
+    public RTCE_Outbox(Channel channel, int coalesceMillis) {
+        this.channel = channel;
+        timer = new Timer(coalesceMillis, this);
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Queues an insert made by the user.
+     * @param int pos, where the text was inserted in the view.
+     * @param String text, the inserted text.
+     */
+    public void insert(int pos, String text) {
+        add(new Edit(true, pos, pos + text.length(), text));
+    }
+
+    /**
+     * Queues a delete made by the user.
+     * @param int startLocation, the start of the deleted text, inclusive.
+     * @param int endLocation, the end of the deleted text, exclusive.
+     */
+    public void delete(int startLocation, int endLocation) {
+        add(new Edit(false, startLocation, endLocation, ""));
+    }
+
+    private void add(Edit edit) {
+        if (queued.isEmpty() || !queued.get(queued.size() - 1).merge(edit)) {
+            queued.add(edit);
+        }
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    /**
+     * Called by the timer at the end of the window: sends the queued edits,
+     * unless too many batches are on their way.
+     */
+    public void actionPerformed(ActionEvent e) {
+        resume();
+    }
+
+    /**
+     * Sends the queued edits if nothing keeps them waiting: fewer than
+     * MAX_IN_FLIGHT batches are on their way, and the channel is ready.
+     * Called when that changes.
+     */
+    public void resume() {
+        dropEmpty();
+        if (!queued.isEmpty() && inFlight < MAX_IN_FLIGHT && channel.isReady()) {
+            send();
+        }
+    }
+
+    /**
+     * Makes the queued edits again on a snapshot of the document, which
+     * replaces the view they were made on: the inserts go where they were, or
+     * at the end of the snapshot if it is shorter. A delete can't be made
+     * again, it could delete text of somebody else that moved there, so the
+     * text it deleted shows again.
+     * @param String text, the text of the snapshot.
+     * @return String, the text of the snapshot with the queued inserts.
+     */
+    public String replay(String text) {
+        StringBuilder sb = new StringBuilder(text);
+        for (int i = queued.size() - 1; i >= 0; i--) {
+            if (!queued.get(i).insert) {
+                queued.remove(i);
+            }
+        }
+        for (Edit edit : queued) {
+            int pos = Math.min(edit.startPos, sb.length());
+            edit.moveTo(pos, pos);
+            sb.insert(pos, edit.text);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Splits a queued delete around the text someone else inserted in its
+     * middle, which the delete must keep: first the part after that text, then
+     * the part before it. Called by RTCE_LocalDocument.
+     * @param Edit edit, the queued delete.
+     * @param int pos, where the text was inserted, inside the delete.
+     * @param int length, the length of the inserted text.
+     */
+    void split(Edit edit, int pos, int length) {
+        int index = queued.indexOf(edit);
+        queued.add(index, new Edit(false, pos + length, edit.endPos + length, ""));
+        edit.moveTo(edit.startPos, pos);
+    }
+
+    /**
+     * Removes the edits that do nothing: inserts that were typed and deleted
+     * again, and deletes of text someone else deleted first.
+     */
+    private void dropEmpty() {
+        for (int i = queued.size() - 1; i >= 0; i--) {
+            if (queued.get(i).getEndPos() == queued.get(i).startPos) {
+                queued.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Sends the queued edits, as one batch. Each carries the revision of the
+     * view ("edit revision ...") so that the server can transform it against
+     * what we have not seen.
+     */
+    private void send() {
+        final List<Edit> edits = new ArrayList<Edit>(queued);
+        queued.clear();
+        long revision = channel.getRevision();
+        List<String> requests = new ArrayList<String>();
+        for (Edit edit : edits) {
+            requests.add(revision >= 0 ? "edit " + revision + " " + edit.toRequest() : edit.toRequest());
+        }
+        sent.addAll(edits);
+        inFlight++;
+        final List<String> batch = Collections.unmodifiableList(requests);
+        sender.execute(new Runnable() {
+            public void run() {
+                CompletableFuture<List<String>> answers;
+                try {
+                    answers = channel.send(batch);
+                } catch (RuntimeException e) {
+                    answers = new CompletableFuture<List<String>>();
+                    answers.completeExceptionally(e);
+                }
+                answers.whenComplete(new BiConsumer<List<String>, Throwable>() {
+                    public void accept(final List<String> responses, final Throwable failure) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                inFlight--;
+                                sent.subList(0, edits.size()).clear();
+                                channel.answered(edits, failure == null ? responses : null);
+                                resume();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Tells if there are no edits of ours waiting to be sent or answered.
+     * @return boolean, true if the view holds no edit the server did not answer.
+     */
+    public boolean isEmpty() {
+        return queued.isEmpty() && inFlight == 0;
+    }
+
+    /**
+     * Get the edits waiting for the end of the window, merged.
+     * @return List<Edit>, the queued edits, in order.
+     */
+    public List<Edit> getQueued() {
+        return Collections.unmodifiableList(new ArrayList<Edit>(queued));
+    }
+
+    /**
+     * Get the edits that were sent and not answered yet.
+     * @return List<Edit>, the sent edits, in the order they were made.
+     */
+    public List<Edit> getSent() {
+        return Collections.unmodifiableList(new ArrayList<Edit>(sent));
+    }
+}
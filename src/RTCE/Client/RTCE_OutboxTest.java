@@ -0,0 +1,234 @@
+package RTCE.Client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+/*
+ * Testing for the outbox of the client.
+ *
+ * Strategy:
+ *
+ *      1) Merging: typing, typing inside the inserted text, backspace and
+ *         delete key, deleting inserted text (down to nothing), and edits
+ *         that can't be merged (an insert elsewhere, an insert after a
+ *         delete).
+ *
+ *      2) Sending: the queued edits are sent in order, as one batch, each one
+ *         carries the revision, an insert typed and deleted again is not sent,
+ *         the sent edits are kept until they are answered, and the answers
+ *         come back on the event dispatch thread.
+ *
+ *      3) The timer sends the queued edits on its own, without waiting for
+ *         the batches on their way, up to MAX_IN_FLIGHT of them: the edits
+ *         made while that many are on their way, or while the channel is not
+ *         ready, wait (and keep being merged).
+ *
+ *      4) Replay on a snapshot: the queued inserts are made again, at the end
+ *         of a shorter text, and the queued deletes are forgotten.
+ */
+public class RTCE_OutboxTest {
+
+    /**
+     * A channel that records the batches and answers "ack" to everything,
+     * once it is released, in the order the batches were sent.
+     */
+    private static class FakeChannel implements RTCE_Outbox.Channel {
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        final List<List<String>> answers = new ArrayList<List<String>>();
+        final CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch answered = new CountDownLatch(1);
+        long revision = 7;
+        volatile boolean ready = true;
+        boolean onEventThread = true;
+        CompletableFuture<?> last = null; // only used by the sending thread
+
+        public long getRevision() {
+            return revision;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public CompletableFuture<List<String>> send(final List<String> requests) {
+            batches.add(requests);
+            final CompletableFuture<List<String>> answer = new CompletableFuture<List<String>>();
+            final CompletableFuture<?> previous = last;
+            last = answer;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                        if (previous != null) {
+                            previous.join();
+                        }
+                    } catch (InterruptedException e) {
+                        answer.completeExceptionally(e);
+                        return;
+                    }
+                    List<String> responses = new ArrayList<String>();
+                    for (int i = 0; i < requests.size(); i++) {
+                        responses.add("ack");
+                    }
+                    answer.complete(responses);
+                }
+            }).start();
+            return answer;
+        }
+
+        public void answered(List<RTCE_Outbox.Edit> edits, List<String> responses) {
+            assertEquals(edits.size(), responses.size());
+            onEventThread &= SwingUtilities.isEventDispatchThread();
+            answers.add(responses);
+            answered.countDown();
+        }
+    }
+
+    private static List<String> requests(List<RTCE_Outbox.Edit> edits) {
+        List<String> requests = new ArrayList<String>();
+        for (RTCE_Outbox.Edit edit : edits) {
+            requests.add(edit.toRequest());
+        }
+        return requests;
+    }
+
+    private static void onEventThread(final RTCE_Outbox outbox) throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                outbox.resume();
+            }
+        });
+    }
+
+    @Test
+    public void merging() {
+        RTCE_Outbox outbox = new RTCE_Outbox(new FakeChannel(), 60000);
+        outbox.insert(3, "h");
+        outbox.insert(4, "e");
+        outbox.insert(5, "lo");
+        outbox.insert(5, "l"); // inside
+        assertEquals(Collections.singletonList("insert 3 hello"), requests(outbox.getQueued()));
+        outbox.delete(6, 7); // the second "l" of hello
+        assertEquals(Collections.singletonList("insert 3 helo"), requests(outbox.getQueued()));
+        outbox.insert(20, "x"); // elsewhere
+        outbox.delete(10, 11);
+        outbox.delete(9, 10); // backspace
+        outbox.delete(9, 10); // delete key
+        assertEquals("[insert 3 helo, insert 20 x, delete 9 12]", requests(outbox.getQueued()).toString());
+        outbox.insert(9, "y"); // an insert after a delete is its own edit
+        assertEquals(4, outbox.getQueued().size());
+        assertFalse(outbox.isEmpty());
+    }
+
+    @Test
+    public void sending() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        RTCE_Outbox outbox = new RTCE_Outbox(channel, 60000);
+        outbox.insert(10, "typo");
+        outbox.delete(10, 14); // gone before it was sent
+        outbox.insert(0, "ab");
+        outbox.delete(5, 6);
+        onEventThread(outbox);
+        assertTrue(outbox.getQueued().isEmpty());
+        assertEquals("[insert 0 ab, delete 5 6]", requests(outbox.getSent()).toString());
+        assertFalse(outbox.isEmpty());
+        channel.release.countDown();
+        assertTrue(channel.answered.await(5, TimeUnit.SECONDS));
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals("[[edit 7 insert 0 ab, edit 7 delete 5 6]]", channel.batches.toString());
+        assertEquals("[[ack, ack]]", channel.answers.toString());
+        assertTrue(channel.onEventThread);
+        assertTrue(outbox.getSent().isEmpty());
+        assertTrue(outbox.isEmpty());
+    }
+
+    private static void waitFor(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void batchesInFlight() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        channel.answered = new CountDownLatch(2);
+        RTCE_Outbox outbox = new RTCE_Outbox(channel, 10);
+        outbox.insert(0, "first");
+        waitFor(channel.batches, 1); // the timer flushed it
+        assertEquals(1, channel.batches.size());
+        outbox.insert(0, "se");
+        outbox.insert(2, "cond");
+        outbox.delete(20, 21);
+        waitFor(channel.batches, 2); // the timer fires again, the first edit is still on its way
+        assertEquals("[edit 7 insert 0 second, edit 7 delete 20 21]", channel.batches.get(1).toString());
+        assertEquals("[insert 0 first, insert 0 second, delete 20 21]", requests(outbox.getSent()).toString());
+        channel.release.countDown();
+        assertTrue(channel.answered.await(5, TimeUnit.SECONDS));
+        assertEquals("[edit 7 insert 0 first]", channel.batches.get(0).toString());
+    }
+
+    @Test
+    public void tooManyInFlight() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        channel.answered = new CountDownLatch(RTCE_Outbox.MAX_IN_FLIGHT + 1);
+        final RTCE_Outbox outbox = new RTCE_Outbox(channel, 60000);
+        for (int i = 0; i <= RTCE_Outbox.MAX_IN_FLIGHT; i++) {
+            final int pos = 2 * i;
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    outbox.insert(pos, "x");
+                    outbox.resume();
+                }
+            });
+        }
+        waitFor(channel.batches, RTCE_Outbox.MAX_IN_FLIGHT);
+        assertEquals(RTCE_Outbox.MAX_IN_FLIGHT, channel.batches.size());
+        assertEquals(1, outbox.getQueued().size()); // waits for an answer
+        channel.release.countDown();
+        assertTrue(channel.answered.await(5, TimeUnit.SECONDS));
+        assertEquals(RTCE_Outbox.MAX_IN_FLIGHT + 1, channel.batches.size());
+    }
+
+    @Test
+    public void notReady() throws Exception {
+        FakeChannel channel = new FakeChannel();
+        channel.ready = false;
+        final RTCE_Outbox outbox = new RTCE_Outbox(channel, 10);
+        outbox.insert(0, "wait");
+        Thread.sleep(100);
+        assertTrue(channel.batches.isEmpty());
+        channel.ready = true;
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                outbox.resume();
+            }
+        });
+        waitFor(channel.batches, 1);
+        assertEquals("[[edit 7 insert 0 wait]]", channel.batches.toString());
+        channel.release.countDown();
+    }
+
+    @Test
+    public void replay() {
+        RTCE_Outbox outbox = new RTCE_Outbox(new FakeChannel(), 60000);
+        outbox.insert(1, "a");
+        outbox.delete(4, 6);
+        outbox.insert(8, "b");
+        assertEquals("xayzb", outbox.replay("xyz"));
+        assertEquals("[insert 1 a, insert 4 b]", requests(outbox.getQueued()).toString());
+    }
+}
@@ -0,0 +1,126 @@
+package RTCE.Client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import javax.swing.SwingUtilities;
+/*
+ * Thread safety argument
+ * The subscription reads the pushed deltas on its own thread, on a socket that nobody else uses.
+ * It never touches the model or the view itself: every delta is handed to the controller
+ * with SwingUtilities.invokeLater, so all of the GUI updates still happen on the swing
+ * event dispatch thread, in the order the server pushed them.
+ */
+/**
+ * The push connection of a client. After the controller sent "subscribe" on
+ * its main connection, it opens a RTCE_Subscription with the returned token.
+ * The subscription opens a second connection to the server, sends "listen token"
+ * on it and then waits for deltas (see RTCE_Server.listenRequest), handing each
+ * one to RTCE_Controller.handlePush. This replaces polling the server with
+ * 'view' and 'giveStyle' requests.
+ */
+public class RTCE_Subscription implements Runnable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final RTCE_Controller controller;
+    private volatile boolean alive = true;
+
+    /**
+     * Opens the push connection and starts listening with the given token.
+     * @param String ipAddress, the IP address or host name of the server.
+     * @param int port, the port of the server.
+     * @param String token, the token returned by the 'subscribe' request.
+     * @param RTCE_Controller controller, the controller to hand the deltas to.
+     * @throws IOException if the connection could not be made or the server
+     * refused to listen.
+     */
+    public RTCE_Subscription(String ipAddress, int port, String token, RTCE_Controller controller)
+            throws IOException {
+        this.controller = controller;
+        socket = new Socket(ipAddress, port);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        out.println("listen " + token);
+        String response = readMessage();
+        if (response == null || !response.equals("listening")) {
+            socket.close();
+            throw new IOException("Server refused to listen: " + response);
+        }
+    }
+
+    /**
+     * Starts reading deltas on a background thread.
+     */
+    public void start() {
+        Thread t = new Thread(this, "RTCE-subscription");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Reads deltas until the connection goes away, and tells the controller
+     * when it did so that it can go back to polling.
+     */
+    public void run() {
+        try {
+            String message;
+            while ((message = readMessage()) != null) {
+                final String delta = message;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        controller.handlePush(delta);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // the server went away, fall through
+        }
+        close();
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                controller.pushLost();
+            }
+        });
+    }
+
+    /**
+     * Indicate if the subscription still receives deltas.
+     * @return true if the push connection is open, false otherwise.
+     */
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Closes the push connection.
+     */
+    public void close() {
+        alive = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads one message, that is all the lines up to the EOF line.
+     * @return String, the message or null if the connection was closed.
+     * @throws IOException
+     */
+    private String readMessage() throws IOException {
+        StringBuilder message = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("EOF")) {
+                return message.toString();
+            }
+            message.append(line);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,100 @@
+package RTCE.Client;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+/*
+ * Thread safety argument
+ * The class has no state. apply changes the Swing document it is given, so like every other
+ * change of the view it must be called on the event dispatch thread (see RTCE_View).
+ */
+/**
+ * Turns a new text for the view into the smallest change of the Swing
+ * document that shows it: the text the old and the new one have in common
+ * at the start (prefix) and at the end (suffix) is left alone, and only what
+ * is between them is removed and inserted. A snapshot that differs from the
+ * view by one word is then one remove and one insert of that word, so the
+ * text area only lays out and repaints the lines around it, and the caret
+ * and the selection stay where they were (they move with the text like for
+ * any other edit).
+ */
+public final class RTCE_TextDiff {
+
+    private final int prefix;
+    private final int removed;
+    private final String inserted;
+
+    /**
+     * Constructor for the difference between two texts.
+     * @param String oldText, the text shown now.
+     * @param String newText, the text to show.
+     */
+    public RTCE_TextDiff(String oldText, String newText) {
+        int max = Math.min(oldText.length(), newText.length());
+        int start = 0;
+        while (start < max && oldText.charAt(start) == newText.charAt(start)) {
+            start++;
+        }
+        int end = 0;
+        while (end < max - start
+                && oldText.charAt(oldText.length() - 1 - end) == newText.charAt(newText.length() - 1 - end)) {
+            end++;
+        }
+        this.prefix = start;
+        this.removed = oldText.length() - start - end;
+        this.inserted = newText.substring(start, newText.length() - end);
+    }
+
+    /**
+     * Get where the two texts start to differ.
+     * @return int, the length of the common prefix.
+     */
+    public int getPosition() {
+        return prefix;
+    }
+
+    /**
+     * Get the number of characters of the old text replaced.
+     * @return int, the length of the old text between the prefix and the suffix.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Get the text that replaces them.
+     * @return String, the new text between the prefix and the suffix.
+     */
+    public String getInserted() {
+        return inserted;
+    }
+
+    /**
+     * Tells if the two texts are the same.
+     * @return boolean, true if there is nothing to change.
+     */
+    public boolean isEmpty() {
+        return removed == 0 && inserted.length() == 0;
+    }
+
+    /**
+     * Changes a Swing document so that it shows a new text, removing and
+     * inserting only what differs from the text it shows now.
+     * @param Document doc, the document.
+     * @param String newText, the text it must show.
+     * @return RTCE_TextDiff, the change that was made.
+     */
+    public static RTCE_TextDiff apply(Document doc, String newText) {
+        try {
+            RTCE_TextDiff diff = new RTCE_TextDiff(doc.getText(0, doc.getLength()), newText);
+            if (diff.removed > 0) {
+                doc.remove(diff.prefix, diff.removed);
+            }
+            if (diff.inserted.length() > 0) {
+                doc.insertString(diff.prefix, diff.inserted, null);
+            }
+            return diff;
+        } catch (BadLocationException e) {
+            throw new RuntimeException("Bad location in RTCE_TextDiff.");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package RTCE.Client;
+
+import static org.junit.Assert.*;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import org.junit.Test;
+
+/*
+ * Testing for the difference applied to the text of the view.
+ *
+ * Strategy:
+ *
+ *      1) The difference between two texts: equal texts, insert, delete and
+ *         replace at the start, in the middle and at the end, empty texts,
+ *         and repeated characters where the prefix and the suffix could
+ *         overlap.
+ *
+ *      2) Applying it to a Swing document gives the new text, with at most
+ *         one remove and one insert covering only the change, and nothing
+ *         at all when the text did not change.
+ */
+public class RTCE_TextDiffTest {
+
+    private static void assertDiff(String oldText, String newText, int pos, int removed, String inserted) {
+        RTCE_TextDiff diff = new RTCE_TextDiff(oldText, newText);
+        assertEquals(pos, diff.getPosition());
+        assertEquals(removed, diff.getRemoved());
+        assertEquals(inserted, diff.getInserted());
+        assertEquals(newText, oldText.substring(0, pos) + inserted + oldText.substring(pos + removed));
+    }
+
+    @Test
+    public void differences() {
+        assertDiff("same", "same", 4, 0, "");
+        assertTrue(new RTCE_TextDiff("same", "same").isEmpty());
+        assertDiff("", "", 0, 0, "");
+        assertDiff("", "new", 0, 0, "new");
+        assertDiff("old", "", 0, 3, "");
+        assertDiff("hello world", "hello big world", 6, 0, "big ");
+        assertDiff("hello big world", "hello world", 6, 4, "");
+        assertDiff("hello world", "hello there", 6, 5, "there");
+        assertDiff("abc", "xabc", 0, 0, "x");
+        assertDiff("abc", "abcx", 3, 0, "x");
+        assertDiff("aaaa", "aaaaa", 4, 0, "a");
+        assertDiff("aaaaa", "aa", 2, 3, "");
+        assertDiff("abab", "ab", 2, 2, "");
+    }
+
+    @Test
+    public void applyToDocument() throws BadLocationException {
+        PlainDocument doc = new PlainDocument();
+        doc.insertString(0, "line one\nline two\nline three\n", null);
+        final int[] events = new int[2];
+        final int[] lengths = new int[2];
+        doc.addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                events[0]++;
+                lengths[0] += e.getLength();
+            }
+            public void removeUpdate(DocumentEvent e) {
+                events[1]++;
+                lengths[1] += e.getLength();
+            }
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        RTCE_TextDiff.apply(doc, "line one\nline 2\nline three\n");
+        assertEquals("line one\nline 2\nline three\n", doc.getText(0, doc.getLength()));
+        assertEquals(1, events[0]);
+        assertEquals(1, events[1]);
+        assertEquals(1, lengths[0]);
+        assertEquals(3, lengths[1]);
+
+        RTCE_TextDiff.apply(doc, "line one\nline 2\nline three\n");
+        assertEquals(1, events[0]);
+        assertEquals(1, events[1]);
+
+        RTCE_TextDiff.apply(doc, "");
+        assertEquals("", doc.getText(0, doc.getLength()));
+        RTCE_TextDiff.apply(doc, "back");
+        assertEquals("back", doc.getText(0, doc.getLength()));
+    }
+}
@@ -3,9 +3,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.event.TreeSelectionEvent;
@@ -20,8 +22,8 @@ import RTCE.Document.RTCE_FileWriter;
 /*
  * Thread safety argument 
  * 
- * The method setViewText is thread safe because it is using a setText method from the JTextArea build in methods
- * This method is thread safe.
+ * The method setViewText changes the Swing document of the JTextArea (see RTCE_TextDiff), so like the
+ * other updates of the view it is only called on the swing event dispatch thread.
  * 
  *  Even though swing components are not thread safe, each client has its own GUI that is created on a
  *  separate thread that is dedicated to this specific client.
@@ -349,7 +351,7 @@ public class RTCE_View extends JFrame implements ActionListener {
                     int pos = insertEvent.getOffset();
                     String text;
                     try {
-                        text = textPane.getText(pos,1);
+                        text = textPane.getText(pos, insertEvent.getLength()); // a paste inserts more than one char
 
                         controller.handleInsertUpdate(pos, text);
                     } catch (BadLocationException e) {
@@ -419,10 +421,10 @@ public class RTCE_View extends JFrame implements ActionListener {
             
             if (fileChooser.showSaveDialog(RTCE_View.this) == JFileChooser.APPROVE_OPTION) {
                 File file = fileChooser.getSelectedFile();
-                FileWriter f;
                 try {
-                    f = new FileWriter(file.getPath());
-                    BufferedWriter b = new BufferedWriter(f); 
+                    // UTF-8, the way RTCE_FileReader reads it back
+                    BufferedWriter b = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(file.getPath()), StandardCharsets.UTF_8)); 
                     PrintWriter out = new PrintWriter(b); 
                     fw.writeData(textPane.getText(), out);
                     out.close(); 
@@ -633,12 +635,66 @@ public class RTCE_View extends JFrame implements ActionListener {
      * A method to lock the documentListner from detecting the set of a new document in the file
      * after a view update. 
      * 
-     * SetText is a thread safe method, which will prevent concurency issues
+     * Only the part of the text that changed is removed and inserted (see RTCE_TextDiff), so
+     * the text area does not lay out the whole document again, and the caret stays where it was.
+     * @param text - the text the view must show.
      */
     public void setViewText(String text) {
         setText = true;
-        textPane.setText(text);
-        setText = false;
+        try {
+            RTCE_TextDiff.apply(textPane.getDocument(), text);
+        } finally {
+            setText = false;
+        }
+    }
+
+    /**
+     * A method to insert text that another user typed, without the documentListener
+     * sending it back to the server. Text past the end of the document is padded
+     * with spaces, like the server does.
+     * @param pos - the position to insert at.
+     * @param text - the text to insert.
+     */
+    public void insertViewText(int pos, String text) {
+        setText = true;
+        try {
+            int length = textPane.getDocument().getLength();
+            if (pos > length) {
+                StringBuilder padding = new StringBuilder();
+                for (int i = length; i < pos; i++) {
+                    padding.append(' ');
+                }
+                text = padding + text;
+                pos = length;
+            }
+            textPane.getDocument().insertString(pos, text, null);
+        } catch (BadLocationException e) {
+            throw new RuntimeException("Bad location in insertViewText.");
+        } finally {
+            setText = false;
+        }
+    }
+
+    /**
+     * A method to remove text that another user deleted, without the documentListener
+     * sending it back to the server. The range is clipped to the document, like the
+     * server does.
+     * @param startLocation - the start of the deleted text, inclusive.
+     * @param endLocation - the end of the deleted text, exclusive.
+     */
+    public void removeViewText(int startLocation, int endLocation) {
+        setText = true;
+        try {
+            int length = textPane.getDocument().getLength();
+            endLocation = Math.min(endLocation, length);
+            if (startLocation < endLocation) {
+                textPane.getDocument().remove(startLocation, endLocation - startLocation);
+            }
+        } catch (BadLocationException e) {
+            throw new RuntimeException("Bad location in removeViewText.");
+        } finally {
+            setText = false;
+        }
     }
 
     /**
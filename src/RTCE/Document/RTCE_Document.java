@@ -1,8 +1,12 @@
 package RTCE.Document;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 import RTCE.Server.RTCE_Queue;
+import RTCE.Server.RTCE_Sequencer;
 import RTCE.Server.RTCE_User;
 /*
  * Thread safety argument
@@ -10,35 +14,99 @@ import RTCE.Server.RTCE_User;
  * The constructor does not need to be synchronize because it is making a new object that is confined. 
  * Therefore, Java won't let you synchronize it. 
  * 
- *all of the methods that might mutate the data, and can be subjects for race condition are locked by 
- *synchronization and as a result they are thread safe.
+ *The text and the log are guarded by a StampedLock. All of the methods that might mutate the
+ *data take the write lock, so there is only ever one change running and no reader sees it half
+ *done. The readers never block each other: the bulk ones (getAllText, getData,
+ *getOperationsSince, getSnapshot) take the read lock, and the small ones (getCharAt,
+ *getTextAtPos, getLength, getRevision) first read without any lock and keep the result only if
+ *no write lock was taken in the meantime (validate), else read again under the read lock. A read
+ *without the lock may see the storage in the middle of a change and throw; that is caught and
+ *also ends up under the read lock, where a real error is thrown again.
+ *
+ *The style is a volatile field, so getStyle does not need the lock; setStyle takes the write lock
+ *so that the style changes reach the journal in the order they were made. The users working on
+ *the document don't need the lock either: they are kept in a concurrent set, which can be
+ *iterated while users come and go.
+ *
+ *The journal field is only read and set under the write lock, and the journal only buffers the
+ *changes in memory (see RTCE_Journal for its own argument), so the write lock is never held
+ *while waiting for the disk.
+ *
+ *getSnapshot reads the cached snapshot without the lock. The snapshot is immutable and the field
+ *is volatile, and every change clears it while holding the write lock. A missing snapshot is made
+ *under the read lock, so no change can run (and clear it) between making it and caching it; the
+ *snapshotLock only keeps many readers from all making the same one. A reader therefore gets
+ *either the snapshot of the revision before a change that is still running or one made after
+ *the last finished change, never an older one.
  */
 /**
  * The RTCE_Document class for the RTCE. 
  * Supports all specification from Design (see Design.pdf).
  * Has two fields: the String Document name, docName and 
- * the text in the document, called data, represented as a
- * StringBuffer.
+ * the text in the document, called data, kept in a
+ * RTCE_TextStorage (a StringBuffer by default, or a rope when the
+ * RTCE.storage system property is "rope"). Every change to the text increments the revision
+ * of the document, so clients can tell whether they missed an edit, and is recorded in the
+ * RTCE_OpLog of the document, so they can catch up with the operations they missed
+ * (see getOperationsSince) instead of the whole text.
  * @author Philippe
  *
  */
 public class RTCE_Document {
 
     private String docName;
-    private String style="1 0 12 0";
-    private StringBuffer data;
+    private volatile String style="1 0 12 0";
+    private RTCE_OpLog log = new RTCE_OpLog(OP_LOG_SIZE);
+    private RTCE_TextStorage data;
+    // the snapshot of the current revision, null until someone asks for it or after a change
+    private volatile RTCE_Snapshot snapshot = null;
+    private final Object snapshotLock = new Object();
+    private final StampedLock lock = new StampedLock();
+    // where the changes are logged to survive a restart, null if they are not
+    private RTCE_Journal journal = null;
     private RTCE_Queue requestQueue;
-    private ArrayList<RTCE_User> listOfClients = new ArrayList<RTCE_User>();
+    private RTCE_Sequencer sequencer;
+    private Set<RTCE_User> users = ConcurrentHashMap.newKeySet();
+
+    // number of operations kept in the log before the oldest half is dropped
+    static final int OP_LOG_SIZE = 1024;
+
     /**
      * Constructor for RTCE_Document. The only parameter that is 
      * needed is the name of the document as a String. The data is 
-     * instantiated as an empty (length 16) StringBuffer.
+     * instantiated as an empty storage of the kind chosen with the
+     * RTCE.storage system property (an empty StringBuffer by default).
      * @param String docName, the document name
      */
     public RTCE_Document(String docName) {
+        this(docName, newStorage());
+    }
+
+    /**
+     * Constructor for RTCE_Document with a given storage engine.
+     * @param String docName, the document name
+     * @param RTCE_TextStorage storage, the storage that will hold the text
+     * of the document. If it is not empty (see RTCE_FileReader.readInto),
+     * its text is the text of revision 0, and is not copied.
+     */
+    public RTCE_Document(String docName, RTCE_TextStorage storage) {
         this.docName = docName;
-        this.data = new StringBuffer();
+        this.data = storage;
         requestQueue = new RTCE_Queue(this);
+        sequencer = new RTCE_Sequencer(requestQueue);
+    }
+
+    /**
+     * Makes an empty storage of the kind chosen with the RTCE.storage
+     * system property: "rope" for RTCE_RopeStorage, anything else for
+     * RTCE_StringBufferStorage.
+     * @return RTCE_TextStorage, the new empty storage.
+     */
+    public static RTCE_TextStorage newStorage() {
+        if ("rope".equals(System.getProperty("RTCE.storage"))) {
+            return new RTCE_RopeStorage();
+        }
+        return new RTCE_StringBufferStorage();
     }
 
     /**
@@ -48,35 +116,62 @@ public class RTCE_Document {
      * modifies: docName.
      * @param int pos, requested position for insertion.
      * @param String text, the text to insert.
+     * @return long, the revision produced by the insert.
      */
-    public synchronized void insert(int pos, String text) {
+    public long insert(int pos, String text) {
+        long stamp = lock.writeLock();
+        try {
+            long revision = log.getRevision() + 1;
 
-        if (pos >= 0 && pos <= this.data.length()) this.data.insert(pos, text);
-        else if (pos >= 0) {
-            int len = this.data.length();
-            for (int i = 0; i <= pos - len - 1; i++) {
-                this.data.append(" ");
+            if (pos >= 0 && pos <= this.data.length()) {
+                this.data.insert(pos, text);
+                record(RTCE_Operation.insert(revision, pos, text));
+            } else if (pos >= 0) {
+                int len = this.data.length();
+                StringBuilder padded = new StringBuilder(pos - len + text.length());
+                for (int i = 0; i <= pos - len - 1; i++) {
+                    padded.append(" ");
+                }
+                padded.append(text);
+                this.data.insert(len, padded.toString());
+                record(RTCE_Operation.insert(revision, len, padded.toString()));
+            } else {
+                record(RTCE_Operation.insert(revision, 0, ""));
             }
-            this.data.append(text);
+            return revision;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
-    /** A method to get the list of all users working on
+    /** A method to get the set of all users working on
      * a document so that the server can know what users
      * are working on a given document at a given time.
-     * @return ArrayList<RTCE_User>, an ArrayList of RTCE_Users.
+     * The set is concurrent so the server can iterate over
+     * it to push updates while users switch documents.
+     * @return Set<RTCE_User>, a Set of RTCE_Users.
      */
-    public  ArrayList<RTCE_User> getList(){
-        return listOfClients;
+    public Set<RTCE_User> getUsers(){
+        return users;
     }
 
     /**
-     * A method to add a user to the ArrayList that stores
+     * A method to add a user to the Set that stores
      * all the users working on a document at a given time.
      * @param RTCE_User u, the user you want to add.
      */
     public void setUser(RTCE_User u){
-        listOfClients.add(u);
+        users.add(u);
+    }
+
+    /**
+     * A method to remove a user from the Set of the users
+     * working on the document, when it switches to another
+     * document or disconnects.
+     * @param RTCE_User u, the user you want to remove.
+     */
+    public void removeUser(RTCE_User u){
+        users.remove(u);
     }
 
     /**
@@ -85,12 +180,20 @@ public class RTCE_Document {
      * for the RTCE.
      * @param int beginPos, from where to delete, inclusive.
      * @param int endPos, until where to delete, exclusive.
+     * @return long, the revision produced by the delete.
      */
-    public synchronized void delete(int beginPos, int endPos) {
+    public long delete(int beginPos, int endPos) {
+        long stamp = lock.writeLock();
         try {
+            int clippedEnd = Math.min(endPos, this.data.length());
             this.data.delete(beginPos, endPos);
+            long revision = log.getRevision() + 1;
+            record(RTCE_Operation.delete(revision, beginPos, clippedEnd));
+            return revision;
         } catch (StringIndexOutOfBoundsException e) {
             throw new RuntimeException("Index bounds error in delete of RTCE_Document.");
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -99,11 +202,20 @@ public class RTCE_Document {
      * "replaceFrom" to another string "replaceTo".
      * @param String replaceFrom, the string you want to replace.
      * @param String replaceTo, the string you want to replace with.
+     * @return long, the revision produced by the replace.
      */
-    public synchronized void replaceAll(String replaceFrom, String replaceTo) {
-        String dataTemp = this.data.toString();
-        String replacedDataTemp = dataTemp.replaceAll(replaceFrom, replaceTo);
-        this.data = new StringBuffer(replacedDataTemp);
+    public long replaceAll(String replaceFrom, String replaceTo) {
+        long stamp = lock.writeLock();
+        try {
+            String dataTemp = this.data.toString();
+            String replacedDataTemp = dataTemp.replaceAll(replaceFrom, replaceTo);
+            this.data.setText(replacedDataTemp);
+            long revision = log.getRevision() + 1;
+            record(RTCE_Operation.replace(revision, "replaceAll", replaceFrom, replaceTo));
+            return revision;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -111,11 +223,20 @@ public class RTCE_Document {
      * "replaceFrom" to another String "replaceTo".
      * @param String replaceFrom, the string you want to replace.
      * @param String replaceTo, the string you want to replace with.
+     * @return long, the revision produced by the replace.
      */
-    public synchronized void replaceOne(String replaceFrom, String replaceTo) {
-        String dataTemp = this.data.toString();
-        String replacedDataTemp = dataTemp.replaceFirst(replaceFrom, replaceTo);
-        this.data = new StringBuffer(replacedDataTemp);
+    public long replaceOne(String replaceFrom, String replaceTo) {
+        long stamp = lock.writeLock();
+        try {
+            String dataTemp = this.data.toString();
+            String replacedDataTemp = dataTemp.replaceFirst(replaceFrom, replaceTo);
+            this.data.setText(replacedDataTemp);
+            long revision = log.getRevision() + 1;
+            record(RTCE_Operation.replace(revision, "replaceOne", replaceFrom, replaceTo));
+            return revision;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
 
@@ -129,11 +250,21 @@ public class RTCE_Document {
 
     /**
      * Method that allows you to set the data of the Document
-     * directly. You must give it a StringBuffer
+     * directly. You must give it a StringBuffer, which is copied
+     * into the storage of the Document.
      * @param String data, the data you want to give the Document.
+     * @return long, the revision produced by the change.
      */
-    public synchronized void setDate(StringBuffer data) {
-        this.data = data;
+    public long setDate(StringBuffer data) {
+        long stamp = lock.writeLock();
+        try {
+            this.data.setText(data);
+            long revision = log.getRevision() + 1;
+            record(RTCE_Operation.reset(revision, data.toString()));
+            return revision;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -151,18 +282,98 @@ public class RTCE_Document {
      * @return StringBuffer, the StringBuffer representing the data in
      * the Document.
      */
-    public synchronized StringBuffer getData()  {
-        String dataString = this.data.toString();
-        StringBuffer dataCopy = new StringBuffer(dataString);
-        return dataCopy;
+    public StringBuffer getData()  {
+        return new StringBuffer(getAllText());
     }
 
     /**
      * Method to get all the text in the document as a String.
      * @return String of entire text in document.
      */
-    public synchronized String getAllText() {
-        return this.data.toString();
+    public String getAllText() {
+        long stamp = lock.readLock();
+        try {
+            return this.data.toString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Method to get the text in the document as it is sent to the clients:
+     * URL encoded, in a snapshot that can be shared by all of them. The
+     * snapshot is made once per revision: until the text changes again every
+     * caller gets the same one, without taking the lock of the document.
+     * @return RTCE_Snapshot, the encoded text and its revision.
+     */
+    public RTCE_Snapshot getSnapshot() {
+        RTCE_Snapshot s = snapshot;
+        if (s == null) {
+            long stamp = lock.readLock();
+            try {
+                synchronized (snapshotLock) {
+                    s = snapshot;
+                    if (s == null) {
+                        s = new RTCE_Snapshot(log.getRevision(), this.data);
+                        snapshot = s;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Records a change to the text in the log (and in the journal, if the
+     * document has one), and drops the snapshot of the revision before it.
+     * Only called by the methods that change the text, under the write lock,
+     * after changing it.
+     * @param RTCE_Operation op, the change.
+     */
+    private void record(RTCE_Operation op) {
+        log.append(op);
+        snapshot = null;
+        if (journal != null) {
+            journal.append(op);
+        }
+    }
+
+    /**
+     * Sets the journal that all the following changes are logged to. Only
+     * called by RTCE_WriteAheadLog, which then saves a snapshot of the
+     * document so that the changes made before are not lost.
+     * @param RTCE_Journal journal, the journal of the document.
+     */
+    void setJournal(RTCE_Journal journal) {
+        long stamp = lock.writeLock();
+        try {
+            this.journal = journal;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts the document back in the state it was saved in: the text, the
+     * style and the revision, with an empty operation log starting there.
+     * Only called by RTCE_WriteAheadLog, before the document is shared and
+     * before it has a journal.
+     * @param String text, the saved text.
+     * @param String style, the saved style.
+     * @param long revision, the revision the text is at.
+     */
+    void restore(String text, String style, long revision) {
+        long stamp = lock.writeLock();
+        try {
+            this.data.setText(text);
+            this.style = style;
+            log = new RTCE_OpLog(OP_LOG_SIZE, revision);
+            snapshot = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -177,8 +388,16 @@ public class RTCE_Document {
      * x_3: Colour.<br>
      * @param String styleToSet, comprised of 4 numbers.
      */
-    public synchronized void setStyle(String styleToSet) {
-        this.style = styleToSet;
+    public void setStyle(String styleToSet) {
+        long stamp = lock.writeLock();
+        try {
+            this.style = styleToSet;
+            if (journal != null) {
+                journal.appendStyle(log.getRevision(), styleToSet);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -193,7 +412,7 @@ public class RTCE_Document {
      * x_3: Color.<br>
      * @return String, the style of the document as a string of 4 numbers.
      */
-    public synchronized String getStyle() {
+    public String getStyle() {
         return this.style;
     }
     /**
@@ -202,8 +421,24 @@ public class RTCE_Document {
      * @param int endPos, until where we want the text, exclusive.
      * @return String, the text at position between beginPos and endPos.
      */
-    public synchronized String getTextAtPos(int beginPos, int endPos) {
-        return this.data.subSequence(beginPos, endPos).toString();
+    public String getTextAtPos(int beginPos, int endPos) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String text = this.data.substring(beginPos, endPos);
+                if (lock.validate(stamp)) {
+                    return text;
+                }
+            } catch (RuntimeException e) {
+                // maybe a change in the middle, read again under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return this.data.substring(beginPos, endPos);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -211,11 +446,61 @@ public class RTCE_Document {
      * @param int pos, the position at which you want to get the char.
      * @return char, character at pos.
      */
-    public synchronized char getCharAt(int pos) {
+    public char getCharAt(int pos) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                char c = this.data.charAt(pos);
+                if (lock.validate(stamp)) {
+                    return c;
+                }
+            } catch (RuntimeException e) {
+                // maybe a change in the middle, read again under the lock
+            }
+        }
+        stamp = lock.readLock();
         try {
             return this.data.charAt(pos);
         } catch(IndexOutOfBoundsException e) {
             throw new RuntimeException("No char at this point.");        
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the revision of the document, the number of changes that
+     * were made to its text since it was created.
+     * @return long, the revision of the document.
+     */
+    public long getRevision() {
+        long stamp = lock.tryOptimisticRead();
+        long revision = log.getRevision();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                revision = log.getRevision();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return revision;
+    }
+
+    /**
+     * Get the operations that were applied to the document after a given
+     * revision, so that a client that is behind can catch up.
+     * @param long revision, the last revision the client knows about.
+     * @return List<RTCE_Operation>, the operations producing revision + 1 up
+     * to getRevision(), in order, or null if the log no longer goes back that
+     * far and the client needs the whole text.
+     */
+    public List<RTCE_Operation> getOperationsSince(long revision) {
+        long stamp = lock.readLock();
+        try {
+            return log.since(revision);
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
@@ -224,7 +509,17 @@ public class RTCE_Document {
      * @return int, the length of the document as an int.
      */
     public int getLength() {
-        return this.data.length();
+        long stamp = lock.tryOptimisticRead();
+        int length = this.data.length();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                length = this.data.length();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return length;
     }
 
     /**
@@ -236,13 +531,23 @@ public class RTCE_Document {
         return requestQueue;
     }
 
+    /**
+     * Public getter for the sequencer of the document, the single writer
+     * that the server submits the edits of the users to.
+     * @return RTCE_Sequencer, The RTCE_Sequencer for this document.
+     */
+    public RTCE_Sequencer getSequencer() {
+        return sequencer;
+    }
+
     /**
      * Method that allows you to make a shallow copy of an
      * RTCE_Document.
      * @return RTCE_Document, a copy of the Document.
      */
     public RTCE_Document copy() {
-        RTCE_Document doc = new RTCE_Document(this.getName());
+        RTCE_Document doc = new RTCE_Document(this.getName(),
+                this.data instanceof RTCE_RopeStorage ? new RTCE_RopeStorage() : new RTCE_StringBufferStorage());
         doc.setDate(this.getData());
         return doc;
     }
@@ -252,7 +557,7 @@ public class RTCE_Document {
      * compare multiple versions of the same document and manage
      * the application of operational transformations. Using
      * getAllText() instead of accessing the data field directly
-     * because a StringBuffer cannot be hashed.
+     * because the storage cannot be hashed.
      * 
      * @return Integer representing the hash of the document.
      */
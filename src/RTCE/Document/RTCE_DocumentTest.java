@@ -2,6 +2,8 @@ package RTCE.Document;
 
 import static org.junit.Assert.*;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
 
 public class RTCE_DocumentTest {
@@ -33,6 +35,12 @@ public class RTCE_DocumentTest {
      *              try replacing a word that occurs only once
      *              try replacing a word that does not occur
      *              try replacing with an empty string 
+     *
+     *           - concurrency tests:
+     *              every change returns the revision it produced
+     *              readers that run against a writer (on both storage
+     *              engines) never see a change half done, and never see
+     *              the revision go back
      * @author Philippe
      */
 
@@ -234,4 +242,65 @@ public class RTCE_DocumentTest {
         d.replaceAll(" you", "");
         assertEquals(d.getAllText(), "Work like dont need money, love likeve never been hurt, and dance like no ones watching.");
     }
+
+    // Concurrency Tests
+    @Test
+    public void changesReturnTheirRevision() {
+        RTCE_Document d = new RTCE_Document("revisions.txt");
+        assertEquals(d.insert(0, "abc"), 1);
+        assertEquals(d.delete(0, 1), 2);
+        assertEquals(d.replaceAll("b", "x"), 3);
+        assertEquals(d.replaceOne("x", "y"), 4);
+        assertEquals(d.setDate(new StringBuffer("new")), 5);
+        assertEquals(d.getRevision(), 5);
+    }
+
+    @Test
+    public void readersAgainstWriter() throws InterruptedException {
+        for (RTCE_TextStorage storage : new RTCE_TextStorage[] {new RTCE_StringBufferStorage(), new RTCE_RopeStorage()}) {
+            final RTCE_Document d = new RTCE_Document("readers.txt", storage);
+            final int changes = 3000;
+            final boolean[] failed = {false};
+            final AtomicBoolean done = new AtomicBoolean(false);
+            d.setDate(new StringBuffer(fill('a', 1000)));
+            Thread[] readers = new Thread[4];
+            for (int t = 0; t < readers.length; t++) {
+                readers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        long revision = 0;
+                        while (!done.get()) {
+                            // the writer always sets 1000 to 1006 times the same letter
+                            String text = d.getTextAtPos(0, 1000);
+                            char c = d.getCharAt(999);
+                            int length = d.getLength();
+                            long current = d.getRevision();
+                            if (!text.equals(fill(text.charAt(0), 1000)) || (c != 'a' && c != 'b')
+                                    || length < 1000 || length > 1006 || current < revision) {
+                                failed[0] = true;
+                            }
+                            revision = current;
+                        }
+                    }
+                });
+                readers[t].start();
+            }
+            for (int i = 1; i <= changes; i++) {
+                d.setDate(new StringBuffer(fill(i % 2 == 0 ? 'a' : 'b', 1000 + i % 7)));
+            }
+            done.set(true);
+            for (Thread t : readers) {
+                t.join();
+            }
+            assertFalse(failed[0]);
+            assertEquals(d.getRevision(), changes + 1);
+        }
+    }
+
+    private static String fill(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
 }
\ No newline at end of file
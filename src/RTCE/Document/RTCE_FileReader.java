@@ -1,52 +1,190 @@
 package RTCE.Document;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 /*
- * Thread Safety argument * 
+ * Thread Safety argument *
  * by confinement - all of the reading is being performed on a single thread that is only related to the
  * current user that is calling a local instance of the file reader on his or her system.
- * Therefore there is no race condition or concurrency issues.
+ * Therefore there is no race condition or concurrency issues. The reader keeps no state between
+ * two calls: the channel, the buffers and the decoder are local to each call.
  * Finally all of the methods that enables the user to create the file on RTCE are not part of this class
  * and are already thread safe.
  */
 /**
  * The file reader class will enable the user to import RTCE files (file.txt) from his or her system
- * into the RTCE editor. The class is using a file reader to import the file from the system and convert it 
- * into a string.
- * 
+ * into the RTCE editor. The class reads the file through a channel, CHUNK_SIZE bytes at a time, and
+ * hands the decoded text over chunk by chunk: into a String (FileToString), or straight into the
+ * storage engine of a document (readInto), so that reading a file of hundreds of megabytes only
+ * needs the chunk buffers on top of the text itself. Every line ends with the line separator of the
+ * system, whatever the file used ("\n", "\r\n" or "\r"), the last line included.
+ *
  * behavior is not specified if the user tries to import a non supported file.
  * @author Ido Efrati
  *
  */
 public class RTCE_FileReader {
-    private static BufferedReader b;
+
+    // number of bytes read from the file at a time
+    static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Receives the progress of a file being read.
+     */
+    public interface Progress {
+        /**
+         * Called after every chunk read from the file, on the reading thread.
+         * @param long bytesRead, the number of bytes read so far.
+         * @param long totalBytes, the size of the file.
+         */
+        public void progress(long bytesRead, long totalBytes);
+    }
+
+    /**
+     * Where the chunks of decoded text go.
+     */
+    private static abstract class Sink {
+        abstract void put(char[] chars, int length);
+    }
+
     /**
      * The FileToString method convert a valid RTCE file to a string.
      * @param fileName - a valid file path to the file we want to import from the system.
      * @return  a String representation of a file for the document.
      */
     public String FileToString(String fileName) {
-        String outValue = "";
-        try {
-            String eol = System.getProperty( "line.separator" );
-            FileReader fin = new FileReader(fileName);
-            b = new BufferedReader(fin);
+        return FileToString(fileName, null);
+    }
 
-            String currentLine; 
-            while ((currentLine = b.readLine()) != null) {
-                outValue= outValue + currentLine + eol;
+    /**
+     * The FileToString method convert a valid RTCE file to a string, and reports its progress.
+     * @param fileName - a valid file path to the file we want to import from the system.
+     * @param progress - told about every chunk read, or null.
+     * @return  a String representation of a file for the document.
+     */
+    public String FileToString(String fileName, Progress progress) {
+        // mostly one char per byte, so the builder rarely has to grow
+        long size = new File(fileName).length();
+        final StringBuilder outValue = new StringBuilder((int) Math.min(size + 2, Integer.MAX_VALUE - 8));
+        read(fileName, new Sink() {
+            void put(char[] chars, int length) {
+                outValue.append(chars, 0, length);
+            }
+        }, progress);
+        return outValue.toString();
+    }
+
+    /**
+     * The readInto method appends the text of a valid RTCE file to a storage engine, chunk by
+     * chunk, without ever holding the whole text in a String. A document can then be made of
+     * the storage (see RTCE_Document(String, RTCE_TextStorage)).
+     * @param fileName - a valid file path to the file we want to import from the system.
+     * @param storage - the storage the text is appended to, not shared with other threads yet.
+     * @param progress - told about every chunk read, or null.
+     * @return  the number of characters appended.
+     */
+    public int readInto(String fileName, final RTCE_TextStorage storage, Progress progress) {
+        int before = storage.length();
+        read(fileName, new Sink() {
+            void put(char[] chars, int length) {
+                storage.insert(storage.length(), new String(chars, 0, length));
+            }
+        }, progress);
+        return storage.length() - before;
+    }
+
+    /**
+     * Reads a file chunk by chunk, decodes it as UTF-8 (malformed input is
+     * replaced, like FileReader does), turns its line ends into the line
+     * separator of the system, and hands every decoded chunk to sink.
+     */
+    private void read(String fileName, Sink sink, Progress progress) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            char[] eol = System.getProperty("line.separator").toCharArray();
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+            CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+            // a decoded char becomes at most one line separator
+            char[] out = new char[CHUNK_SIZE * Math.max(1, eol.length)];
+            long total = channel.size();
+            long bytesRead = 0;
+            boolean afterCR = false; // the last char was a '\r', so a '\n' right after it ends no line
+            boolean lineOpen = false; // there are chars after the last line end
+            boolean eof = false;
+            while (!eof) {
+                int n = channel.read(bytes);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    bytesRead += n;
+                }
+                bytes.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, eof);
+                    if (eof && !result.isOverflow()) {
+                        result = decoder.flush(chars);
+                    }
+                    chars.flip();
+                    int length = 0;
+                    while (chars.hasRemaining()) {
+                        char c = chars.get();
+                        if (c == '\n' && afterCR) {
+                            afterCR = false;
+                        } else if (c == '\n' || c == '\r') {
+                            System.arraycopy(eol, 0, out, length, eol.length);
+                            length += eol.length;
+                            afterCR = c == '\r';
+                            lineOpen = false;
+                        } else {
+                            out[length++] = c;
+                            afterCR = false;
+                            lineOpen = true;
+                        }
+                    }
+                    chars.clear();
+                    if (length > 0) {
+                        sink.put(out, length);
+                    }
+                } while (result.isOverflow());
+                bytes.compact();
+                if (progress != null) {
+                    progress.progress(bytesRead, total);
+                }
+            }
+            if (lineOpen) {
+                sink.put(eol, eol.length);
             }
         }
-        catch (FileNotFoundException ef) {
+        catch (NoSuchFileException ef) {
             throw new RuntimeException("File not found error in RTCE_FileReader.");
         }
         catch (IOException ei) {
             throw new RuntimeException("IO Exception: could not perform " +
             		"input/output correctly in RTCE_FileReader");
         }
-        return outValue;
-    }  
-}
\ No newline at end of file
+        finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing was written, there is nothing to lose
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Testing strategy: the text read must be the lines of the file, each
+ * followed by the line separator of the system.
+ *      (1) Line ends: "\n", "\r\n", "\r", none after the last line, empty
+ *          file, empty lines.
+ *      (2) Chunk boundaries: a "\r\n" and a multi-byte character split
+ *          between two chunks, a file of several chunks.
+ *      (3) readInto appends to both storage engines, and a document made
+ *          of the storage starts from that text and keeps editing.
+ *      (4) Progress is reported after every chunk and ends at the size of
+ *          the file; a missing file is an error.
+ */
+public class RTCE_FileReaderTest {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    private static String write(String text) throws IOException {
+        File file = File.createTempFile("rtce-read", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    private static String read(String text) throws IOException {
+        return new RTCE_FileReader().FileToString(write(text));
+    }
+
+    @Test
+    public void lineEnds() throws IOException {
+        assertEquals("", read(""));
+        assertEquals("a" + NL, read("a"));
+        assertEquals("a" + NL + "b" + NL, read("a\nb\n"));
+        assertEquals("a" + NL + "b" + NL, read("a\r\nb"));
+        assertEquals("a" + NL + "b" + NL, read("a\rb\r"));
+        assertEquals(NL + NL + "c" + NL, read("\n\r\nc"));
+        assertEquals("a" + NL + NL + "b" + NL, read("a\r\rb"));
+    }
+
+    @Test
+    public void chunkBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RTCE_FileReader.CHUNK_SIZE - 1; i++) {
+            sb.append('x');
+        }
+        // "\r" is the last byte of the first chunk, "\n" the first of the second
+        assertEquals(sb + NL + "y" + NL, read(sb + "\r\ny"));
+        // "\u00e9" is two bytes in UTF-8, split between the chunks
+        assertEquals(sb + "\u00e9\u20ac" + NL, read(sb + "\u00e9\u20ac"));
+    }
+
+    @Test
+    public void severalChunks() throws IOException {
+        StringBuilder file = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            file.append("line ").append(i).append(" \u00e0\r\n");
+            expected.append("line ").append(i).append(" \u00e0").append(NL);
+        }
+        assertEquals(expected.toString(), read(file.toString()));
+    }
+
+    @Test
+    public void intoStorage() throws IOException {
+        String path = write("first\nsecond\n");
+        RTCE_TextStorage[] engines = { new RTCE_StringBufferStorage(), new RTCE_RopeStorage() };
+        for (RTCE_TextStorage storage : engines) {
+            storage.insert(0, ">");
+            int read = new RTCE_FileReader().readInto(path, storage, null);
+            String text = "first" + NL + "second" + NL;
+            assertEquals(text.length(), read);
+            assertEquals(">" + text, storage.substring(0, storage.length()));
+        }
+    }
+
+    @Test
+    public void documentOfStorage() throws IOException {
+        RTCE_TextStorage storage = new RTCE_RopeStorage();
+        new RTCE_FileReader().readInto(write("abc"), storage, null);
+        RTCE_Document d = new RTCE_Document("read.txt", storage);
+        assertEquals("abc" + NL, d.getAllText());
+        assertEquals(0, d.getRevision());
+        // enough changes to compact the op log, which starts from the text read
+        for (int i = 0; i < RTCE_Document.OP_LOG_SIZE + 10; i++) {
+            d.insert(d.getLength(), "-");
+        }
+        assertTrue(d.getAllText().startsWith("abc" + NL + "-"));
+        assertEquals(RTCE_Document.OP_LOG_SIZE + 10, d.getRevision());
+    }
+
+    @Test
+    public void progress() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * RTCE_FileReader.CHUNK_SIZE; i++) {
+            sb.append('p');
+        }
+        String path = write(sb.toString());
+        final List<Long> reports = new ArrayList<Long>();
+        final long size = new File(path).length();
+        new RTCE_FileReader().FileToString(path, new RTCE_FileReader.Progress() {
+            public void progress(long bytesRead, long totalBytes) {
+                assertEquals(size, totalBytes);
+                reports.add(bytesRead);
+            }
+        });
+        assertTrue(reports.size() >= 3);
+        for (int i = 1; i < reports.size(); i++) {
+            assertTrue(reports.get(i - 1) <= reports.get(i));
+        }
+        assertEquals(size, (long) reports.get(reports.size() - 1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void missingFile() {
+        new RTCE_FileReader().FileToString("/no/such/rtce/file.txt");
+    }
+}
@@ -0,0 +1,416 @@
+package RTCE.Document;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+/*
+ * Thread safety argument
+ * The pending buffer is guarded by the monitor of the journal: append and appendStyle are
+ * called by the document under its write lock, and commit takes the whole buffer out with
+ * drain, all synchronized. The files (the log channel and the snapshot) are only touched by
+ * commit, checkpoint and close, which RTCE_WriteAheadLog only calls while holding its commit
+ * lock, so only one thread at a time does I/O on a journal, and never while holding the
+ * monitor of the journal: appending never waits for the disk.
+ * The document is thread safe, and the checkpoint only reads it through RTCE_SnapshotStore.save.
+ */
+/**
+ * The write-ahead log of one RTCE_Document, kept in two files named after
+ * the (URL encoded) name of the document:
+ *
+ *      name.wal   the changes applied to the document since the last
+ *                 checkpoint, in order.
+ *      name.snap  the document at the last checkpoint: its name, style,
+ *                 revision and text (see RTCE_SnapshotStore).
+ *
+ * The document hands every change it makes to append (or appendStyle),
+ * which only encodes it into a buffer in memory. RTCE_WriteAheadLog then
+ * writes the buffer out and forces it to the disk every few milliseconds
+ * (commit), so one fsync covers all of the changes made meanwhile (group
+ * commit), and no edit waits for the disk. When the log gets big it is
+ * folded into a new snapshot (checkpoint) and emptied.
+ *
+ * The log file is a header followed by records:
+ *
+ *      header:  int LOG_MAGIC, int VERSION, int n, n bytes of UTF-8 name
+ *      record:  int length, int CRC32 of the payload, payload:
+ *               byte kind, long revision, then depending on the kind
+ *                   INSERT       int pos, text
+ *                   DELETE       int begin, int end
+ *                   REPLACE_ALL  pattern, text
+ *                   REPLACE_ONE  pattern, text
+ *                   RESET        text
+ *                   STYLE        style
+ *               where every string is an int n and n bytes of UTF-8.
+ *
+ * A crash can leave the last record cut or garbled: recovery stops at the
+ * first record that is incomplete or fails its CRC, and cuts the log there.
+ */
+public final class RTCE_Journal {
+
+    static final int LOG_MAGIC = 0x52544A4C;
+    static final int VERSION = 1;
+
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    static final byte REPLACE_ALL = 3;
+    static final byte REPLACE_ONE = 4;
+    static final byte RESET = 5;
+    static final byte STYLE = 6;
+
+    private final RTCE_Document doc;
+    private final RTCE_SnapshotStore store;
+    private final FileChannel channel;
+    private final long headerLength;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadData = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+
+    private RTCE_Journal(RTCE_Document doc, RTCE_SnapshotStore store, FileChannel channel, long headerLength) {
+        this.doc = doc;
+        this.store = store;
+        this.channel = channel;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Makes an empty journal for a document that has none yet. Does not
+     * attach it to the document.
+     * @param RTCE_Document doc, the document.
+     * @param File logFile, the log file of the document.
+     * @param RTCE_SnapshotStore store, where the snapshots of the document are saved.
+     * @return RTCE_Journal, the journal.
+     * @throws IOException if the log file can't be written.
+     */
+    static RTCE_Journal create(RTCE_Document doc, File logFile, RTCE_SnapshotStore store) throws IOException {
+        FileChannel channel = FileChannel.open(logFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] name = doc.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(12 + name.length);
+        header.putInt(LOG_MAGIC).putInt(VERSION).putInt(name.length).put(name);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        return new RTCE_Journal(doc, store, channel, 12 + name.length);
+    }
+
+    /**
+     * Reads the name of the document a log file belongs to, without reading
+     * the changes.
+     * @param File logFile, the log file.
+     * @return String, the name of the document.
+     * @throws IOException if the file can't be read, or does not start with
+     * a journal header.
+     */
+    static String readName(File logFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(logFile));
+        try {
+            return readHeader(in, logFile);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the header of a log file.
+     * @return String, the name of the document.
+     */
+    private static String readHeader(DataInputStream in, File logFile) throws IOException {
+        long fileLength = logFile.length();
+        if (fileLength < 12 || in.readInt() != LOG_MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a journal: " + logFile);
+        }
+        int nameLength = in.readInt();
+        if (nameLength < 0 || 12 + nameLength > fileLength) {
+            throw new IOException("Not a journal: " + logFile);
+        }
+        byte[] name = new byte[nameLength];
+        in.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rebuilds a document from its log file and snapshot: loads the snapshot,
+     * if there is one, replays the changes logged after it, and cuts off a
+     * record that was only partly written. Does not attach the journal to
+     * the document.
+     * @param File logFile, the log file of the document.
+     * @param RTCE_SnapshotStore store, where the snapshots of the document are saved.
+     * @return RTCE_Journal, the journal, appending after the last good
+     * record, whose document is the rebuilt document.
+     * @throws IOException if the files can't be read, or the log file
+     * does not start with a journal header.
+     */
+    static RTCE_Journal recover(File logFile, RTCE_SnapshotStore store) throws IOException {
+        long fileLength = logFile.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        RTCE_Document doc;
+        long end;
+        try {
+            doc = new RTCE_Document(readHeader(in, logFile));
+            store.load(doc);
+            end = 12 + doc.getName().getBytes(StandardCharsets.UTF_8).length;
+            CRC32 check = new CRC32();
+            while (end + 8 <= fileLength) {
+                int length = in.readInt();
+                int sum = in.readInt();
+                if (length < 9 || length > fileLength - end - 8) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                check.reset();
+                check.update(record, 0, length);
+                if ((int) check.getValue() != sum || !replay(doc, record)) {
+                    break;
+                }
+                end += 8 + length;
+            }
+        } finally {
+            in.close();
+        }
+        FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > end) {
+            System.err.println("Cut the journal of " + doc.getName() + " after its last good record, at " + end);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        return new RTCE_Journal(doc, store, channel, 12 + doc.getName().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Applies one logged change to the document being recovered.
+     * @return boolean, false if the record can't be applied, which ends the replay.
+     */
+    private static boolean replay(RTCE_Document doc, byte[] record) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            byte kind = in.readByte();
+            long revision = in.readLong();
+            if (kind == STYLE) {
+                doc.setStyle(readText(in));
+                return true;
+            }
+            if (revision <= doc.getRevision()) {
+                return true; // already in the snapshot
+            }
+            if (revision != doc.getRevision() + 1) {
+                return false;
+            }
+            switch (kind) {
+            case INSERT:
+                int pos = in.readInt();
+                doc.insert(pos, readText(in));
+                break;
+            case DELETE:
+                int begin = in.readInt();
+                doc.delete(begin, in.readInt());
+                break;
+            case REPLACE_ALL:
+                String allFrom = readText(in);
+                doc.replaceAll(allFrom, readText(in));
+                break;
+            case REPLACE_ONE:
+                String oneFrom = readText(in);
+                doc.replaceOne(oneFrom, readText(in));
+                break;
+            case RESET:
+                doc.setDate(new StringBuffer(readText(in)));
+                break;
+            default:
+                return false;
+            }
+            return doc.getRevision() == revision;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Logs a change of the text. Only buffers it: it reaches the disk with
+     * the next commit. Only called by the document, under its write lock.
+     * @param RTCE_Operation op, the change.
+     */
+    synchronized void append(RTCE_Operation op) {
+        try {
+            String type = op.getType();
+            if (type.equals("insert")) {
+                payloadData.writeByte(INSERT);
+                payloadData.writeLong(op.getRevision());
+                payloadData.writeInt(op.getBeginPos());
+                writeText(payloadData, op.getText());
+            } else if (type.equals("delete")) {
+                payloadData.writeByte(DELETE);
+                payloadData.writeLong(op.getRevision());
+                payloadData.writeInt(op.getBeginPos());
+                payloadData.writeInt(op.getEndPos());
+            } else if (type.equals("reset")) {
+                payloadData.writeByte(RESET);
+                payloadData.writeLong(op.getRevision());
+                writeText(payloadData, op.getText());
+            } else {
+                payloadData.writeByte(type.equals("replaceAll") ? REPLACE_ALL : REPLACE_ONE);
+                payloadData.writeLong(op.getRevision());
+                writeText(payloadData, op.getPattern());
+                writeText(payloadData, op.getText());
+            }
+            endRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not encode a change in RTCE_Journal.");
+        }
+    }
+
+    /**
+     * Logs a change of the style. Only buffers it, like append.
+     * @param long revision, the revision of the document when the style changed.
+     * @param String style, the new style.
+     */
+    synchronized void appendStyle(long revision, String style) {
+        try {
+            payloadData.writeByte(STYLE);
+            payloadData.writeLong(revision);
+            writeText(payloadData, style);
+            endRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not encode a change in RTCE_Journal.");
+        }
+    }
+
+    /**
+     * Moves the record in payload to the pending buffer, behind its length and CRC.
+     */
+    private void endRecord() throws IOException {
+        crc.reset();
+        crc.update(payload.toByteArray(), 0, payload.size());
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(payload.size());
+        out.writeInt((int) crc.getValue());
+        payload.writeTo(pending);
+        payload.reset();
+    }
+
+    /**
+     * Takes out everything that was logged since the last call.
+     * @return byte[], the records, or null if there are none.
+     */
+    private synchronized byte[] drain() {
+        if (pending.size() == 0) {
+            return null;
+        }
+        byte[] records = pending.toByteArray();
+        pending = new ByteArrayOutputStream(Math.min(records.length, 1 << 16));
+        return records;
+    }
+
+    /**
+     * Puts records that could not be written back in front of the pending ones.
+     */
+    private synchronized void undrain(byte[] records) {
+        ByteArrayOutputStream again = new ByteArrayOutputStream(records.length + pending.size());
+        again.write(records, 0, records.length);
+        again.write(pending.toByteArray(), 0, pending.size());
+        pending = again;
+    }
+
+    /**
+     * Writes the pending records to the log file and forces them to the disk.
+     * @return boolean, true if there was anything to write.
+     * @throws IOException if writing fails; the records are then kept to be
+     * written by the next commit.
+     */
+    boolean commit() throws IOException {
+        byte[] records = drain();
+        if (records == null) {
+            return false;
+        }
+        long start = channel.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            undrain(records);
+            try {
+                channel.truncate(start);
+            } catch (IOException ignored) {
+                // recovery cuts a partly written record anyway
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Saves a snapshot of the document and empties the log. Every change
+     * written before the snapshot was taken is in it, and the ones logged
+     * while it is written stay pending, so nothing is lost: at worst
+     * recovery skips a few changes that are already in the snapshot.
+     * @throws IOException if writing fails; the log is then kept.
+     */
+    void checkpoint() throws IOException {
+        commit();
+        store.save(doc);
+        channel.truncate(headerLength);
+        channel.force(true);
+    }
+
+    /**
+     * Get the size of the records in the log file.
+     * @return long, the number of bytes after the header of the log file.
+     * @throws IOException if the size can't be read.
+     */
+    long size() throws IOException {
+        return channel.size() - headerLength;
+    }
+
+    /**
+     * Get the document of the journal.
+     * @return RTCE_Document, the document.
+     */
+    RTCE_Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Closes the log file. Pending records are not written: commit first.
+     * @throws IOException if closing fails.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static void writeText(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        // available() is exact for the records, so a garbled length can't allocate too much
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+package RTCE.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+/*
+ * Thread safety argument
+ * The log is confined to the RTCE_Document that owns it, and the document only touches it
+ * under its lock, exactly like its text storage (getRevision is also read optimistically, and
+ * the result dropped if the log changed meanwhile). The operations themselves
+ * are immutable, so the lists returned by since() can be used outside of the lock.
+ */
+/**
+ * Append only log of the operations applied to a RTCE_Document. Every
+ * operation gets the next revision number: the first change to a document
+ * produces revision 1, and so on.
+ * 
+ * A client that knows the document at revision N can catch up by applying
+ * since(N) instead of downloading the whole text again.
+ * 
+ * To keep the memory bounded the log is compacted: when it holds more than
+ * maxEntries operations, the oldest half is dropped and the base revision
+ * moves up. The log keeps no text of its own, the document has it: clients
+ * that are behind the base revision need the whole text, a snapshot of the
+ * document as it is now.
+ */
+public class RTCE_OpLog {
+
+    private final int maxEntries;
+    private long baseRevision = 0;
+    private ArrayList<RTCE_Operation> entries = new ArrayList<RTCE_Operation>();
+
+    /**
+     * Constructor for an empty log, starting at revision 0.
+     * @param int maxEntries, the number of operations kept before compacting,
+     * requires maxEntries >= 2.
+     */
+    public RTCE_OpLog(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Constructor for an empty log starting at a given revision, for a
+     * document restored from disk.
+     * @param int maxEntries, the number of operations kept before compacting,
+     * requires maxEntries >= 2.
+     * @param long baseRevision, the revision the document is at, non negative.
+     */
+    public RTCE_OpLog(int maxEntries, long baseRevision) {
+        this.maxEntries = maxEntries;
+        this.baseRevision = baseRevision;
+    }
+
+    /**
+     * Appends an operation to the log.
+     * @param RTCE_Operation op, the operation, requires
+     * op.getRevision() == getRevision() + 1.
+     */
+    public void append(RTCE_Operation op) {
+        if (op.getRevision() != getRevision() + 1) {
+            throw new RuntimeException("Operation out of order in RTCE_OpLog.");
+        }
+        entries.add(op);
+        if (entries.size() > maxEntries) {
+            compact(entries.size() / 2);
+        }
+    }
+
+    /**
+     * Get the revision produced by the last operation.
+     * @return long, the current revision.
+     */
+    public long getRevision() {
+        return baseRevision + entries.size();
+    }
+
+    /**
+     * Get the revision the log starts from: the oldest revision since() can
+     * still catch up from.
+     * @return long, the base revision.
+     */
+    public long getBaseRevision() {
+        return baseRevision;
+    }
+
+    /**
+     * Get the number of operations kept in the log.
+     * @return int, the number of operations after the base revision.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the operations applied after a given revision.
+     * @param long revision, the revision the caller knows about.
+     * @return List<RTCE_Operation>, the operations that produced revisions
+     * revision + 1 to getRevision(), in order, or null if they were compacted
+     * away (revision < getBaseRevision()) or revision is in the future.
+     */
+    public List<RTCE_Operation> since(long revision) {
+        if (revision < baseRevision || revision > getRevision()) {
+            return null;
+        }
+        return new ArrayList<RTCE_Operation>(entries.subList((int) (revision - baseRevision), entries.size()));
+    }
+
+    /**
+     * Drops the count oldest operations. Nothing is replayed: this only
+     * moves the references of the newer operations down.
+     * @param int count, the number of operations to drop, requires count <= size().
+     */
+    public void compact(int count) {
+        entries.subList(0, count).clear();
+        baseRevision += count;
+    }
+}
@@ -0,0 +1,130 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RTCE_OpLogTest {
+    /**
+     * These tests are to make sure that the operation log of a document
+     * always lets a client rebuild the text from any revision it still covers.
+     *
+     * Strategy: -Check the revisions the document edits produce, including the
+     *           edits the document pads or clips
+     *
+     *           -Check since() at the edges: the current revision, the base
+     *           revision, before the base and in the future
+     *
+     *           -Run enough random edits to compact the log several times and
+     *           make sure that any older text the log still covers plus since()
+     *           gives the text of the document
+     *
+     *           -Make sure the protocol format of an operation parses back
+     */
+
+    @Test
+    public void revisionsOfDocumentEdits() {
+        RTCE_Document d = new RTCE_Document("log.txt");
+        assertEquals(d.getRevision(), 0);
+        d.insert(3, "abc");
+        d.delete(1, 100);
+        d.replaceAll("a", "b");
+        d.insert(-1, "ignored");
+        assertEquals(d.getRevision(), 4);
+        List<RTCE_Operation> ops = d.getOperationsSince(0);
+        assertEquals(ops.size(), 4);
+        assertEquals(ops.get(0).toString(), "1 insert 0 +++abc");
+        assertEquals(ops.get(1).toString(), "2 delete 1 6");
+        assertEquals(ops.get(2).toString(), "3 replaceAll a b");
+        assertEquals(ops.get(3).toString(), "4 insert 0 ");
+        assertEquals(replay("", ops), d.getAllText());
+    }
+
+    @Test
+    public void failedDeleteIsNotLogged() {
+        RTCE_Document d = new RTCE_Document("log.txt");
+        d.insert(0, "abc");
+        try {
+            d.delete(2, 1);
+            fail("expected an exception");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(d.getRevision(), 1);
+    }
+
+    @Test
+    public void sinceEdges() {
+        RTCE_OpLog log = new RTCE_OpLog(4);
+        for (int i = 1; i <= 5; i++) {
+            log.append(RTCE_Operation.insert(i, 0, "x"));
+        }
+        // the fifth operation dropped the two oldest ones
+        assertEquals(log.getBaseRevision(), 2);
+        assertEquals(log.size(), 3);
+        assertEquals(log.getRevision(), 5);
+        assertEquals(log.since(5).size(), 0);
+        assertEquals(log.since(2).size(), 3);
+        assertNull(log.since(1));
+        assertNull(log.since(6));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void appendOutOfOrder() {
+        RTCE_OpLog log = new RTCE_OpLog(4);
+        log.append(RTCE_Operation.insert(2, 0, "x"));
+    }
+
+    @Test
+    public void randomEditsWithCompaction() {
+        Random random = new Random(6006);
+        RTCE_Document d = new RTCE_Document("log.txt");
+        String[] texts = new String[3 * RTCE_Document.OP_LOG_SIZE + 1];
+        texts[0] = "";
+        for (int i = 1; i < texts.length; i++) {
+            int length = d.getLength();
+            if (length == 0 || random.nextInt(3) > 0) {
+                d.insert(random.nextInt(length + 5), "" + (char) ('a' + random.nextInt(26)));
+            } else {
+                int begin = random.nextInt(length);
+                d.delete(begin, begin + random.nextInt(5));
+            }
+            texts[i] = d.getAllText();
+        }
+        long revision = d.getRevision();
+        assertEquals(revision, texts.length - 1);
+        for (int i = 0; i < texts.length; i++) {
+            List<RTCE_Operation> ops = d.getOperationsSince(i);
+            if (ops != null) {
+                assertEquals(replay(texts[i], ops), d.getAllText());
+            } else {
+                assertTrue(revision - i > RTCE_Document.OP_LOG_SIZE / 2);
+            }
+        }
+        assertNotNull(d.getOperationsSince(revision - RTCE_Document.OP_LOG_SIZE / 2));
+    }
+
+    @Test
+    public void parseBack() {
+        RTCE_Operation[] ops = {
+                RTCE_Operation.insert(1, 4, "a b%+\n"),
+                RTCE_Operation.delete(2, 3, 9),
+                RTCE_Operation.replace(3, "replaceOne", "x y", ""),
+                RTCE_Operation.reset(4, "")
+        };
+        for (RTCE_Operation op : ops) {
+            assertEquals(RTCE_Operation.parse(op.toString()).toString(), op.toString());
+        }
+    }
+
+    private static String replay(String text, List<RTCE_Operation> ops) {
+        StringBuilder sb = new StringBuilder(text);
+        for (RTCE_Operation op : ops) {
+            op.applyTo(sb);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,206 @@
+package RTCE.Document;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+/*
+ * Thread safety argument
+ * RTCE_Operation is immutable: all of its fields are final and are Strings or primitives,
+ * so it can be shared between threads freely.
+ */
+/**
+ * One change that was applied to the text of a RTCE_Document, together with
+ * the revision of the document it produced. Operations are recorded in the
+ * RTCE_OpLog of the document with the positions they were really applied at
+ * (after padding and clipping), so replaying them in order on the previous
+ * text always gives the same result.
+ * 
+ * The types of operations are:
+ *      (a) "insert": text inserted at beginPos.
+ *      (b) "delete": the text between beginPos and endPos deleted.
+ *      (c) "replaceAll" and "replaceOne": pattern replaced by text.
+ *      (d) "reset": all of the text replaced by text.
+ */
+public class RTCE_Operation {
+    private final long revision;
+    private final String type;
+    private final int beginPos;
+    private final int endPos;
+    private final String text;
+    private final String pattern;
+
+    private RTCE_Operation(long revision, String type, int beginPos, int endPos, String text, String pattern) {
+        this.revision = revision;
+        this.type = type;
+        this.beginPos = beginPos;
+        this.endPos = endPos;
+        this.text = text;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Makes an insert operation.
+     * @param long revision, the revision it produced.
+     * @param int pos, where the text was inserted.
+     * @param String text, the inserted text.
+     * @return RTCE_Operation, the operation.
+     */
+    public static RTCE_Operation insert(long revision, int pos, String text) {
+        return new RTCE_Operation(revision, "insert", pos, pos + text.length(), text, null);
+    }
+
+    /**
+     * Makes a delete operation.
+     * @param long revision, the revision it produced.
+     * @param int beginPos, from where the text was deleted, inclusive.
+     * @param int endPos, until where the text was deleted, exclusive.
+     * @return RTCE_Operation, the operation.
+     */
+    public static RTCE_Operation delete(long revision, int beginPos, int endPos) {
+        return new RTCE_Operation(revision, "delete", beginPos, endPos, "", null);
+    }
+
+    /**
+     * Makes a replace operation.
+     * @param long revision, the revision it produced.
+     * @param String type, "replaceAll" or "replaceOne".
+     * @param String replaceFrom, the pattern that was replaced.
+     * @param String replaceTo, what it was replaced with.
+     * @return RTCE_Operation, the operation.
+     */
+    public static RTCE_Operation replace(long revision, String type, String replaceFrom, String replaceTo) {
+        return new RTCE_Operation(revision, type, 0, 0, replaceTo, replaceFrom);
+    }
+
+    /**
+     * Makes a reset operation, replacing all of the text.
+     * @param long revision, the revision it produced.
+     * @param String text, the new text.
+     * @return RTCE_Operation, the operation.
+     */
+    public static RTCE_Operation reset(long revision, String text) {
+        return new RTCE_Operation(revision, "reset", 0, 0, text, null);
+    }
+
+    /**
+     * Applies the operation to a text that is at the previous revision.
+     * @param StringBuilder sb, the text to change.
+     */
+    public void applyTo(StringBuilder sb) {
+        if (type.equals("insert")) {
+            sb.insert(beginPos, text);
+        } else if (type.equals("delete")) {
+            sb.delete(beginPos, endPos);
+        } else if (type.equals("replaceAll")) {
+            String replaced = sb.toString().replaceAll(pattern, text);
+            sb.setLength(0);
+            sb.append(replaced);
+        } else if (type.equals("replaceOne")) {
+            String replaced = sb.toString().replaceFirst(pattern, text);
+            sb.setLength(0);
+            sb.append(replaced);
+        } else { // type.equals("reset")
+            sb.setLength(0);
+            sb.append(text);
+        }
+    }
+
+    /**
+     * Method to get the revision this operation produced.
+     * @return long, the revision.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Method to get the type of the operation.
+     * @return String, "insert", "delete", "replaceAll", "replaceOne" or "reset".
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Method to get the position the operation starts at (insert and delete).
+     * @return int, the start position, inclusive.
+     */
+    public int getBeginPos() {
+        return beginPos;
+    }
+
+    /**
+     * Method to get the position the operation ends at (insert and delete).
+     * @return int, the end position, exclusive.
+     */
+    public int getEndPos() {
+        return endPos;
+    }
+
+    /**
+     * Method to get the text of the operation: the inserted text, the
+     * replacement of a replace or the new text of a reset.
+     * @return String, the text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Method to get the pattern a replace operation replaced.
+     * @return String, the pattern, null for the other types.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * The operation in the format of the protocol (the same one the deltas use),
+     * with all of the texts URL-encoded:
+     * "revision insert pos text", "revision delete beginPos endPos",
+     * "revision replaceAll pattern text", "revision replaceOne pattern text"
+     * or "revision reset text".
+     * @return String, the operation in protocol format.
+     */
+    @Override
+    public String toString() {
+        try {
+            if (type.equals("insert")) {
+                return revision + " insert " + beginPos + " " + URLEncoder.encode(text, "UTF-8");
+            } else if (type.equals("delete")) {
+                return revision + " delete " + beginPos + " " + endPos;
+            } else if (type.equals("reset")) {
+                return revision + " reset " + URLEncoder.encode(text, "UTF-8");
+            }
+            return revision + " " + type + " " + URLEncoder.encode(pattern, "UTF-8")
+                    + " " + URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Bad encoding in toString of RTCE_Operation.");
+        }
+    }
+
+    /**
+     * Parses an operation written by toString().
+     * @param String s, the operation in protocol format.
+     * @return RTCE_Operation, the operation.
+     */
+    public static RTCE_Operation parse(String s) {
+        String[] tokens = s.split(" ", 4);
+        long revision = Long.parseLong(tokens[0]);
+        String type = tokens[1];
+        try {
+            if (type.equals("insert")) {
+                return insert(revision, Integer.parseInt(tokens[2]),
+                        tokens.length > 3 ? URLDecoder.decode(tokens[3], "UTF-8") : "");
+            } else if (type.equals("delete")) {
+                return delete(revision, Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+            } else if (type.equals("reset")) {
+                return reset(revision, tokens.length > 2 ? URLDecoder.decode(tokens[2], "UTF-8") : "");
+            }
+            return replace(revision, type, URLDecoder.decode(tokens[2], "UTF-8"),
+                    tokens.length > 3 ? URLDecoder.decode(tokens[3], "UTF-8") : "");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Bad encoding in parse of RTCE_Operation.");
+        }
+    }
+}
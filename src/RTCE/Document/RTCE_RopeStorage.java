@@ -0,0 +1,335 @@
+package RTCE.Document;
+
+/*
+ * Thread safety argument
+ * Confined to the RTCE_Document that owns it (see RTCE_TextStorage). On top of that the nodes
+ * of the rope are immutable: an edit builds new nodes along one path and then replaces the
+ * root, which is volatile. A reader that got hold of a root therefore always sees a complete,
+ * consistent version of the text.
+ */
+/**
+ * Rope storage engine for a RTCE_Document. The text is kept in the leaves of
+ * a height balanced (AVL) binary tree, each leaf holding a chunk of at most
+ * MAX_LEAF characters, and each inner node knowing the length of the text below it.
+ *
+ *      (a) charAt descends from the root: O(log n).
+ *      (b) insert and delete split the tree at the edit positions and join
+ *          the pieces back together: O(log n), independent of how much text
+ *          follows the edit.
+ *      (c) substring only visits the leaves in the range: O(log n + k).
+ *
+ * Joining two trees whose heights differ by d takes O(d) rotations, which is
+ * what keeps split and join logarithmic (see the join based balanced trees of
+ * Blelloch, Ferizovic and Sun).
+ */
+public final class RTCE_RopeStorage implements RTCE_TextStorage {
+
+    // Biggest chunk of text kept in one leaf. Small neighbouring leaves are merged up to this size.
+    static final int MAX_LEAF = 512;
+
+    private volatile Node root = null; // null is the empty text
+
+    /**
+     * Constructor for an empty RTCE_RopeStorage.
+     */
+    public RTCE_RopeStorage() {
+    }
+
+    /**
+     * Constructor for a RTCE_RopeStorage holding the given text.
+     * @param CharSequence text, the initial text.
+     */
+    public RTCE_RopeStorage(CharSequence text) {
+        setText(text);
+    }
+
+    public int length() {
+        return length(root);
+    }
+
+    public char charAt(int pos) {
+        Node n = root;
+        if (pos < 0 || pos >= length(n)) {
+            throw new StringIndexOutOfBoundsException(pos);
+        }
+        while (n.text == null) {
+            if (pos < n.left.length) {
+                n = n.left;
+            } else {
+                pos -= n.left.length;
+                n = n.right;
+            }
+        }
+        return n.text.charAt(pos);
+    }
+
+    public void insert(int pos, String text) {
+        Node n = root;
+        if (pos < 0 || pos > length(n)) {
+            throw new StringIndexOutOfBoundsException(pos);
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        Node[] parts = split(n, pos);
+        root = join(join(parts[0], build(text, 0, text.length())), parts[1]);
+    }
+
+    public void delete(int beginPos, int endPos) {
+        Node n = root;
+        int len = length(n);
+        if (endPos > len) {
+            endPos = len;
+        }
+        if (beginPos < 0 || beginPos > endPos) {
+            throw new StringIndexOutOfBoundsException(beginPos);
+        }
+        if (beginPos == endPos) {
+            return;
+        }
+        Node[] head = split(n, beginPos);
+        Node[] tail = split(head[1], endPos - beginPos);
+        root = join(head[0], tail[1]);
+    }
+
+    public String substring(int beginPos, int endPos) {
+        Node n = root;
+        if (beginPos < 0 || endPos > length(n) || beginPos > endPos) {
+            throw new StringIndexOutOfBoundsException("begin " + beginPos + ", end " + endPos);
+        }
+        StringBuilder sb = new StringBuilder(endPos - beginPos);
+        appendRange(n, beginPos, endPos, sb);
+        return sb.toString();
+    }
+
+    public void getChars(int beginPos, int endPos, char[] dst, int dstBegin) {
+        Node n = root;
+        if (beginPos < 0 || endPos > length(n) || beginPos > endPos) {
+            throw new StringIndexOutOfBoundsException("begin " + beginPos + ", end " + endPos);
+        }
+        getRange(n, beginPos, endPos, dst, dstBegin);
+    }
+
+    public void setText(CharSequence text) {
+        root = build(text, 0, text.length());
+    }
+
+    @Override
+    public String toString() {
+        Node n = root;
+        StringBuilder sb = new StringBuilder(length(n));
+        appendRange(n, 0, length(n), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Get the height of the tree, mainly used for testing the balance.
+     * @return int, the height of the tree (0 for a single leaf or empty text).
+     */
+    int height() {
+        return height(root);
+    }
+
+    /**
+     * Immutable node of the rope. A leaf has text and no children, an inner
+     * node has two non null children and no text.
+     */
+    private static final class Node {
+        final Node left;
+        final Node right;
+        final String text;
+        final int length;
+        final int height;
+
+        Node(String text) {
+            this.left = null;
+            this.right = null;
+            this.text = text;
+            this.length = text.length();
+            this.height = 0;
+        }
+
+        Node(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            this.text = null;
+            this.length = left.length + right.length;
+            this.height = Math.max(left.height, right.height) + 1;
+        }
+    }
+
+    private static int length(Node n) {
+        return n == null ? 0 : n.length;
+    }
+
+    private static int height(Node n) {
+        return n == null ? -1 : n.height;
+    }
+
+    /**
+     * Builds a perfectly balanced tree out of text[begin, end).
+     */
+    private static Node build(CharSequence text, int begin, int end) {
+        int len = end - begin;
+        if (len == 0) {
+            return null;
+        }
+        if (len <= MAX_LEAF) {
+            return new Node(text.subSequence(begin, end).toString());
+        }
+        int leaves = (len + MAX_LEAF - 1) / MAX_LEAF;
+        int mid = begin + (leaves / 2) * MAX_LEAF;
+        return new Node(build(text, begin, mid), build(text, mid, end));
+    }
+
+    /**
+     * Makes a node out of two trees whose heights differ by at most one,
+     * merging them into one leaf if they are two small leaves.
+     */
+    private static Node node(Node left, Node right) {
+        if (left.text != null && right.text != null && left.length + right.length <= MAX_LEAF) {
+            return new Node(left.text + right.text);
+        }
+        return new Node(left, right);
+    }
+
+    private static Node rotateLeft(Node n) {
+        return new Node(new Node(n.left, n.right.left), n.right.right);
+    }
+
+    private static Node rotateRight(Node n) {
+        return new Node(n.left.left, new Node(n.left.right, n.right));
+    }
+
+    /**
+     * Concatenates two balanced trees into one balanced tree.
+     */
+    private static Node join(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.height > right.height + 1) {
+            return joinRight(left, right);
+        }
+        if (right.height > left.height + 1) {
+            return joinLeft(left, right);
+        }
+        return node(left, right);
+    }
+
+    /**
+     * Join when left is more than one level taller: walk down its right spine.
+     */
+    private static Node joinRight(Node left, Node right) {
+        Node l = left.left;
+        Node c = left.right;
+        if (c.height <= right.height + 1) {
+            Node t = node(c, right);
+            if (t.height <= l.height + 1) {
+                return new Node(l, t);
+            }
+            return rotateLeft(new Node(l, rotateRight(t)));
+        }
+        Node t = joinRight(c, right);
+        Node result = new Node(l, t);
+        if (t.height <= l.height + 1) {
+            return result;
+        }
+        return rotateLeft(result);
+    }
+
+    /**
+     * Join when right is more than one level taller: walk down its left spine.
+     */
+    private static Node joinLeft(Node left, Node right) {
+        Node c = right.left;
+        Node r = right.right;
+        if (c.height <= left.height + 1) {
+            Node t = node(left, c);
+            if (t.height <= r.height + 1) {
+                return new Node(t, r);
+            }
+            return rotateRight(new Node(rotateLeft(t), r));
+        }
+        Node t = joinLeft(left, c);
+        Node result = new Node(t, r);
+        if (t.height <= r.height + 1) {
+            return result;
+        }
+        return rotateRight(result);
+    }
+
+    /**
+     * Splits a tree at a position.
+     * @return Node[], the tree of the text before pos and the tree of the text after.
+     */
+    private static Node[] split(Node n, int pos) {
+        if (n == null) {
+            return new Node[] {null, null};
+        }
+        if (pos == 0) {
+            return new Node[] {null, n};
+        }
+        if (pos == n.length) {
+            return new Node[] {n, null};
+        }
+        if (n.text != null) {
+            return new Node[] {new Node(n.text.substring(0, pos)), new Node(n.text.substring(pos))};
+        }
+        if (pos < n.left.length) {
+            Node[] parts = split(n.left, pos);
+            return new Node[] {parts[0], join(parts[1], n.right)};
+        }
+        if (pos == n.left.length) {
+            return new Node[] {n.left, n.right};
+        }
+        Node[] parts = split(n.right, pos - n.left.length);
+        return new Node[] {join(n.left, parts[0]), parts[1]};
+    }
+
+    /**
+     * Copies the text in [begin, end) of the tree to dst at dstBegin, only
+     * visiting the leaves in that range.
+     */
+    private static void getRange(Node n, int begin, int end, char[] dst, int dstBegin) {
+        if (n == null || begin >= end) {
+            return;
+        }
+        if (n.text != null) {
+            n.text.getChars(begin, end, dst, dstBegin);
+            return;
+        }
+        int leftLength = n.left.length;
+        if (begin < leftLength) {
+            getRange(n.left, begin, Math.min(end, leftLength), dst, dstBegin);
+        }
+        if (end > leftLength) {
+            int from = Math.max(begin - leftLength, 0);
+            getRange(n.right, from, end - leftLength, dst, dstBegin + Math.max(leftLength - begin, 0));
+        }
+    }
+
+    /**
+     * Appends the text in [begin, end) of the tree to sb, only visiting the
+     * leaves in that range.
+     */
+    private static void appendRange(Node n, int begin, int end, StringBuilder sb) {
+        if (n == null || begin >= end) {
+            return;
+        }
+        if (n.text != null) {
+            sb.append(n.text, begin, end);
+            return;
+        }
+        int leftLength = n.left.length;
+        if (begin < leftLength) {
+            appendRange(n.left, begin, Math.min(end, leftLength), sb);
+        }
+        if (end > leftLength) {
+            appendRange(n.right, Math.max(begin - leftLength, 0), end - leftLength, sb);
+        }
+    }
+}
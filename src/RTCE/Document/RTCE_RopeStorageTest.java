@@ -0,0 +1,137 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RTCE_RopeStorageTest {
+    /**
+     * These tests are to make sure that the rope storage engine behaves
+     * exactly like the StringBuffer one, and that it stays balanced.
+     *
+     * Strategy: -Try the edge cases of each operation (empty rope, begin
+     *           and end of the text, delete past the end, out of bounds)
+     *
+     *           -Try texts bigger than one leaf, so that the edits split
+     *           and join trees and not only strings
+     *
+     *           -Run a long random sequence of inserts and deletes on a rope
+     *           and on a StringBuffer and make sure that they always agree,
+     *           and that the height of the rope stays logarithmic
+     *
+     *           -Run the RTCE_Document edits on a rope backed document
+     */
+
+    @Test
+    public void insertInEmptyRope() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage();
+        r.insert(0, "hello world");
+        assertEquals(r.toString(), "hello world");
+        assertEquals(r.length(), 11);
+    }
+
+    @Test
+    public void insertBeginMiddleEnd() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage("bd");
+        r.insert(0, "a");
+        r.insert(2, "c");
+        r.insert(4, "e");
+        assertEquals(r.toString(), "abcde");
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void insertOutOfBounds() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage("abc");
+        r.insert(4, "d");
+    }
+
+    @Test
+    public void deletePastTheEnd() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage("qwertyuiop");
+        r.delete(3, 100);
+        assertEquals(r.toString(), "qwe");
+    }
+
+    @Test
+    public void deleteEmpty() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage();
+        r.delete(0, 1);
+        assertEquals(r.toString(), "");
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void deleteBeginAfterEnd() {
+        RTCE_RopeStorage r = new RTCE_RopeStorage("abc");
+        r.delete(2, 1);
+    }
+
+    @Test
+    public void bigTextAcrossLeaves() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        RTCE_RopeStorage r = new RTCE_RopeStorage(sb);
+        assertEquals(r.toString(), sb.toString());
+        assertEquals(r.charAt(5000), sb.charAt(5000));
+        assertEquals(r.substring(500, 2500), sb.substring(500, 2500));
+
+        r.delete(511, 1537);
+        sb.delete(511, 1537);
+        r.insert(1000, "hello");
+        sb.insert(1000, "hello");
+        assertEquals(r.toString(), sb.toString());
+        assertEquals(r.substring(990, 1010), sb.substring(990, 1010));
+
+        char[] chars = new char[1500];
+        r.getChars(400, 1900, chars, 0);
+        assertEquals(new String(chars), sb.substring(400, 1900));
+    }
+
+    @Test
+    public void randomEditsAgreeWithStringBuffer() {
+        Random random = new Random(6005);
+        RTCE_RopeStorage r = new RTCE_RopeStorage();
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < 5000; i++) {
+            if (sb.length() == 0 || random.nextInt(3) > 0) {
+                int pos = random.nextInt(sb.length() + 1);
+                String text = random.nextInt(50) == 0 ? bigString(random, 2000) : bigString(random, 3);
+                r.insert(pos, text);
+                sb.insert(pos, text);
+            } else {
+                int begin = random.nextInt(sb.length());
+                int end = begin + random.nextInt(20);
+                r.delete(begin, end);
+                sb.delete(begin, Math.min(end, sb.length()));
+            }
+            assertEquals(r.length(), sb.length());
+        }
+        assertEquals(r.toString(), sb.toString());
+        // an AVL tree with n leaves is at most 1.44 log2(n) high, and there are at most length leaves
+        assertTrue(r.height() <= 1.45 * Math.log(sb.length() + 2) / Math.log(2) + 2);
+    }
+
+    @Test
+    public void documentOnRope() {
+        RTCE_Document d = new RTCE_Document("rope.txt", new RTCE_RopeStorage());
+        d.insert(5, "money money money");
+        d.delete(0, 2);
+        d.replaceOne("money", "cash");
+        assertEquals(d.getAllText(), "   cash money money");
+        assertEquals(d.getTextAtPos(3, 7), "cash");
+        assertEquals(d.getCharAt(3), 'c');
+        assertEquals(d.copy(), d);
+    }
+
+    private static String bigString(Random random, int maxLength) {
+        int length = 1 + random.nextInt(maxLength);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,228 @@
+package RTCE.Document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+/*
+ * Thread safety argument
+ * A snapshot is immutable once constructed: the encoded bytes are written by the constructor,
+ * which the document runs while it holds its lock, and only read afterwards. It is published
+ * through final fields, so every thread that gets hold of it sees the complete bytes. The
+ * decoded text is computed lazily and published through a volatile field; two threads may
+ * both compute it, but they compute the same bytes, so either result is fine.
+ * Readers never hand out the arrays themselves, only read-only views and copies into streams.
+ * A snapshot made by withRevision shares the encoded bytes of the one it was made from, which
+ * are never written again, and has its own final header.
+ */
+/**
+ * An immutable copy of the text of a RTCE_Document at one revision, kept
+ * the way the server sends it: URL encoded (exactly like URLEncoder with
+ * UTF-8), as ASCII bytes. The encoding is done in one pass straight from
+ * the storage of the document, a block of characters at a time, so the
+ * whole text never exists as a String, and the bytes can be written to any
+ * number of sockets without being copied again.
+ *
+ * A snapshot can also carry a header, written in front of the text: the
+ * "revision text" responses use the same bytes as the plain ones (see
+ * withRevision).
+ */
+public final class RTCE_Snapshot {
+
+    // characters copied out of the storage at a time
+    private static final int BLOCK = 8192;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final long revision;
+    private final byte[] encoded;
+    private final int length;
+    private final byte[] header;
+    private volatile byte[] text = null;
+
+    /**
+     * Constructor for the snapshot of a storage. Only called by the document
+     * that owns the storage, while it holds its lock.
+     * @param long revision, the revision of the document.
+     * @param RTCE_TextStorage storage, the text of the document.
+     */
+    RTCE_Snapshot(long revision, RTCE_TextStorage storage) {
+        this.revision = revision;
+        int n = storage.length();
+        byte[] out = new byte[n + (n >> 3) + 16];
+        int size = 0;
+        char[] block = new char[Math.min(BLOCK, n)];
+        int begin = 0;
+        while (begin < n) {
+            int end = Math.min(begin + BLOCK, n);
+            // a surrogate pair split between two blocks is read again with the second one
+            if (end < n && Character.isHighSurrogate(storage.charAt(end - 1))) {
+                end--;
+            }
+            storage.getChars(begin, end, block, 0);
+            for (int i = 0; i < end - begin; i++) {
+                if (out.length - size < 12) {
+                    byte[] bigger = new byte[out.length + (out.length >> 1) + 16];
+                    System.arraycopy(out, 0, bigger, 0, size);
+                    out = bigger;
+                }
+                char c = block[i];
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '.' || c == '-' || c == '*' || c == '_') {
+                    out[size++] = (byte) c;
+                } else if (c == ' ') {
+                    out[size++] = '+';
+                } else if (c < 0x80) {
+                    size = escape(out, size, c);
+                } else if (c < 0x800) {
+                    size = escape(out, size, 0xC0 | (c >> 6));
+                    size = escape(out, size, 0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end - begin
+                        && Character.isLowSurrogate(block[i + 1])) {
+                    int cp = Character.toCodePoint(c, block[++i]);
+                    size = escape(out, size, 0xF0 | (cp >> 18));
+                    size = escape(out, size, 0x80 | ((cp >> 12) & 0x3F));
+                    size = escape(out, size, 0x80 | ((cp >> 6) & 0x3F));
+                    size = escape(out, size, 0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    size = escape(out, size, '?'); // like URLEncoder, a lone surrogate becomes '?'
+                } else {
+                    size = escape(out, size, 0xE0 | (c >> 12));
+                    size = escape(out, size, 0x80 | ((c >> 6) & 0x3F));
+                    size = escape(out, size, 0x80 | (c & 0x3F));
+                }
+            }
+            begin = end;
+        }
+        this.encoded = out;
+        this.length = size;
+        this.header = new byte[0];
+    }
+
+    /**
+     * Constructor for a snapshot of the same text with another header.
+     * @param RTCE_Snapshot of, the snapshot whose text is shared.
+     * @param byte[] header, the header, ASCII.
+     */
+    private RTCE_Snapshot(RTCE_Snapshot of, byte[] header) {
+        this.revision = of.revision;
+        this.encoded = of.encoded;
+        this.length = of.length;
+        this.header = header;
+        this.text = of.text;
+    }
+
+    /**
+     * Get the same snapshot headed by its revision and a space, the way the
+     * server answers 'snapshot'. The text is not copied.
+     * @return RTCE_Snapshot, the snapshot with the header.
+     */
+    public RTCE_Snapshot withRevision() {
+        return new RTCE_Snapshot(this, (revision + " ").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int escape(byte[] out, int size, int b) {
+        out[size] = '%';
+        out[size + 1] = HEX[(b >> 4) & 0xF];
+        out[size + 2] = HEX[b & 0xF];
+        return size + 3;
+    }
+
+    /**
+     * Get the revision of the document this is a snapshot of.
+     * @return long, the revision.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Get the length of the header and the encoded text.
+     * @return int, the number of bytes written by writeTo.
+     */
+    public int length() {
+        return header.length + length;
+    }
+
+    /**
+     * Writes the header and the encoded text.
+     * @param OutputStream out, the stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(header, 0, header.length);
+        out.write(encoded, 0, length);
+    }
+
+    /**
+     * Get the encoded text as a buffer, without copying it. Every call gets
+     * its own buffer (with its own position), all sharing the same bytes.
+     * The header is not in it, see asByteBuffers.
+     * @return ByteBuffer, a read-only buffer holding the encoded text.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(encoded, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the header and the encoded text as buffers, without copying them,
+     * like asByteBuffer.
+     * @return ByteBuffer[], read-only buffers holding what writeTo writes, in order.
+     */
+    public ByteBuffer[] asByteBuffers() {
+        if (header.length == 0) {
+            return new ByteBuffer[] {asByteBuffer()};
+        }
+        return new ByteBuffer[] {ByteBuffer.wrap(header).asReadOnlyBuffer(), asByteBuffer()};
+    }
+
+    /**
+     * Writes the header and the text itself, UTF-8 encoded (what URL decoding
+     * what writeTo writes would give).
+     * @param OutputStream out, the stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeTextTo(OutputStream out) throws IOException {
+        byte[] t = text();
+        out.write(header, 0, header.length);
+        out.write(t, 0, t.length);
+    }
+
+    /**
+     * Get the length of the header and the UTF-8 encoded text.
+     * @return int, the number of bytes written by writeTextTo.
+     */
+    public int textLength() {
+        return header.length + text().length;
+    }
+
+    private byte[] text() {
+        byte[] t = text;
+        if (t == null) {
+            int size = 0;
+            t = new byte[length];
+            for (int i = 0; i < length; i++) {
+                byte b = encoded[i];
+                if (b == '%') {
+                    t[size++] = (byte) ((Character.digit(encoded[i + 1], 16) << 4) | Character.digit(encoded[i + 2], 16));
+                    i += 2;
+                } else {
+                    t[size++] = b == '+' ? (byte) ' ' : b;
+                }
+            }
+            byte[] exact = new byte[size];
+            System.arraycopy(t, 0, exact, 0, size);
+            text = t = exact;
+        }
+        return t;
+    }
+
+    /**
+     * Get the header and the encoded text as a String. Makes a copy: prefer
+     * writeTo or asByteBuffers.
+     * @return String, the header and the encoded text.
+     */
+    @Override
+    public String toString() {
+        return new String(header, StandardCharsets.ISO_8859_1) + new String(encoded, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,187 @@
+package RTCE.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+/*
+ * Thread safety argument
+ * The store only holds its directory, which is final. Every call maps its own file and only
+ * uses local buffers, so calls for different documents can run at the same time; the
+ * RTCE_WriteAheadLog makes sure that the same document is never saved by two threads at once
+ * (see its commit lock). A snapshot is written to a temporary file and then renamed over the
+ * old one, so a reader sees either the old file or the new one, complete.
+ */
+/**
+ * The snapshots of the documents of the server, one memory-mapped file per
+ * document, named after the (URL encoded) name of the document, with the
+ * ".snap" suffix. Where RTCE_FileReader and RTCE_FileWriter import and
+ * export the bare text of a document for its user, a snapshot keeps all
+ * that the server needs to serve the document again:
+ *
+ *      int  SNAPSHOT_MAGIC
+ *      int  VERSION
+ *      long revision
+ *      int  length of the name n, in bytes
+ *      int  length of the style s, in bytes
+ *      int  length of the text t, in bytes
+ *      n bytes of UTF-8 name, s bytes of UTF-8 style, t bytes of UTF-8 text
+ *
+ * The file is written and read through a mapping, so the text goes straight
+ * between the page cache and the document, without a stream buffer in
+ * between, and reading the header (see readName) does not read the text.
+ */
+public final class RTCE_SnapshotStore {
+
+    static final int SNAPSHOT_MAGIC = 0x5254534E;
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 28;
+
+    private final File dir;
+
+    /**
+     * Constructor for the store of the snapshots kept in a directory.
+     * @param File dir, the directory, which must exist.
+     */
+    public RTCE_SnapshotStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the file the snapshot of a document is saved in.
+     * @param String name, the name of the document.
+     * @return File, the file, which may not exist.
+     */
+    public File fileFor(String name) {
+        return fileFor(dir, name, ".snap");
+    }
+
+    /**
+     * Saves a document as it is now: its name, style, revision and text.
+     * Replaces the previous snapshot of the document only once the new one
+     * is completely on the disk.
+     * @param RTCE_Document doc, the document.
+     * @return long, the revision that was saved.
+     * @throws IOException if the snapshot can't be written.
+     */
+    public long save(RTCE_Document doc) throws IOException {
+        RTCE_Snapshot snapshot = doc.getSnapshot();
+        byte[] name = doc.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] style = doc.getStyle().getBytes(StandardCharsets.UTF_8);
+        int textLength = snapshot.textLength();
+        File file = fileFor(doc.getName());
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) HEADER_LENGTH + name.length + style.length + textLength);
+            map.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(snapshot.getRevision())
+                .putInt(name.length).putInt(style.length).putInt(textLength)
+                .put(name).put(style);
+            snapshot.writeTextTo(new OutputStream() {
+                public void write(int b) {
+                    map.put((byte) b);
+                }
+                public void write(byte[] b, int off, int len) {
+                    map.put(b, off, len);
+                }
+            });
+            map.force();
+        } catch (BufferOverflowException e) {
+            throw new IOException("Snapshot bigger than announced: " + file);
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return snapshot.getRevision();
+    }
+
+    /**
+     * Loads the snapshot of a document into it, if there is one.
+     * @param RTCE_Document doc, the document, not shared yet and without a journal.
+     * @return boolean, true if there was a snapshot, false if the document is left as it was.
+     * @throws IOException if the snapshot can't be read or is malformed.
+     */
+    public boolean load(RTCE_Document doc) throws IOException {
+        File file = fileFor(doc.getName());
+        if (!file.exists()) {
+            return false;
+        }
+        ByteBuffer map = map(file);
+        long revision = map.getLong(8);
+        String style = decode(map, HEADER_LENGTH + map.getInt(16), map.getInt(20));
+        String text = decode(map, HEADER_LENGTH + map.getInt(16) + map.getInt(20), map.getInt(24));
+        doc.restore(text, style, revision);
+        return true;
+    }
+
+    /**
+     * Reads the name of the document saved in a snapshot file, without
+     * reading its text.
+     * @param File file, the snapshot file.
+     * @return String, the name of the document.
+     * @throws IOException if the file can't be read or is malformed.
+     */
+    public static String readName(File file) throws IOException {
+        ByteBuffer map = map(file);
+        return decode(map, HEADER_LENGTH, map.getInt(16));
+    }
+
+    /**
+     * Maps a snapshot file and checks its header.
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != SNAPSHOT_MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            long lengths = (long) map.getInt(16) + map.getInt(20) + map.getInt(24);
+            if (map.getInt(16) < 0 || map.getInt(20) < 0 || map.getInt(24) < 0 || HEADER_LENGTH + lengths != size) {
+                throw new IOException("Snapshot cut short: " + file);
+            }
+            return map;
+        } finally {
+            channel.close(); // the mapping stays valid
+        }
+    }
+
+    private static String decode(ByteBuffer map, int offset, int length) throws CharacterCodingException {
+        ByteBuffer bytes = map.duplicate();
+        bytes.position(offset);
+        bytes.limit(offset + length);
+        return StandardCharsets.UTF_8.newDecoder().decode(bytes).toString();
+    }
+
+    /**
+     * Get the file a document is saved in.
+     * @param File dir, the directory of the documents.
+     * @param String name, the name of the document.
+     * @param String suffix, ".wal" or ".snap".
+     * @return File, the file.
+     */
+    static File fileFor(File dir, String name, String suffix) {
+        try {
+            return new File(dir, URLEncoder.encode(name, "UTF-8") + suffix);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Bad encoding in RTCE_SnapshotStore.");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Testing strategy: a loaded snapshot must give back the document that was
+ * saved: same text, style and revision.
+ *      (1) Empty document, and a document with non ASCII text, name and style.
+ *      (2) Saving again replaces the snapshot; readName only reads the header.
+ *      (3) No snapshot: load says so and leaves the document alone.
+ *      (4) A snapshot cut short, or that is not a snapshot, is refused.
+ */
+public class RTCE_SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyDocument() throws IOException {
+        RTCE_SnapshotStore store = new RTCE_SnapshotStore(folder.newFolder());
+        RTCE_Document d = new RTCE_Document("empty.txt");
+        assertEquals(d.getRevision(), store.save(d));
+        RTCE_Document r = new RTCE_Document("empty.txt");
+        assertTrue(store.load(r));
+        RTCE_WriteAheadLogTest.assertSameDocument(d, r);
+    }
+
+    @Test
+    public void nonAscii() throws IOException {
+        File dir = folder.newFolder();
+        RTCE_SnapshotStore store = new RTCE_SnapshotStore(dir);
+        String name = "caf\u00e9 \u65e5\u672c.txt";
+        RTCE_Document d = new RTCE_Document(name);
+        d.insert(0, "na\u00efve \u20ac \ud83d\ude00\nsecond line");
+        d.setStyle("font:\u00e9");
+        store.save(d);
+        RTCE_Document r = new RTCE_Document(name);
+        assertTrue(store.load(r));
+        RTCE_WriteAheadLogTest.assertSameDocument(d, r);
+        assertEquals(name, RTCE_SnapshotStore.readName(store.fileFor(name)));
+    }
+
+    @Test
+    public void saveAgain() throws IOException {
+        RTCE_SnapshotStore store = new RTCE_SnapshotStore(folder.newFolder());
+        RTCE_Document d = new RTCE_Document("again.txt");
+        d.insert(0, "a much longer first version of the text");
+        store.save(d);
+        d.delete(0, 30);
+        long rev = store.save(d);
+        RTCE_Document r = new RTCE_Document("again.txt");
+        assertTrue(store.load(r));
+        RTCE_WriteAheadLogTest.assertSameDocument(d, r);
+        assertEquals(rev, r.getRevision());
+        assertFalse(new File(store.fileFor("again.txt").getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void noSnapshot() throws IOException {
+        RTCE_SnapshotStore store = new RTCE_SnapshotStore(folder.newFolder());
+        RTCE_Document d = new RTCE_Document("none.txt");
+        d.insert(0, "left alone");
+        assertFalse(store.load(d));
+        assertEquals("left alone", d.getAllText());
+    }
+
+    @Test
+    public void badFiles() throws IOException {
+        RTCE_SnapshotStore store = new RTCE_SnapshotStore(folder.newFolder());
+        RTCE_Document d = new RTCE_Document("bad.txt");
+        d.insert(0, "some text to cut");
+        store.save(d);
+        File file = store.fileFor("bad.txt");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+        try {
+            store.load(new RTCE_Document("bad.txt"));
+            fail("loaded a cut snapshot");
+        } catch (IOException expected) {
+        }
+        Files.write(file.toPath(), "not a snapshot, but long enough".getBytes("UTF-8"));
+        try {
+            RTCE_SnapshotStore.readName(file);
+            fail("read the name of a text file");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Testing strategy: a snapshot must be byte for byte what the server used
+ * to send, URLEncoder.encode(getAllText(), "UTF-8").
+ *      (1) The characters URLEncoder keeps, the space, ASCII it escapes, and
+ *          1, 2, 3 and 4 byte UTF-8 characters, and lone surrogates.
+ *      (2) Texts longer than one block, with a surrogate pair cut by the
+ *          block boundary, on both storage engines.
+ *      (3) The decoded text and the buffers: every buffer is independent and
+ *          read-only. With a revision header, every writer puts it in front
+ *          of the same text.
+ *      (4) The document makes one snapshot per revision: it is shared until
+ *          the text changes (edits, replaces, setDate), and survives what
+ *          does not change it (a failed delete, the style).
+ *      (5) Readers running against a writer always get a snapshot whose text
+ *          is the text of its revision.
+ */
+public class RTCE_SnapshotTest {
+
+    private static void assertEncoded(RTCE_Document doc) throws IOException {
+        String text = doc.getAllText();
+        RTCE_Snapshot snapshot = doc.getSnapshot();
+        assertEquals(snapshot.toString(), URLEncoder.encode(text, "UTF-8"));
+        assertEquals(snapshot.getRevision(), doc.getRevision());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.writeTo(out);
+        assertEquals(out.toString("ISO-8859-1"), snapshot.toString());
+        out.reset();
+        snapshot.writeTextTo(out);
+        // a lone surrogate was already a '?' in the encoded text
+        assertEquals(out.toString("UTF-8"), new String(text.getBytes("UTF-8"), "UTF-8"));
+        assertEquals(snapshot.textLength(), out.size());
+    }
+
+    @Test
+    public void everyKindOfCharacter() throws IOException {
+        RTCE_Document d = new RTCE_Document("snap.txt");
+        assertEncoded(d);
+        d.insert(0, "azAZ09.-*_ +%&=/?\n\t~\u00e9\u00ff\u0100\u07ff\u0800\u20ac\uffff\ud83d\ude00\ud800x\udc00");
+        assertEncoded(d);
+    }
+
+    @Test
+    public void acrossBlocks() throws IOException {
+        Random random = new Random(6005);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                sb.append((char) (' ' + random.nextInt(95)));
+            } else if (kind < 8) {
+                sb.append((char) (0x80 + random.nextInt(0xD780)));
+            } else {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            }
+        }
+        sb.setCharAt(8191, '\ud83d'); // a pair cut by the first block boundary
+        sb.setCharAt(8192, '\ude00');
+        for (RTCE_TextStorage storage : new RTCE_TextStorage[] {new RTCE_StringBufferStorage(), new RTCE_RopeStorage()}) {
+            RTCE_Document d = new RTCE_Document("blocks.txt", storage);
+            d.insert(0, sb.toString());
+            assertEncoded(d);
+        }
+    }
+
+    @Test
+    public void sharedBuffers() throws UnsupportedEncodingException {
+        RTCE_Document d = new RTCE_Document("shared.txt");
+        d.insert(0, "hello world");
+        RTCE_Snapshot snapshot = d.getSnapshot();
+        ByteBuffer a = snapshot.asByteBuffer();
+        ByteBuffer b = snapshot.asByteBuffer();
+        assertTrue(a.isReadOnly());
+        assertEquals(a.remaining(), snapshot.length());
+        a.get(new byte[5]);
+        assertEquals(b.remaining(), snapshot.length());
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        assertEquals(new String(bytes, "ISO-8859-1"), "hello+world");
+        // the document moves on, the snapshot does not
+        d.insert(0, "x");
+        assertEquals(snapshot.toString(), "hello+world");
+        assertEquals(d.getSnapshot().toString(), "xhello+world");
+    }
+
+    @Test
+    public void revisionHeader() throws IOException {
+        RTCE_Document d = new RTCE_Document("header.txt");
+        d.insert(0, "h\u00e9 ho");
+        RTCE_Snapshot headed = d.getSnapshot().withRevision();
+        assertEquals(headed.getRevision(), 1);
+        assertEquals(headed.toString(), "1 h%C3%A9+ho");
+        assertEquals(d.getSnapshot().toString(), "h%C3%A9+ho");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        headed.writeTo(out);
+        assertEquals(out.toString("ISO-8859-1"), "1 h%C3%A9+ho");
+        assertEquals(headed.length(), out.size());
+        out.reset();
+        for (ByteBuffer b : headed.asByteBuffers()) {
+            assertTrue(b.isReadOnly());
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            out.write(bytes);
+        }
+        assertEquals(out.toString("ISO-8859-1"), "1 h%C3%A9+ho");
+        out.reset();
+        headed.writeTextTo(out);
+        assertEquals(out.toString("UTF-8"), "1 h\u00e9 ho");
+        assertEquals(headed.textLength(), out.size());
+    }
+
+    @Test
+    public void oneSnapshotPerRevision() {
+        RTCE_Document d = new RTCE_Document("cache.txt");
+        d.insert(0, "abc");
+        RTCE_Snapshot s = d.getSnapshot();
+        assertSame(s, d.getSnapshot());
+        d.setStyle("1 1 12 1");
+        try {
+            d.delete(5, 2);
+            fail("deleted a bad range");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertSame(s, d.getSnapshot());
+
+        d.delete(0, 1);
+        RTCE_Snapshot afterDelete = d.getSnapshot();
+        assertNotSame(s, afterDelete);
+        assertEquals(afterDelete.toString(), "bc");
+        assertEquals(afterDelete.getRevision(), 2);
+        d.replaceAll("b", "x");
+        assertEquals(d.getSnapshot().toString(), "xc");
+        d.setDate(new StringBuffer("new text"));
+        assertEquals(d.getSnapshot().toString(), "new+text");
+        assertEquals(d.getSnapshot().getRevision(), d.getRevision());
+    }
+
+    @Test
+    public void readersAgainstWriter() throws InterruptedException {
+        final RTCE_Document d = new RTCE_Document("race.txt");
+        final int edits = 2000;
+        final boolean[] failed = {false};
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                public void run() {
+                    long revision = 0;
+                    while (revision < edits) {
+                        RTCE_Snapshot s = d.getSnapshot();
+                        // the writer appends one 'a' per revision
+                        if (s.length() != s.getRevision() || s.getRevision() < revision) {
+                            failed[0] = true;
+                        }
+                        revision = s.getRevision();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 0; i < edits; i++) {
+            d.insert(i, "a");
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertFalse(failed[0]);
+    }
+}
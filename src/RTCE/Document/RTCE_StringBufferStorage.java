@@ -0,0 +1,56 @@
+package RTCE.Document;
+
+/*
+ * Thread safety argument
+ * Confined to the RTCE_Document that owns it (see RTCE_TextStorage). The StringBuffer is
+ * itself synchronized on top of that.
+ */
+/**
+ * The default storage engine of a RTCE_Document: the whole text in one
+ * StringBuffer. Simple and fast for documents of normal size, but an edit
+ * in the middle of the text shifts everything after it.
+ */
+public class RTCE_StringBufferStorage implements RTCE_TextStorage {
+
+    private StringBuffer data;
+
+    /**
+     * Constructor for an empty RTCE_StringBufferStorage.
+     */
+    public RTCE_StringBufferStorage() {
+        this.data = new StringBuffer();
+    }
+
+    public int length() {
+        return data.length();
+    }
+
+    public char charAt(int pos) {
+        return data.charAt(pos);
+    }
+
+    public void insert(int pos, String text) {
+        data.insert(pos, text);
+    }
+
+    public void delete(int beginPos, int endPos) {
+        data.delete(beginPos, endPos);
+    }
+
+    public String substring(int beginPos, int endPos) {
+        return data.substring(beginPos, endPos);
+    }
+
+    public void getChars(int beginPos, int endPos, char[] dst, int dstBegin) {
+        data.getChars(beginPos, endPos, dst, dstBegin);
+    }
+
+    public void setText(CharSequence text) {
+        data = new StringBuffer(text);
+    }
+
+    @Override
+    public String toString() {
+        return data.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package RTCE.Document;
+
+/*
+ * Thread safety argument
+ * Implementations are not required to be thread safe. A storage is always confined to the
+ * RTCE_Document that owns it, and the document changes it only under its write lock. The
+ * document may read it without any lock while a change is running, but only keeps what it read
+ * if no change happened (see RTCE_Document), so the reads of a storage must at worst return
+ * garbage or throw a RuntimeException when they race with a change, never hang or corrupt it.
+ */
+/**
+ * The storage engine behind the text of a RTCE_Document. The document keeps
+ * all of the editing rules (padding inserts past the end, error messages),
+ * the storage only has to hold the characters.
+ * 
+ * Two engines are provided:
+ *      (a) RTCE_StringBufferStorage, a single StringBuffer. The default.
+ *      (b) RTCE_RopeStorage, a balanced rope with O(log n) insert, delete
+ *          and substring, for very large documents.
+ * 
+ * The engine of new documents is picked with the RTCE.storage system property
+ * ("stringbuffer" or "rope"), see RTCE_Document.
+ */
+public interface RTCE_TextStorage {
+
+    /**
+     * Get the number of characters stored.
+     * @return int, the length of the text.
+     */
+    public int length();
+
+    /**
+     * Get the character at a given position.
+     * @param int pos, the position, requires 0 <= pos < length().
+     * @return char, the character at pos.
+     * @throws IndexOutOfBoundsException if pos is out of bounds.
+     */
+    public char charAt(int pos);
+
+    /**
+     * Insert text at a given position.
+     * @param int pos, the position, requires 0 <= pos <= length().
+     * @param String text, the text to insert.
+     * @throws StringIndexOutOfBoundsException if pos is out of bounds.
+     */
+    public void insert(int pos, String text);
+
+    /**
+     * Delete the text between two positions. Like StringBuffer.delete, an
+     * endPos past the end of the text deletes until the end.
+     * @param int beginPos, from where to delete, inclusive.
+     * @param int endPos, until where to delete, exclusive.
+     * @throws StringIndexOutOfBoundsException if beginPos is negative, greater
+     * than length() or greater than endPos.
+     */
+    public void delete(int beginPos, int endPos);
+
+    /**
+     * Get the text between two positions.
+     * @param int beginPos, inclusive.
+     * @param int endPos, exclusive.
+     * @return String, the text between beginPos and endPos.
+     * @throws StringIndexOutOfBoundsException if the range is out of bounds.
+     */
+    public String substring(int beginPos, int endPos);
+
+    /**
+     * Copy the text between two positions into an array, like
+     * String.getChars, without making a String of it.
+     * @param int beginPos, inclusive.
+     * @param int endPos, exclusive.
+     * @param char[] dst, the array to copy into.
+     * @param int dstBegin, where to start in dst.
+     * @throws StringIndexOutOfBoundsException if the range is out of bounds.
+     */
+    public void getChars(int beginPos, int endPos, char[] dst, int dstBegin);
+
+    /**
+     * Replace all of the stored text.
+     * @param CharSequence text, the new text.
+     */
+    public void setText(CharSequence text);
+
+    /**
+     * Get all of the stored text.
+     * @return String, the whole text.
+     */
+    public String toString();
+}
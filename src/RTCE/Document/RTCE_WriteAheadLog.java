@@ -0,0 +1,182 @@
+package RTCE.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+/*
+ * Thread safety argument
+ * The journals are kept in a CopyOnWriteArrayList, so the committing thread can go over them
+ * while new documents are attached. All the file I/O of the journals (commit, checkpoint,
+ * close) is done while holding commitLock, so the background thread, commit() called by
+ * another thread and close() never write to the same file at the same time. Appending to a
+ * journal only takes the monitor of that journal (see RTCE_Journal), never commitLock, so
+ * the documents never wait for the disk.
+ * The running flag is volatile so the background thread sees close().
+ */
+/**
+ * Keeps the documents of the server on the disk, so that they survive a
+ * restart: every document gets a RTCE_Journal in one directory, logging
+ * every change made to it. A background thread commits all the journals
+ * every commitMillis milliseconds, with one fsync per journal covering all
+ * the changes made meanwhile, and folds a log into a snapshot of its
+ * document once it is bigger than checkpointBytes.
+ *
+ * A change is on the disk at most commitMillis (plus the time of the
+ * fsyncs) after it was made; call commit() to wait for everything logged so
+ * far to be on the disk.
+ *
+ * On startup, savedNames() tells which documents are in the directory, by
+ * only reading the headers of their logs, and load() rebuilds one of them
+ * when it is needed: its snapshot (see RTCE_SnapshotStore), then the changes
+ * logged after it. Documents that are never loaded take no memory.
+ */
+public class RTCE_WriteAheadLog implements Runnable {
+
+    private final File dir;
+    private final RTCE_SnapshotStore store;
+    private final long commitMillis;
+    private final long checkpointBytes;
+    private final List<RTCE_Journal> journals = new CopyOnWriteArrayList<RTCE_Journal>();
+    private final Object commitLock = new Object();
+    private volatile boolean running = true;
+    private boolean closed = false; // guarded by commitLock
+
+    /**
+     * Constructor for the write-ahead log of the documents kept in a directory.
+     * Does not read the directory (see recover) nor start committing (see start).
+     * @param File dir, the directory, created if it does not exist.
+     * @param long commitMillis, the time between two commits, positive.
+     * @param long checkpointBytes, the size of a log after which it is folded
+     * into a snapshot.
+     * @throws IOException if the directory can't be created.
+     */
+    public RTCE_WriteAheadLog(File dir, long commitMillis, long checkpointBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create the data directory " + dir);
+        }
+        this.dir = dir;
+        this.store = new RTCE_SnapshotStore(dir);
+        this.commitMillis = commitMillis;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * Get the names of the documents saved in the directory. Only reads the
+     * headers of their logs. A log that can't be read is reported and skipped.
+     * @return List<String>, the names of the documents.
+     */
+    public List<String> savedNames() {
+        List<String> names = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return names;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".wal")) {
+                continue;
+            }
+            try {
+                names.add(RTCE_Journal.readName(file));
+            } catch (IOException e) {
+                System.err.println("Could not read " + file + ": " + e.getMessage());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Rebuilds a document saved in the directory, and attaches its journal so
+     * that its next changes are logged. Must only be called once per document.
+     * @param String name, one of the savedNames().
+     * @return RTCE_Document, the document.
+     * @throws IOException if its files can't be read.
+     */
+    public RTCE_Document load(String name) throws IOException {
+        RTCE_Journal journal = RTCE_Journal.recover(RTCE_SnapshotStore.fileFor(dir, name, ".wal"), store);
+        journal.getDocument().setJournal(journal);
+        journals.add(journal);
+        return journal.getDocument();
+    }
+
+    /**
+     * Starts logging the changes of a new document, and saves it as it is now.
+     * @param RTCE_Document doc, the document, which has no journal yet.
+     * @throws IOException if its files can't be written.
+     */
+    public void attach(RTCE_Document doc) throws IOException {
+        synchronized (commitLock) {
+            RTCE_Journal journal = RTCE_Journal.create(doc, RTCE_SnapshotStore.fileFor(dir, doc.getName(), ".wal"), store);
+            doc.setJournal(journal);
+            // the changes made before setJournal are only in the document
+            journal.checkpoint();
+            journals.add(journal);
+        }
+    }
+
+    /**
+     * Starts the thread that commits the journals in the background.
+     */
+    public void start() {
+        Thread t = new Thread(this, "RTCE-wal");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Commits the journals every commitMillis, until close() is called.
+     */
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(commitMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Writes everything logged so far to the disk, and waits until it is
+     * there. Logs that got too big are folded into snapshots. A journal that
+     * fails is reported, and its changes are kept for the next commit.
+     */
+    public void commit() {
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            for (RTCE_Journal journal : journals) {
+                try {
+                    journal.commit();
+                    if (journal.size() > checkpointBytes) {
+                        journal.checkpoint();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not save " + journal.getDocument().getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits everything logged so far and closes the files. The documents
+     * should not be changed anymore.
+     */
+    public void close() {
+        running = false;
+        commit();
+        synchronized (commitLock) {
+            closed = true;
+            for (RTCE_Journal journal : journals) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
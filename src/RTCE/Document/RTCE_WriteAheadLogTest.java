@@ -0,0 +1,149 @@
+package RTCE.Document;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Testing strategy: a document recovered from the directory must be the
+ * document that was saved: same name, text, style and revision.
+ *      (1) Every kind of change (insert, padded insert, delete, both
+ *          replaces, setDate, style), with non ASCII text.
+ *      (2) With checkpoints: a snapshot alone, and a snapshot with changes
+ *          logged after it; the log is emptied by a checkpoint.
+ *      (3) A log whose last record was cut or garbled by a crash: the
+ *          changes before it are recovered, the log is cut there, and the
+ *          recovered document keeps logging.
+ *      (4) The background thread commits without being asked.
+ */
+public class RTCE_WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RTCE_Document recoverOne(File dir) throws IOException {
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        List<String> names = wal.savedNames();
+        assertEquals(1, names.size());
+        RTCE_Document doc = wal.load(names.get(0));
+        wal.close();
+        return doc;
+    }
+
+    // also used by RTCE_SnapshotStoreTest, the documents it loads have the same name
+    static void assertSameDocument(RTCE_Document expected, RTCE_Document actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getAllText(), actual.getAllText());
+        assertEquals(expected.getStyle(), actual.getStyle());
+        assertEquals(expected.getRevision(), actual.getRevision());
+    }
+
+    private static void edit(RTCE_Document d) {
+        d.insert(0, "h\u00e9llo w\u00f6rld \ud83d\ude00");
+        d.insert(20, "padded");
+        d.delete(0, 1);
+        d.setStyle("2 1 14 3");
+        d.replaceAll("l", "L");
+        d.replaceOne("L", "l");
+    }
+
+    @Test
+    public void everyKindOfChange() throws IOException {
+        File dir = folder.newFolder();
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        RTCE_Document d = new RTCE_Document("caf\u00e9 / notes.txt");
+        d.insert(0, "before the journal");
+        wal.attach(d);
+        d.setDate(new StringBuffer(""));
+        edit(d);
+        wal.close();
+        assertSameDocument(d, recoverOne(dir));
+    }
+
+    @Test
+    public void checkpoints() throws IOException {
+        File dir = folder.newFolder();
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 1000, 150);
+        RTCE_Document d = new RTCE_Document("check.txt");
+        wal.attach(d);
+        edit(d);
+        wal.commit(); // about 190 bytes of records, so folded into the snapshot
+        File log = RTCE_SnapshotStore.fileFor(dir, "check.txt", ".wal");
+        assertEquals(12 + "check.txt".length(), log.length());
+        assertSameDocument(d, recoverOne(dir));
+
+        d.insert(0, "after ");
+        d.setStyle("1 0 10 0");
+        wal.close(); // about 60 bytes, committed but not folded
+        assertTrue(log.length() > 12 + "check.txt".length());
+        assertSameDocument(d, recoverOne(dir));
+    }
+
+    @Test
+    public void cutLog() throws IOException {
+        File dir = folder.newFolder();
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        RTCE_Document d = new RTCE_Document("cut.txt");
+        wal.attach(d);
+        d.insert(0, "kept");
+        wal.commit();
+        File log = RTCE_SnapshotStore.fileFor(dir, "cut.txt", ".wal");
+        long good = log.length();
+        String text = d.getAllText();
+        long revision = d.getRevision();
+        d.insert(4, " lost in the crash");
+        wal.close();
+
+        for (int cut = 1; cut < log.length() - good; cut += 7) {
+            File copy = folder.newFolder();
+            Files.copy(log.toPath(), RTCE_SnapshotStore.fileFor(copy, "cut.txt", ".wal").toPath());
+            Files.copy(RTCE_SnapshotStore.fileFor(dir, "cut.txt", ".snap").toPath(),
+                    RTCE_SnapshotStore.fileFor(copy, "cut.txt", ".snap").toPath());
+            RandomAccessFile file = new RandomAccessFile(RTCE_SnapshotStore.fileFor(copy, "cut.txt", ".wal"), "rw");
+            file.setLength(good + cut);
+            file.close();
+            RTCE_Document r = recoverOne(copy);
+            assertEquals(text, r.getAllText());
+            assertEquals(revision, r.getRevision());
+            assertEquals(good, RTCE_SnapshotStore.fileFor(copy, "cut.txt", ".wal").length());
+        }
+
+        // a garbled record: flip a byte of the last one
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.seek(log.length() - 2);
+        file.write(file.read() ^ 0xFF);
+        file.close();
+        RTCE_WriteAheadLog again = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        RTCE_Document r = again.load("cut.txt");
+        assertEquals(text, r.getAllText());
+        r.insert(4, "!");
+        again.close();
+        assertEquals("kept!", recoverOne(dir).getAllText());
+    }
+
+    @Test
+    public void backgroundCommit() throws Exception {
+        File dir = folder.newFolder();
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 5, 1 << 20);
+        RTCE_Document d = new RTCE_Document("background.txt");
+        wal.attach(d);
+        wal.start();
+        File log = RTCE_SnapshotStore.fileFor(dir, "background.txt", ".wal");
+        long empty = log.length();
+        d.insert(0, "typed");
+        for (int i = 0; i < 400 && log.length() == empty; i++) {
+            Thread.sleep(5);
+        }
+        assertTrue(log.length() > empty);
+        wal.close();
+        assertSameDocument(d, recoverOne(dir));
+    }
+}
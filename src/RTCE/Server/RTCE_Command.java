@@ -0,0 +1,223 @@
+package RTCE.Server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
+
+import RTCE.Document.RTCE_Snapshot;
+/*
+ * Thread safety argument
+ * A command has no state besides its final split limit, so the single instance of each
+ * command in the table of RTCE_Server can be used by all the connection threads at once.
+ * The helpers are static and only read their arguments.
+ */
+/**
+ * One entry of the command table of RTCE_Server. A command knows how to split
+ * a request line into tokens, whether the tokens are a valid request (the
+ * grammar of each request is in the help message and the design document)
+ * and how to handle it.
+ *
+ * The helpers check the token kinds of the grammar without regular
+ * expressions: numbers are [0-9]+, words are [a-zA-Z_0-9]+, file names
+ * are words followed by ".txt" and texts are ASCII.
+ */
+public abstract class RTCE_Command {
+
+    private final int limit;
+
+    /**
+     * Constructor for a command.
+     * @param int limit, the number of tokens to split the request line in
+     * (the last one keeps the rest of the line), or -1 to split it at every
+     * space.
+     */
+    protected RTCE_Command(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Splits a request line for this command.
+     * @param String line, the decoded request line.
+     * @return String[], the tokens, the first one being the name of the command.
+     */
+    public String[] tokenize(String line) {
+        return line.split(" ", limit); // one character, so String.split does not use a regex
+    }
+
+    /**
+     * Indicate if the tokens are a valid request for this command.
+     * @param String[] tokens, the tokens made by tokenize.
+     * @return boolean, true if the request is valid.
+     */
+    public abstract boolean accepts(String[] tokens);
+
+    /**
+     * Handles a valid request.
+     * @param String[] tokens, the tokens made by tokenize.
+     * @param String rawLine, the request line as it came from the client, not decoded.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, the response, ending with an EOF line.
+     * @throws UnsupportedEncodingException
+     */
+    public abstract String handle(String[] tokens, String rawLine, RTCE_User curClient)
+            throws UnsupportedEncodingException;
+
+    /**
+     * Indicate if the response of this command is the whole text of a
+     * document, that can be streamed (see stream).
+     * @return boolean, true if it is.
+     */
+    public boolean streams() {
+        return false;
+    }
+
+    /**
+     * Handles a valid request whose response is the whole text of the
+     * user's document, and returns the snapshot of the document instead of
+     * building the response, so that the connection can write its bytes as
+     * they are. The response is then the snapshot followed by an EOF line.
+     * Only called if streams() is true.
+     * @param String[] tokens, the tokens made by tokenize.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return RTCE_Snapshot, the snapshot, or null if this request does not
+     * answer with the text after all; it was then not handled, and handle
+     * must be used.
+     */
+    public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+        return null;
+    }
+
+    /**
+     * Indicate if this command changes the document through its sequencer
+     * (an edit or a replace), so that its answer can be completed later (see
+     * submit).
+     * @return boolean, true if it does.
+     */
+    public boolean submits() {
+        return false;
+    }
+
+    /**
+     * Handles a valid request without waiting for the sequencer of the
+     * document to run it, so that the connection can read the next requests
+     * of the user in the meantime, and the sequencer resolve a burst of edits
+     * as one batch. Only called if submits() is true.
+     * @param String[] tokens, the tokens made by tokenize.
+     * @param String rawLine, the request line as it came from the client, not decoded.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return CompletableFuture<String>, completed with the response, ending
+     * with an EOF line, once the sequencer ran the request.
+     * @throws UnsupportedEncodingException
+     */
+    public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient)
+            throws UnsupportedEncodingException {
+        return null;
+    }
+
+    /**
+     * Indicate if a token is a number: [0-9]{1,maxDigits}.
+     * @param String s, the token.
+     * @param int maxDigits, the most digits allowed.
+     * @return boolean, true if it is.
+     */
+    static boolean isNumber(String s, int maxDigits) {
+        if (s.length() == 0 || s.length() > maxDigits) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicate if a token is a number of any length: [0-9]+.
+     * @param String s, the token.
+     * @return boolean, true if it is.
+     */
+    static boolean isNumber(String s) {
+        return isNumber(s, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Indicate if a token is a word: [a-zA-Z_0-9]+.
+     * @param String s, the token.
+     * @return boolean, true if it is.
+     */
+    static boolean isWord(String s) {
+        return s.length() > 0 && isWordChars(s, 0, s.length());
+    }
+
+    /**
+     * Indicate if a token is a file name: [a-zA-Z_0-9]+\.txt.
+     * @param String s, the token.
+     * @return boolean, true if it is.
+     */
+    static boolean isFileName(String s) {
+        return s.length() > 4 && s.endsWith(".txt") && isWordChars(s, 0, s.length() - 4);
+    }
+
+    /**
+     * Indicate if a text only has ASCII characters (it may be empty).
+     * @param String s, the text.
+     * @return boolean, true if it does.
+     */
+    static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicate if a text is two non empty ASCII texts separated by a white
+     * space character, like the arguments of the replace requests.
+     * @param String s, the text.
+     * @return boolean, true if it is.
+     */
+    static boolean isTwoTexts(String s) {
+        if (!isAscii(s)) {
+            return false;
+        }
+        for (int i = 1; i < s.length() - 1; i++) {
+            char c = s.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicate if the tokens are exactly the name of the command followed by
+     * count numbers.
+     * @param String[] tokens, the tokens.
+     * @param int count, the number of numbers.
+     * @return boolean, true if they are.
+     */
+    static boolean isNumbers(String[] tokens, int count) {
+        if (tokens.length != count + 1) {
+            return false;
+        }
+        for (int i = 1; i <= count; i++) {
+            if (!isNumber(tokens[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordChars(String s, int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            char c = s.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
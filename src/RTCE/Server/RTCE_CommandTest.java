@@ -0,0 +1,83 @@
+package RTCE.Server;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Testing strategy: the command table must accept exactly the requests that
+ * the old regular expression of handleRequest accepted.
+ *      (1) Every valid form of every request is accepted, with the right tokens.
+ *      (2) The usual mistakes (missing or extra arguments, letters instead of
+ *          numbers, trailing spaces, bad file names, non ASCII text) are rejected.
+ *      (3) Many random request lines built out of the pieces of the grammar
+ *          get the same answer from the table and from the regular expression.
+ */
+public class RTCE_CommandTest {
+
+    // the grammar of the requests, as it was matched before the command table (plus "hello binary"
+    // and the conditional view, list and giveStyle)
+    private static final String REGEX = "(view)|(insert \\d+ \\p{ASCII}*)|(delete \\d+ \\d+)|(help)|(list)|" +
+            "(switch \\w+\\.txt)|(new \\w+\\.txt)|(new)|(exit)|(replaceAll \\p{ASCII}+\\s\\p{ASCII}+$)|" +
+            "(replaceOne \\p{ASCII}+\\s\\p{ASCII}+$)|(style \\d+ \\d+ \\d+ \\d+)|(giveStyle)|(hello)|(hello binary)|" +
+            "(subscribe)|(listen \\w+)|(ack)|(snapshot)|(since \\d{1,18})|(share)|(join \\w+)|" +
+            "(edit \\d{1,18} insert \\d+ \\p{ASCII}*)|(edit \\d{1,18} delete \\d+ \\d+)|" +
+            "(view \\d{1,18})|(list \\d{1,18})|(giveStyle \\d+ \\d+ \\d+ \\d+)";
+
+    private static boolean accepted(String input) {
+        RTCE_Command command = RTCE_Server.commandFor(input);
+        return command != null && command.accepts(command.tokenize(input));
+    }
+
+    @Test
+    public void validRequests() {
+        String[] valid = {"view", "hello", "hello binary", "help", "list", "exit", "giveStyle", "subscribe", "ack",
+            "snapshot", "new", "new doc_1.txt", "switch a.txt", "insert 0 ", "insert 12 hello world",
+            "delete 3 4", "replaceAll a b", "replaceOne ab cd ef", "style 1 2 3 4", "listen bob",
+            "since 0", "since 123456789012345678", "edit 3 insert 0 x y", "edit 3 insert 0 ",
+            "edit 3 delete 1 2", "view 0", "view 123456789012345678", "list 7", "giveStyle 1 0 12 0",
+            "share", "join bob_0f"};
+        for (String s : valid) {
+            assertTrue(s, accepted(s));
+        }
+        String[] tokens = RTCE_Server.commandFor("insert 12 hello world").tokenize("insert 12 hello world");
+        assertArrayEquals(new String[] {"insert", "12", "hello world"}, tokens);
+        tokens = RTCE_Server.commandFor("edit 3 insert 0 x y").tokenize("edit 3 insert 0 x y");
+        assertArrayEquals(new String[] {"edit", "3", "insert", "0", "x y"}, tokens);
+    }
+
+    @Test
+    public void invalidRequests() {
+        String[] invalid = {"", " ", "views", "view ", " view", "new .txt", "new a.txt ", "new a.doc",
+            "switch", "switch a b.txt", "insert 1", "insert a b", "insert -1 x", "insert 1 \u00e9",
+            "delete 1", "delete 1 2 3", "delete 1 x", "replaceAll ab", "replaceAll  a", "replaceOne",
+            "style 1 2 3", "style 1 2 3 4 ", "listen", "listen a.b", "since", "since -1",
+            "since 1234567890123456789", "edit 3 insert 0", "edit 3 move 0 1", "edit 3 delete 1 2 3",
+            "edit x delete 1 2", "hello text", "frobnicate 1 2 3", "view x", "view 1 2",
+            "view 1234567890123456789", "list a.txt", "giveStyle 1 0 12", "giveStyle 1 0 12 x",
+            "share 1", "join", "join a.b"};
+        for (String s : invalid) {
+            assertFalse(s, accepted(s));
+            assertEquals(s, s.matches(REGEX), accepted(s));
+        }
+    }
+
+    @Test
+    public void randomRequestsAgreeWithRegex() {
+        String[] pieces = {"view", "insert", "delete", "new", "switch", "replaceAll", "replaceOne",
+            "style", "listen", "since", "edit", "ack", "list", "giveStyle", " ", " ", " ", "0", "42", "a", "a.txt", "_b",
+            ".txt", "\t", "\u00e9", "-", "1234567890123456789", "x y"};
+        Random random = new Random(6005);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder sb = new StringBuilder(pieces[random.nextInt(14)]);
+            int count = random.nextInt(8);
+            for (int j = 0; j < count; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String s = sb.toString();
+            assertEquals(s, s.matches(REGEX), accepted(s));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package RTCE.Server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_WriteAheadLog;
+/*
+ * Thread safety argument
+ * The documents are kept in a ConcurrentHashMap, so get never takes a lock and always sees
+ * every document that was added before it. Adding takes the monitor of the registry, so the
+ * check for the name, the insertion in the map and the append to the list of names are one
+ * atomic step: two clients can't both create the same name, and a document is listed as soon
+ * as it can be found. The names StringBuilder is only touched under that monitor.
+ *
+ * The listing is cached in a volatile field: add clears it under the monitor, and list builds
+ * it under the monitor, so a cached listing always contains every document added before it
+ * was read. The version is volatile too, and only changed under the monitor, with the listing.
+ *
+ * A saved document is loaded by the first get that asks for it, under the monitor of its
+ * entry, so it is loaded only once, and the volatile doc field publishes it to the other
+ * threads. Dropping an entry that can't be loaded takes the monitor of the registry, like add.
+ */
+/**
+ * The documents of the server, indexed by name. Looking a document up is a
+ * single hash lookup, creating one is atomic (create if absent), and the
+ * listing of all the names is kept up to date as documents are added: it is
+ * only turned into a String again when someone lists after a new document,
+ * so listing costs the size of the answer, and nothing when nothing changed.
+ * Documents are listed in the order they were created. The version of the
+ * listing changes whenever a name is added or dropped, so that a client can
+ * tell if the names it has are still the ones of the server without getting
+ * them again.
+ *
+ * Documents saved by an earlier run of the server can be added by name only
+ * (putSaved): they are listed like the others, but only loaded from the
+ * RTCE_WriteAheadLog when someone first asks for them, so that a restart
+ * does not read every document, and the ones nobody opens take no memory.
+ */
+public class RTCE_DocumentRegistry {
+
+    private final ConcurrentHashMap<String, Entry> documents = new ConcurrentHashMap<String, Entry>();
+    // every name followed by " " and a line separator, in the order the documents were added
+    private final StringBuilder names = new StringBuilder();
+    private volatile String listing = "";
+    private volatile long version = 0;
+
+    /**
+     * A document of the registry, or the name of a saved document that was
+     * not loaded yet.
+     */
+    private static class Entry {
+        private final String name;
+        private volatile RTCE_Document doc;
+        private RTCE_WriteAheadLog source; // guarded by this, null once loaded
+
+        Entry(RTCE_Document doc) {
+            this.name = doc.getName();
+            this.doc = doc;
+        }
+
+        Entry(String name, RTCE_WriteAheadLog source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        RTCE_Document document() throws IOException {
+            RTCE_Document d = doc;
+            if (d == null) {
+                synchronized (this) {
+                    d = doc;
+                    if (d == null) {
+                        d = source.load(name);
+                        doc = d;
+                        source = null;
+                    }
+                }
+            }
+            return d;
+        }
+    }
+
+    /**
+     * Finds a document by name, loading it if it was only saved.
+     * @param String name, the name of the document.
+     * @return RTCE_Document, the document, or null if there is none with that
+     * name (or it can't be loaded: it is then reported and dropped).
+     */
+    public RTCE_Document get(String name) {
+        Entry entry = documents.get(name);
+        return entry == null ? null : document(entry);
+    }
+
+    /**
+     * Adds a document, unless there already is one with the same name.
+     * @param RTCE_Document doc, the document to add.
+     * @return RTCE_Document, the document that already had that name, or null
+     * if doc was added.
+     */
+    public RTCE_Document putIfAbsent(RTCE_Document doc) {
+        while (true) {
+            Entry existing = add(new Entry(doc));
+            if (existing == null) {
+                return null;
+            }
+            RTCE_Document d = document(existing);
+            if (d != null) {
+                return d;
+            }
+            // it could not be loaded and was dropped, so the name is free again
+        }
+    }
+
+    /**
+     * Adds a saved document by name, unless there already is one with the
+     * same name. It is loaded from source the first time it is asked for.
+     * @param String name, the name of the saved document.
+     * @param RTCE_WriteAheadLog source, where it is saved.
+     * @return boolean, true if it was added.
+     */
+    public boolean putSaved(String name, RTCE_WriteAheadLog source) {
+        return add(new Entry(name, source)) == null;
+    }
+
+    private synchronized Entry add(Entry entry) {
+        Entry existing = documents.putIfAbsent(entry.name, entry);
+        if (existing == null) {
+            names.append(entry.name).append(" ").append(String.format("%n"));
+            listing = null;
+            version++;
+        }
+        return existing;
+    }
+
+    /**
+     * Get the document of an entry, loading it if needed. Drops the entry if
+     * it can't be loaded.
+     */
+    private RTCE_Document document(Entry entry) {
+        try {
+            return entry.document();
+        } catch (IOException e) {
+            System.err.println("Could not load " + entry.name + ": " + e.getMessage());
+            drop(entry);
+            return null;
+        }
+    }
+
+    private synchronized void drop(Entry entry) {
+        if (documents.remove(entry.name, entry)) {
+            String line = entry.name + " " + String.format("%n");
+            for (int i = names.indexOf(line); i >= 0; i = names.indexOf(line, i + 1)) {
+                if (i == 0 || names.charAt(i - 1) == '\n') {
+                    names.delete(i, i + line.length());
+                    break;
+                }
+            }
+            listing = null;
+            version++;
+        }
+    }
+
+    /**
+     * Get the names of all the documents, in the order they were added, each
+     * followed by a space and a line separator.
+     * @return String, the names, empty if there are no documents.
+     */
+    public String list() {
+        String l = listing;
+        if (l == null) {
+            synchronized (this) {
+                l = listing;
+                if (l == null) {
+                    l = names.toString();
+                    listing = l;
+                }
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Get the version of the listing. It changes every time a document is
+     * added or dropped. A listing read after the version is at least as new.
+     * @return long, the version of the listing.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of documents, loaded or not.
+     * @return int, the number of documents.
+     */
+    public int size() {
+        return documents.size();
+    }
+}
@@ -0,0 +1,125 @@
+package RTCE.Server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_WriteAheadLog;
+
+/**
+ * Testing strategy:
+ *      (1) An empty registry finds nothing and lists nothing.
+ *      (2) Documents are found by name and listed in the order they were
+ *          added, and the listing is only rebuilt after an add, which is
+ *          also the only thing that changes its version.
+ *      (3) A second document with a taken name is refused, and the first one
+ *          is returned.
+ *      (4) Threads adding the same names at the same time: every name is
+ *          added exactly once, and listed once.
+ *      (5) Saved documents are listed before they are loaded, loaded once by
+ *          the first get, and one that can't be loaded is dropped.
+ */
+public class RTCE_DocumentRegistryTest {
+
+    private static final String NL = String.format("%n");
+
+    @Test
+    public void empty() {
+        RTCE_DocumentRegistry registry = new RTCE_DocumentRegistry();
+        assertNull(registry.get("a.txt"));
+        assertEquals("", registry.list());
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getVersion());
+    }
+
+    @Test
+    public void findAndList() {
+        RTCE_DocumentRegistry registry = new RTCE_DocumentRegistry();
+        RTCE_Document b = new RTCE_Document("b.txt");
+        RTCE_Document a = new RTCE_Document("a.txt");
+        assertNull(registry.putIfAbsent(b));
+        String listing = registry.list();
+        assertEquals("b.txt " + NL, listing);
+        assertSame(listing, registry.list());
+        long version = registry.getVersion();
+        assertNull(registry.putIfAbsent(a));
+        assertEquals("b.txt " + NL + "a.txt " + NL, registry.list());
+        assertTrue(registry.getVersion() != version);
+        assertSame(a, registry.get("a.txt"));
+        assertSame(b, registry.get("b.txt"));
+        assertNull(registry.get("c.txt"));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void takenName() {
+        RTCE_DocumentRegistry registry = new RTCE_DocumentRegistry();
+        RTCE_Document first = new RTCE_Document("same.txt");
+        assertNull(registry.putIfAbsent(first));
+        long version = registry.getVersion();
+        assertSame(first, registry.putIfAbsent(new RTCE_Document("same.txt")));
+        assertEquals(version, registry.getVersion());
+        assertSame(first, registry.get("same.txt"));
+        assertEquals("same.txt " + NL, registry.list());
+    }
+
+    @Test
+    public void savedDocuments() throws IOException {
+        File dir = Files.createTempDirectory("rtce-registry").toFile();
+        dir.deleteOnExit();
+        RTCE_WriteAheadLog wal = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        RTCE_Document saved = new RTCE_Document("saved.txt");
+        wal.attach(saved);
+        saved.insert(0, "kept");
+        wal.close();
+
+        wal = new RTCE_WriteAheadLog(dir, 1000, 1 << 20);
+        RTCE_DocumentRegistry registry = new RTCE_DocumentRegistry();
+        assertTrue(registry.putSaved("saved.txt", wal));
+        assertTrue(registry.putSaved("lost.txt", wal));
+        assertFalse(registry.putSaved("saved.txt", wal));
+        assertEquals("saved.txt " + NL + "lost.txt " + NL, registry.list());
+        RTCE_Document loaded = registry.get("saved.txt");
+        assertEquals("kept", loaded.getAllText());
+        assertSame(loaded, registry.get("saved.txt"));
+        assertSame(loaded, registry.putIfAbsent(new RTCE_Document("saved.txt")));
+        // lost.txt has no files
+        assertNull(registry.get("lost.txt"));
+        assertEquals("saved.txt " + NL, registry.list());
+        assertEquals(1, registry.size());
+        wal.close();
+    }
+
+    @Test
+    public void concurrentAdds() throws InterruptedException {
+        final RTCE_DocumentRegistry registry = new RTCE_DocumentRegistry();
+        final int names = 2000;
+        final AtomicInteger added = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < names; i++) {
+                        if (registry.putIfAbsent(new RTCE_Document("doc" + i + ".txt")) == null) {
+                            added.incrementAndGet();
+                        }
+                        registry.list();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(names, added.get());
+        assertEquals(names, registry.size());
+        assertEquals(names, registry.list().split(NL).length);
+    }
+}
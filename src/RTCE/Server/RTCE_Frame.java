@@ -0,0 +1,319 @@
+package RTCE.Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import RTCE.Document.RTCE_Snapshot;
+/*
+ * Thread safety argument
+ * A frame is immutable: all of its fields are final and set by the factories or by readFrom.
+ * The static methods only use their arguments, and the streams they are given belong to the
+ * connection (or the client) that uses them.
+ */
+/**
+ * One message of the binary framing of the protocol. A client asks for it
+ * with the "hello binary" request; if the server answers "binary" both sides
+ * switch from URL encoded lines ending with "EOF" to frames, otherwise (an
+ * older or NIO server answers with its usual welcome) they keep using lines.
+ * The client must wait for the answer before sending its first frame.
+ *
+ * A frame is:
+ *
+ *      varint length, the number of bytes that follow
+ *      byte opcode
+ *      payload, depending on the opcode:
+ *          LINE      UTF-8 request line, as it is once URL decoded in the line protocol
+ *          INSERT    varint revision+1 (0 for none), varint position, UTF-8 text
+ *          DELETE    varint revision+1 (0 for none), varint begin, varint end
+ *          RESPONSE  UTF-8 response, as makeRequest returns it in the line protocol
+ *
+ * Varints are unsigned, 7 bits per byte, least significant group first, and
+ * the high bit set on every byte but the last. Texts are never URL encoded,
+ * and the length says where a frame ends, so neither side scans for "EOF".
+ */
+public class RTCE_Frame {
+
+    public static final int LINE = 1;
+    public static final int INSERT = 2;
+    public static final int DELETE = 3;
+    public static final int RESPONSE = 4;
+
+    // the biggest frame accepted, so that a bad length can't make us allocate gigabytes
+    static final int MAX_LENGTH = 1 << 26;
+
+    private final int opcode;
+    private final long revision;
+    private final int pos;
+    private final int endPos;
+    private final String text;
+
+    private RTCE_Frame(int opcode, long revision, int pos, int endPos, String text) {
+        this.opcode = opcode;
+        this.revision = revision;
+        this.pos = pos;
+        this.endPos = endPos;
+        this.text = text;
+    }
+
+    /**
+     * Makes a frame carrying a request line.
+     * @param String line, the request, not URL encoded.
+     * @return RTCE_Frame, the frame.
+     */
+    public static RTCE_Frame line(String line) {
+        return new RTCE_Frame(LINE, -1, 0, 0, line);
+    }
+
+    /**
+     * Makes a frame carrying the response to a request.
+     * @param String response, the response, not URL encoded and without the EOF line.
+     * @return RTCE_Frame, the frame.
+     */
+    public static RTCE_Frame response(String response) {
+        return new RTCE_Frame(RESPONSE, -1, 0, 0, response);
+    }
+
+    /**
+     * Makes an insert frame.
+     * @param long revision, the revision the position refers to, or -1 for the current one.
+     * @param int pos, the position of the insert, non negative.
+     * @param String text, the text to insert.
+     * @return RTCE_Frame, the frame.
+     */
+    public static RTCE_Frame insert(long revision, int pos, String text) {
+        return new RTCE_Frame(INSERT, revision, pos, 0, text);
+    }
+
+    /**
+     * Makes a delete frame.
+     * @param long revision, the revision the positions refer to, or -1 for the current one.
+     * @param int beginPos, the beginning of the deleted text, non negative.
+     * @param int endPos, the end of the deleted text, non negative.
+     * @return RTCE_Frame, the frame.
+     */
+    public static RTCE_Frame delete(long revision, int beginPos, int endPos) {
+        return new RTCE_Frame(DELETE, revision, beginPos, endPos, "");
+    }
+
+    /**
+     * Makes the frame for a request line of the line protocol: the edits
+     * ("insert", "delete" and "edit") get their own frames, the rest are sent
+     * as they are.
+     * @param String request, the request line, not URL encoded.
+     * @return RTCE_Frame, the frame.
+     */
+    public static RTCE_Frame request(String request) {
+        String[] tokens;
+        long revision = -1;
+        int first = 0;
+        if (request.startsWith("edit ")) {
+            tokens = request.split(" ", 5);
+            if (!RTCE_Command.isNumber(tokens[1], 18)) {
+                return line(request);
+            }
+            revision = Long.parseLong(tokens[1]);
+            first = 2;
+        } else {
+            tokens = request.split(" ", 3);
+        }
+        if (tokens.length == first + 3 && RTCE_Command.isNumber(tokens[first + 1], 9)) {
+            int pos = Integer.parseInt(tokens[first + 1]);
+            if (tokens[first].equals("insert")) {
+                return insert(revision, pos, tokens[first + 2]);
+            }
+            if (tokens[first].equals("delete") && RTCE_Command.isNumber(tokens[first + 2], 9)) {
+                return delete(revision, pos, Integer.parseInt(tokens[first + 2]));
+            }
+        }
+        return line(request);
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Get the revision of an edit frame.
+     * @return long, the revision, or -1 if the edit refers to the current revision.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Get the position of an insert, or the beginning of a delete.
+     * @return int, the position.
+     */
+    public int getPos() {
+        return pos;
+    }
+
+    /**
+     * Get the end of a delete.
+     * @return int, the end position.
+     */
+    public int getEndPos() {
+        return endPos;
+    }
+
+    /**
+     * Get the text of the frame: the inserted text, the request line or the response.
+     * @return String, the text, empty for a delete.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Writes the frame. Does not flush out.
+     * @param OutputStream out, the stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(text.length() + 16);
+        body.write(opcode);
+        if (opcode == INSERT || opcode == DELETE) {
+            writeVarint(body, revision + 1);
+            writeVarint(body, pos);
+        }
+        if (opcode == DELETE) {
+            writeVarint(body, endPos);
+        } else {
+            body.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        writeVarint(out, body.size());
+        body.writeTo(out);
+    }
+
+    /**
+     * Writes a RESPONSE frame holding the text of a snapshot, straight from
+     * the snapshot. Does not flush out.
+     * @param OutputStream out, the stream to write to.
+     * @param RTCE_Snapshot snapshot, the snapshot.
+     * @throws IOException if writing fails.
+     */
+    public static void writeResponse(OutputStream out, RTCE_Snapshot snapshot) throws IOException {
+        writeVarint(out, snapshot.textLength() + 1);
+        out.write(RESPONSE);
+        snapshot.writeTextTo(out);
+    }
+
+    /**
+     * Reads one frame.
+     * @param InputStream in, the stream to read from.
+     * @return RTCE_Frame, the frame, or null if the stream ended between two frames.
+     * @throws IOException if reading fails, the stream ends inside a frame or
+     * the frame is malformed.
+     */
+    public static RTCE_Frame readFrom(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        long length = readVarint(in, first);
+        if (length < 1 || length > MAX_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[(int) length];
+        for (int n = 0; n < body.length; ) {
+            int read = in.read(body, n, body.length - n);
+            if (read < 0) {
+                throw new EOFException("Stream ended inside a frame.");
+            }
+            n += read;
+        }
+        try {
+            return parse(body);
+        } catch (EOFException e) {
+            throw new IOException("Frame too short for its opcode."); // the frame was complete, so it is malformed
+        }
+    }
+
+    /**
+     * Makes a frame out of the bytes that follow the length.
+     */
+    private static RTCE_Frame parse(byte[] body) throws IOException {
+        ByteArrayInputStream payload = new ByteArrayInputStream(body, 1, body.length - 1);
+        int opcode = body[0];
+        switch (opcode) {
+        case LINE:
+        case RESPONSE:
+            return new RTCE_Frame(opcode, -1, 0, 0, new String(body, 1, body.length - 1, StandardCharsets.UTF_8));
+        case INSERT: {
+            long revision = readVarint(payload) - 1;
+            int pos = readInt(payload);
+            int offset = body.length - payload.available();
+            return insert(revision, pos, new String(body, offset, body.length - offset, StandardCharsets.UTF_8));
+        }
+        case DELETE: {
+            long revision = readVarint(payload) - 1;
+            int beginPos = readInt(payload);
+            int endPos = readInt(payload);
+            if (payload.available() > 0) {
+                throw new IOException("Trailing bytes in a delete frame.");
+            }
+            return delete(revision, beginPos, endPos);
+        }
+        default:
+            throw new IOException("Unknown frame opcode " + opcode);
+        }
+    }
+
+    /**
+     * Writes an unsigned varint.
+     * @param OutputStream out, the stream to write to.
+     * @param long value, the value, non negative.
+     * @throws IOException if writing fails.
+     */
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     * @param InputStream in, the stream to read from.
+     * @return long, the value.
+     * @throws IOException if the stream ends inside the varint or it is too long.
+     */
+    static long readVarint(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException("Stream ended inside a varint.");
+        }
+        return readVarint(in, first);
+    }
+
+    private static long readVarint(InputStream in, int b) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 56) {
+                throw new IOException("Varint too long.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Stream ended inside a varint.");
+            }
+        }
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        long value = readVarint(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Position too big " + value);
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,124 @@
+package RTCE.Server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Testing strategy: what is written must be read back the same.
+ *      (1) Every opcode round trips, with empty, ASCII and non ASCII texts,
+ *          and with and without a revision.
+ *      (2) Varints at the byte boundaries round trip and use as few bytes as
+ *          they should.
+ *      (3) Request lines become edit frames only when they are well formed edits.
+ *      (4) A stream that ends between frames reads as null, inside a frame as
+ *          an EOFException, and a bad opcode or length as an IOException.
+ */
+public class RTCE_FrameTest {
+
+    private static RTCE_Frame roundTrip(RTCE_Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        RTCE_Frame read = RTCE_Frame.readFrom(in);
+        assertNull(RTCE_Frame.readFrom(in));
+        return read;
+    }
+
+    @Test
+    public void roundTripEveryOpcode() throws IOException {
+        RTCE_Frame f = roundTrip(RTCE_Frame.line("switch a.txt"));
+        assertEquals(RTCE_Frame.LINE, f.getOpcode());
+        assertEquals("switch a.txt", f.getText());
+
+        f = roundTrip(RTCE_Frame.response(""));
+        assertEquals(RTCE_Frame.RESPONSE, f.getOpcode());
+        assertEquals("", f.getText());
+
+        f = roundTrip(RTCE_Frame.insert(-1, 300, "caf\u00e9 \u2603 %20+"));
+        assertEquals(RTCE_Frame.INSERT, f.getOpcode());
+        assertEquals(-1, f.getRevision());
+        assertEquals(300, f.getPos());
+        assertEquals("caf\u00e9 \u2603 %20+", f.getText());
+
+        f = roundTrip(RTCE_Frame.delete(123456789012345678L, 0, Integer.MAX_VALUE));
+        assertEquals(RTCE_Frame.DELETE, f.getOpcode());
+        assertEquals(123456789012345678L, f.getRevision());
+        assertEquals(0, f.getPos());
+        assertEquals(Integer.MAX_VALUE, f.getEndPos());
+    }
+
+    @Test
+    public void varints() throws IOException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE >>> 7};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 5, 8};
+        for (int i = 0; i < values.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RTCE_Frame.writeVarint(out, values[i]);
+            assertEquals(sizes[i], out.size());
+            assertEquals(values[i], RTCE_Frame.readVarint(new ByteArrayInputStream(out.toByteArray())));
+        }
+    }
+
+    @Test
+    public void requestLines() {
+        RTCE_Frame f = RTCE_Frame.request("insert 4 hello world");
+        assertEquals(RTCE_Frame.INSERT, f.getOpcode());
+        assertEquals(-1, f.getRevision());
+        assertEquals(4, f.getPos());
+        assertEquals("hello world", f.getText());
+
+        f = RTCE_Frame.request("edit 7 delete 1 3");
+        assertEquals(RTCE_Frame.DELETE, f.getOpcode());
+        assertEquals(7, f.getRevision());
+        assertEquals(1, f.getPos());
+        assertEquals(3, f.getEndPos());
+
+        f = RTCE_Frame.request("edit 7 insert 0 ");
+        assertEquals(RTCE_Frame.INSERT, f.getOpcode());
+        assertEquals("", f.getText());
+
+        String[] lines = {"view", "insert 4", "insert x y", "delete 1 2 3", "delete 1 x", "edit x insert 0 a",
+            "edit 7 move 1 2", "insert 12345678901 x"};
+        for (String line : lines) {
+            f = RTCE_Frame.request(line);
+            assertEquals(RTCE_Frame.LINE, f.getOpcode());
+            assertEquals(line, f.getText());
+        }
+    }
+
+    @Test
+    public void truncatedFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RTCE_Frame.insert(5, 5, "hello").writeTo(out);
+        byte[] bytes = out.toByteArray();
+        for (int length = 1; length < bytes.length; length++) {
+            try {
+                RTCE_Frame.readFrom(new ByteArrayInputStream(bytes, 0, length));
+                fail("read a frame cut after " + length + " bytes");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void malformedFrames() {
+        byte[][] frames = {{0}, {1, 9}, {2, 3, 0, 1}, {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F}};
+        for (byte[] bytes : frames) {
+            try {
+                RTCE_Frame.readFrom(new ByteArrayInputStream(bytes));
+                fail("read a malformed frame");
+            } catch (EOFException e) {
+                fail("malformed, not truncated");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package RTCE.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import RTCE.Document.RTCE_Snapshot;
+/*
+ * Thread safety argument:
+ * The acceptor thread only accepts sockets and hands them to an event loop through a
+ * ConcurrentLinkedQueue, which is thread safe. After that hand off a connection is confined
+ * to the event loop that owns it: only that loop reads from it, writes to it and closes it,
+ * so the per connection buffers never need locking.
+ * The only exception are pushed deltas, which are queued by other threads in a
+ * ConcurrentLinkedQueue and moved to the connection's output by its own loop. The count of
+ * unsent bytes is shared with those threads too, so it is an AtomicLong, and the overflowed
+ * flag they may set is volatile.
+ *
+ * The requests themselves are handled by the request handlers of RTCE_Server, exactly like in
+ * the thread per connection server, so the same argument for the documents applies here: the
+ * reads take the StampedLock of the document, and the changes are made by the RTCE_Sequencer
+ * of the document, never by an event loop.
+ *
+ * An event loop never waits for a sequencer either. The edits and the replaces are submitted
+ * (RTCE_Server.submitRequest) and the future of each answer is kept in the answers of the
+ * connection, in the order of the requests; the lines read after a request that has to wait for
+ * those answers are kept in waiting. Both deques are only touched by the loop. When an answer
+ * is done, the sequencer thread that completed it only adds the connection to flushRequests, a
+ * ConcurrentLinkedQueue, and wakes the selector up. The loop then takes the answers that are done
+ * off the front of the deque, which a CompletableFuture safely publishes, queues them, and
+ * handles the waiting lines. So the answers are written in the order of the requests, and a busy
+ * document only delays the connections that wait for it.
+ * The snapshots written for "view" and "switch" are immutable and shared between connections;
+ * each connection writes from its own read-only buffer over their bytes.
+ */
+/**
+ * Non-blocking front end for the RTCE server. Instead of one thread per
+ * connected socket, all the connections are multiplexed over a small fixed
+ * number of event loops, each one owning a Selector. The protocol on the wire
+ * is exactly the same line protocol that RTCE_Server speaks:
+ *
+ *      (a) Every request is one line terminated by a new line.
+ *      (b) The edits and the replaces are submitted to the sequencer of the
+ *          document (RTCE_Server.submitRequest), and answered once it ran
+ *          them. The requests after them wait for those answers, except more
+ *          edits, which are submitted right away so that a burst of edits is
+ *          resolved as one batch. Every other request is dispatched to
+ *          RTCE_Server.handleRequest.
+ *      (c) The responses are written back in the order of the requests,
+ *          each followed by a new line, the "exit" response closes the
+ *          connection.
+ *
+ * The server is picked at startup with the RTCE.servermode system property
+ * (see RTCE_Server.main), and the number of event loops with RTCE.eventloops.
+ */
+public class RTCE_NioServer {
+
+    // the longest request line we are willing to buffer (opening a big file sends it in one insert)
+    private static final int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] EOL = String.format("%n").getBytes(UTF8);
+    // the most unsent output a connection may have before it is throttled (responses) or closed (pushes)
+    private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    // the most requests a connection may have waiting for a sequencer before it is throttled
+    private static final int MAX_WAITING_REQUESTS = 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+    private int userName = 1;
+
+    /**
+     * Make an RTCE server that listens for connections on port and serves
+     * them from numberOfLoops event loop threads.
+     * @param int port, port number, requires 0 <= port <= 65535.
+     * @param int numberOfLoops, the number of event loops, requires numberOfLoops > 0.
+     */
+    public RTCE_NioServer(int port, int numberOfLoops) {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            loops = new EventLoop[numberOfLoops];
+            for (int i = 0; i < numberOfLoops; i++) {
+                loops[i] = new EventLoop(Selector.open());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Problem creating port.");
+        }
+    }
+
+    /**
+     * Run the server. Starts the event loops and then accepts clients on the
+     * calling thread, handing each one to the next event loop (round robin).
+     * Never returns unless an exception is thrown.
+     * @throws IOException if the main server socket is broken
+     * (IOExceptions from individual clients do *not* terminate serve()).
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "RTCE-eventloop-" + i);
+            t.setDaemon(true);
+            loops[i].thread = t;
+            t.start();
+        }
+        while (true) {
+            // block until a client connects
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            RTCE_Server.updateUsers(1);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            RTCE_User user = new RTCE_User(loop.thread, String.valueOf(userName), channel.socket());
+            userName++;
+            RTCE_Server.addClient(user);
+            loop.register(new Connection(channel, user));
+        }
+    }
+
+    /**
+     * Method to start the non-blocking server on the given port. The number of
+     * event loops is read from the RTCE.eventloops system property and defaults
+     * to the number of available processors.
+     * @param int port, the port number you want to serve from.
+     * @throws IOException
+     */
+    public static void runNioServer(int port) throws IOException {
+        int numberOfLoops = Runtime.getRuntime().availableProcessors();
+        String loopsProp = System.getProperty("RTCE.eventloops");
+        if (loopsProp != null) {
+            numberOfLoops = Integer.parseInt(loopsProp);
+        }
+        RTCE_NioServer server = new RTCE_NioServer(port, numberOfLoops);
+        server.serve();
+    }
+
+    /**
+     * State of a single client connection. Owned by exactly one event loop,
+     * except for push() which may be called from any thread.
+     *
+     * The output waiting for the client is counted in unsentBytes. While it is
+     * above MAX_PENDING_BYTES the loop stops reading requests from the
+     * connection, so a client that pipelines requests without reading the
+     * responses is slowed down to its own pace. Pushed deltas can't be slowed
+     * down that way, so a subscriber that lets them pile up past the limit is
+     * closed instead: it has to reconnect and view the document again. The
+     * loop also stops reading while MAX_WAITING_REQUESTS requests wait for a
+     * sequencer.
+     */
+    private static class Connection implements RTCE_PushChannel {
+        final SocketChannel channel;
+        final RTCE_User user;
+        final ConcurrentLinkedQueue<ByteBuffer> pushed = new ConcurrentLinkedQueue<ByteBuffer>();
+        EventLoop loop;
+        SelectionKey key;
+        final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+        final AtomicLong unsentBytes = new AtomicLong();
+        // the answers of the requests submitted to a sequencer, in the order of the requests
+        final ArrayDeque<CompletableFuture<String>> answers = new ArrayDeque<CompletableFuture<String>>();
+        // the lines read after a request that waits for those answers, not handled yet
+        final ArrayDeque<String> waiting = new ArrayDeque<String>();
+        boolean closeAfterWrite = false;
+        volatile boolean overflowed = false;
+        volatile boolean closed = false;
+
+        Connection(SocketChannel channel, RTCE_User user) {
+            this.channel = channel;
+            this.user = user;
+        }
+
+        public boolean push(String message) {
+            if (closed) {
+                return false;
+            }
+            ByteBuffer out = lineBuffer(message);
+            if (unsentBytes.addAndGet(out.remaining()) > MAX_PENDING_BYTES) {
+                // let the loop close the connection, the client is too far behind
+                overflowed = true;
+                loop.flushRequests.add(this);
+                loop.selector.wakeup();
+                return false;
+            }
+            pushed.add(out);
+            loop.flushRequests.add(this);
+            loop.selector.wakeup();
+            return true;
+        }
+    }
+
+    /**
+     * Encodes a line of output.
+     * @param String message, the line, without its line end.
+     * @return ByteBuffer, the line and the line end, ready to be written.
+     */
+    private static ByteBuffer lineBuffer(String message) {
+        byte[] body = message.getBytes(UTF8);
+        ByteBuffer out = ByteBuffer.allocate(body.length + EOL.length);
+        out.put(body).put(EOL).flip();
+        return out;
+    }
+
+    /**
+     * One event loop: a Selector and the thread that drives it. New connections
+     * are queued by the acceptor and registered by the loop itself, since
+     * registering from another thread would block on the selector.
+     */
+    private static class EventLoop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+        final ConcurrentLinkedQueue<Connection> flushRequests = new ConcurrentLinkedQueue<Connection>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Adds output to the end of what the connection still has to write.
+         * @param Connection conn, the connection.
+         * @param ByteBuffer out, the output, must not be written to afterwards.
+         */
+        static void queue(Connection conn, ByteBuffer out) {
+            conn.unsentBytes.addAndGet(out.remaining());
+            conn.pendingWrites.add(out);
+        }
+
+        /**
+         * Hand a new connection to this loop. Safe to call from any thread.
+         * @param Connection c, the connection to serve.
+         */
+        void register(Connection c) {
+            c.loop = this;
+            c.user.setChannel(c);
+            newConnections.add(c);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace(); // but keep the loop alive
+                    continue;
+                }
+                Connection c;
+                while ((c = newConnections.poll()) != null) {
+                    try {
+                        c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                    } catch (ClosedChannelException e) {
+                        disconnect(c);
+                    }
+                }
+                while ((c = flushRequests.poll()) != null) {
+                    if (c.overflowed) {
+                        disconnect(c);
+                        continue;
+                    }
+                    ByteBuffer out;
+                    while ((out = c.pushed.poll()) != null) {
+                        c.pendingWrites.add(out); // already counted by push
+                    }
+                    try {
+                        if (!c.closed && c.key != null) {
+                            answer(c);
+                            write(c.key, c);
+                        }
+                    } catch (IOException e) {
+                        disconnect(c);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(); // an edit failed, like in read
+                        disconnect(c);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, conn);
+                        }
+                    } catch (IOException e) {
+                        disconnect(conn); // but don't terminate the loop
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        disconnect(conn);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads whatever is available on the connection, and handles every
+         * complete line (see handle), in order.
+         */
+        private void read(SelectionKey key, Connection conn) throws IOException {
+            readBuffer.clear();
+            int n = conn.channel.read(readBuffer);
+            if (n < 0) {
+                disconnect(conn);
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !conn.closeAfterWrite) {
+                byte b = readBuffer.get();
+                if (b != '\n') {
+                    conn.partialLine.write(b);
+                    if (conn.partialLine.size() > MAX_LINE_LENGTH) {
+                        throw new IOException("Request line too long.");
+                    }
+                    continue;
+                }
+                String line = new String(conn.partialLine.toByteArray(), UTF8);
+                conn.partialLine.reset();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                if (!conn.waiting.isEmpty() || !handle(conn, line)) {
+                    conn.waiting.add(line);
+                }
+            }
+            write(key, conn);
+        }
+
+        /**
+         * Handles a request line. The edits and the replaces are submitted to
+         * the sequencer of the document, and the loop is asked to flush the
+         * connection once the answer is done (see answer). Any other request is
+         * answered right away, unless it has to wait for those answers.
+         * @param Connection conn, the connection.
+         * @param String line, the request line.
+         * @return boolean, false if the line was not handled, because answers
+         * of the requests before it are still missing.
+         */
+        private boolean handle(final Connection conn, String line) throws IOException {
+            CompletableFuture<String> answer = RTCE_Server.submitRequest(line, conn.user);
+            if (answer != null) {
+                conn.answers.add(answer);
+                answer.whenComplete(new BiConsumer<String, Throwable>() {
+                    public void accept(String output, Throwable failure) {
+                        // usually called by the sequencer: the loop takes the answer off
+                        conn.loop.flushRequests.add(conn);
+                        conn.loop.selector.wakeup();
+                    }
+                });
+                return true;
+            }
+            if (!conn.answers.isEmpty()) {
+                return false;
+            }
+            RTCE_Snapshot snapshot = RTCE_Server.streamRequest(line, conn.user);
+            if (snapshot != null) {
+                // the bytes of the snapshot are shared by every connection that reads this revision
+                for (ByteBuffer out : snapshot.asByteBuffers()) {
+                    queue(conn, out);
+                }
+                queue(conn, ByteBuffer.wrap(RTCE_Server.EOF_LINE).asReadOnlyBuffer());
+                return true;
+            }
+            String output = RTCE_Server.handleRequest(line, conn.user);
+            if (output.equals("exit" + String.format("%n") + "EOF")) {
+                conn.closeAfterWrite = true;
+                return true;
+            }
+            queue(conn, lineBuffer(output));
+            return true;
+        }
+
+        /**
+         * Queues the answers that are done, from the oldest request on, and
+         * then handles the lines that were waiting for them.
+         * @param Connection conn, the connection.
+         */
+        private void answer(Connection conn) throws IOException {
+            while (!conn.answers.isEmpty() && conn.answers.peek().isDone()) {
+                // throws if the edit failed, and the connection is closed
+                queue(conn, lineBuffer(RTCE_Sequencer.await(conn.answers.poll())));
+            }
+            while (!conn.waiting.isEmpty() && !conn.closeAfterWrite && handle(conn, conn.waiting.peek())) {
+                conn.waiting.poll();
+            }
+        }
+
+        /**
+         * Writes as much of the pending output as the socket accepts, and
+         * only asks the selector for OP_WRITE while there is output left, and
+         * for OP_READ while the output left is under MAX_PENDING_BYTES and
+         * fewer than MAX_WAITING_REQUESTS requests wait for a sequencer.
+         */
+        private void write(SelectionKey key, Connection conn) throws IOException {
+            while (!conn.pendingWrites.isEmpty()) {
+                ByteBuffer out = conn.pendingWrites.peek();
+                conn.unsentBytes.addAndGet(-conn.channel.write(out));
+                if (out.hasRemaining()) {
+                    key.interestOps(readInterest(conn) | SelectionKey.OP_WRITE);
+                    return;
+                }
+                conn.pendingWrites.poll();
+            }
+            if (conn.closeAfterWrite) {
+                disconnect(conn);
+                return;
+            }
+            key.interestOps(readInterest(conn));
+        }
+
+        private static int readInterest(Connection conn) {
+            if (conn.unsentBytes.get() > MAX_PENDING_BYTES
+                    || conn.answers.size() + conn.waiting.size() >= MAX_WAITING_REQUESTS) {
+                return 0;
+            }
+            return SelectionKey.OP_READ;
+        }
+
+        /**
+         * Closes the connection and removes the user from the server.
+         */
+        private void disconnect(Connection conn) {
+            if (conn.closed) {
+                return;
+            }
+            conn.closed = true;
+            try {
+                conn.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            RTCE_Server.removeClient(conn.user);
+            RTCE_Server.updateUsers(-1);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package RTCE.Server;
+
+/*
+ * Thread safety argument:
+ * push is called by whichever connection thread resolved an edit, while the channel is
+ * drained by the thread that owns the subscriber's connection. Every implementation must
+ * therefore hand the message over through a thread safe structure and must never block
+ * on the network, since push is called while the document's queue is locked.
+ */
+/**
+ * The outgoing side of a client connection that server-push messages can be
+ * written to. Each front end (thread per connection, virtual threads and the
+ * non-blocking server) gives every connection a RTCE_PushChannel, and a user
+ * that subscribed to updates has its deltas delivered through it.
+ */
+public interface RTCE_PushChannel {
+
+    /**
+     * Queue a message to be sent to the client. Never blocks.
+     * @param String message, the complete message including the EOF line.
+     * @return true if the message was queued, false if the connection
+     * behind this channel is gone and the channel should be dropped.
+     */
+    public boolean push(String message);
+}
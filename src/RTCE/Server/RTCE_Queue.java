@@ -1,31 +1,50 @@
 package RTCE.Server;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 
 import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_Operation;
 /*
  * Thread safety argument: after initialization, the mutator methods
  * are all contained within synchronized blocks. The requestQueue
  * acquires a lock for the duration of any of these methods, i.e.
  * only one user can modify the queue at a time. This ensures that
  * there will be no race conditions and that the queue is completely
- * thread-safe.
+ * thread-safe. The server only resolves a queue from the RTCE_Sequencer
+ * of its document, so in practice these locks are never contended. The
+ * based edits of each user (unconfirmed, refused) are guarded by the same
+ * lock.
  */
 /**
  * Represents a queue of RTCE_Request objects. Has two methods:
  * addRequest, which adds a new RTCE_Request to the queue, and
  * resolveRequest, which resolves the request at the front of
  * the queue, applies any necessary operational transformations
- * to other requests in the queue. The rep invariant is the
+ * to other requests in the queue. resolveAll resolves everything
+ * pending as one batch. The rep invariant is the
  * RTCE_Document that this RTCE_Queue is associated with; there
  * is a one-to-one correspondence, and this assignment never
  * changes at any point.
+ * 
+ * A client can send several based edits before the first one is answered.
+ * Each is made on top of the earlier ones, so the queue keeps the based edits
+ * of each user that the user may not have seen applied yet (see
+ * transformSinceBase). Once one of them is refused, the next based edits of
+ * the user are refused too, until the user got a snapshot (see forget).
  */
 public class RTCE_Queue {
     public final RTCE_Document doc;
     private ArrayList<RTCE_Request> requestQueue = new ArrayList<RTCE_Request>();
     // used an ArrayList instead of a queue as we need to be able to get the index
     // of an element and insert at a certain index
+    // the resolved based edits of each user, in order, until the user based an edit on a later revision
+    private final HashMap<RTCE_User, ArrayList<RTCE_Request>> unconfirmed = new HashMap<RTCE_User, ArrayList<RTCE_Request>>();
+    // the users with a based edit that was refused, whose next based edits can't be placed
+    private final HashSet<RTCE_User> refused = new HashSet<RTCE_User>();
     
     /**
      * Constructor method for a RTCE_Queue, which keeps track of edit
@@ -82,21 +101,335 @@ public class RTCE_Queue {
     
     /**
      * Resolves the request at the front of the queue. This consists of
-     * calling its applyEdit() method, iterating through the rest of the
-     * queue to apply any necessary operational transforms.
+     * transforming it against the operations applied since the revision it
+     * is based on (if it has one), calling its applyEdit() method, pushing
+     * the applied edit to the users subscribed to the document and iterating
+     * through the rest of the queue to apply any necessary operational
+     * transforms to the requests without a base revision (the ones with one
+     * will find this edit in the operation log), except the later requests of
+     * the same user (see RTCE_Request.follows).
+     * The delta is pushed while the queue is still locked, so subscribers
+     * see the edits in the same order they were applied in.
+     * @return RTCE_Request, the request that was resolved, or null if
+     * the queue was empty.
      */
-    public void resolveRequest() {
+    public RTCE_Request resolveRequest() {
         synchronized(requestQueue) {
+            if (requestQueue.isEmpty()) {
+                return null;
+            }
             RTCE_Request request = requestQueue.get(0);
             requestQueue.remove(0);
+            if (request.getBaseRevision() >= 0) {
+                transformSinceBase(request);
+                remember(request);
+            }
+            if (request.isDropped() || request.isStale()) {
+                return request;
+            }
             request.applyEdit(); // make changes to doc
-            if (!requestQueue.isEmpty()) {
-                for (RTCE_Request req : requestQueue) {
+            RTCE_Server.broadcast(doc, request.getOrigin(), request.toDelta());
+            // iterate over a copy, a transform can drop or split a request
+            for (RTCE_Request req : new ArrayList<RTCE_Request>(requestQueue)) {
+                if (req.getBaseRevision() < 0 && !req.follows(request)) {
                     req.applyTransform(request); // transform all successive
                                                  // edit requests based on
                                                  // this one
                 }
             }
+            return request;
+        }
+    }
+
+    /**
+     * Transforms a request against every insert and delete applied to the
+     * document after its base revision, in order. If the operation log no
+     * longer goes back to the base revision (or the base revision is in the
+     * future), or a replace or a reset was made after it, nobody knows where
+     * the positions of the request are now: the request is marked stale
+     * instead, and must not be applied.
+     * 
+     * The client may have sent the request before its earlier edits were
+     * answered: the positions of the request are then positions in the base
+     * revision with those edits made on top of it (the earlier edits). When
+     * one of them is the next operation, it was already in the text the
+     * request was made on. Any other operation was applied before the earlier
+     * edits, so it is first moved over them (see moveOver), like
+     * RTCE_LocalDocument does on the client. An operation that splits one of
+     * the earlier edits, or the request itself while earlier edits are still
+     * on top of the text, can't be followed that way, and the request is
+     * marked stale.
+     * @param request The RTCE_Request being resolved, not in the queue anymore.
+     */
+    private void transformSinceBase(RTCE_Request request) {
+        List<RTCE_Operation> ops = doc.getOperationsSince(request.getBaseRevision());
+        List<RTCE_Request> earlier = earlierEdits(request);
+        if (ops == null || earlier == null) {
+            request.setStale();
+            return;
+        }
+        for (RTCE_Operation op : ops) {
+            if (!op.getType().equals("insert") && !op.getType().equals("delete")) {
+                request.setStale();
+                return;
+            }
+        }
+        request.recordPositions(request.getBaseRevision());
+        for (RTCE_Operation op : ops) {
+            if (request.isDropped()) {
+                return;
+            }
+            long revision = op.getRevision();
+            int own = -1;
+            for (int i = 0; i < earlier.size() && own < 0; i++) {
+                if (earlier.get(i).getRevision() == revision) {
+                    own = i;
+                }
+            }
+            if (own >= 0) {
+                // the edits before it were dropped, their text must be gone by now
+                for (int i = 0; i < own; i++) {
+                    int[] positions = earlier.get(i).getPositionsAt(revision);
+                    if (positions[0] != positions[1]) {
+                        request.setStale();
+                        return;
+                    }
+                }
+                earlier.subList(0, own + 1).clear();
+            } else {
+                List<RTCE_Operation> moved = moveOver(op, earlier);
+                if (moved == null) {
+                    request.setStale();
+                    return;
+                }
+                for (RTCE_Operation o : moved) {
+                    if (!earlier.isEmpty() && splits(o, request)) {
+                        request.setStale();
+                        return;
+                    }
+                    if (!request.isDropped()) {
+                        request.applyTransform(RTCE_Request.fromOperation(o, doc));
+                    }
+                }
+            }
+            request.recordPositions(revision);
+        }
+    }
+
+    /**
+     * Finds the earlier based edits of the user that made a request, that the
+     * user had not seen applied (or dropped) at the base revision of the
+     * request, and forgets the ones the user has seen.
+     * @param request The based RTCE_Request being resolved.
+     * @return List<RTCE_Request>, the earlier edits, in order, or null if the
+     * positions of the request can't be found: an earlier edit was refused, or
+     * split in two, or is based on a later revision.
+     */
+    private List<RTCE_Request> earlierEdits(RTCE_Request request) {
+        List<RTCE_Request> earlier = new ArrayList<RTCE_Request>();
+        RTCE_User origin = request.getOrigin();
+        if (origin == null || request.isSplitHalf()) {
+            return earlier; // the second half of a split delete is based on the revision that split it
+        }
+        if (refused.contains(origin)) {
+            return null;
+        }
+        ArrayList<RTCE_Request> edits = unconfirmed.get(origin);
+        if (edits == null) {
+            return earlier;
+        }
+        long base = request.getBaseRevision();
+        for (Iterator<RTCE_Request> it = edits.iterator(); it.hasNext();) {
+            RTCE_Request edit = it.next();
+            if (lastRevision(edit) <= base) {
+                it.remove();
+            } else if (edit.getSplit() != null || edit.getPositionsAt(base) == null) {
+                return null;
+            } else {
+                earlier.add(edit);
+            }
+        }
+        if (edits.isEmpty()) {
+            unconfirmed.remove(origin);
+        }
+        return earlier;
+    }
+
+    /**
+     * Get the last revision a resolved based edit takes part in: the one it
+     * produced (the second half of a split delete may be later), or for a
+     * dropped edit the revision of the operation that deleted its text.
+     */
+    private static long lastRevision(RTCE_Request edit) {
+        if (edit.getRevision() < 0) {
+            return edit.getLastRecordedRevision();
+        }
+        long revision = edit.getRevision();
+        for (RTCE_Request r = edit.getSplit(); r != null; r = r.getSplit()) {
+            revision = Math.max(revision, r.getRevision());
+        }
+        return revision;
+    }
+
+    /**
+     * Moves an operation of another user over the earlier edits of a request,
+     * which were resolved after it (each was transformed against it, and
+     * recorded where it was before). When both insert at the same position
+     * the text of the earlier edit goes first; a delete around the text the
+     * earlier edit inserted keeps it, and becomes two deletes.
+     * @param op The insert or delete that was applied.
+     * @param earlier The earlier edits, in order.
+     * @return List<RTCE_Operation>, the operation on the text with the earlier
+     * edits made on it, or null if it inserts inside the text an earlier edit
+     * deletes (the earlier edit was split).
+     */
+    private static List<RTCE_Operation> moveOver(RTCE_Operation op, List<RTCE_Request> earlier) {
+        long revision = op.getRevision();
+        List<RTCE_Operation> ops = new ArrayList<RTCE_Operation>();
+        ops.add(op);
+        for (RTCE_Request edit : earlier) {
+            int[] positions = edit.getPositionsAt(revision - 1);
+            int start = positions[0];
+            int end = positions[1];
+            if (start == end) {
+                continue; // an edit that was dropped, or inserts nothing
+            }
+            boolean insert = edit.getRequestType().equals("insert");
+            List<RTCE_Operation> next = new ArrayList<RTCE_Operation>();
+            for (RTCE_Operation o : ops) {
+                if (o.getType().equals("insert")) {
+                    int pos = o.getBeginPos();
+                    if (insert && pos >= start) {
+                        pos += end - start;
+                    } else if (!insert && pos > start && pos < end) {
+                        return null;
+                    } else if (!insert && pos >= end) {
+                        pos -= end - start;
+                    }
+                    next.add(RTCE_Operation.insert(revision, pos, o.getText()));
+                } else if (insert) {
+                    int length = end - start;
+                    if (start <= o.getBeginPos()) {
+                        next.add(RTCE_Operation.delete(revision, o.getBeginPos() + length, o.getEndPos() + length));
+                    } else if (start >= o.getEndPos()) {
+                        next.add(o);
+                    } else { // the later part first, so the positions of the other stay right
+                        next.add(RTCE_Operation.delete(revision, end, o.getEndPos() + length));
+                        next.add(RTCE_Operation.delete(revision, o.getBeginPos(), start));
+                    }
+                } else {
+                    int beginPos = positionAfterDelete(o.getBeginPos(), start, end);
+                    int endPos = positionAfterDelete(o.getEndPos(), start, end);
+                    if (beginPos < endPos) {
+                        next.add(RTCE_Operation.delete(revision, beginPos, endPos));
+                    }
+                }
+            }
+            ops = next;
+        }
+        return ops;
+    }
+
+    /**
+     * Indicate if an insert lands strictly inside the text a delete request
+     * deletes, so that RTCE_Request.applyTransform splits the request.
+     */
+    private static boolean splits(RTCE_Operation op, RTCE_Request request) {
+        return op.getType().equals("insert") && request.getRequestType().equals("delete")
+                && op.getBeginPos() > request.getStartPos() && op.getBeginPos() < request.getEndPos();
+    }
+
+    /**
+     * Maps a position to the text after a deletion, like RTCE_Request does.
+     */
+    private static int positionAfterDelete(int pos, int deleteStart, int deleteEnd) {
+        if (pos <= deleteStart) {
+            return pos;
+        } else if (pos < deleteEnd) {
+            return deleteStart;
+        }
+        return pos - (deleteEnd - deleteStart);
+    }
+
+    /**
+     * Keeps a resolved based request of a user, for the requests the user
+     * made on top of it (see earlierEdits). A refused request makes the user
+     * refused until forget is called.
+     * @param request The based RTCE_Request that was just resolved.
+     */
+    private void remember(RTCE_Request request) {
+        RTCE_User origin = request.getOrigin();
+        if (origin == null) {
+            return;
+        }
+        if (request.isStale()) {
+            refused.add(origin);
+            unconfirmed.remove(origin);
+        } else if (!request.isSplitHalf()) {
+            ArrayList<RTCE_Request> edits = unconfirmed.get(origin);
+            if (edits == null) {
+                edits = new ArrayList<RTCE_Request>();
+                unconfirmed.put(origin, edits);
+            }
+            edits.add(request);
+        }
+    }
+
+    /**
+     * Forgets the based edits of a user: the user got a snapshot of the
+     * document, which has all of them, or left the document. Its next based
+     * edits are accepted again.
+     * @param user The RTCE_User.
+     */
+    public void forget(RTCE_User user) {
+        synchronized(requestQueue) {
+            unconfirmed.remove(user);
+            refused.remove(user);
+        }
+    }
+
+    /**
+     * Resolves every request in the queue as one batch. First the consecutive
+     * edits of the same user (for example characters typed one after the other)
+     * are composed into single requests (see RTCE_Request.compose), so that a
+     * burst of n keystrokes is transformed, applied and pushed to the other
+     * users once instead of n times. Then the requests are resolved in order.
+     * @return List<RTCE_Request>, the requests that were resolved, not
+     * counting the ones composed into them.
+     */
+    public List<RTCE_Request> resolveAll() {
+        synchronized(requestQueue) {
+            ArrayList<RTCE_Request> composed = new ArrayList<RTCE_Request>();
+            for (RTCE_Request request : requestQueue) {
+                if (composed.isEmpty() || !composed.get(composed.size() - 1).compose(request)) {
+                    composed.add(request);
+                }
+            }
+            requestQueue.clear();
+            requestQueue.addAll(composed);
+            ArrayList<RTCE_Request> resolved = new ArrayList<RTCE_Request>();
+            RTCE_Request request;
+            while ((request = resolveRequest()) != null) {
+                resolved.add(request);
+            }
+            return resolved;
+        }
+    }
+
+    /**
+     * Resolves the requests at the front of the queue until the given request,
+     * and the second half of it if a transform split it, was resolved. When this
+     * returns the request was either applied (see RTCE_Request.getRevision())
+     * or dropped by an operational transform.
+     * @param request The RTCE_Request that needs to be resolved.
+     */
+    public void resolveUntil(RTCE_Request request) {
+        synchronized(requestQueue) {
+            for (RTCE_Request r = request; r != null; r = r.getSplit()) {
+                while (requestQueue.contains(r)) {
+                    resolveRequest();
+                }
+            }
         }
     }
 }
\ No newline at end of file
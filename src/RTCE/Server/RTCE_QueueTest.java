@@ -2,6 +2,9 @@ package RTCE.Server;
 
 import RTCE.Document.RTCE_Document;
 
+import java.net.Socket;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 import org.junit.Test;
@@ -16,7 +19,12 @@ import org.junit.Test;
  * RTCE_Request testing suite due to the need to manipulate the actual queue.
  * The following scenarios will be tested: (1) basic testing of the queue,
  * (2) all six operational transformation cases (consisting of two edits each),
- * and finally (3) a series of more than two edits.
+ * (3) a series of more than two edits, (4) edits based on a revision of the
+ * document, (5) batches, where the consecutive edits of a user are
+ * composed into one, (6) edits based on a revision the operation
+ * log can't transform from (compacted away, in the future, or older than a
+ * replace), which are not applied, and finally (7) based edits a user sent
+ * on top of earlier ones that were not applied yet at that revision.
  */
 public class RTCE_QueueTest {
     /**
@@ -178,7 +186,8 @@ public class RTCE_QueueTest {
         RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
         RTCE_Queue queue = new RTCE_Queue(doc);
         doc.insert(0, "Hello world!"); // initial text: "Hello world!"
-        String expectedOutput = "o n to the peace ?!";
+        // " world" and "Hell" deleted, " n" still goes right after "Hell"
+        String expectedOutput = " no to the peace ?!";
 
         queue.addRequest(new RTCE_Request("insert", 11, " ?", doc)); // Hello world?!
         queue.addRequest(new RTCE_Request("insert", 11, " peace", doc)); // Hello world peace!
@@ -196,4 +205,283 @@ public class RTCE_QueueTest {
 
         assertEquals(expectedOutput, doc.getAllText());
     }
+    /**
+     * Edits based on a revision of the document, resolved one at a time: each one
+     * is transformed against the edits applied since its revision.
+     */
+    @Test
+    public void baseRevisionTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue(); // the transforms split into this queue
+        doc.insert(0, "abc"); // initial text: "abc", revision 1
+
+        RTCE_Request first = new RTCE_Request("insert", 0, "1", doc);
+        first.setBaseRevision(1);
+        queue.addRequest(first);
+        queue.resolveUntil(first); // 1abc
+        RTCE_Request second = new RTCE_Request("insert", 3, "2", doc);
+        second.setBaseRevision(1); // did not see the first one
+        queue.addRequest(second);
+        queue.resolveUntil(second);
+        assertEquals("1abc2", doc.getAllText());
+        assertEquals(3, second.getRevision());
+        assertEquals(4, second.getStartPos());
+    }
+
+    /**
+     * A delete based on an old revision, split by an insert made since then.
+     */
+    @Test
+    public void baseRevisionSplitTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue(); // the transforms split into this queue
+        doc.insert(0, "abcde"); // initial text: "abcde", revision 1
+
+        RTCE_Request insert = new RTCE_Request("insert", 2, "x", doc);
+        insert.setBaseRevision(1);
+        queue.addRequest(insert);
+        queue.resolveUntil(insert); // abxcde
+        RTCE_Request delete = new RTCE_Request("delete", 1, 4, doc);
+        delete.setBaseRevision(1);
+        queue.addRequest(delete);
+        queue.resolveUntil(delete);
+        assertEquals("axe", doc.getAllText());
+        assertEquals(4, delete.getSplit().getRevision());
+    }
+
+    /**
+     * A delete based on an old revision, whose text was deleted since then.
+     */
+    @Test
+    public void baseRevisionDroppedTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue(); // the transforms split into this queue
+        doc.insert(0, "abcdef"); // initial text: "abcdef", revision 1
+
+        RTCE_Request big = new RTCE_Request("delete", 1, 5, doc);
+        big.setBaseRevision(1);
+        queue.addRequest(big);
+        queue.resolveUntil(big); // af
+        RTCE_Request small = new RTCE_Request("delete", 2, 4, doc);
+        small.setBaseRevision(1);
+        queue.addRequest(small);
+        queue.resolveUntil(small);
+        assertEquals("af", doc.getAllText());
+        assertTrue(small.isDropped());
+        assertEquals(-1, small.getRevision());
+    }
+
+    /**
+     * An edit based on a revision the operation log no longer has is not applied.
+     */
+    @Test
+    public void staleCompactedBaseTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "a"); // revision 1
+        for (int i = 0; i < 2000; i++) {
+            doc.insert(1, "b");
+            doc.delete(1, 2);
+        }
+        assertNull(doc.getOperationsSince(1));
+        RTCE_Request late = new RTCE_Request("insert", 1, "x", doc);
+        late.setBaseRevision(1);
+        queue.addRequest(late);
+        queue.resolveUntil(late);
+        assertTrue(late.isStale());
+        assertEquals(-1, late.getRevision());
+        assertEquals("a", doc.getAllText());
+    }
+
+    /**
+     * An edit based on a revision the document did not reach yet is not applied.
+     */
+    @Test
+    public void staleFutureBaseTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "abc"); // revision 1
+        RTCE_Request future = new RTCE_Request("delete", 0, 2, doc);
+        future.setBaseRevision(5);
+        queue.addRequest(future);
+        queue.resolveUntil(future);
+        assertTrue(future.isStale());
+        assertEquals("abc", doc.getAllText());
+        assertEquals(1, doc.getRevision());
+    }
+
+    /**
+     * An edit based on a revision older than a replaceAll is not applied: the
+     * replace can't be transformed against.
+     */
+    @Test
+    public void staleBeforeReplaceTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "aaa bbb"); // revision 1
+        doc.replaceAll("a", "cc"); // revision 2, "cccccc bbb"
+        RTCE_Request old = new RTCE_Request("insert", 4, "x", doc);
+        old.setBaseRevision(1);
+        queue.addRequest(old);
+        queue.resolveUntil(old);
+        assertTrue(old.isStale());
+        assertEquals("cccccc bbb", doc.getAllText());
+        // based on the replace itself, it is applied
+        RTCE_Request fresh = new RTCE_Request("insert", 6, "x", doc);
+        fresh.setBaseRevision(2);
+        queue.addRequest(fresh);
+        queue.resolveUntil(fresh);
+        assertFalse(fresh.isStale());
+        assertEquals("ccccccx bbb", doc.getAllText());
+    }
+    /**
+     * A user inserts twice at the same revision, the second time after the text
+     * of the first, while another user inserted where the first one goes: the
+     * first one goes before the other text, and so does the second one.
+     */
+    @Test
+    public void pipelinedBaseTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "abc"); // initial text: "abc", revision 1
+        RTCE_User one = new RTCE_User(new Thread(), "one", new Socket());
+        RTCE_User two = new RTCE_User(new Thread(), "two", new Socket());
+
+        RTCE_Request other = new RTCE_Request("insert", 1, "X", doc);
+        other.setBaseRevision(1);
+        other.setOrigin(two);
+        RTCE_Request first = new RTCE_Request("insert", 1, "Y", doc);
+        first.setBaseRevision(1);
+        first.setOrigin(one);
+        RTCE_Request second = new RTCE_Request("insert", 2, "Z", doc); // aYZbc for the user
+        second.setBaseRevision(1);
+        second.setOrigin(one);
+        queue.addRequest(other);
+        queue.resolveUntil(other); // aXbc
+        queue.addRequest(first);
+        queue.resolveUntil(first); // aYXbc
+        queue.addRequest(second);
+        queue.resolveUntil(second);
+        assertEquals("aYZXbc", doc.getAllText());
+        assertEquals(4, second.getRevision());
+        assertEquals(2, second.getStartPos());
+    }
+
+    /**
+     * Another user deleted the text around the insert a user made before its
+     * delete: the insert stays, and the delete of the text after it is dropped.
+     */
+    @Test
+    public void pipelinedDeleteAroundTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "abc"); // initial text: "abc", revision 1
+        RTCE_User one = new RTCE_User(new Thread(), "one", new Socket());
+        RTCE_User two = new RTCE_User(new Thread(), "two", new Socket());
+
+        RTCE_Request other = new RTCE_Request("delete", 1, 3, doc);
+        other.setBaseRevision(1);
+        other.setOrigin(two);
+        RTCE_Request insert = new RTCE_Request("insert", 2, "Y", doc);
+        insert.setBaseRevision(1);
+        insert.setOrigin(one);
+        RTCE_Request delete = new RTCE_Request("delete", 3, 4, doc); // the c of abYc
+        delete.setBaseRevision(1);
+        delete.setOrigin(one);
+        queue.addRequest(other);
+        queue.resolveUntil(other); // a
+        queue.addRequest(insert);
+        queue.resolveUntil(insert); // aY
+        queue.addRequest(delete);
+        queue.resolveUntil(delete);
+        assertEquals("aY", doc.getAllText());
+        assertTrue(delete.isDropped());
+    }
+
+    /**
+     * Once a based edit of a user is refused, the edits the user made on top
+     * of it are refused too, until the user got a snapshot.
+     */
+    @Test
+    public void refusedUntilSnapshotTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "abc"); // initial text: "abc", revision 1
+        RTCE_User user = new RTCE_User(new Thread(), "user", new Socket());
+
+        RTCE_Request future = new RTCE_Request("insert", 0, "x", doc);
+        future.setBaseRevision(5);
+        future.setOrigin(user);
+        queue.addRequest(future);
+        queue.resolveUntil(future);
+        assertTrue(future.isStale());
+        RTCE_Request next = new RTCE_Request("insert", 1, "y", doc);
+        next.setBaseRevision(1);
+        next.setOrigin(user);
+        queue.addRequest(next);
+        queue.resolveUntil(next);
+        assertTrue(next.isStale());
+
+        queue.forget(user);
+        RTCE_Request fresh = new RTCE_Request("insert", 1, "y", doc);
+        fresh.setBaseRevision(1);
+        fresh.setOrigin(user);
+        queue.addRequest(fresh);
+        queue.resolveUntil(fresh);
+        assertFalse(fresh.isStale());
+        assertEquals("aybc", doc.getAllText());
+    }
+
+    /**
+     * A burst of typing and backspacing by one user is applied as two edits,
+     * one revision each.
+     */
+    @Test
+    public void composeTypingTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "ab"); // initial text: "ab", revision 1
+        RTCE_User user = new RTCE_User(new Thread(), "typist", new Socket());
+
+        RTCE_Request[] requests = {
+                new RTCE_Request("insert", 1, "x", doc), // axb
+                new RTCE_Request("insert", 2, "y", doc), // axyb
+                new RTCE_Request("insert", 3, "z", doc), // axyzb
+                new RTCE_Request("delete", 3, 4, doc), // axyb
+                new RTCE_Request("delete", 2, 3, doc), // axb
+                new RTCE_Request("delete", 2, 3, doc), // ax
+                new RTCE_Request("delete", 1, 2, doc) // a
+        };
+        for (RTCE_Request r : requests) {
+            r.setOrigin(user);
+            queue.addRequest(r);
+        }
+        List<RTCE_Request> resolved = queue.resolveAll();
+        assertEquals("a", doc.getAllText());
+        assertEquals(2, resolved.size()); // the inserts and first deletes, then the other deletes
+        assertEquals(3, doc.getRevision());
+        assertEquals(2, requests[2].getRevision());
+        assertEquals(3, requests[6].getRevision());
+    }
+
+    /**
+     * Edits of different users are not composed, but still transformed.
+     */
+    @Test
+    public void composeOnlySameUserTest() {
+        RTCE_Document doc = new RTCE_Document("doc.txt"); // empty document
+        RTCE_Queue queue = doc.getQueue();
+        doc.insert(0, "ab"); // initial text: "ab", revision 1
+        RTCE_User one = new RTCE_User(new Thread(), "one", new Socket());
+        RTCE_User two = new RTCE_User(new Thread(), "two", new Socket());
+
+        RTCE_Request first = new RTCE_Request("insert", 1, "x", doc);
+        first.setOrigin(one);
+        RTCE_Request second = new RTCE_Request("insert", 1, "y", doc);
+        second.setOrigin(two);
+        queue.addRequest(first);
+        queue.addRequest(second);
+        assertEquals(2, queue.resolveAll().size());
+        assertEquals("ayxb", doc.getAllText());
+    }
 }
\ No newline at end of file
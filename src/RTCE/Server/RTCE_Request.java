@@ -1,6 +1,13 @@
 package RTCE.Server;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
 import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_Operation;
 /*
  * Thread safety argument: since the main mutator method for this class,
  * applyTransform, is exclusively called from the resolveRequest method
@@ -16,7 +23,22 @@ import RTCE.Document.RTCE_Document;
  * which the request was made), startPos (starting position of edit),
  * endPos (ending position of edit), insertText (text to add - for
  * insert only). Rep invariant is parentDoc, the document to which the
- * edit is being applied, which is immutable.
+ * edit is being applied, which is immutable. A request may also know the
+ * user that made it (origin), so that the resulting delta is not pushed
+ * back to that user.
+ * 
+ * A request may also know the revision of the document the client based it
+ * on (baseRevision). Such a request is transformed against every operation
+ * that was applied to the document after that revision when it is resolved
+ * (see RTCE_Queue.resolveRequest), not only against the requests that happen
+ * to be in the queue at the same time. Its positions also take into account
+ * the earlier edits of the same user that were not applied yet at that
+ * revision, so the request records where it was after each of those
+ * transforms (see recordPositions), for the requests made on top of it.
+ * 
+ * Consecutive edits of the same user can be composed into one request (see
+ * compose), which is then applied, and pushed to the other users, once. The
+ * requests composed into it get its revision when it is applied.
  * 
  */
 public class RTCE_Request {
@@ -26,6 +48,17 @@ public class RTCE_Request {
     private int startPos;
     private int endPos;
     private String insertText;
+    private RTCE_User origin = null;
+    private long revision = -1;
+    private long baseRevision = -1;
+    private boolean dropped = false;
+    private boolean stale = false;
+    private RTCE_Request split = null;
+    private boolean splitHalf = false;
+    private RTCE_Request composedInto = null;
+    private int composedOffset = 0;
+    private ArrayList<RTCE_Request> parts = new ArrayList<RTCE_Request>();
+    private TreeMap<Long, int[]> positions = null; // start and end after each transform, by revision
 
     /**
      * Constructor methods for a RTCE_Request, which are dispatched based
@@ -74,64 +107,176 @@ public class RTCE_Request {
      * See RTCE_RequestTest.java or the design doc for a full description of
      * the operational transformation needed for each possible configuration.
      * 
+     * Both requests refer to the same text, and other was applied to it first.
+     * An insert only takes up a position of that text (startPos), not a range:
+     * its text is not in the document yet. When both inserts are at the same
+     * position this one goes first.
+     * 
      * @param other The RTCE_Request that is being resolved by the server;
-     * that is, a request that precedes this one in the queue.
+     * that is, a request that precedes this one in the queue, or an edit that
+     * was applied after the revision this request is based on.
      */
     public void applyTransform(RTCE_Request other) {
-        if (other.getStartPos() >= endPos) // an edit only shifts text that follows it
-            return;
-        else if (other.getEndPos() <= startPos) { // shift without any overlapping chars
-            if (other.requestType == "insert") {
-                startPos += (other.getEndPos() - other.getStartPos());
-                endPos += (other.getEndPos() - other.getStartPos());
-            } else { // other.requestType == "delete"
-                startPos -= (other.getEndPos() - other.getStartPos());
-                endPos -= (other.getEndPos() - other.getStartPos());
+        int otherStart = other.getStartPos();
+        int otherEnd = other.getEndPos();
+        if (other.requestType == "insert") {
+            int shift = otherEnd - otherStart;
+            if (requestType == "insert") { // insert-insert
+                if (otherStart < startPos) {
+                    startPos += shift;
+                    endPos += shift;
+                }
+            } else if (otherStart <= startPos) { // delete after the insert
+                startPos += shift;
+                endPos += shift;
+            } else if (otherStart < endPos) { // insert-delete, the insert splits the deletion
+                RTCE_Queue queue = parentDoc.getQueue();
+                RTCE_Request sub = new RTCE_Request("delete", otherEnd, endPos + shift, parentDoc);
+                endPos = otherStart;
+                sub.setOrigin(origin);
+                sub.splitHalf = true;
+                if (baseRevision >= 0) {
+                    sub.setBaseRevision(other.getRevision()); // the text after the insert is other's revision
+                }
+                sub.split = split;
+                split = sub;
+                int index = queue.findRequest(this);
+                if (index < 0) {
+                    // this is being resolved against its base revision (see RTCE_Queue.transformSinceBase)
+                    // and already left the queue: its second half is resolved right after it
+                    queue.addRequestAtIndex(0, sub);
+                } else {
+                    queue.addRequestAtIndex(index + 1, sub);
+                }
             }
-        } else { // overlapping chars
-            if (other.requestType == "delete" && requestType == "delete") { // delete-delete
-                if (other.getStartPos() >= startPos && other.getEndPos() >= endPos) // A starts/ends after B
-                    endPos = other.getStartPos();
-                else if (other.getStartPos() <= startPos && other.getEndPos() <= endPos) { // A starts/ends before B
-                    startPos = other.getEndPos();
-                    startPos -= other.getEndPos() - other.getStartPos();
-                    endPos -= other.getEndPos() - other.getStartPos();
-                } else if (other.getStartPos() <= startPos && other.getEndPos() >= endPos) { // B is contained in A
+        } else { // other.requestType == "delete"
+            if (requestType == "insert") { // delete-insert
+                startPos = positionAfterDelete(startPos, otherStart, otherEnd);
+                endPos = startPos + insertText.length();
+            } else { // delete-delete
+                boolean wasEmpty = startPos == endPos;
+                startPos = positionAfterDelete(startPos, otherStart, otherEnd);
+                endPos = positionAfterDelete(endPos, otherStart, otherEnd);
+                if (startPos == endPos && !wasEmpty) {
+                    dropped = true;
                     parentDoc.getQueue().removeRequest(this); // no additional deletion
-                } else if (other.getStartPos() >= startPos && other.getEndPos() <= endPos) { // A is contained in B
-                    endPos = other.getStartPos() + endPos - other.getEndPos();
                 }
-            } else if (other.requestType == "insert" && requestType == "insert") { // insert-insert
-                startPos = other.getStartPos(); // move insert to the start of the inserted portion
-                endPos = startPos + insertText.length();
-            } else if (other.requestType == "delete" && requestType == "insert") { // delete-insert
-                startPos = other.getStartPos(); // move insert to the start of the deleted portion
-                endPos = startPos + insertText.length();
-            } else { // insert-delete
-                int shift = other.getInsertText().length();
-                RTCE_Queue queue = parentDoc.getQueue();
-                endPos = other.getStartPos(); // startPos, other.getStartPos()
-                RTCE_Request sub = new RTCE_Request("delete", other.getStartPos() + shift,
-                                                    other.getEndPos() + shift, parentDoc);
-                queue.addRequestAtIndex(queue.findRequest(this) + 1, sub);
-                // other.getEndPos() + shift, endPos + shift
             }
         }
     }
 
+    /**
+     * Maps a position of the text to the text after a deletion: positions
+     * after the deleted text move back, positions inside it move to its start.
+     * @param int pos, the position before the deletion.
+     * @param int deleteStart, the start of the deleted text, inclusive.
+     * @param int deleteEnd, the end of the deleted text, exclusive.
+     * @return int, the position after the deletion.
+     */
+    private static int positionAfterDelete(int pos, int deleteStart, int deleteEnd) {
+        if (pos <= deleteStart) {
+            return pos;
+        } else if (pos < deleteEnd) {
+            return deleteStart;
+        }
+        return pos - (deleteEnd - deleteStart);
+    }
+
+    /**
+     * Makes a request out of an insert or a delete of the operation log of a
+     * document, to transform other requests against it. Its revision is the
+     * revision the operation produced.
+     * @param RTCE_Operation op, an "insert" or "delete" operation.
+     * @param RTCE_Document doc, the document of the operation.
+     * @return RTCE_Request, the request.
+     */
+    public static RTCE_Request fromOperation(RTCE_Operation op, RTCE_Document doc) {
+        RTCE_Request request;
+        if (op.getType().equals("insert")) {
+            request = new RTCE_Request("insert", op.getBeginPos(), op.getText(), doc);
+        } else {
+            request = new RTCE_Request("delete", op.getBeginPos(), op.getEndPos(), doc);
+        }
+        request.revision = op.getRevision();
+        return request;
+    }
+
     /**
      * Resolves the request, applying the edit to the current sequence.
+     * Records the revision of the document that the edit produced.
      */
     public void applyEdit() {
         if (requestType == "insert") {
-            synchronized(parentDoc) {
-                parentDoc.insert(startPos, insertText);
-            }
+            revision = parentDoc.insert(startPos, insertText);
         } else { // requestType == "delete"
-            synchronized(parentDoc) {
-                parentDoc.delete(startPos, endPos);
+            revision = parentDoc.delete(startPos, endPos);
+        }
+        for (RTCE_Request part : parts) {
+            part.revision = revision;
+            part.startPos = Math.min(startPos + part.composedOffset, endPos);
+        }
+    }
+
+    /**
+     * Indicate if this request was made by the same user as other, after it.
+     * A connection sends its edits one after the other, so such a request was
+     * made on the text that other produced and must not be transformed against
+     * it. The second half of a split delete is the exception.
+     * @param RTCE_Request other, a request resolved before this one.
+     * @return boolean, true if this request already takes other into account.
+     */
+    public boolean follows(RTCE_Request other) {
+        return origin != null && origin == other.origin && !splitHalf;
+    }
+
+    /**
+     * Composes the next edit of the same user into this one, if the two can
+     * be made by a single insert or delete: typing or pasting inside the text
+     * this inserts, deleting with backspace or delete next to the text this
+     * deletes, or deleting some of the text this inserts. The next edit must
+     * have been made on the text this one produces (it was sent after it on
+     * the same connection) and must have the same base revision.
+     * @param RTCE_Request next, the edit that follows this one in the queue.
+     * @return boolean, true if next was composed into this request, and must
+     * not be resolved on its own.
+     */
+    public boolean compose(RTCE_Request next) {
+        if (origin == null || next.origin != origin || next.baseRevision != baseRevision
+                || dropped || next.dropped || split != null || next.split != null) {
+            return false;
+        }
+        int offset = 0;
+        if (requestType == "insert" && next.requestType == "insert") { // typing inside the inserted text
+            offset = next.startPos - startPos;
+            if (offset < 0 || offset > insertText.length()) {
+                return false;
             }
+            insertText = insertText.substring(0, offset) + next.insertText + insertText.substring(offset);
+        } else if (requestType == "delete" && next.requestType == "delete") {
+            if (next.startPos == startPos) { // delete key
+                endPos += next.endPos - next.startPos;
+            } else if (next.endPos == startPos) { // backspace
+                startPos = next.startPos;
+            } else {
+                return false;
+            }
+        } else if (requestType == "insert" && next.requestType == "delete") { // deleting inserted text
+            if (next.startPos < startPos || next.endPos > startPos + insertText.length()) {
+                return false;
+            }
+            insertText = insertText.substring(0, next.startPos - startPos)
+                    + insertText.substring(next.endPos - startPos);
+            offset = next.startPos - startPos;
+        } else {
+            return false;
+        }
+        if (requestType == "insert") {
+            endPos = startPos + insertText.length();
         }
+        next.composedInto = this;
+        next.composedOffset = offset;
+        parts.add(next);
+        return true;
     }
 
     /**
@@ -151,6 +296,152 @@ public class RTCE_Request {
         }
     }
 
+    /**
+     * Builds the delta message that is pushed to the subscribed users once
+     * this request was applied. The positions are the ones the edit was
+     * applied at, after all the operational transforms.
+     * Format: "delta revision insert pos text" (text URL-encoded) or
+     * "delta revision delete beginPos endPos", where revision is the
+     * revision of the document that the edit produced.
+     * @return String, the delta for this request.
+     */
+    public String toDelta() {
+        if (requestType == "insert") {
+            try {
+                return "delta " + revision + " insert " + startPos + " "
+                        + URLEncoder.encode(insertText, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Bad encoding in toDelta of RTCE_Request.");
+            }
+        }
+        return "delta " + revision + " delete " + startPos + " " + endPos;
+    }
+
+    /**
+     * Method to get the revision of the document this request produced
+     * when it was applied.
+     * @return long, the revision, or -1 if the request was not applied
+     * (yet, or at all because an earlier edit already deleted its text).
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Method to set the revision of the document the client based this
+     * request on, i.e. the revision its positions refer to.
+     * @param long baseRevision, the revision, or -1 if unknown.
+     */
+    public void setBaseRevision(long baseRevision) {
+        this.baseRevision = baseRevision;
+    }
+
+    /**
+     * Method to get the revision of the document the client based this
+     * request on.
+     * @return long, the revision, or -1 if unknown.
+     */
+    public long getBaseRevision() {
+        return baseRevision;
+    }
+
+    /**
+     * Indicate if an operational transform dropped this request, because
+     * the text it deletes was already deleted, or the request it was composed
+     * into was dropped.
+     * @return boolean, true if the request must not be applied.
+     */
+    public boolean isDropped() {
+        return dropped || (composedInto != null && composedInto.isDropped());
+    }
+
+    /**
+     * Marks the request as stale: its base revision is not covered by the
+     * operation log of the document anymore (or not yet), or a replace was
+     * made after it, so its positions can't be transformed.
+     */
+    public void setStale() {
+        stale = true;
+    }
+
+    /**
+     * Indicate if the request was rejected because it is stale (see
+     * setStale), or the request it was composed into was.
+     * @return boolean, true if the request must not be applied.
+     */
+    public boolean isStale() {
+        return stale || (composedInto != null && composedInto.isStale());
+    }
+
+    /**
+     * Records the positions of this request after it was transformed against
+     * the operations up to a revision of the document (see
+     * RTCE_Queue.transformSinceBase).
+     * @param long revision, the revision of the last operation transformed
+     * into the request, or its base revision if none was.
+     */
+    public void recordPositions(long revision) {
+        if (positions == null) {
+            positions = new TreeMap<Long, int[]>();
+        }
+        positions.put(revision, new int[] {startPos, endPos});
+    }
+
+    /**
+     * Method to get where this request was at a revision of the document,
+     * after the operations up to that revision were transformed into it.
+     * @param long revision, the revision.
+     * @return int[], the start and end positions, or null if nothing was
+     * recorded for that revision (it is before the base revision).
+     */
+    public int[] getPositionsAt(long revision) {
+        Map.Entry<Long, int[]> entry = positions == null ? null : positions.floorEntry(revision);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Method to get the revision of the last operation recorded in
+     * recordPositions, for a request dropped by one of them.
+     * @return long, the revision, or -1 if nothing was recorded.
+     */
+    public long getLastRecordedRevision() {
+        return positions == null ? -1 : positions.lastKey();
+    }
+
+    /**
+     * Indicate if this request is the second half of a delete that a
+     * transform split in two (see applyTransform).
+     * @return boolean, true for a second half.
+     */
+    public boolean isSplitHalf() {
+        return splitHalf;
+    }
+
+    /**
+     * Method to get the second half of this delete, if an insert in the
+     * middle of its text split it in two (see applyTransform).
+     * @return RTCE_Request, the second half, or null if not split.
+     */
+    public RTCE_Request getSplit() {
+        return split;
+    }
+
+    /**
+     * Method to set the user that made this request.
+     * @param RTCE_User origin, the user that made the request.
+     */
+    public void setOrigin(RTCE_User origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Method to get the user that made this request.
+     * @return RTCE_User, the user that made the request, or null if unknown.
+     */
+    public RTCE_User getOrigin() {
+        return origin;
+    }
+
     /**
      * Method to get the type of edit represented by a request.
      * @return String requestType String representing the edit type.
@@ -28,6 +28,9 @@ import org.junit.Test;
  * (6) A overlaps with B for insert-delete: B is split into B1 & B2, which delete the two
  *                                          substrings on either side of the text inserted
  *                                          by A.
+ * 
+ * (7) A inserts before B, but its text reaches past the start of B: B is only shifted,
+ *     an insert takes up one position of the text, not the range of its text.
  *                                          
  * Additionally, we must test that the operational transformations are applied correctly
  * when more than two requests have been queued. For now we will use a dummy RTCE_Document
@@ -282,4 +285,34 @@ public class RTCE_RequestTest {
 
         assertEquals(expectedOutput, editB2.applyEditTesting(modText2));
     }
+    /**
+     * Tests for case (7) as outlined in the overall testing strategy.
+     */
+    @Test
+    public void testLongInsertBeforeInsert() {
+        String startText = "abcdef";
+        String expectedOutput = "aXXXXbcydef";
+
+        RTCE_Request editA = new RTCE_Request("insert", 1, "XXXX", doc); // aXXXXbcdef
+        RTCE_Request editB = new RTCE_Request("insert", 3, "y", doc); // abcydef
+
+        String modText = editA.applyEditTesting(startText);
+        editB.applyTransform(editA);
+
+        assertEquals(expectedOutput, editB.applyEditTesting(modText));
+    }
+
+    @Test
+    public void testLongInsertBeforeDelete() {
+        String startText = "abcdef";
+        String expectedOutput = "aXXXXbcef";
+
+        RTCE_Request editA = new RTCE_Request("insert", 1, "XXXX", doc); // aXXXXbcdef
+        RTCE_Request editB = new RTCE_Request("delete", 3, 4, doc); // abcef
+
+        String modText = editA.applyEditTesting(startText);
+        editB.applyTransform(editA);
+
+        assertEquals(expectedOutput, editB.applyEditTesting(modText));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,202 @@
+package RTCE.Server;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+/*
+ * Thread safety argument
+ * Any thread may submit work: submissions go into a ConcurrentLinkedQueue, which is lock free
+ * and thread safe, and the only other shared state is the scheduled flag, changed with
+ * compareAndSet. A sequencer is only ever run by one thread at a time: it is handed to the
+ * executor by whoever flips scheduled from false to true, and it only sets it back to false
+ * when it is done draining. So the RTCE_Queue of the document, and the edits to the document
+ * made through it, are confined to whichever pool thread currently runs the sequencer, and
+ * the locks they take (the queue monitor and the document write lock) are uncontended between writers.
+ *
+ * The hand off between two runs is safe: the writes of one run happen before the
+ * scheduled.set(false) that ends it, which happens before the compareAndSet that starts the
+ * next run (AtomicBoolean has volatile semantics).
+ * The results are published through CompletableFutures, which are thread safe.
+ */
+/**
+ * Single writer for a RTCE_Document. Instead of every connection thread
+ * locking the queue and the document to resolve its own edit, the connection
+ * threads submit their edits to the sequencer of the document and answer
+ * them once they were resolved, and the sequencer:
+ *
+ *      (a) takes up to MAX_BATCH edits from its inbox at once,
+ *      (b) adds them to the RTCE_Queue of the document, so that the edits
+ *          submitted at the same time are transformed against each other,
+ *      (c) resolves them as one batch (see RTCE_Queue.resolveAll), which
+ *          applies them and pushes the deltas,
+ *      (d) completes the future of each edit.
+ *
+ * Other changes to the document (replaces) can be submitted as tasks, so
+ * that they are ordered with the edits. The sequencers of all the documents
+ * share a small pool of threads: a sequencer only takes a thread while it has
+ * work, so idle documents cost nothing.
+ */
+public class RTCE_Sequencer implements Runnable {
+
+    // the most submissions handled in one run, so that a busy document can't keep a pool thread forever
+    static final int MAX_BATCH = 64;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RTCE-sequencer-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final RTCE_Queue queue;
+    private final ConcurrentLinkedQueue<Submission> inbox = new ConcurrentLinkedQueue<Submission>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Constructor for the sequencer of a document.
+     * @param RTCE_Queue queue, the request queue of the document. From now on
+     * only this sequencer may resolve it.
+     */
+    public RTCE_Sequencer(RTCE_Queue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Submits an edit. Safe to call from any thread, never blocks.
+     * @param RTCE_Request request, the edit, not in any queue yet.
+     * @return CompletableFuture<RTCE_Request>, completed with the request once
+     * it was applied (see RTCE_Request.getRevision()) or dropped, or completed
+     * exceptionally if applying it failed.
+     */
+    public CompletableFuture<RTCE_Request> submit(RTCE_Request request) {
+        CompletableFuture<RTCE_Request> result = new CompletableFuture<RTCE_Request>();
+        inbox.add(new Submission(request, null, result));
+        schedule();
+        return result;
+    }
+
+    /**
+     * Submits a task that changes the document in some other way, to be run
+     * after the edits submitted before it. Safe to call from any thread,
+     * never blocks.
+     * @param Callable<T> task, the task.
+     * @return CompletableFuture<T>, completed with the result of the task.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        inbox.add(new Submission(null, task, result));
+        schedule();
+        return result;
+    }
+
+    /**
+     * Waits for a submission and returns its result, rethrowing what it threw
+     * the way a direct call would have.
+     * @param CompletableFuture<T> future, the future returned by submit.
+     * @return T, the result.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drains one batch of the inbox. Only ever run by one thread at a time,
+     * see schedule().
+     */
+    public void run() {
+        ArrayList<Submission> edits = new ArrayList<Submission>();
+        Submission s;
+        for (int i = 0; i < MAX_BATCH && (s = inbox.poll()) != null; i++) {
+            if (s.request != null) {
+                queue.addRequest(s.request);
+                edits.add(s);
+                continue;
+            }
+            resolve(edits); // the task comes after the edits submitted before it
+            edits.clear();
+            runTask(s);
+        }
+        resolve(edits);
+        scheduled.set(false);
+        // something may have been submitted after the last poll but before the flag was cleared
+        if (!inbox.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Hands the sequencer to the executor, unless it is already scheduled.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            EXECUTOR.execute(this);
+        }
+    }
+
+    /**
+     * Resolves a batch of edits that are already in the queue. An edit that
+     * was neither applied nor dropped is the one that failed.
+     */
+    @SuppressWarnings("unchecked")
+    private void resolve(ArrayList<Submission> edits) {
+        RuntimeException failure = null;
+        while (true) {
+            try {
+                queue.resolveAll();
+                break;
+            } catch (RuntimeException e) {
+                failure = e; // the failed request left the queue, go on with the others
+            }
+        }
+        for (Submission s : edits) {
+            CompletableFuture<RTCE_Request> result = (CompletableFuture<RTCE_Request>) s.result;
+            if (s.request.getRevision() < 0 && !s.request.isDropped() && !s.request.isStale() && failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(s.request);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runTask(Submission s) {
+        CompletableFuture<Object> result = (CompletableFuture<Object>) s.result;
+        try {
+            result.complete(s.task.call());
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * An edit or a task, and the future to complete with its result.
+     */
+    private static class Submission {
+        final RTCE_Request request;
+        final Callable<?> task;
+        final CompletableFuture<?> result;
+
+        Submission(RTCE_Request request, Callable<?> task, CompletableFuture<?> result) {
+            this.request = request;
+            this.task = task;
+            this.result = result;
+        }
+    }
+}
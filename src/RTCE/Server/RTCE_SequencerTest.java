@@ -0,0 +1,84 @@
+package RTCE.Server;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import RTCE.Document.RTCE_Document;
+
+/**
+ * Testing strategy: the sequencer must apply every submitted edit exactly
+ * once, one at a time, and hand back the results.
+ *      (1) Many threads submitting to the same document at once: every edit
+ *          is applied and produces its own revision.
+ *      (2) A task runs after the edits submitted before it.
+ *      (3) An edit that fails completes exceptionally, and the sequencer
+ *          keeps working afterwards.
+ */
+public class RTCE_SequencerTest {
+
+    @Test
+    public void concurrentSubmitters() throws InterruptedException {
+        final RTCE_Document doc = new RTCE_Document("seq.txt");
+        final int threads = 8;
+        final int edits = 200;
+        final long[][] revisions = new long[threads][edits];
+        Thread[] submitters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            submitters[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < edits; i++) {
+                        RTCE_Request r = new RTCE_Request("insert", 0, "x", doc);
+                        revisions[id][i] = RTCE_Sequencer.await(doc.getSequencer().submit(r)).getRevision();
+                    }
+                }
+            });
+            submitters[t].start();
+        }
+        for (Thread t : submitters) {
+            t.join();
+        }
+        assertEquals(threads * edits, doc.getLength());
+        assertEquals(threads * edits, doc.getRevision());
+        HashSet<Long> seen = new HashSet<Long>();
+        for (long[] perThread : revisions) {
+            for (long revision : perThread) {
+                assertTrue(seen.add(revision));
+            }
+        }
+    }
+
+    @Test
+    public void taskAfterEdits() {
+        final RTCE_Document doc = new RTCE_Document("seq.txt");
+        doc.insert(0, "hello");
+        // submitted at the same time, so both are made on "hello"
+        doc.getSequencer().submit(new RTCE_Request("insert", 5, "!", doc));
+        doc.getSequencer().submit(new RTCE_Request("delete", 0, 1, doc));
+        CompletableFuture<String> text = doc.getSequencer().submit(new Callable<String>() {
+            public String call() {
+                return doc.getAllText();
+            }
+        });
+        assertEquals("ello!", RTCE_Sequencer.await(text));
+    }
+
+    @Test
+    public void failedEdit() {
+        RTCE_Document doc = new RTCE_Document("seq.txt");
+        try {
+            RTCE_Sequencer.await(doc.getSequencer().submit(new RTCE_Request("delete", 2, 1, doc)));
+            fail("expected an exception");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        RTCE_Request r = new RTCE_Request("insert", 0, "ok", doc);
+        assertEquals(1, RTCE_Sequencer.await(doc.getSequencer().submit(r)).getRevision());
+        assertEquals("ok", doc.getAllText());
+    }
+}
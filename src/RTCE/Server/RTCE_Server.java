@@ -3,8 +3,20 @@ package RTCE.Server;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import RTCE.Document.RTCE_Document;
+import RTCE.Document.RTCE_Operation;
+import RTCE.Document.RTCE_Snapshot;
+import RTCE.Document.RTCE_WriteAheadLog;
 /*Thread Safety Argument:
  * RTCE_Server is a server in which each user can access documents to edit.  
  * Clients make requests of the form serve. which creates a new socket connection for the client.
@@ -17,12 +29,38 @@ import RTCE.Document.RTCE_Document;
  * all of the messages that the server can send to the client, hello or help are also synchronized 
  * to prevent interleaving 
  * 
- *  all of the document methods are synchronized (the document is thread safe). 
- *  By calling any of them from handleRequest won't cause concurrency issues,
- *  because it is not possible for two invocations of synchronized methods on the same object to interleave. 
- *  When one thread is executing a synchronized method for an object, 
- *  all other threads that invoke synchronized methods for the same object block (suspend execution)
- *  until the first thread is done with the object.
+ *  The document is thread safe without its monitor: its changes take the write lock of a StampedLock,
+ *  the reads that walk the text (getSnapshot, getOperationsSince, ...) take the read lock, and the
+ *  small getters read optimistically and only take the read lock if a change got in between (see the
+ *  argument of RTCE_Document). So handleRequest may read a document from any connection thread while
+ *  it is changed, and always sees one revision or the next, never half of an edit.
+ *
+ *  The changes themselves are never made by the connection threads: the inserts, deletes and replaces
+ *  are submitted to the RTCE_Sequencer of the document, its single writer, which resolves the queue
+ *  and applies them one after the other. A connection thread doesn't wait for an edit before reading
+ *  the next ones of a burst: it keeps the futures of their answers, which only it touches, and writes
+ *  them in order once no more edits are waiting to be read (see writeAnswers). So the
+ *  write lock is never contended by two writers, and the edits of a document are transformed and
+ *  applied in one order, the one the deltas are pushed in. See RTCE_Sequencer for its argument.
+ *  
+ *  The documents are kept in a RTCE_DocumentRegistry, which is thread safe: lookups never lock,
+ *  and making a document is an atomic create if absent (see its argument). The connected users are
+ *  kept in a RTCE_SessionRegistry, keyed by connection id, and the users working on a document in
+ *  a concurrent set of the document, so connecting and disconnecting never scan all the users.
+ *  
+ *  The write-ahead log is set up by main before any connection is accepted, and is thread safe
+ *  (see RTCE_WriteAheadLog).
+ *  
+ *  Pushed deltas are handed from the thread that resolved the edit to the subscriber's connection
+ *  thread through a LinkedBlockingQueue (see PushQueue), so no thread ever writes to a socket
+ *  that it does not own.
+ *  
+ *  A connection that switched to the binary framing (see RTCE_Frame) is still read and written
+ *  only by its own thread, and its frames are handled by the same request handlers.
+ *  
+ *  In the virtual thread mode the connections are run by an ExecutorService, which is thread safe,
+ *  and the number of concurrent sessions is bounded by a Semaphore. The running flag is volatile
+ *  so the accept loop sees the shutdown request from another thread.
  */
 
 
@@ -68,15 +106,25 @@ import RTCE.Document.RTCE_Document;
  */
 public class RTCE_Server {
 
+    // what follows a snapshot on a line connection
+    static final byte[] EOF_LINE = (String.format("%n") + "EOF" + String.format("%n")).getBytes();
+    // the answer to a conditional view, giveStyle or list when nothing changed
+    private static final String NOT_MODIFIED = "not modified" + String.format("%n") + "EOF";
+
     private ServerSocket serverSocket = null;
     private static int numberOfUsers = 0;
     private static int numberOfUntitledDocs = 1;
-    private static Vector<RTCE_Document> docs = new Vector<RTCE_Document>();
+    private static RTCE_DocumentRegistry docs = new RTCE_DocumentRegistry();
+    // where the documents are saved, null if they only live in memory
+    private static RTCE_WriteAheadLog wal = null;
     //private static RTCE_Document RTCEDocument;
 
     private int userName = 1;
 
-    private static Vector<RTCE_User> clients = new Vector<RTCE_User>();
+    private static RTCE_SessionRegistry clients = new RTCE_SessionRegistry();
+
+    private ExecutorService sessionExecutor = null;
+    private volatile boolean running = true;
 
     /**
      * Make an RTCE server that listens for connections on port.
@@ -103,11 +151,12 @@ public class RTCE_Server {
 
             final Socket socket = serverSocket.accept();         
             updateUsers(1);
+            final RTCE_User user = new RTCE_User(null, String.valueOf(userName), socket);
             Thread t = new Thread(new Runnable() {
                 public void run() {
                     Thread.yield();  // give the other threads a chance to start too, so it's a fair race
                     try {
-                        handleConnection(socket);
+                        handleConnection(user);
                     } catch (IOException e) {
                         e.printStackTrace(); // but don't terminate serve()
                     } finally {
@@ -119,61 +168,399 @@ public class RTCE_Server {
                     }            
                 }
             });
-            clients.add(new RTCE_User(t, String.valueOf(userName), socket));
+            user.setThread(t);
+            clients.attach(user);
             userName++;
             t.start();// don't forget to start the thread!
         }
     }
 
+    /**
+     * Run the server, running every client connection on its own virtual thread.
+     * The connections are handled exactly like in serve(), but a virtual thread
+     * costs a few hundred bytes while it is blocked on a read instead of a whole
+     * platform thread stack, so idle editors are cheap. Needs Java 21; the rest of
+     * the server runs on Java 17 (see newVirtualThreadExecutor).
+     * Returns only after shutdown() was called.
+     * @param int maxSessions, the maximum number of connections served at the same
+     * time. Once reached, new clients wait in the accept backlog until a session ends.
+     * @throws IOException if the main server socket is broken
+     * (IOExceptions from individual clients do *not* terminate serveOnVirtualThreads()).
+     */
+    public void serveOnVirtualThreads(int maxSessions) throws IOException {
+        final Semaphore sessions = new Semaphore(maxSessions);
+        sessionExecutor = newVirtualThreadExecutor();
+        while (running) {
+            try {
+                sessions.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            final Socket socket;
+            try {
+                // block until a client connects
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                sessions.release();
+                if (!running) {
+                    break; // the server socket was closed by shutdown()
+                }
+                throw e;
+            }
+            updateUsers(1);
+            final RTCE_User user = new RTCE_User(null, String.valueOf(userName), socket);
+            clients.attach(user);
+            userName++;
+            try {
+                sessionExecutor.execute(new Runnable() {
+                    public void run() {
+                        user.setThread(Thread.currentThread());
+                        try {
+                            handleConnection(user);
+                        } catch (IOException e) {
+                            e.printStackTrace(); // but don't terminate the server
+                        } finally {
+                            sessions.release();
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutdown() ran between accept and execute: this session never starts
+                clients.detach(user);
+                updateUsers(-1);
+                sessions.release();
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the executor of serveOnVirtualThreads, which starts a virtual thread
+     * per task. Executors.newVirtualThreadPerTaskExecutor is looked up by
+     * reflection, so that the server still compiles and runs on Java 17 when
+     * it does not serve on virtual threads.
+     * @return ExecutorService, a new virtual thread per task executor.
+     * @throws UnsupportedOperationException if the Java runtime has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Serving on virtual threads needs Java 21.", e);
+        }
+    }
+
+    /**
+     * Gracefully stop a server started with serveOnVirtualThreads(). Stops accepting
+     * new clients, gives the connected ones gracePeriodMillis to finish, and then
+     * closes their sockets so that the blocked sessions end.
+     * @param long gracePeriodMillis, how long to wait for the sessions to end on their own.
+     * @throws IOException if closing the server socket fails.
+     */
+    public void shutdown(long gracePeriodMillis) throws IOException {
+        running = false;
+        serverSocket.close();
+        if (sessionExecutor == null) {
+            return;
+        }
+        sessionExecutor.shutdown();
+        try {
+            if (!sessionExecutor.awaitTermination(gracePeriodMillis, TimeUnit.MILLISECONDS)) {
+                for (RTCE_User c : clients.users()) {
+                    try {
+                        c.getSocket().close();
+                    } catch (IOException e) {
+                        e.printStackTrace(); // close the others anyway
+                    }
+                }
+                sessionExecutor.awaitTermination(gracePeriodMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Handle a single user connection.  Returns when client disconnects.
-     * @param socket socket where the user is connected
+     * @param RTCE_User curClient, the user of the connection, attached to the sessions.
      * @throws IOException if connection has an error or terminates unexpectedly
      */
-    @SuppressWarnings("unchecked")
-    private void handleConnection(Socket socket) throws IOException {
+    private void handleConnection(RTCE_User curClient) throws IOException {
+        Socket socket = curClient.getSocket();
         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        // for the snapshots: small ones are sent in one write, big ones go straight to the socket
+        OutputStream snapshotOut = new BufferedOutputStream(socket.getOutputStream());
         try {
-            RTCE_User curClient = null;
-            for (RTCE_User c : clients) {
-                if (c.getSocket().equals(socket)) curClient = c;
-            }
+            PushQueue pushQueue = new PushQueue();
+            curClient.setChannel(pushQueue);
+            // the answers of the edits that were submitted and not written yet, in the order of the requests
+            ArrayDeque<CompletableFuture<String>> answers = new ArrayDeque<CompletableFuture<String>>();
             for (String line = in.readLine(); line != null; line = in.readLine()) {
+                // the edits of a user without compact acks are answered with the text, streamed below
+                CompletableFuture<String> answer = curClient.getCompactAcks() ? submitRequest(line, curClient) : null;
+                if (answer != null) {
+                    answers.add(answer);
+                    // read the rest of a burst of edits before waiting, so that the sequencer gets it at once
+                    if (!in.ready() || answers.size() >= RTCE_Sequencer.MAX_BATCH) {
+                        writeAnswers(answers, out);
+                    }
+                    continue;
+                }
+                writeAnswers(answers, out); // any other request is answered after the edits before it
 
+                if (isBinaryHello(line)) {
+                    // the client waits for this answer before sending frames, so in has nothing buffered
+                    out.println("binary" + String.format("%n") + "EOF");
+                    out.flush();
+                    serveFrames(socket, curClient, pushQueue);
+                    break;
+                }
+                RTCE_Snapshot snapshot = streamRequest(line, curClient);
+                if (snapshot != null) {
+                    snapshot.writeTo(snapshotOut);
+                    snapshotOut.write(EOF_LINE);
+                    snapshotOut.flush();
+                    continue;
+                }
                 String output = handleRequest(line, curClient);
                 if(output.equals("exit" + String.format("%n") + "EOF")) {
                     break;
                 }
-                if(output != null) {
-                    out.println(output);
-                }
+                out.println(output);
                 out.flush();
+                if (output.startsWith("listening")) {
+                    // from now on this connection only carries pushed deltas
+                    pushQueue.writeTo(out);
+                    break;
+                }
             }
+            writeAnswers(answers, out);
         } catch (SocketException se) { 
             socket.close();
         }
         finally {   
-            Vector<RTCE_User> cloned = new Vector<RTCE_User>();
-            cloned = (Vector<RTCE_User>) clients.clone();
-            for (RTCE_User c : cloned) {
-                if (c.getSocket().equals(socket)) {
-                    c.getSocket().close();
-                    clients.removeElement(c);
-                }
-            }
+            socket.close();
+            clients.detach(curClient);
             updateUsers(-1);
             out.close();
             in.close();
         }
     }
 
+    /**
+     * Serves a connection that switched to the binary framing (see RTCE_Frame),
+     * until the client disconnects or exits. Returns when the connection is done.
+     * @param Socket socket, the connection.
+     * @param RTCE_User curClient, the user of the connection.
+     * @param PushQueue pushQueue, the push channel of the connection.
+     * @throws IOException if the connection has an error or a frame is malformed.
+     */
+    private static void serveFrames(Socket socket, RTCE_User curClient, PushQueue pushQueue) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        ArrayDeque<CompletableFuture<String>> answers = new ArrayDeque<CompletableFuture<String>>();
+        for (RTCE_Frame frame = RTCE_Frame.readFrom(in); frame != null; frame = RTCE_Frame.readFrom(in)) {
+            CompletableFuture<String> answer = curClient.getCompactAcks() ? submitFrame(frame, curClient) : null;
+            if (answer != null) {
+                answers.add(answer);
+                if (in.available() == 0 || answers.size() >= RTCE_Sequencer.MAX_BATCH) {
+                    writeFrameAnswers(answers, out);
+                }
+                continue;
+            }
+            writeFrameAnswers(answers, out);
+            RTCE_Snapshot snapshot = frame.getOpcode() == RTCE_Frame.LINE ? stream(frame.getText(), curClient) : null;
+            if (snapshot != null) {
+                RTCE_Frame.writeResponse(out, snapshot);
+                out.flush();
+                continue;
+            }
+            String output = handleFrame(frame, curClient);
+            if (output.equals("exit" + String.format("%n") + "EOF")) {
+                break;
+            }
+            RTCE_Frame.response(responseText(output)).writeTo(out);
+            out.flush();
+            if (output.startsWith("listening")) {
+                pushQueue.writeFramesTo(out);
+                break;
+            }
+        }
+        writeFrameAnswers(answers, out);
+    }
+
+    /**
+     * writeAnswers for a connection that uses the binary framing: every
+     * answer is a RESPONSE frame.
+     * @param ArrayDeque<CompletableFuture<String>> answers, the answers, taken off.
+     * @param OutputStream out, the connection's output, flushed.
+     * @throws IOException if the connection has an error.
+     */
+    private static void writeFrameAnswers(ArrayDeque<CompletableFuture<String>> answers, OutputStream out) throws IOException {
+        while (!answers.isEmpty()) {
+            RTCE_Frame.response(responseText(RTCE_Sequencer.await(answers.poll()))).writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Indicate if a request line asks to switch to the binary framing.
+     * @param String line, the request line, not decoded.
+     * @return boolean, true for "hello binary".
+     */
+    static boolean isBinaryHello(String line) {
+        return line.equals("hello+binary") || line.equals("hello%20binary") || line.equals("hello binary");
+    }
+
+    /**
+     * Handler for a frame of the binary framing. The edits are handled like
+     * the "insert", "delete" and "edit" requests (but their text can be any
+     * Unicode text), the request lines like handleRequest.
+     * @param RTCE_Frame frame, the frame sent by the client.
+     * @param RTCE_User curClient, the user that sent it.
+     * @return String, the response, in the format of the line protocol.
+     * @throws UnsupportedEncodingException
+     */
+    static String handleFrame(RTCE_Frame frame, RTCE_User curClient) throws UnsupportedEncodingException {
+        if (frame.getOpcode() == RTCE_Frame.LINE) {
+            // the line is not URL encoded, and the replaces split it as it is
+            return dispatch(frame.getText(), frame.getText(), curClient);
+        }
+        RTCE_Request request = frameEdit(frame, curClient);
+        if (request == null) {
+            return "Invalid Request." + String.format("%n") + "EOF";
+        }
+        return submitEdit(request, curClient);
+    }
+
+    /**
+     * submitRequest for a frame of the binary framing: an edit frame, or a
+     * request line that is an edit or a replace.
+     * @param RTCE_Frame frame, the frame sent by the client.
+     * @param RTCE_User curClient, the user that sent it.
+     * @return CompletableFuture<String>, completed with the response in the
+     * format of the line protocol, or null if the frame must go through
+     * handleFrame.
+     * @throws UnsupportedEncodingException
+     */
+    static CompletableFuture<String> submitFrame(RTCE_Frame frame, RTCE_User curClient) throws UnsupportedEncodingException {
+        if (frame.getOpcode() == RTCE_Frame.LINE) {
+            return submit(frame.getText(), frame.getText(), curClient);
+        }
+        RTCE_Request request = frameEdit(frame, curClient);
+        return request == null ? null : resolveEdit(request, curClient);
+    }
+
+    /**
+     * Builds the edit of an INSERT or DELETE frame.
+     * @return RTCE_Request, the edit, not submitted yet, or null for any other frame.
+     */
+    private static RTCE_Request frameEdit(RTCE_Frame frame, RTCE_User curClient) {
+        RTCE_Request request;
+        if (frame.getOpcode() == RTCE_Frame.INSERT) {
+            request = new RTCE_Request("insert", frame.getPos(), frame.getText(), curClient.getDoc());
+        } else if (frame.getOpcode() == RTCE_Frame.DELETE) {
+            request = new RTCE_Request("delete", frame.getPos(), frame.getEndPos(), curClient.getDoc());
+        } else {
+            return null;
+        }
+        if (frame.getRevision() >= 0) {
+            request.setBaseRevision(frame.getRevision());
+        }
+        return request;
+    }
+
+    /**
+     * Turns a response of the line protocol into the text that the client's
+     * makeRequest makes of it: the lines before EOF joined and URL decoded.
+     * @param String output, the response, ending with an EOF line.
+     * @return String, the text of the response.
+     * @throws UnsupportedEncodingException
+     */
+    static String responseText(String output) throws UnsupportedEncodingException {
+        String eof = String.format("%n") + "EOF";
+        String body = output.endsWith(eof) ? output.substring(0, output.length() - eof.length()) : output;
+        if (body.indexOf('\n') >= 0 || body.indexOf('\r') >= 0) {
+            body = body.replace("\r", "").replace("\n", "");
+        }
+        return URLDecoder.decode(body, "UTF-8");
+    }
+
+    /**
+     * The push channel of a connection served by a thread (platform or virtual).
+     * Deltas are queued by the threads that resolve edits and written out by the
+     * connection's own thread once the connection started listening.
+     */
+    private static class PushQueue implements RTCE_PushChannel {
+        private final LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        private volatile boolean closed = false;
+
+        public boolean push(String message) {
+            if (closed) {
+                return false;
+            }
+            messages.add(message);
+            return true;
+        }
+
+        /**
+         * Writes the queued messages to out until the client goes away.
+         * @param PrintWriter out, the connection's output.
+         */
+        void writeTo(PrintWriter out) {
+            try {
+                while (true) {
+                    out.println(messages.take());
+                    if (out.checkError()) {
+                        break; // client disconnected
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+                messages.clear();
+            }
+        }
+
+        /**
+         * Writes the queued messages to out as RESPONSE frames until the client
+         * goes away, for a connection that uses the binary framing.
+         * @param OutputStream out, the connection's output.
+         */
+        void writeFramesTo(OutputStream out) {
+            try {
+                while (true) {
+                    RTCE_Frame.response(messages.take()).writeTo(out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client disconnected
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+                messages.clear();
+            }
+        }
+    }
+
     /**
      * Handler for client input.
      * Parses the request that comes from the server and does appropriate
      * action to change server state. Returns the result of each request
      * to the client based on our protocol.
      * 
+     * The request is parsed with the command table (see COMMANDS): the name
+     * of the request picks its RTCE_Command, which splits the line once,
+     * checks the tokens against the grammar and handles the request.
+     * 
      * @param String userInput, the String representing the request coming
      * from a client.
      * @return String, the response to the given request. See Design.pdf
@@ -182,78 +569,425 @@ public class RTCE_Server {
      * to send request over connection.
      */
     public static String handleRequest(String userInput, RTCE_User curClient) throws UnsupportedEncodingException {
-        String regex = "(view)|(insert \\d+ \\p{ASCII}*)|(delete \\d+ \\d+)|(help)|(list)|" +
-                "(switch \\w+\\.txt)|(new \\w+\\.txt)|(new)|(exit)|(replaceAll \\p{ASCII}+\\s\\p{ASCII}+$)|" +
-                "(replaceOne \\p{ASCII}+\\s\\p{ASCII}+$)|(style \\d+ \\d+ \\d+ \\d+)|(giveStyle)|(hello)";
-        String input = URLDecoder.decode(userInput, "UTF-8");
-        if(!input.matches(regex)) {
+        return dispatch(URLDecoder.decode(userInput, "UTF-8"), userInput, curClient);
+    }
+
+    /**
+     * Parses a request with the command table and handles it.
+     * @param String input, the request line, decoded.
+     * @param String rawLine, the request line as it was sent.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, the response, ending with an EOF line.
+     * @throws UnsupportedEncodingException
+     */
+    private static String dispatch(String input, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+        RTCE_Command command = commandFor(input);
+        String[] tokens = command == null ? null : command.tokenize(input);
+        if (tokens == null || !command.accepts(tokens)) {
             //invalid input
             return "Invalid Request."
             + String.format("%n") + "EOF";
         }
-        String[] tokens = input.split(" ");
-        String[] editTokens= input.split(" ",3);
-        String[] replaceTokens = userInput.split(" ");
-
-        if (tokens[0].equals("view")) {
-            // 'view' request
-            return viewRequest(curClient);
-
-        } else if (tokens[0].equals("hello")) {
-            // 'hello' request
-            return helloRequest();
-
-        } else if (tokens[0].equals("replaceAll")) {
-            //replaceAll request
-            return replaceAllRequest(replaceTokens, curClient);
-
-        } else if (tokens[0].equals("replaceOne")) {
-            //replaceOne request
-            return replaceOneRequest(replaceTokens, curClient);
-
-        } else if (tokens[0].equals("insert")) {
-            // 'insert' request
-            return insertRequest(editTokens, curClient);
+        return command.handle(tokens, rawLine, curClient);
+    }
 
-        } else if (tokens[0].equals("delete")) {
-            // 'delete' request
-            return deleteRequest(editTokens, curClient);
+    /**
+     * Handler for the requests whose response is the whole text of the
+     * document ("view", "switch", and the edits of a user that did not ask
+     * for compact acks) or the revision and the text ("snapshot", and "view"
+     * for a revision that changed), for the connection loops: handles the
+     * request and returns the snapshot of the document, to be written from
+     * its shared buffer followed by an EOF line, instead of building the
+     * response String. See RTCE_Command.stream.
+     * @param String userInput, the request line, not decoded.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return RTCE_Snapshot, the snapshot, or null if the request was not
+     * handled and must go through handleRequest.
+     * @throws UnsupportedEncodingException
+     */
+    static RTCE_Snapshot streamRequest(String userInput, RTCE_User curClient) throws UnsupportedEncodingException {
+        RTCE_Command command = commandOfLine(userInput);
+        if (command == null || !command.streams()) {
+            return null;
+        }
+        return stream(URLDecoder.decode(userInput, "UTF-8"), curClient);
+    }
 
-        } else if (tokens[0].equals("help")) {
-            // 'help' request
-            return helpRequest();
+    /**
+     * Handler for the requests that change the document (the edits and the
+     * replaces), for the connection loops: submits the request to the
+     * sequencer of the document without waiting for it, so that the loop can
+     * read the next requests meanwhile. The loop writes the answers in the
+     * order of the requests. See RTCE_Command.submit.
+     * @param String userInput, the request line, not decoded.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return CompletableFuture<String>, completed with the response, or null
+     * if the request was not handled and must go through streamRequest and
+     * handleRequest.
+     * @throws UnsupportedEncodingException
+     */
+    static CompletableFuture<String> submitRequest(String userInput, RTCE_User curClient) throws UnsupportedEncodingException {
+        RTCE_Command command = commandOfLine(userInput);
+        if (command == null || !command.submits()) {
+            return null;
+        }
+        return submit(URLDecoder.decode(userInput, "UTF-8"), userInput, curClient);
+    }
 
-        } else if (tokens[0].equals("list")) {
-            // 'list' request
-            return listRequest();
+    /**
+     * Finds the command of a request line that is not decoded yet: the names
+     * of the commands are plain words, so they can be looked up before decoding.
+     */
+    private static RTCE_Command commandOfLine(String userInput) {
+        int end = 0;
+        while (end < userInput.length() && userInput.charAt(end) != ' ' && userInput.charAt(end) != '+') {
+            end++;
+        }
+        return COMMANDS.get(userInput.substring(0, end));
+    }
 
-        } else if (tokens[0].equals("switch")) {
-            // 'switch' request
-            return switchRequest(tokens, curClient);
+    /**
+     * submitRequest for a request line that is already decoded.
+     */
+    private static CompletableFuture<String> submit(String input, String rawLine, RTCE_User curClient)
+            throws UnsupportedEncodingException {
+        RTCE_Command command = commandFor(input);
+        if (command == null || !command.submits()) {
+            return null;
+        }
+        String[] tokens = command.tokenize(input);
+        return command.accepts(tokens) ? command.submit(tokens, rawLine, curClient) : null;
+    }
 
-        } else if (tokens[0].equals("new")) {
-            // 'new' request
-            return newRequest(tokens, curClient);
+    /**
+     * Writes the answers of the edits submitted so far, in the order of the
+     * requests, waiting for the ones that were not resolved yet.
+     * @param ArrayDeque<CompletableFuture<String>> answers, the answers, taken off.
+     * @param PrintWriter out, the connection's output, flushed.
+     */
+    private static void writeAnswers(ArrayDeque<CompletableFuture<String>> answers, PrintWriter out) {
+        while (!answers.isEmpty()) {
+            out.println(RTCE_Sequencer.await(answers.poll()));
+        }
+        out.flush();
+    }
 
-        } else if (tokens[0].equals("style")) {
-            // 'style' request
-            return styleUpdateRequest(tokens,curClient);
+    /**
+     * streamRequest for a request line that is already decoded.
+     */
+    private static RTCE_Snapshot stream(String input, RTCE_User curClient) {
+        RTCE_Command command = commandFor(input);
+        if (command == null || !command.streams()) {
+            return null;
+        }
+        String[] tokens = command.tokenize(input);
+        return command.accepts(tokens) ? command.stream(tokens, curClient) : null;
+    }
 
-        } else if (tokens[0].equals("giveStyle") ) {
-            // 'giveStyle' request
-            return giveStyleRequest(curClient);
+    /**
+     * Finds the command of a request.
+     * @param String input, the decoded request line.
+     * @return RTCE_Command, the command named by the first token of the line,
+     * or null if there is no such command.
+     */
+    static RTCE_Command commandFor(String input) {
+        int space = input.indexOf(' ');
+        return COMMANDS.get(space < 0 ? input : input.substring(0, space));
+    }
 
-        } else if (tokens[0].equals("exit")) {
-            // 'exit' request
-            return exitRequest();
+    /*
+     * The command table: the name of each request and its grammar, which used to be one big
+     * regular expression matched against every request line:
+     *
+     *      view | hello | hello binary | help | list | exit | giveStyle | subscribe | ack | snapshot | share
+     *      insert \d+ \p{ASCII}*         delete \d+ \d+
+     *      switch \w+\.txt               new | new \w+\.txt
+     *      replaceAll \p{ASCII}+\s\p{ASCII}+      replaceOne \p{ASCII}+\s\p{ASCII}+
+     *      style \d+ \d+ \d+ \d+       listen \w+       since \d{1,18}       join \w+
+     *      edit \d{1,18} insert \d+ \p{ASCII}*      edit \d{1,18} delete \d+ \d+
+     *      view \d{1,18} | list \d{1,18} | giveStyle \d+ \d+ \d+ \d+   (only if it changed)
+     *
+     * It is only written in the static initializer, so it is safely published to and never
+     * changed by the connection threads.
+     */
+    private static final Map<String, RTCE_Command> COMMANDS = new HashMap<String, RTCE_Command>();
 
-        } else {
-            throw new RuntimeException("End of handleRequest. Should no have gotten here");
-        }
+    static {
+        COMMANDS.put("view", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1 || (tokens.length == 2 && isNumber(tokens[1], 18));
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                if (tokens.length == 2) {
+                    RTCE_Snapshot snapshot = curClient.getDoc().getSnapshot();
+                    if (snapshot.getRevision() == Long.parseLong(tokens[1])) {
+                        return null; // "not modified" is answered by handle
+                    }
+                    return snapshot.withRevision();
+                }
+                return curClient.getDoc().getSnapshot();
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                if (tokens.length == 2) {
+                    return viewIfChangedRequest(tokens, curClient);
+                }
+                return viewRequest(curClient);
+            }
+        });
+        COMMANDS.put("hello", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                // "hello binary" is answered here only by servers that can't switch to frames
+                return tokens.length == 1 || (tokens.length == 2 && tokens[1].equals("binary"));
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return helloRequest();
+            }
+        });
+        COMMANDS.put("replaceAll", new RTCE_Command(2) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isTwoTexts(tokens[1]);
+            }
+            public boolean submits() {
+                return true;
+            }
+            public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient)
+                    throws UnsupportedEncodingException {
+                return submitReplace(rawLine.split(" "), true, curClient);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                // the pattern and the text are split on the line as it was sent, while still encoded
+                return replaceAllRequest(rawLine.split(" "), curClient);
+            }
+        });
+        COMMANDS.put("replaceOne", new RTCE_Command(2) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isTwoTexts(tokens[1]);
+            }
+            public boolean submits() {
+                return true;
+            }
+            public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient)
+                    throws UnsupportedEncodingException {
+                return submitReplace(rawLine.split(" "), false, curClient);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return replaceOneRequest(rawLine.split(" "), curClient);
+            }
+        });
+        COMMANDS.put("insert", new RTCE_Command(3) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 3 && isNumber(tokens[1]) && isAscii(tokens[2]);
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                return streamEdit(insertEdit(tokens, curClient), curClient);
+            }
+            public boolean submits() {
+                return true;
+            }
+            public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient) {
+                return resolveEdit(insertEdit(tokens, curClient), curClient);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return insertRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("delete", new RTCE_Command(3) {
+            public boolean accepts(String[] tokens) {
+                return isNumbers(tokens, 2);
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                return streamEdit(deleteEdit(tokens, curClient), curClient);
+            }
+            public boolean submits() {
+                return true;
+            }
+            public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient) {
+                return resolveEdit(deleteEdit(tokens, curClient), curClient);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return deleteRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("help", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return helpRequest();
+            }
+        });
+        COMMANDS.put("list", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1 || (tokens.length == 2 && isNumber(tokens[1], 18));
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                if (tokens.length == 2) {
+                    return listIfChangedRequest(tokens);
+                }
+                return listRequest();
+            }
+        });
+        COMMANDS.put("switch", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isFileName(tokens[1]);
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                RTCE_Document doc = findDocument(tokens[1]);
+                if (doc == null) {
+                    return null; // answered by handle
+                }
+                switchDocument(doc, curClient);
+                return doc.getSnapshot();
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return switchRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("new", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1 || (tokens.length == 2 && isFileName(tokens[1]));
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return newRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("style", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return isNumbers(tokens, 4);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return styleUpdateRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("giveStyle", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1 || isNumbers(tokens, 4);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                if (tokens.length == 5) {
+                    return giveStyleIfChangedRequest(tokens, curClient);
+                }
+                return giveStyleRequest(curClient);
+            }
+        });
+        COMMANDS.put("subscribe", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return subscribeRequest(curClient);
+            }
+        });
+        COMMANDS.put("listen", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isWord(tokens[1]);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return listenRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("share", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return shareRequest(curClient);
+            }
+        });
+        COMMANDS.put("join", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isWord(tokens[1]);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return joinRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("ack", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return ackRequest(curClient);
+            }
+        });
+        COMMANDS.put("snapshot", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                curClient.getDoc().getQueue().forget(curClient);
+                return curClient.getDoc().getSnapshot().withRevision();
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                curClient.getDoc().getQueue().forget(curClient);
+                return snapshotRequest(curClient);
+            }
+        });
+        COMMANDS.put("edit", new RTCE_Command(5) {
+            public boolean accepts(String[] tokens) {
+                if (tokens.length != 5 || !isNumber(tokens[1], 18) || !isNumber(tokens[3])) {
+                    return false;
+                }
+                if (tokens[2].equals("insert")) {
+                    return isAscii(tokens[4]);
+                }
+                return tokens[2].equals("delete") && isNumber(tokens[4]);
+            }
+            public boolean streams() {
+                return true;
+            }
+            public RTCE_Snapshot stream(String[] tokens, RTCE_User curClient) {
+                return streamEdit(editEdit(tokens, curClient), curClient);
+            }
+            public boolean submits() {
+                return true;
+            }
+            public CompletableFuture<String> submit(String[] tokens, String rawLine, RTCE_User curClient) {
+                return resolveEdit(editEdit(tokens, curClient), curClient);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return editRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("since", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 2 && isNumber(tokens[1], 18);
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) throws UnsupportedEncodingException {
+                return sinceRequest(tokens, curClient);
+            }
+        });
+        COMMANDS.put("exit", new RTCE_Command(-1) {
+            public boolean accepts(String[] tokens) {
+                return tokens.length == 1;
+            }
+            public String handle(String[] tokens, String rawLine, RTCE_User curClient) {
+                return exitRequest();
+            }
+        });
     }
 
     /**
      * Main method to start an RTCE_Server running on the default port (4444).
+     * The RTCE.servermode system property picks how connections are served:
+     * "thread" (the default) uses one thread per connection, "nio" uses
+     * the non-blocking RTCE_NioServer and "virtual" runs every connection on
+     * a virtual thread, with at most RTCE.maxsessions connections at a time.
      */
     public static void main(String[] args) {
         final int port;
@@ -263,13 +997,52 @@ public class RTCE_Server {
         } else {
             port = Integer.parseInt(portProp);
         }
+        String modeProp = System.getProperty("RTCE.servermode");
         try {
-            runRTCEServer(port);
+            String dataProp = System.getProperty("RTCE.datadir");
+            if (dataProp != null) {
+                openDataDirectory(new File(dataProp));
+            }
+            if ("nio".equals(modeProp)) {
+                RTCE_NioServer.runNioServer(port);
+            } else if ("virtual".equals(modeProp)) {
+                String maxProp = System.getProperty("RTCE.maxsessions");
+                runVirtualRTCEServer(port, maxProp == null ? 50000 : Integer.parseInt(maxProp));
+            } else {
+                runRTCEServer(port);
+            }
         } catch (IOException e) {
             throw new RuntimeException("Problem in opening server.");
         }
     }
 
+    /**
+     * Method to keep the documents in a directory, so that they survive a
+     * restart: lists the documents saved there (each is only loaded when a
+     * client first asks for it, see RTCE_DocumentRegistry), and from then on logs every
+     * change to every document (see RTCE_WriteAheadLog). The changes are
+     * committed to the disk every RTCE.walcommit milliseconds (10 by default),
+     * and a log is folded into a snapshot once it is bigger than
+     * RTCE.walcheckpoint bytes (4 MB by default). Everything is committed
+     * when the JVM exits.
+     * @param File dir, the directory, created if needed.
+     * @throws IOException if the directory can't be created.
+     */
+    public static void openDataDirectory(File dir) throws IOException {
+        final RTCE_WriteAheadLog log = new RTCE_WriteAheadLog(dir,
+                Long.getLong("RTCE.walcommit", 10), Long.getLong("RTCE.walcheckpoint", 4 << 20));
+        for (String name : log.savedNames()) {
+            docs.putSaved(name, log);
+        }
+        wal = log;
+        log.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                log.close();
+            }
+        }));
+    }
+
     /**
      * Method to start the server in reality. The main method
      * calls this to start the server with the desired port #.
@@ -282,6 +1055,28 @@ public class RTCE_Server {
         server.serve();
     }
 
+    /**
+     * Method to start the server with a virtual thread per connection.
+     * The server is shut down gracefully when the JVM exits.
+     * @param int port, the port number you want to serve from.
+     * @param int maxSessions, the maximum number of concurrent connections.
+     * @throws IOException
+     */
+    public static void runVirtualRTCEServer(int port, int maxSessions)
+            throws IOException {
+        final RTCE_Server server = new RTCE_Server(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.shutdown(5000);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }));
+        server.serveOnVirtualThreads(maxSessions);
+    }
+
     /**
      * Helper method for view request. Gives the user a view of the
      * current state of the document.
@@ -291,11 +1086,28 @@ public class RTCE_Server {
      * @throws UnsupportedEncodingException 
      */
     public static String viewRequest(RTCE_User curClient) throws UnsupportedEncodingException {
-        return URLEncoder.encode(curClient.getDoc().getAllText(),"UTF-8") 
+        return curClient.getDoc().getSnapshot()
                 +String.format("%n") 
                 + "EOF";
     }
 
+    /**
+     * Helper method for the conditional view request, "view revision". Lets a
+     * client that polls find out that the document did not change since the
+     * revision it shows without getting the whole text again.
+     * @param String[] tokens, the tokens of the request, the revision the client shows.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, "not modified" if the document is still at that revision,
+     * else "revision text" like 'snapshot'.
+     * @throws UnsupportedEncodingException
+     */
+    public static String viewIfChangedRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        if (curClient.getDoc().getRevision() == Long.parseLong(tokens[1])) {
+            return NOT_MODIFIED;
+        }
+        return snapshotRequest(curClient);
+    }
+
     /**
      * Helper method for the giveStyle request. Gives the user the current style
      * of the document it is currently working on.
@@ -310,6 +1122,23 @@ public class RTCE_Server {
     }
 
 
+    /**
+     * Helper method for the conditional giveStyle request, "giveStyle x_0 x_1 x_2 x_3"
+     * with the style the client shows: the style is small, so it is its own tag.
+     * @param String[] tokens, the tokens of the request.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, "not modified" if the document has that style, else the
+     * style like 'giveStyle'.
+     * @throws UnsupportedEncodingException
+     */
+    public static String giveStyleIfChangedRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        String shown = tokens[1] + " " + tokens[2] + " " + tokens[3] + " " + tokens[4];
+        if (curClient.getDoc().getStyle().equals(shown)) {
+            return NOT_MODIFIED;
+        }
+        return giveStyleRequest(curClient);
+    }
+
     /**
      * Helper method for the style request. Changes the style of the current
      * document that the client is working on.
@@ -321,6 +1150,8 @@ public class RTCE_Server {
      */
     public static String styleUpdateRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
         curClient.getDoc().setStyle(tokens[1] + " " + tokens[2] + " " + tokens[3] + " " +tokens[4]);
+        broadcast(curClient.getDoc(), curClient, "delta " + curClient.getDoc().getRevision()
+                + " style " + curClient.getDoc().getStyle());
         return URLEncoder.encode(curClient.getDoc().getStyle(),"UTF-8") 
                 +String.format("%n") 
                 + "EOF";
@@ -331,17 +1162,133 @@ public class RTCE_Server {
      * by our protocol. This method does the actual editing of the file.
      * @param String[] tokens the array with the request, 
      * @param RTCE_User curClient, the user that made the request
-     * @return String, what the Document looks like after the insert.
+     * @return String, what the Document looks like after the insert, or
+     * "ack revision pos" if the user asked for compact acks.
      * @throws UnsupportedEncodingException 
      */
     public static String insertRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        return submitEdit(insertEdit(tokens, curClient), curClient);
+    }
+
+    /**
+     * Builds the edit of an insert request.
+     * @param String[] tokens the array with the request, split in 3.
+     * @param RTCE_User curClient, the user that made the request
+     * @return RTCE_Request, the edit, not submitted yet.
+     */
+    private static RTCE_Request insertEdit(String[] tokens, RTCE_User curClient) {
         int pos = Integer.valueOf(tokens[1]);
         String text = tokens[2];
-        curClient.getDoc().getQueue().addRequest(new RTCE_Request("insert", pos, text, curClient.getDoc()));
-        curClient.getDoc().getQueue().resolveRequest();
-        return URLEncoder.encode(curClient.getDoc().getAllText(), "UTF-8"  
-                )+String.format("%n") 
-                + "EOF";
+        return new RTCE_Request("insert", pos, text, curClient.getDoc());
+    }
+
+    /**
+     * Helper method for the edit request, an insert or a delete that says
+     * which revision of the document the client saw when it made it:
+     * "edit revision insert pos text" or "edit revision delete beginPos endPos".
+     * The edit is transformed against every edit applied since that revision
+     * before it is applied (see RTCE_Queue.resolveRequest), so it lands where
+     * the user meant it even if the view of the client was behind. The
+     * positions include the earlier edits of the user that were not applied
+     * at that revision yet, so a client can send its edits without waiting
+     * for the answers. If the server can't tell where it goes anymore, it is
+     * not applied at all, and neither are the next edits of the user based on
+     * a revision, until the user asked for a 'snapshot'.
+     * @param String[] tokens the array with the request, split in 5.
+     * @param RTCE_User curClient, the user that made the request
+     * @return String, the same answer as 'insert' or 'delete', or "stale revision"
+     * with compact acks if the edit was not applied.
+     * @throws UnsupportedEncodingException
+     */
+    public static String editRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        return submitEdit(editEdit(tokens, curClient), curClient);
+    }
+
+    /**
+     * Builds the edit of an edit request.
+     * @param String[] tokens the array with the request, split in 5.
+     * @param RTCE_User curClient, the user that made the request
+     * @return RTCE_Request, the edit, not submitted yet.
+     */
+    private static RTCE_Request editEdit(String[] tokens, RTCE_User curClient) {
+        RTCE_Request request;
+        if (tokens[2].equals("insert")) {
+            request = new RTCE_Request("insert", Integer.valueOf(tokens[3]),
+                    tokens.length > 4 ? tokens[4] : "", curClient.getDoc());
+        } else {
+            request = new RTCE_Request("delete", Integer.valueOf(tokens[3]),
+                    Integer.valueOf(tokens[4]), curClient.getDoc());
+        }
+        request.setBaseRevision(Long.parseLong(tokens[1]));
+        return request;
+    }
+
+    /**
+     * Submits an edit of the user to the sequencer of the document, waits
+     * until it was resolved and builds the answer.
+     * @param RTCE_Request request, the edit.
+     * @param RTCE_User curClient, the user that made the edit.
+     * @return String, what the Document looks like after the edit, or
+     * "ack revision pos" if the user asked for compact acks.
+     * @throws UnsupportedEncodingException
+     */
+    private static String submitEdit(RTCE_Request request, RTCE_User curClient) throws UnsupportedEncodingException {
+        return RTCE_Sequencer.await(resolveEdit(request, curClient));
+    }
+
+    /**
+     * submitEdit for the connection loops: if the user did not ask for
+     * compact acks the answer is the whole document, so the edit is applied
+     * and the snapshot of the document returned, to be streamed.
+     * @param RTCE_Request request, the edit.
+     * @param RTCE_User curClient, the user that made the edit.
+     * @return RTCE_Snapshot, the snapshot of the document after the edit, or
+     * null, without applying the edit, if the user asked for compact acks.
+     */
+    private static RTCE_Snapshot streamEdit(RTCE_Request request, RTCE_User curClient) {
+        if (curClient.getCompactAcks()) {
+            return null;
+        }
+        applyEdit(request, curClient);
+        return curClient.getDoc().getSnapshot();
+    }
+
+    /**
+     * submitEdit for the connection loops: the edit is submitted to the
+     * sequencer of the document without waiting for it, and the answer is
+     * built by the sequencer once the edit was resolved. The connection can
+     * then read the next edits of the user, which the sequencer resolves in
+     * the same batch if they arrive before it runs (see RTCE_Queue.resolveAll).
+     * @param RTCE_Request request, the edit.
+     * @param RTCE_User curClient, the user that made the edit.
+     * @return CompletableFuture<String>, completed with what the Document looks
+     * like after the edit, or "ack revision pos" (or "stale revision") if the
+     * user asked for compact acks, once the edit was resolved.
+     */
+    private static CompletableFuture<String> resolveEdit(RTCE_Request request, RTCE_User curClient) {
+        final boolean compactAcks = curClient.getCompactAcks();
+        request.setOrigin(curClient);
+        return request.parentDoc.getSequencer().submit(request).thenApply(new Function<RTCE_Request, String>() {
+            public String apply(RTCE_Request resolved) {
+                if (compactAcks) {
+                    return ack(resolved);
+                }
+                return resolved.parentDoc.getSnapshot()
+                        + String.format("%n")
+                        + "EOF";
+            }
+        });
+    }
+
+    /**
+     * Submits an edit of the user to the sequencer of the document and waits
+     * until it was resolved.
+     * @param RTCE_Request request, the edit.
+     * @param RTCE_User curClient, the user that made the edit.
+     */
+    private static void applyEdit(RTCE_Request request, RTCE_User curClient) {
+        request.setOrigin(curClient);
+        RTCE_Sequencer.await(curClient.getDoc().getSequencer().submit(request));
     }
 
     /**
@@ -349,20 +1296,111 @@ public class RTCE_Server {
      * by our protocol. This method does the actual editing of the file
      * @param String[] tokens the array with the request, 
      * @param RTCE_User curClient, the current user that made the request
-     * @return String, what the Document looks like after the delete.
+     * @return String, what the Document looks like after the delete, or
+     * "ack revision pos" if the user asked for compact acks.
      * @throws UnsupportedEncodingException 
      */
     public static String deleteRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        return submitEdit(deleteEdit(tokens, curClient), curClient);
+    }
 
+    /**
+     * Builds the edit of a delete request.
+     * @param String[] tokens the array with the request, split in 3.
+     * @param RTCE_User curClient, the user that made the request
+     * @return RTCE_Request, the edit, not submitted yet.
+     */
+    private static RTCE_Request deleteEdit(String[] tokens, RTCE_User curClient) {
         int beginPos=Integer.valueOf(tokens[1]);
         int endPos=Integer.valueOf(tokens[2]);
-        curClient.getDoc().getQueue().addRequest(new RTCE_Request("delete", beginPos, endPos, curClient.getDoc()));
-        curClient.getDoc().getQueue().resolveRequest();
-        return URLEncoder.encode(curClient.getDoc().getAllText(),"UTF-8")
-                +String.format("%n") 
+        return new RTCE_Request("delete", beginPos, endPos, curClient.getDoc());
+    }
+
+    /**
+     * Builds the compact answer to an edit: "ack revision pos", where revision
+     * is the revision of the document the edit produced and pos is the position
+     * it was applied at after the operational transforms. If the edit was
+     * dropped (its text was already deleted) the answer is "ack revision" with
+     * the current revision of the document. If a transform split a delete in
+     * two, revision is the one the second half produced. An edit based on a
+     * revision that can't be transformed from anymore is not applied, and
+     * answered "stale revision" (see RTCE_Queue.transformSinceBase).
+     * @param RTCE_Request request, the resolved edit.
+     * @return String, the ack.
+     */
+    private static String ack(RTCE_Request request) {
+        if (request.isStale()) {
+            return "stale revision"
+                    + String.format("%n")
+                    + "EOF";
+        }
+        if (request.getRevision() < 0) {
+            return "ack " + request.parentDoc.getRevision()
+                    + String.format("%n")
+                    + "EOF";
+        }
+        long revision = request.getRevision();
+        for (RTCE_Request r = request.getSplit(); r != null; r = r.getSplit()) {
+            revision = Math.max(revision, r.getRevision());
+        }
+        return "ack " + revision + " " + request.getStartPos()
+                + String.format("%n")
                 + "EOF";
     }
 
+    /**
+     * Helper method for the ack request. From then on the user's inserts and
+     * deletes are answered with a compact "ack revision pos" instead of the
+     * whole document. A client that sees a gap in the revisions it knows about
+     * asks for a 'snapshot'.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, "ack on".
+     */
+    public static String ackRequest(RTCE_User curClient) {
+        curClient.setCompactAcks(true);
+        return "ack on"
+                + String.format("%n")
+                + "EOF";
+    }
+
+    /**
+     * Helper method for the snapshot request. Like 'view', but tells the
+     * client which revision of the document it is looking at.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, "revision text" with the text URL-encoded.
+     * @throws UnsupportedEncodingException
+     */
+    public static String snapshotRequest(RTCE_User curClient) throws UnsupportedEncodingException {
+        RTCE_Snapshot snapshot = curClient.getDoc().getSnapshot();
+        return snapshot.getRevision() + " " + snapshot
+                + String.format("%n")
+                + "EOF";
+    }
+
+    /**
+     * Helper method for the since request. Lets a client that fell behind
+     * catch up from the last revision it knows about, with the operations it
+     * missed instead of the whole document. If the operation log of the
+     * document no longer goes back that far, the answer is a snapshot.
+     * @param String[] tokens, the tokens representing the request from the client.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, "ops op1 op2 ..." with every operation URL-encoded in the
+     * format of RTCE_Operation.toString(), or "revision text" like 'snapshot'.
+     * @throws UnsupportedEncodingException
+     */
+    public static String sinceRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
+        List<RTCE_Operation> ops = curClient.getDoc().getOperationsSince(Long.parseLong(tokens[1]));
+        if (ops == null) {
+            return snapshotRequest(curClient);
+        }
+        StringBuilder response = new StringBuilder("ops");
+        for (RTCE_Operation op : ops) {
+            // encoded twice, the client decodes the whole response once
+            response.append(" ").append(URLEncoder.encode(URLEncoder.encode(op.toString(), "UTF-8"), "UTF-8"));
+        }
+        return response.append(String.format("%n")).append("EOF").toString();
+    }
+
     /**
      * Helper method for the replaceAll request. Takes the tokens representing the
      * request from the user and calls the necessary methods to replace all the
@@ -375,15 +1413,7 @@ public class RTCE_Server {
      * @throws UnsupportedEncodingException
      */
     public static String replaceAllRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
-        String replaceFromInitial = tokens[1];
-        String replaceToInitial = tokens[2];
-        String replaceFrom = URLDecoder.decode(replaceFromInitial, "UTF-8");
-        String replaceTo = URLDecoder.decode(replaceToInitial, "UTF-8");
-
-        curClient.getDoc().replaceAll(replaceFrom, replaceTo);
-        String result = URLEncoder.encode(curClient.getDoc().getAllText(),"UTF-8");
-        return result  +String.format("%n") 
-                + "EOF";
+        return RTCE_Sequencer.await(submitReplace(tokens, true, curClient));
     }
 
     /**
@@ -398,15 +1428,42 @@ public class RTCE_Server {
      * @throws UnsupportedEncodingException
      */
     public static String replaceOneRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
-        String replaceFromInitial = tokens[1];
-        String replaceToInitial = tokens[2];
-        String replaceFrom = URLDecoder.decode(replaceFromInitial, "UTF-8");
-        String replaceTo = URLDecoder.decode(replaceToInitial, "UTF-8");
-
-        curClient.getDoc().replaceOne(replaceFrom, replaceTo);
-        String result = URLEncoder.encode(curClient.getDoc().getAllText(), "UTF-8");
-        return result + String.format("%n") 
-                + "EOF";
+        return RTCE_Sequencer.await(submitReplace(tokens, false, curClient));
+    }
+
+    /**
+     * Submits a replace to the sequencer of the user's document, without
+     * waiting for it to run.
+     * @param String[] tokens, the request line as it was sent, split at the spaces:
+     * the name of the request, the URL-encoded pattern and the URL-encoded text.
+     * @param boolean all, true to replace all the occurrences, false for the first one.
+     * @param RTCE_User curClient, the client whose document you are changing.
+     * @return CompletableFuture<String>, completed with the new view of the
+     * document once the replace was made.
+     * @throws UnsupportedEncodingException
+     */
+    private static CompletableFuture<String> submitReplace(String[] tokens, final boolean all, RTCE_User curClient)
+            throws UnsupportedEncodingException {
+        final String from = URLDecoder.decode(tokens[1], "UTF-8");
+        final String to = URLDecoder.decode(tokens[2], "UTF-8");
+        final RTCE_Document doc = curClient.getDoc();
+        final RTCE_User origin = curClient;
+        // run by the sequencer, so that the reset is pushed in order with the edits
+        return doc.getSequencer().submit(new Callable<String>() {
+            public String call() throws UnsupportedEncodingException {
+                if (all) {
+                    doc.replaceAll(from, to);
+                } else {
+                    doc.replaceOne(from, to);
+                }
+                // the sequencer is the only writer, so this is the snapshot of the replace
+                RTCE_Snapshot snapshot = doc.getSnapshot();
+                String result = snapshot.toString();
+                broadcast(doc, origin, "delta " + snapshot.getRevision() + " reset " + result);
+                return result + String.format("%n")
+                        + "EOF";
+            }
+        });
     }
 
     /**
@@ -416,10 +1473,7 @@ public class RTCE_Server {
      * stored on the server.
      */
     public static String listRequest() {
-        String listOfDocs = "";
-        for(int i = 0; i<docs.size();i++) {
-            listOfDocs += docs.get(i).getName()+" "+ String.format("%n");
-        }
+        String listOfDocs = docs.list();
         if (listOfDocs.equals("")) {
             return "There are no existing files on the server." 
                     +String.format("%n") 
@@ -430,6 +1484,22 @@ public class RTCE_Server {
                 + "EOF";
     }
 
+    /**
+     * Helper method for the conditional list request, "list version", with the
+     * version of the listing the client has (see RTCE_DocumentRegistry.getVersion).
+     * @param String[] tokens, the tokens of the request.
+     * @return String, "not modified" if no document was added since that
+     * version, else "version names" with the names like 'list'.
+     */
+    public static String listIfChangedRequest(String[] tokens) {
+        // read before the listing, so that the listing is at least as new
+        long version = docs.getVersion();
+        if (version == Long.parseLong(tokens[1])) {
+            return NOT_MODIFIED;
+        }
+        return version + " " + listRequest();
+    }
+
     /**
      * Helper method for the switch request. Allows a user two switch the
      * focus to another document. All edits and style requests will from now
@@ -441,78 +1511,206 @@ public class RTCE_Server {
      * @throws UnsupportedEncodingException 
      */
     public static String switchRequest(String[] tokens, RTCE_User curClient) throws UnsupportedEncodingException {
-        String fileName = tokens[1];
-        for (RTCE_Document doc: docs){
-            if(doc.getName().equals(fileName)) {
-                //put a client to the doc list
-                doc.setUser(curClient);
-                //if the client used to have a document remove the client from that document list
-
-                if(curClient.getDoc() != null) {
-                    curClient.getDoc().getList().remove(curClient);
-                }
-                //set the client to a new doc
-                curClient.setDoc(doc);
-                return URLEncoder.encode(curClient.getDoc().getAllText(),"UTF-8")                     
-                        + String.format("%n") 
-                        + "EOF";
-            }
+        RTCE_Document doc = findDocument(tokens[1]);
+        if (doc != null) {
+            switchDocument(doc, curClient);
+            return doc.getSnapshot()
+                    + String.format("%n") 
+                    + "EOF";
         }
         return "File does not exist, can't swtich" 
         + String.format("%n") 
         + "EOF";
     }
 
+    /**
+     * Finds a document by name.
+     * @param String fileName, the name of the document.
+     * @return RTCE_Document, the document, or null if there is none with that name.
+     */
+    static RTCE_Document findDocument(String fileName) {
+        return docs.get(fileName);
+    }
+
+    /**
+     * Moves a client to a document.
+     * @param RTCE_Document doc, the document to switch to.
+     * @param RTCE_User curClient, the client that switches.
+     */
+    private static void switchDocument(RTCE_Document doc, RTCE_User curClient) {
+        //put a client to the doc list
+        doc.setUser(curClient);
+        //if the client used to have another document remove the client from that document list
+
+        if(curClient.getDoc() != null && curClient.getDoc() != doc) {
+            curClient.getDoc().removeUser(curClient);
+            curClient.getDoc().getQueue().forget(curClient);
+        }
+        //set the client to a new doc
+        curClient.setDoc(doc);
+    }
+
     /**
      * Helper method for the new request. When a client connects a new file
      * must be created. There is no theoretical limit to the number of new 
      * documents that can be created. The user can give any name 
      * when they created a new file. The .txt suffix will be added automatically.
      * If the user does not specify a name , a generic name will be
-     * assigned by the server ("untitled[file number].txt".  
-     * Adds the new document to the document list kept by the server.
+     * assigned by the server ("untitled[file number].txt", skipping the
+     * numbers whose name is taken).
+     * Adds the new document to the document registry kept by the server. If
+     * there already is a document with the given name (another client made
+     * it first), the client is switched to it instead, so that two documents
+     * never have the same name.
      * @param tokens
      * @param curClient
-     * @return String. What the new document looks like. Probably will be empty.
+     * @return String. The name of the document. Probably will be empty.
      */
     public static String newRequest(String[] tokens, RTCE_User curClient) {
-
+        RTCE_Document doc;
         if (tokens.length == 1) {
-            String name = "untitled" + String.valueOf(numberOfUntitledDocs) + ".txt";
-            RTCE_Document doc = new RTCE_Document(name);
+            do {
+                doc = new RTCE_Document("untitled" + String.valueOf(takeDocumentCounter()) + ".txt");
+            } while (docs.putIfAbsent(doc) != null);
+            save(doc);
+        }
+        else {
+            // we might want to consider checking for .txt in the end of the file 
+            doc = new RTCE_Document(tokens[1]);
+            RTCE_Document existing = docs.putIfAbsent(doc);
+            if (existing != null) {
+                doc = existing;
+            } else {
+                save(doc);
+            }
+        }
+        switchDocument(doc, curClient);
+        return doc.getName()
+                + String.format("%n") 
+                + "EOF";
+    }
 
-            //put a client to the doc list
-            doc.setUser(curClient);
-            //if the client used to have a document remove the client from that document list
-            if(curClient.getDoc() != null) {
-                curClient.getDoc().getList().remove(curClient);
+    /**
+     * Starts saving a new document, if the server keeps its documents in a
+     * data directory. If it can't, the document is still served, from memory.
+     * @param RTCE_Document doc, the new document.
+     */
+    private static void save(RTCE_Document doc) {
+        if (wal != null) {
+            try {
+                wal.attach(doc);
+            } catch (IOException e) {
+                System.err.println("Could not save " + doc.getName() + ": " + e.getMessage());
             }
-            //set the client to a new doc
-            curClient.setDoc(doc);
-            updateDocumentCounter(1);
+        }
+    }
+
+    /**
+     * Helper method for the subscribe request. A client that wants the changes
+     * to its documents pushed to it, instead of polling with 'view', sends
+     * 'subscribe' on its main connection, opens a second connection and sends
+     * 'listen' with the returned token on it. The token is random, and a new
+     * 'subscribe' replaces the previous subscription of the user.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, the token to give to the 'listen' request.
+     */
+    public static String subscribeRequest(RTCE_User curClient) {
+        return curClient.newSubscribeToken()
+                + String.format("%n")
+                + "EOF";
+    }
 
+    /**
+     * Helper method for the listen request. Turns the connection that made the
+     * request into the push connection of the user owning the given token. From
+     * then on every edit to that user's current document, made by somebody else,
+     * is pushed on this connection as a delta (see RTCE_Request.toDelta()), as
+     * well as "delta revision reset text" after a replace and
+     * "delta revision style x x x x" after a style change. Each delta is
+     * followed by an EOF line. A token only works once, and not while the
+     * user still has a subscription (see RTCE_User.listen).
+     * @param String[] tokens, the tokens representing the request from the client.
+     * @param RTCE_User curClient, the user of the connection that will listen.
+     * @return String, "listening" or an error if the token is unknown.
+     */
+    public static String listenRequest(String[] tokens, RTCE_User curClient) {
+        // the token starts with the name of its user
+        int end = tokens[1].lastIndexOf('_');
+        RTCE_User c = end < 0 ? null : clients.get(tokens[1].substring(0, end));
+        if (c != null && c.listen(tokens[1], curClient.getChannel())) {
+            return "listening"
+                    + String.format("%n")
+                    + "EOF";
         }
-        else {
+        return "Unknown subscription, can't listen"
+                + String.format("%n")
+                + "EOF";
+    }
 
-            String name = tokens[1];
-            // we might want to consider checking for .txt in the end of the file 
-            RTCE_Document documentName =new RTCE_Document(name);
-            //put a client to the doc list
-            documentName.setUser(curClient);
-            //if the client used to have a document remove the client from that document list
-            if(curClient.getDoc() != null){
-                curClient.getDoc().getList().remove(curClient);
-            }
+    /**
+     * Helper method for the share request. The server answers the requests of
+     * a connection in order, so a client that does not want its edits to wait
+     * behind a slow poll sends 'share' on its main connection, opens another
+     * one and sends 'join' with the returned token on it, then polls there.
+     * @param RTCE_User curClient, the user that made the request.
+     * @return String, the token to give to the 'join' request.
+     */
+    public static String shareRequest(RTCE_User curClient) {
+        return curClient.newShareToken()
+                + String.format("%n")
+                + "EOF";
+    }
 
-            //set the client to a new doc
-            curClient.setDoc(documentName);
+    /**
+     * Helper method for the join request. From then on the requests of the
+     * connection that made it are about the document of the user owning the
+     * given token, whichever document that user switches to (see
+     * RTCE_User.getDoc). They are still made by the user of the connection: its
+     * 'snapshot' does not let the owner's refused edits through (see
+     * RTCE_Queue.forget). A token only works once.
+     * @param String[] tokens, the tokens representing the request from the client.
+     * @param RTCE_User curClient, the user of the connection that joins.
+     * @return String, "joined" or an error if the token is unknown.
+     */
+    public static String joinRequest(String[] tokens, RTCE_User curClient) {
+        // the token starts with the name of its user
+        int end = tokens[1].lastIndexOf('_');
+        RTCE_User c = end < 0 ? null : clients.get(tokens[1].substring(0, end));
+        if (c != null && c.join(tokens[1], curClient)) {
+            return "joined"
+                    + String.format("%n")
+                    + "EOF";
         }
-        docs.add(curClient.getDoc());
-        return curClient.getDoc().getName()
-                + String.format("%n") 
+        return "Unknown share, can't join"
+                + String.format("%n")
                 + "EOF";
     }
 
+    /**
+     * Pushes a delta to every user working on the given document that
+     * subscribed to updates, except to the user that made the change (its
+     * view already has it). Subscriptions whose connection is gone are dropped.
+     * Never blocks.
+     * @param RTCE_Document doc, the document that changed.
+     * @param RTCE_User origin, the user that made the change, can be null.
+     * @param String delta, the delta describing the change.
+     */
+    public static void broadcast(RTCE_Document doc, RTCE_User origin, String delta) {
+        String message = null;
+        for (RTCE_User c : doc.getUsers()) {
+            RTCE_PushChannel subscription = c.getSubscription();
+            if (c == origin || subscription == null) {
+                continue;
+            }
+            if (message == null) {
+                message = delta + String.format("%n") + "EOF";
+            }
+            if (!subscription.push(message)) {
+                c.dropSubscription(subscription);
+            }
+        }
+    }
+
     /**
      * Helper method for the hello request. This is mostly for the
      * terminal use of the RTCE so that you can see how many users
@@ -574,6 +1772,23 @@ public class RTCE_Server {
 
     
 
+    /**
+     * Method to register a user that just connected to the server.
+     * Used by the front ends that do not go through serve().
+     * @param RTCE_User user, the user that connected.
+     */
+    static void addClient(RTCE_User user) {
+        clients.attach(user);
+    }
+
+    /**
+     * Method to forget about a user that disconnected from the server.
+     * @param RTCE_User user, the user that disconnected.
+     */
+    static void removeClient(RTCE_User user) {
+        clients.detach(user);
+    }
+
     /**
      * Method to get the number of users connected to the server.
      * @return int, representing the number of users connected to the server
@@ -603,4 +1818,13 @@ public class RTCE_Server {
     public synchronized static int getDocumentCounter() {
        return numberOfUntitledDocs;
     }
+
+    /**
+     * Gets the document counter and increments it, in one step, so that two
+     * clients making untitled documents at the same time get different numbers.
+     * @return int, the counter before the increment.
+     */
+    private synchronized static int takeDocumentCounter() {
+        return numberOfUntitledDocs++;
+    }
 }
\ No newline at end of file
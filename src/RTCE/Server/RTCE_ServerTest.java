@@ -4,10 +4,18 @@ import static org.junit.Assert.*;
 
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import RTCE.Document.RTCE_Document;
+
 /*
  * Most of the testing for the server must be done as a Black Box 
  * Testing. (As we were taught in PS3). One of the main reasons we 
@@ -202,5 +210,170 @@ public class RTCE_ServerTest {
         RTCE_Server.updateDocumentCounter(1);
         assertEquals(RTCE_Server.getDocumentCounter(), 6); // we already have 6 docs
     }
-    
+
+    @Test
+    // Tests the 'ack' and 'snapshot' requests
+    public void ackRequestTest() throws UnsupportedEncodingException {
+        RTCE_User client3 = new RTCE_User(new Thread(), "client3", new Socket());
+        RTCE_Server.handleRequest("new ack.txt", client3);
+        assertEquals(RTCE_Server.handleRequest("ack", client3), "ack on"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("insert 0 hello", client3), "ack 1 0"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("delete 1 3", client3), "ack 2 1"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("snapshot", client3), "2 hlo"
+                + String.format("%n") + "EOF");
+    }
+
+    @Test
+    public void sinceRequestTest() throws UnsupportedEncodingException {
+        RTCE_User client4 = new RTCE_User(new Thread(), "client4", new Socket());
+        RTCE_Server.handleRequest("new since.txt", client4);
+        RTCE_Server.handleRequest("insert 0 a b", client4);
+        RTCE_Server.handleRequest("delete 0 1", client4);
+        assertEquals(URLDecoder.decode(RTCE_Server.handleRequest("since 0", client4), "UTF-8"),
+                "ops " + URLEncoder.encode("1 insert 0 a+b", "UTF-8") + " " + URLEncoder.encode("2 delete 0 1", "UTF-8")
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("since 2", client4), "ops"
+                + String.format("%n") + "EOF");
+        // the log does not know the future, send the whole text
+        assertEquals(RTCE_Server.handleRequest("since 7", client4), "2 +b"
+                + String.format("%n") + "EOF");
+    }
+
+    @Test
+    // Tests the conditional 'view', 'giveStyle' and 'list' requests
+    public void conditionalRequestsTest() throws UnsupportedEncodingException {
+        RTCE_User client8 = new RTCE_User(new Thread(), "client8", new Socket());
+        RTCE_Server.handleRequest("new cond.txt", client8);
+        RTCE_Server.handleRequest("insert 0 ab", client8);
+        assertEquals(RTCE_Server.handleRequest("view 1", client8), "not modified"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("view 0", client8), "1 ab"
+                + String.format("%n") + "EOF");
+        // the connection loops stream a changed view from the snapshot, and answer an unchanged one with handle
+        assertNull(RTCE_Server.streamRequest("view 1", client8));
+        assertEquals(RTCE_Server.streamRequest("view 0", client8).toString(), "1 ab");
+        assertEquals(RTCE_Server.streamRequest("snapshot", client8).toString(), "1 ab");
+        assertEquals(RTCE_Server.handleRequest("giveStyle 1 0 12 0", client8), "not modified"
+                + String.format("%n") + "EOF");
+        RTCE_Server.handleRequest("style 1 2 3 4", client8);
+        assertEquals(RTCE_Server.handleRequest("giveStyle 1 0 12 0", client8), URLEncoder.encode("1 2 3 4", "UTF-8")
+                + String.format("%n") + "EOF");
+        String list = RTCE_Server.handleRequest("list 0", client8);
+        String version = list.split(" ", 2)[0];
+        assertTrue(list.contains("cond.txt "));
+        assertEquals(RTCE_Server.handleRequest("list " + version, client8), "not modified"
+                + String.format("%n") + "EOF");
+        RTCE_Server.handleRequest("new cond2.txt", client8);
+        assertTrue(RTCE_Server.handleRequest("list " + version, client8).contains("cond2.txt "));
+    }
+
+    @Test
+    public void editRequestTest() throws UnsupportedEncodingException {
+        RTCE_User client5 = new RTCE_User(new Thread(), "client5", new Socket());
+        RTCE_User client6 = new RTCE_User(new Thread(), "client6", new Socket());
+        RTCE_Server.handleRequest("new edit.txt", client5);
+        RTCE_Server.handleRequest("switch edit.txt", client6);
+        RTCE_Server.handleRequest("ack", client6);
+        RTCE_Server.handleRequest("insert 0 abc", client5);
+        RTCE_Server.handleRequest("edit 1 insert 0 1", client5);
+        // client6 only saw revision 1
+        assertEquals(RTCE_Server.handleRequest("edit 1 insert 3 2", client6), "ack 3 4"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("edit 1 delete 0 1", client6), "ack 4 1"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("snapshot", client6), "4 1bc2"
+                + String.format("%n") + "EOF");
+        // a revision the server never had: the edit is refused, not applied
+        assertEquals(RTCE_Server.handleRequest("edit 9 insert 0 3", client6), "stale revision"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleRequest("snapshot", client6), "4 1bc2"
+                + String.format("%n") + "EOF");
+    }
+
+    @Test
+    // Tests the frames of the binary framing and the "hello binary" request
+    public void frameRequestTest() throws UnsupportedEncodingException {
+        RTCE_User client7 = new RTCE_User(new Thread(), "client7", new Socket());
+        assertTrue(RTCE_Server.isBinaryHello(URLEncoder.encode("hello binary", "UTF-8")));
+        assertFalse(RTCE_Server.isBinaryHello("hello"));
+        // answered like "hello" by handleRequest, only the connection loops switch to frames
+        assertTrue(RTCE_Server.handleRequest("hello+binary", client7).startsWith("Welcome to RTCE"));
+
+        RTCE_Server.handleFrame(RTCE_Frame.line("new frame.txt"), client7);
+        RTCE_Server.handleFrame(RTCE_Frame.line("ack"), client7);
+        // not URL encoded, and not only ASCII
+        assertEquals(RTCE_Server.handleFrame(RTCE_Frame.insert(-1, 0, "caf\u00e9 100%"), client7), "ack 1 0"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.handleFrame(RTCE_Frame.insert(0, 0, "+"), client7), "ack 2 0"
+                + String.format("%n") + "EOF");
+        // made on top of the "+", which was not applied yet at revision 1
+        assertEquals(RTCE_Server.handleFrame(RTCE_Frame.delete(1, 4, 5), client7), "ack 3 4"
+                + String.format("%n") + "EOF");
+        assertEquals(RTCE_Server.responseText(RTCE_Server.handleFrame(RTCE_Frame.line("view"), client7)),
+                "+caf 100%");
+        assertEquals(RTCE_Server.handleFrame(RTCE_Frame.response("view"), client7), "Invalid Request."
+                + String.format("%n") + "EOF");
+        // the replaces get their arguments URL encoded, like on a line connection
+        RTCE_Server.handleFrame(RTCE_Frame.line("replaceAll " + URLEncoder.encode("100%", "UTF-8") + " all"), client7);
+        assertEquals(RTCE_Server.responseText(RTCE_Server.handleFrame(RTCE_Frame.line("view"), client7)),
+                "+caf all");
+    }
+
+    @Test
+    // Tests that a burst of edits submitted by a connection loop is applied as a single revision
+    public void editBurstTest() throws Exception {
+        RTCE_User client9 = new RTCE_User(new Thread(), "client9", new Socket());
+        RTCE_Server.handleRequest("new burst.txt", client9);
+        RTCE_Server.handleRequest("ack", client9);
+        RTCE_Document doc = client9.getDoc();
+        long revision = doc.getRevision();
+        // the sequencer is busy, so the burst waits in its inbox, like it does behind a long batch
+        final CountDownLatch busy = new CountDownLatch(1);
+        doc.getSequencer().submit(new Callable<Void>() {
+            public Void call() throws InterruptedException {
+                busy.await();
+                return null;
+            }
+        });
+        List<CompletableFuture<String>> answers = new ArrayList<CompletableFuture<String>>();
+        answers.add(RTCE_Server.submitRequest("insert 0 a", client9));
+        answers.add(RTCE_Server.submitRequest("insert 1 b", client9));
+        answers.add(RTCE_Server.submitRequest("insert 2 c", client9));
+        assertFalse(answers.get(0).isDone());
+        busy.countDown();
+        for (int i = 0; i < answers.size(); i++) {
+            assertEquals("ack " + (revision + 1) + " " + i + String.format("%n") + "EOF", answers.get(i).get());
+        }
+        assertEquals(revision + 1, doc.getRevision());
+        assertEquals(RTCE_Server.handleRequest("view", client9), "abc" + String.format("%n") + "EOF");
+    }
+
+    @Test
+    // Tests that a connection that joined a user polls the document that user works on
+    public void joinTest() throws UnsupportedEncodingException {
+        RTCE_User owner = new RTCE_User(new Thread(), "client10", new Socket());
+        RTCE_User poller = new RTCE_User(new Thread(), "client11", new Socket());
+        RTCE_Server.addClient(owner);
+        RTCE_Server.addClient(poller);
+        try {
+            RTCE_Server.handleRequest("new joined.txt", owner);
+            RTCE_Server.handleRequest("insert 0 first", owner);
+            String token = RTCE_Server.handleRequest("share", owner).trim().split("\\s")[0];
+            assertEquals(RTCE_Server.handleRequest("join client10", poller), "Unknown share, can't join"
+                    + String.format("%n") + "EOF");
+            assertEquals(RTCE_Server.handleRequest("join " + token, poller), "joined" + String.format("%n") + "EOF");
+            assertEquals(RTCE_Server.handleRequest("view", poller), "first" + String.format("%n") + "EOF");
+            RTCE_Server.handleRequest("new joined2.txt", owner);
+            assertEquals(RTCE_Server.handleRequest("view", poller), String.format("%n") + "EOF");
+            // used
+            assertEquals(RTCE_Server.handleRequest("join " + token, poller), "Unknown share, can't join"
+                    + String.format("%n") + "EOF");
+        } finally {
+            RTCE_Server.removeClient(owner);
+            RTCE_Server.removeClient(poller);
+        }
+    }
 }
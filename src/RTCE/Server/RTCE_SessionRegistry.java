@@ -0,0 +1,77 @@
+package RTCE.Server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import RTCE.Document.RTCE_Document;
+/*
+ * Thread safety argument
+ * The sessions are kept in a ConcurrentHashMap, so attach, detach and get never take a lock
+ * shared by all the connections, and any thread sees every session attached before it looked.
+ * detach only removes the mapping if it still belongs to the given user (remove(key, value)),
+ * so a late detach can't drop another session. The users themselves are only changed by the
+ * thread of their own connection (see RTCE_User); detach runs on that thread, after its last
+ * request, so the document it leaves is the last one the user switched to.
+ */
+/**
+ * The users connected to the server, indexed by their connection id: the
+ * name the server gave them when they connected (which is also the token
+ * of the "subscribe" and "listen" requests). Attaching a user when it
+ * connects and detaching it when it disconnects take constant time, however
+ * many users are connected.
+ */
+public class RTCE_SessionRegistry {
+
+    private final ConcurrentHashMap<String, RTCE_User> sessions = new ConcurrentHashMap<String, RTCE_User>();
+
+    /**
+     * Adds the session of a user that just connected.
+     * @param RTCE_User user, the user, named with its connection id.
+     */
+    public void attach(RTCE_User user) {
+        sessions.put(user.getName(), user);
+    }
+
+    /**
+     * Finds a session by connection id.
+     * @param String id, the connection id.
+     * @return RTCE_User, the user of the connection, or null if it is not connected.
+     */
+    public RTCE_User get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Removes the session of a user that disconnected, and takes the user
+     * off the document it was working on, so that nothing is pushed to it
+     * anymore.
+     * @param RTCE_User user, the user that disconnected.
+     * @return boolean, true if the user was attached.
+     */
+    public boolean detach(RTCE_User user) {
+        RTCE_Document doc = user.getDoc();
+        if (doc != null) {
+            doc.removeUser(user);
+            doc.getQueue().forget(user);
+        }
+        return sessions.remove(user.getName(), user);
+    }
+
+    /**
+     * Get the users that are connected. The collection is a live view: it
+     * can be iterated while users connect and disconnect, and then may or
+     * may not show those changes.
+     * @return Collection<RTCE_User>, the connected users.
+     */
+    public Collection<RTCE_User> users() {
+        return sessions.values();
+    }
+
+    /**
+     * Get the number of users that are connected.
+     * @return int, the number of sessions.
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,89 @@
+package RTCE.Server;
+
+import static org.junit.Assert.*;
+
+import java.net.Socket;
+
+import org.junit.Test;
+
+import RTCE.Document.RTCE_Document;
+
+/**
+ * Testing strategy:
+ *      (1) Attached users are found by connection id, detached ones are not.
+ *      (2) Detaching a user takes it off its document, and detaching twice,
+ *          or detaching a user whose id was reused, does not drop the
+ *          current session.
+ *      (3) Many threads connecting and disconnecting at the same time leave
+ *          exactly the sessions that are still connected.
+ */
+public class RTCE_SessionRegistryTest {
+
+    @Test
+    public void attachAndDetach() {
+        RTCE_SessionRegistry sessions = new RTCE_SessionRegistry();
+        RTCE_User a = new RTCE_User(null, "1", new Socket());
+        RTCE_User b = new RTCE_User(null, "2", new Socket());
+        sessions.attach(a);
+        sessions.attach(b);
+        assertSame(a, sessions.get("1"));
+        assertSame(b, sessions.get("2"));
+        assertNull(sessions.get("3"));
+        assertEquals(2, sessions.size());
+        assertTrue(sessions.detach(a));
+        assertNull(sessions.get("1"));
+        assertEquals(1, sessions.users().size());
+        assertTrue(sessions.users().contains(b));
+    }
+
+    @Test
+    public void detachLeavesDocument() {
+        RTCE_SessionRegistry sessions = new RTCE_SessionRegistry();
+        RTCE_Document doc = new RTCE_Document("session.txt");
+        RTCE_User a = new RTCE_User(null, "1", new Socket());
+        sessions.attach(a);
+        doc.setUser(a);
+        a.setDoc(doc);
+        assertTrue(doc.getUsers().contains(a));
+        assertTrue(sessions.detach(a));
+        assertFalse(doc.getUsers().contains(a));
+        assertFalse(sessions.detach(a));
+
+        RTCE_User again = new RTCE_User(null, "1", new Socket());
+        sessions.attach(again);
+        assertFalse(sessions.detach(a));
+        assertSame(again, sessions.get("1"));
+    }
+
+    @Test
+    public void connectStorm() throws InterruptedException {
+        final RTCE_SessionRegistry sessions = new RTCE_SessionRegistry();
+        final RTCE_Document doc = new RTCE_Document("storm.txt");
+        final int users = 5000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t * users;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = first; i < first + users; i++) {
+                        RTCE_User u = new RTCE_User(null, String.valueOf(i), new Socket());
+                        sessions.attach(u);
+                        doc.setUser(u);
+                        u.setDoc(doc);
+                        if (i % 2 == 0) {
+                            sessions.detach(u);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * users / 2, sessions.size());
+        assertEquals(threads.length * users / 2, doc.getUsers().size());
+        assertNotNull(sessions.get("1"));
+        assertNull(sessions.get("2"));
+    }
+}
@@ -1,6 +1,8 @@
 package RTCE.Server;
 
 import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 
 import RTCE.Document.RTCE_Document;
 
@@ -12,6 +14,17 @@ import RTCE.Document.RTCE_Document;
  * and are not shared with any other clients. Furthermore, there is no actual race condition because each
  * method is responsible to update a different JComponent , so there is no concern that their order of
  * execution will interfere with the view.  
+ *
+ * The subscription is the exception: it is set by the 'listen' request of another connection and
+ * dropped by the threads that push to it. The token and the subscription only change under the
+ * monitor of the user (newSubscribeToken, listen and dropSubscription), so a token is used once and
+ * a dead channel is only dropped if it is still the subscription. The field is volatile, so the
+ * threads that push read it without the lock.
+ *
+ * A connection that joined the user (see the "share" and "join" requests in RTCE_Server) reads
+ * the document of the user from its own thread. The join token only changes under the monitor of
+ * the user, like the subscribe token, and doc and owner are volatile, so that connection sees the
+ * document the user switched to last.
 
  */
 
@@ -20,13 +33,31 @@ import RTCE.Document.RTCE_Document;
  * between users on the server. Every User has four (4) 
  * fields: 1) The thread it is on. 2) its name. 3) its socket.
  * 4) the document it is currently working on.
+ * 
+ * A user can also have two push channels: the channel of its own
+ * connection, and the subscription channel that the deltas of the
+ * document it is working on are delivered to (see the "subscribe"
+ * and "listen" requests in RTCE_Server). A connection can only become
+ * the subscription with the random token 'subscribe' gave the user, once.
+ *
+ * The user of another connection can also join a user with the token
+ * 'share' gave it (its owner): it then works on the document of its
+ * owner, so a client can send its polls on a connection of their own.
  *
  */
 public class RTCE_User {
     Thread thread;
-    RTCE_Document doc;
+    volatile RTCE_Document doc;
     String name;
     Socket socket;
+    volatile RTCE_PushChannel channel;
+    volatile RTCE_PushChannel subscription;
+    boolean compactAcks = false;
+    private String subscribeToken = null; // guarded by this, null once used
+    private String shareToken = null; // guarded by this, null once used
+    private volatile RTCE_User owner = null; // the user this connection joined, if any
+
+    private static final SecureRandom TOKENS = new SecureRandom();
 
     /**
      * Constructor for RTCE_Client. Takes three of the fields
@@ -76,6 +107,124 @@ public class RTCE_User {
         this.socket = socket;
     }
 
+    /**
+     * Method to set the push channel of the Client's own connection.
+     * @param RTCE_PushChannel channel, the channel writing to this Client's socket.
+     */
+    public void setChannel(RTCE_PushChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Method to set where the deltas of the Client's document are pushed.
+     * @param RTCE_PushChannel subscription, the channel to push to, or null
+     * to stop pushing.
+     */
+    public void setSubscription(RTCE_PushChannel subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * Method to start a new subscription of the Client: makes a new token
+     * for the 'listen' request, which can't be guessed, and stops pushing to
+     * the previous subscription.
+     * @return String, the token: the name of the Client, "_" and 32 hex digits.
+     */
+    public synchronized String newSubscribeToken() {
+        subscribeToken = newToken();
+        subscription = null;
+        return subscribeToken;
+    }
+
+    /**
+     * Makes a token that can't be guessed, starting with the name of the Client.
+     * @return String, the name of the Client, "_" and 32 hex digits.
+     */
+    private String newToken() {
+        byte[] random = new byte[16];
+        TOKENS.nextBytes(random);
+        StringBuilder token = new StringBuilder(name).append('_');
+        for (byte b : random) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Method to let another connection join the Client: makes a new token
+     * for the 'join' request, which can't be guessed.
+     * @return String, the token: the name of the Client, "_" and 32 hex digits.
+     */
+    public synchronized String newShareToken() {
+        shareToken = newToken();
+        return shareToken;
+    }
+
+    /**
+     * Method to make another user join the Client, if the token is the one
+     * newShareToken gave last, and the Client did not join anyone itself.
+     * The token can only be used once.
+     * @param String token, the token sent with the 'join' request.
+     * @param RTCE_User user, the user of the connection that joins.
+     * @return boolean, true if the user now works on the document of the Client.
+     */
+    public synchronized boolean join(String token, RTCE_User user) {
+        if (shareToken == null || user == this || owner != null
+                || !MessageDigest.isEqual(shareToken.getBytes(), token.getBytes())) {
+            return false;
+        }
+        shareToken = null;
+        user.owner = this;
+        return true;
+    }
+
+    /**
+     * Method to make a channel the subscription of the Client, if the token
+     * is the one newSubscribeToken gave last and the Client has no live
+     * subscription. The token can only be used once.
+     * @param String token, the token sent with the 'listen' request.
+     * @param RTCE_PushChannel channel, the channel to push to.
+     * @return boolean, true if the channel is now the subscription.
+     */
+    public synchronized boolean listen(String token, RTCE_PushChannel channel) {
+        if (subscribeToken == null || subscription != null
+                || !MessageDigest.isEqual(subscribeToken.getBytes(), token.getBytes())) {
+            return false;
+        }
+        subscribeToken = null;
+        subscription = channel;
+        return true;
+    }
+
+    /**
+     * Method to stop pushing to a subscription whose connection is gone,
+     * unless the Client already has another one.
+     * @param RTCE_PushChannel dead, the subscription that could not be pushed to.
+     */
+    public synchronized void dropSubscription(RTCE_PushChannel dead) {
+        if (subscription == dead) {
+            subscription = null;
+        }
+    }
+
+    /**
+     * Method to choose how the server answers the Client's edits.
+     * @param boolean compactAcks, true to answer with "ack revision pos",
+     * false to answer with the whole document.
+     */
+    public void setCompactAcks(boolean compactAcks) {
+        this.compactAcks = compactAcks;
+    }
+
+    /**
+     * Method to know how the server answers the Client's edits.
+     * @return boolean, true if the Client gets "ack revision pos" answers,
+     * false if it gets the whole document.
+     */
+    public boolean getCompactAcks() {
+        return this.compactAcks;
+    }
+
     /**
      * Method to get the Thread that the Client is on.
      * @return Thread. The thread the Client is on.
@@ -86,12 +235,21 @@ public class RTCE_User {
 
     /**
      * Method to get the Document object the Client is currently
-     * focused on.
+     * focused on, the one of its owner if it joined another Client.
      * @return RTCE_Document. The RTCE_Document object that the Client
      * is currently on.
      */
     public RTCE_Document getDoc() {
-        return this.doc;
+        RTCE_User o = owner;
+        return o != null ? o.doc : this.doc;
+    }
+
+    /**
+     * Method to get the Client this one joined (see join).
+     * @return RTCE_User, the owner, or null if the Client did not join anyone.
+     */
+    public RTCE_User getOwner() {
+        return owner;
     }
 
     /**
@@ -111,4 +269,22 @@ public class RTCE_User {
     public Socket getSocket() {
         return this.socket;
     }
-}
\ No newline at end of file
+
+    /**
+     * Method to get the push channel of the Client's own connection.
+     * @return RTCE_PushChannel, the channel writing to this Client's socket.
+     */
+    public RTCE_PushChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Method to get the channel that the deltas of the Client's
+     * document are pushed to.
+     * @return RTCE_PushChannel, the subscription channel or null if
+     * the Client did not subscribe.
+     */
+    public RTCE_PushChannel getSubscription() {
+        return this.subscription;
+    }
+}
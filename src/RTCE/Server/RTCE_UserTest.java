@@ -16,6 +16,10 @@ import RTCE.Document.RTCE_Document;
  *           Try all setter methods
  *           Try all getter methods
  *           Try a number of setter and getters in succession
+ *           Subscribe: only the last token works, once, and a dead
+ *           subscription is dropped only if it was not replaced
+ *           Join: the share token works once, and the user that joined
+ *           follows the document of its owner
  * @author Philippe
  *
  */
@@ -126,4 +130,53 @@ public class RTCE_UserTest {
         Socket soc = client.getSocket();
         assertEquals(soc, socket);
     }
+
+    private static class FakeChannel implements RTCE_PushChannel {
+        public boolean push(String message) {
+            return true;
+        }
+    }
+
+    @Test
+    public void subscribeTest() {
+        RTCE_User client = new RTCE_User(new Thread(), "7", new Socket());
+        RTCE_PushChannel first = new FakeChannel();
+        RTCE_PushChannel second = new FakeChannel();
+        assertFalse(client.listen("7", first)); // the name is not a token
+        String old = client.newSubscribeToken();
+        String token = client.newSubscribeToken();
+        assertTrue(token.startsWith("7_"));
+        assertFalse(token.equals(old));
+        assertFalse(client.listen(old, first));
+        assertTrue(client.listen(token, first));
+        assertFalse(client.listen(token, second)); // used, and subscribed
+        assertSame(first, client.getSubscription());
+        client.dropSubscription(second);
+        assertSame(first, client.getSubscription());
+        client.dropSubscription(first);
+        assertNull(client.getSubscription());
+        assertFalse(client.listen(token, second));
+    }
+
+    @Test
+    public void joinTest() {
+        RTCE_User client = new RTCE_User(new Thread(), "8", new Socket());
+        RTCE_User poller = new RTCE_User(new Thread(), "9", new Socket());
+        RTCE_Document doc = new RTCE_Document("shared.txt");
+        client.setDoc(doc);
+        assertFalse(client.join("8", poller)); // the name is not a token
+        String token = client.newShareToken();
+        assertTrue(token.startsWith("8_"));
+        assertFalse(client.join(token, client));
+        assertTrue(client.join(token, poller));
+        assertFalse(client.join(token, poller)); // used
+        assertSame(client, poller.getOwner());
+        assertSame(doc, poller.getDoc());
+        RTCE_Document other = new RTCE_Document("other.txt");
+        client.setDoc(other);
+        assertSame(other, poller.getDoc());
+        // a user that joined someone can't be joined
+        String pollerToken = poller.newShareToken();
+        assertFalse(poller.join(pollerToken, new RTCE_User(new Thread(), "10", new Socket())));
+    }
 }
\ No newline at end of file